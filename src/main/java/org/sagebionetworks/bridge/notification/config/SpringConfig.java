@@ -12,6 +12,20 @@ import org.sagebionetworks.bridge.dynamodb.DynamoNamingHelper;
 @ComponentScan("org.sagebionetworks.bridge.notification")
 @Configuration
 public class SpringConfig {
+    @Bean(name = "ddbNotificationActiveUserTable")
+    @Autowired
+    public Table ddbNotificationActiveUserTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationActiveUser");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationBurstStateTable")
+    @Autowired
+    public Table ddbNotificationBurstStateTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationBurstState");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbNotificationConfigTable")
     @Autowired
     public Table ddbNotificationConfigTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
@@ -25,4 +39,11 @@ public class SpringConfig {
         String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationLog");
         return ddbClient.getTable(fullyQualifiedTableName);
     }
+
+    @Bean(name = "ddbNotificationSkipTable")
+    @Autowired
+    public Table ddbNotificationSkipTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationSkip");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
 }
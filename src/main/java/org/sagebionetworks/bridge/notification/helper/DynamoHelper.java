@@ -1,19 +1,32 @@
 package org.sagebionetworks.bridge.notification.helper;
 
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.google.common.collect.Iterators;
 import com.jcabi.aspects.Cacheable;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.notification.worker.BurstState;
+import org.sagebionetworks.bridge.notification.worker.NotificationSkip;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
@@ -21,15 +34,23 @@ import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
 /** Abstracts away DynamoDB calls. */
 @Component("NotificationWorkerDynamoHelper")
 public class DynamoHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(DynamoHelper.class);
+
     // DDB column names. Package-scoped for unit tests.
     static final String KEY_APP_URL = "appUrl";
     static final String KEY_BURST_DURATION_DAYS = "burstDurationDays";
+    static final String KEY_BURST_RULES_HASH = "burstRulesHash";
+    static final String KEY_BURST_START_DATE = "burstStartDate";
     static final String KEY_BURST_EVENT_ID_SET = "burstStartEventIdSet";
     static final String KEY_BURST_TASK_ID = "burstTaskId";
+    static final String KEY_CONSECUTIVE_DAYS_MISSED = "consecutiveDaysMissed";
+    static final String KEY_DAYS_MISSED = "daysMissed";
     static final String KEY_EARLY_LATE_CUTOFF_DAYS = "earlyLateCutoffDays";
     static final String KEY_ENGAGEMENT_SURVEY_GUID = "engagementSurveyGuid";
     static final String KEY_EXCLUDED_DATA_GROUP_SET = "excludedDataGroupSet";
+    static final String KEY_EXPIRATION_TIME = "expirationTime";
     static final String KEY_FINISH_TIME = "finishTime";
+    static final String KEY_LAST_EVALUATED_DATE = "lastEvaluatedDate";
     static final String KEY_MESSAGE = "message";
     static final String KEY_MISSED_CUMULATIVE_MESSAGES = "missedCumulativeActivitiesMessagesList";
     static final String KEY_MISSED_EARLY_MESSAGES = "missedEarlyActivitiesMessagesList";
@@ -38,11 +59,17 @@ public class DynamoHelper {
     static final String KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_END = "notificationBlackoutDaysFromEnd";
     static final String KEY_NOTIFICATION_TIME = "notificationTime";
     static final String KEY_NOTIFICATION_TYPE = "notificationType";
+    static final String KEY_NUM_ACTIVITIES_COMPLETED = "numActivitiesCompleted";
     static final String KEY_NUM_ACTIVITIES_TO_COMPLETE = "numActivitiesToCompleteBurst";
+    static final String KEY_NUM_DAYS = "numDays";
     static final String KEY_NUM_MISSED_DAYS_TO_NOTIFY = "numMissedDaysToNotify";
     static final String KEY_NUM_MISSED_CONSECUTIVE_DAYS_TO_NOTIFY = "numMissedConsecutiveDaysToNotify";
     static final String KEY_PREBURST_MESSAGES = "preburstMessagesByDataGroup";
+    static final String KEY_RESOLVED = "resolved";
+    static final String KEY_RESOLVED_NOTIFICATION_TYPE = "resolvedNotificationType";
+    static final String KEY_SKIP_UNTIL_DATE = "skipUntilDate";
     static final String KEY_STUDY_ID = "studyId";
+    static final String KEY_STUDY_ID_DATE = "studyIdDate";
     static final String KEY_TAG = "tag";
     static final String KEY_USER_ID = "userId";
     static final String KEY_WORKER_ID = "workerId";
@@ -50,10 +77,33 @@ public class DynamoHelper {
     // Worker ID for the Worker Log
     static final String VALUE_WORKER_ID = "ActivityNotificationWorker";
 
+    // Active user entries are only read by the run for their date. Keep them for a week after, in case we need to
+    // re-run a day, then let DynamoDB TTL clean them up.
+    private static final int ACTIVE_USER_EXPIRATION_DAYS = 7;
+
+    private Table ddbNotificationActiveUserTable;
+    private Table ddbNotificationBurstStateTable;
     private Table ddbNotificationConfigTable;
     private Table ddbNotificationLogTable;
+    private Table ddbNotificationSkipTable;
     private Table ddbWorkerLogTable;
     private DynamoQueryHelper dynamoQueryHelper;
+    private ExecutorService notificationLogExecutorService;
+
+    /**
+     * DDB table for active users, keyed by study and date. Incremental runs only evaluate the users in this table for
+     * the run's date.
+     */
+    @Resource(name = "ddbNotificationActiveUserTable")
+    public final void setDdbNotificationActiveUserTable(Table ddbNotificationActiveUserTable) {
+        this.ddbNotificationActiveUserTable = ddbNotificationActiveUserTable;
+    }
+
+    /** DDB table for per-user burst state, so each run only evaluates activities since the last run. */
+    @Resource(name = "ddbNotificationBurstStateTable")
+    public final void setDdbNotificationBurstStateTable(Table ddbNotificationBurstStateTable) {
+        this.ddbNotificationBurstStateTable = ddbNotificationBurstStateTable;
+    }
 
     /** DDB table for notification configs. */
     @Resource(name = "ddbNotificationConfigTable")
@@ -67,6 +117,12 @@ public class DynamoHelper {
         this.ddbNotificationLogTable = ddbNotificationLogTable;
     }
 
+    /** DDB table for notification skips, used to skip users who don't need a notification until a later date. */
+    @Resource(name = "ddbNotificationSkipTable")
+    public final void setDdbNotificationSkipTable(Table ddbNotificationSkipTable) {
+        this.ddbNotificationSkipTable = ddbNotificationSkipTable;
+    }
+
     /**
      * DDB table for the worker log. Used to track worker runs and to signal to integration tests when the worker has
      * finished running.
@@ -82,6 +138,15 @@ public class DynamoHelper {
         this.dynamoQueryHelper = dynamoQueryHelper;
     }
 
+    /**
+     * Executor service used to look up notification logs for a page of users concurrently. The size of the thread
+     * pool bounds how many queries we have in flight against the notification log table.
+     */
+    @Resource(name = "notificationLogExecutorService")
+    public final void setNotificationLogExecutorService(ExecutorService notificationLogExecutorService) {
+        this.notificationLogExecutorService = notificationLogExecutorService;
+    }
+
     /** Gets the notification config for the given study. This method caches results for 5 minutes. */
     @SuppressWarnings("DefaultAnnotationParam")
     @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
@@ -107,6 +172,76 @@ public class DynamoHelper {
         return workerConfig;
     }
 
+    /**
+     * Gets the IDs of the users who need to be evaluated on the given date in the given study. Users are read lazily,
+     * one page of query results at a time.
+     */
+    public Iterator<String> getActiveUserIdsForDate(String studyId, LocalDate date) {
+        QuerySpec query = new QuerySpec().withHashKey(KEY_STUDY_ID_DATE, makeStudyIdDate(studyId, date));
+        Iterator<Item> itemIter = dynamoQueryHelper.query(ddbNotificationActiveUserTable, query).iterator();
+        return Iterators.transform(itemIter, item -> item.getString(KEY_USER_ID));
+    }
+
+    /**
+     * Marks the given user as needing to be evaluated on each date from startDate to endDate (inclusive). Marking a
+     * user who is already marked for a date is a no-op.
+     */
+    public void markUserActiveForDates(String studyId, String userId, LocalDate startDate, LocalDate endDate) {
+        for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
+            long expirationTime = date.plusDays(ACTIVE_USER_EXPIRATION_DAYS).toDateTimeAtStartOfDay()
+                    .getMillis() / 1000;
+            Item item = new Item().withPrimaryKey(KEY_STUDY_ID_DATE, makeStudyIdDate(studyId, date), KEY_USER_ID,
+                    userId).withLong(KEY_EXPIRATION_TIME, expirationTime);
+            ddbNotificationActiveUserTable.putItem(item);
+        }
+    }
+
+    // Hash key for the active user table.
+    private static String makeStudyIdDate(String studyId, LocalDate date) {
+        return studyId + ":" + date;
+    }
+
+    /** Gets the burst state for the given user. Returns null if there is no burst state for the user. */
+    public BurstState getBurstStateForUser(String userId) {
+        Item item = ddbNotificationBurstStateTable.getItem(KEY_USER_ID, userId);
+        if (item == null) {
+            return null;
+        }
+
+        BurstState burstState = new BurstState();
+        burstState.setUserId(item.getString(KEY_USER_ID));
+        burstState.setBurstStartDate(LocalDate.parse(item.getString(KEY_BURST_START_DATE)));
+        burstState.setLastEvaluatedDate(LocalDate.parse(item.getString(KEY_LAST_EVALUATED_DATE)));
+        burstState.setDaysMissed(item.getInt(KEY_DAYS_MISSED));
+        burstState.setConsecutiveDaysMissed(item.getInt(KEY_CONSECUTIVE_DAYS_MISSED));
+        burstState.setNumDays(item.getInt(KEY_NUM_DAYS));
+        burstState.setNumActivitiesCompleted(item.getInt(KEY_NUM_ACTIVITIES_COMPLETED));
+        burstState.setResolved(item.getBoolean(KEY_RESOLVED));
+
+        String resolvedNotificationTypeString = item.getString(KEY_RESOLVED_NOTIFICATION_TYPE);
+        if (StringUtils.isNotBlank(resolvedNotificationTypeString)) {
+            burstState.setResolvedNotificationType(NotificationType.valueOf(resolvedNotificationTypeString));
+        }
+
+        return burstState;
+    }
+
+    /** Saves the burst state for the user, replacing any previous burst state. */
+    public void saveBurstState(BurstState burstState) {
+        Item item = new Item().withPrimaryKey(KEY_USER_ID, burstState.getUserId())
+                .withString(KEY_BURST_START_DATE, burstState.getBurstStartDate().toString())
+                .withString(KEY_LAST_EVALUATED_DATE, burstState.getLastEvaluatedDate().toString())
+                .withInt(KEY_DAYS_MISSED, burstState.getDaysMissed())
+                .withInt(KEY_CONSECUTIVE_DAYS_MISSED, burstState.getConsecutiveDaysMissed())
+                .withInt(KEY_NUM_DAYS, burstState.getNumDays())
+                .withInt(KEY_NUM_ACTIVITIES_COMPLETED, burstState.getNumActivitiesCompleted())
+                .withBoolean(KEY_RESOLVED, burstState.isResolved());
+        if (burstState.getResolvedNotificationType() != null) {
+            item.withString(KEY_RESOLVED_NOTIFICATION_TYPE, burstState.getResolvedNotificationType().name());
+        }
+        ddbNotificationBurstStateTable.putItem(item);
+    }
+
     /**
      * Gets the notification info for the given user's most recent notification. Returns null if the user has
      * never been sent a notification.
@@ -138,6 +273,65 @@ public class DynamoHelper {
         }
     }
 
+    /**
+     * Gets the most recent notification for each of the given users. Lookups are made concurrently, bounded by the
+     * notification log thread pool. Users who have never been sent a notification map to null. If the lookup fails
+     * for a user, that user is left out of the map, and the caller should fall back to
+     * {@link #getLastNotificationTimeForUser}.
+     */
+    public Map<String, UserNotification> getLastNotificationTimesForUsers(List<String> userIdList) {
+        Map<String, Future<UserNotification>> futuresByUserId = new LinkedHashMap<>();
+        for (String oneUserId : userIdList) {
+            futuresByUserId.put(oneUserId, notificationLogExecutorService.submit(
+                    () -> getLastNotificationTimeForUser(oneUserId)));
+        }
+
+        Map<String, UserNotification> notificationsByUserId = new HashMap<>();
+        for (Map.Entry<String, Future<UserNotification>> oneEntry : futuresByUserId.entrySet()) {
+            String userId = oneEntry.getKey();
+            try {
+                notificationsByUserId.put(userId, oneEntry.getValue().get());
+            } catch (ExecutionException ex) {
+                LOG.warn("Error getting last notification for user " + userId + ": " + ex.getMessage(), ex);
+            } catch (InterruptedException ex) {
+                // Stop waiting. Remaining users fall back to single lookups.
+                LOG.warn("Interrupted getting last notifications for users");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return notificationsByUserId;
+    }
+
+    /** Gets the notification skip for the given user. Returns null if there is no notification skip for the user. */
+    public NotificationSkip getNotificationSkipForUser(String userId) {
+        Item item = ddbNotificationSkipTable.getItem(KEY_USER_ID, userId);
+        if (item == null) {
+            return null;
+        }
+
+        NotificationSkip notificationSkip = new NotificationSkip();
+        notificationSkip.setUserId(item.getString(KEY_USER_ID));
+        notificationSkip.setBurstStartDate(LocalDate.parse(item.getString(KEY_BURST_START_DATE)));
+        notificationSkip.setSkipUntilDate(LocalDate.parse(item.getString(KEY_SKIP_UNTIL_DATE)));
+        notificationSkip.setBurstRulesHash(item.getInt(KEY_BURST_RULES_HASH));
+        return notificationSkip;
+    }
+
+    /** Saves the notification skip for the user, replacing any previous notification skip. */
+    public void saveNotificationSkip(NotificationSkip notificationSkip) {
+        Item item = new Item().withPrimaryKey(KEY_USER_ID, notificationSkip.getUserId())
+                .withString(KEY_BURST_START_DATE, notificationSkip.getBurstStartDate().toString())
+                .withString(KEY_SKIP_UNTIL_DATE, notificationSkip.getSkipUntilDate().toString())
+                .withInt(KEY_BURST_RULES_HASH, notificationSkip.getBurstRulesHash());
+        ddbNotificationSkipTable.putItem(item);
+    }
+
+    /** Deletes the notification skip for the user, if there is one. */
+    public void deleteNotificationSkipForUser(String userId) {
+        ddbNotificationSkipTable.deleteItem(KEY_USER_ID, userId);
+    }
+
     /** Appends the notification info to the notification log for the given user. */
     public void setLastNotificationTimeForUser(UserNotification userNotification) {
         Item item = new Item().withPrimaryKey(KEY_USER_ID, userNotification.getUserId(),
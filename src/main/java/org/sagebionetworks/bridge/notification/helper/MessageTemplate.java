@@ -0,0 +1,111 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+/**
+ * An SMS message string, compiled into a list of literal text and template variable segments, so that resolving the
+ * message is a single pass over the segments instead of scanning the message for each variable. The variables the
+ * message needs are known up front, so callers can fetch their values ahead of time.
+ */
+public class MessageTemplate {
+    /** Template variables supported in SMS messages. */
+    public enum Variable {
+        /** The user's study commitment, from their Engagement report. */
+        STUDY_COMMITMENT("${studyCommitment}"),
+
+        /** The study's app URL, from the worker config. */
+        URL("${url}");
+
+        private final String token;
+
+        Variable(String token) {
+            this.token = token;
+        }
+
+        /** Token for this variable, as it appears in the message string. */
+        public String getToken() {
+            return token;
+        }
+    }
+
+    // Each segment is either a literal String or a Variable.
+    private final List<Object> segmentList;
+    private final Set<Variable> variableSet;
+
+    private MessageTemplate(List<Object> segmentList, Set<Variable> variableSet) {
+        this.segmentList = segmentList;
+        this.variableSet = variableSet;
+    }
+
+    /**
+     * Compiles the given message string. Anything that isn't a supported template variable, including unknown
+     * variables, is kept as literal text.
+     */
+    public static MessageTemplate compile(String message) {
+        List<Object> segmentList = new ArrayList<>();
+        Set<Variable> variableSet = EnumSet.noneOf(Variable.class);
+
+        int literalStart = 0;
+        int index = message.indexOf("${");
+        while (index >= 0) {
+            Variable variable = matchVariable(message, index);
+            if (variable == null) {
+                // Not a variable. Keep looking after the "$".
+                index = message.indexOf("${", index + 1);
+                continue;
+            }
+
+            if (index > literalStart) {
+                segmentList.add(message.substring(literalStart, index));
+            }
+            segmentList.add(variable);
+            variableSet.add(variable);
+
+            literalStart = index + variable.getToken().length();
+            index = message.indexOf("${", literalStart);
+        }
+        if (literalStart < message.length()) {
+            segmentList.add(message.substring(literalStart));
+        }
+
+        return new MessageTemplate(ImmutableList.copyOf(segmentList), Sets.immutableEnumSet(variableSet));
+    }
+
+    // Helper method that returns the variable whose token starts at the given index, or null if there isn't one.
+    private static Variable matchVariable(String message, int index) {
+        for (Variable oneVariable : Variable.values()) {
+            if (message.startsWith(oneVariable.getToken(), index)) {
+                return oneVariable;
+            }
+        }
+        return null;
+    }
+
+    /** Template variables this message needs. Empty if the message has no variables. */
+    public Set<Variable> getVariableSet() {
+        return variableSet;
+    }
+
+    /**
+     * Renders the message with the given variable values. The map must contain a value for every variable in
+     * {@link #getVariableSet}.
+     */
+    public String render(Map<Variable, String> valueMap) {
+        StringBuilder builder = new StringBuilder();
+        for (Object oneSegment : segmentList) {
+            if (oneSegment instanceof Variable) {
+                builder.append(valueMap.get(oneSegment));
+            } else {
+                builder.append((String) oneSegment);
+            }
+        }
+        return builder.toString();
+    }
+}
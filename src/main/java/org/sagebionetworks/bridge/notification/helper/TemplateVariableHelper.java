@@ -1,8 +1,17 @@
 package org.sagebionetworks.bridge.notification.helper;
 
 import java.io.IOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Resource;
 
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
@@ -16,7 +25,11 @@ import org.sagebionetworks.bridge.rest.RestUtils;
 import org.sagebionetworks.bridge.rest.model.ReportData;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 
-/** Resolves template variables in SMS message strings. */
+/**
+ * Resolves template variables in SMS message strings. Message strings are compiled once into
+ * {@link MessageTemplate}s and cached. Study commitments (from the user's Engagement report) are cached per user until
+ * {@link #clearStudyCommitmentCache} is called, and can be fetched for a batch of users at once.
+ */
 @Component
 public class TemplateVariableHelper {
     private static final Logger LOG = LoggerFactory.getLogger(TemplateVariableHelper.class);
@@ -24,11 +37,13 @@ public class TemplateVariableHelper {
     static final LocalDate GLOBAL_REPORT_DATE = LocalDate.parse("2000-12-31");
     private static final String KEY_BENEFITS = "benefits";
     static final String REPORT_ID_ENGAGEMENT = "Engagement";
-    private static final String TEMPLATE_VAR_STUDY_COMMITMENT = "${studyCommitment}";
-    private static final String TEMPLATE_VAR_URL = "${url}";
+
+    private final Map<String, MessageTemplate> messageTemplateCache = new ConcurrentHashMap<>();
+    private final Map<String, String> studyCommitmentCache = new ConcurrentHashMap<>();
 
     private BridgeHelper bridgeHelper;
     private DynamoHelper dynamoHelper;
+    private ExecutorService engagementExecutorService;
 
     /** Bridge helper. */
     @Autowired
@@ -42,29 +57,94 @@ public class TemplateVariableHelper {
         this.dynamoHelper = dynamoHelper;
     }
 
+    /** Executor service, used to fetch Engagement reports for a batch of users concurrently. */
+    @Resource(name = "engagementExecutorService")
+    public final void setEngagementExecutorService(ExecutorService engagementExecutorService) {
+        this.engagementExecutorService = engagementExecutorService;
+    }
+
+    /** Returns the compiled template for the given message string. Each message string is only compiled once. */
+    public MessageTemplate getMessageTemplate(String message) {
+        return messageTemplateCache.computeIfAbsent(message, MessageTemplate::compile);
+    }
+
+    /** Returns the template variables the given message string needs. */
+    public Set<MessageTemplate.Variable> getTemplateVariables(String message) {
+        return getMessageTemplate(message).getVariableSet();
+    }
+
     /**
      * Resolves template variables in the given message string, for the given study and participant, and returns the
      * result.
      */
     public String resolveTemplateVariables(String studyId, StudyParticipant participant, String message)
             throws IOException, UserNotConfiguredException {
-        message = resolveStudyCommitmentVariable(studyId, participant, message);
-        message = resolveUrlVariable(studyId, message);
-        return message;
-    }
+        MessageTemplate template = getMessageTemplate(message);
 
-    // Helper method that resolve ${studyCommitment}.
-    private String resolveStudyCommitmentVariable(String studyId, StudyParticipant participant, String message)
-            throws IOException, UserNotConfiguredException {
-        // Short-cut: No template variable to resolve.
-        if (!message.contains(TEMPLATE_VAR_STUDY_COMMITMENT)) {
+        // Short-cut: No template variables to resolve.
+        Set<MessageTemplate.Variable> variableSet = template.getVariableSet();
+        if (variableSet.isEmpty()) {
             return message;
         }
 
+        Map<MessageTemplate.Variable, String> valueMap = new EnumMap<>(MessageTemplate.Variable.class);
+        if (variableSet.contains(MessageTemplate.Variable.STUDY_COMMITMENT)) {
+            valueMap.put(MessageTemplate.Variable.STUDY_COMMITMENT, getStudyCommitment(studyId,
+                    participant.getId()));
+        }
+        if (variableSet.contains(MessageTemplate.Variable.URL)) {
+            WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+            valueMap.put(MessageTemplate.Variable.URL, workerConfig.getAppUrl());
+        }
+        return template.render(valueMap);
+    }
+
+    /**
+     * Fetches the study commitments for the given users concurrently, bounded by the engagement thread pool, and
+     * caches them. Users who are already cached are skipped. If the fetch fails for a user, that user isn't cached,
+     * and resolving their message fetches it again (and throws the error).
+     */
+    public void prefetchStudyCommitments(String studyId, List<String> userIdList) {
+        Map<String, Future<String>> futuresByUserId = new LinkedHashMap<>();
+        for (String oneUserId : userIdList) {
+            if (!studyCommitmentCache.containsKey(oneUserId)) {
+                futuresByUserId.put(oneUserId, engagementExecutorService.submit(
+                        () -> getStudyCommitment(studyId, oneUserId)));
+            }
+        }
+
+        for (Map.Entry<String, Future<String>> oneEntry : futuresByUserId.entrySet()) {
+            String userId = oneEntry.getKey();
+            try {
+                // getStudyCommitment() caches the result.
+                oneEntry.getValue().get();
+            } catch (ExecutionException ex) {
+                LOG.warn("Error getting study commitment for user " + userId + ": " + ex.getMessage(), ex);
+            } catch (InterruptedException ex) {
+                // Stop waiting. Remaining users are fetched when their messages are resolved.
+                LOG.warn("Interrupted getting study commitments for users");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /** Clears cached study commitments. Called at the end of each run, so the next run sees updated reports. */
+    public void clearStudyCommitmentCache() {
+        studyCommitmentCache.clear();
+    }
+
+    // Helper method that gets the study commitment for ${studyCommitment}, from the cache if possible.
+    private String getStudyCommitment(String studyId, String userId) throws IOException,
+            UserNotConfiguredException {
+        String cachedStudyCommitment = studyCommitmentCache.get(userId);
+        if (cachedStudyCommitment != null) {
+            return cachedStudyCommitment;
+        }
+
         // Get the study commitment. This is stored in the Engagement report for date 2000-12-31 (an arbitrary constant
         // meaning "global"). This report is a flat map where keys are the survey question IDs and values are the
         // answers. The question we're looking for is "benefits".
-        String userId = participant.getId();
         List<ReportData> reportDataList = bridgeHelper.getParticipantReports(studyId, userId, REPORT_ID_ENGAGEMENT,
                 GLOBAL_REPORT_DATE, GLOBAL_REPORT_DATE);
         if (reportDataList.isEmpty()) {
@@ -75,9 +155,8 @@ public class TemplateVariableHelper {
         }
 
         String studyCommitment = getStudyCommitmentFromReport(userId, reportDataList.get(0), KEY_BENEFITS);
-
-        // Replace value.
-        return message.replace(TEMPLATE_VAR_STUDY_COMMITMENT, studyCommitment);
+        studyCommitmentCache.put(userId, studyCommitment);
+        return studyCommitment;
     }
 
     // Helper method that, given a ReportData and a list of keys, extracts the Data and recursively
@@ -107,16 +186,4 @@ public class TemplateVariableHelper {
 
         return String.valueOf(obj);
     }
-
-    // Helper method that resolve ${url}.
-    private String resolveUrlVariable(String studyId, String message) {
-        // Short-cut: No template variable to resolve.
-        if (!message.contains(TEMPLATE_VAR_URL)) {
-            return message;
-        }
-
-        // Replace value.
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        return message.replace(TEMPLATE_VAR_URL, workerConfig.getAppUrl());
-    }
 }
@@ -1,41 +1,46 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import javax.annotation.Resource;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.RateLimiter;
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.notification.exceptions.UserNotConfiguredException;
 import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
 import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
-import org.sagebionetworks.bridge.notification.helper.TemplateVariableHelper;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.ActivityEvent;
-import org.sagebionetworks.bridge.rest.model.ScheduleStatus;
 import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.rest.model.UserConsentHistory;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
-import org.sagebionetworks.bridge.time.DateUtils;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 
 /** Worker that sends notifications when users do not engage with the study burst. */
@@ -46,21 +51,54 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
     // If there are a lot of users, write log messages regularly so we know the worker is still running.
     private static final int REPORTING_INTERVAL = 250;
 
+    // Number of days before today that are re-read on every run, instead of being saved in the burst state. A user can
+    // finish an activity late (for example, their upload arrives the next morning), so recent days can still change.
+    // Package-scoped for unit tests.
+    static final int BURST_STATE_REREAD_DAYS = 1;
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_CONCURRENT_USERS = "threadpool.notification.count";
+    static final String CONFIG_KEY_PER_USER_RATE_LIMIT = "notification.per.user.rate.limit";
+    static final String CONFIG_KEY_NOTIFICATION_LOG_PAGE_SIZE = "notification.log.page.size";
+    static final String CONFIG_KEY_SKIP_BETWEEN_BURSTS = "notification.skip.between.bursts";
+
     private static final Set<String> CONSENT_NOT_REQUIRED_DATA_GROUPS = ImmutableSet.of("clinical_consent",
             "test_no_consent");
     private static final int MIN_TIMEZONE_OFFSET_MILLIS = -11 * 60 * 60 * 1000;
     private static final int MAX_TIMEZONE_OFFSET_MILLIS = -1 * 60 * 60 * 1000;
     static final String REQUEST_PARAM_DATE = "date";
+    static final String REQUEST_PARAM_DRY_RUN = "dryRun";
+    static final String REQUEST_PARAM_END_DATE = "endDate";
+    static final String REQUEST_PARAM_INCREMENTAL = "incremental";
     static final String REQUEST_PARAM_STUDY_ID = "studyId";
     static final String REQUEST_PARAM_USER_LIST = "userList";
     static final String REQUEST_PARAM_TAG = "tag";
 
-    private final RateLimiter perUserRateLimiter = RateLimiter.create(1.0);
+    private final List<EligibilityPredicate> eligibilityPredicateList = makeEligibilityPredicateList();
+    private final Map<String, Optional<UserNotification>> prefetchedLastNotificationMap = new ConcurrentHashMap<>();
+    private RateLimiter perUserRateLimiter = RateLimiter.create(1.0);
 
     private BridgeHelper bridgeHelper;
     private DynamoHelper dynamoHelper;
+    private ExecutorService executorService;
+    private int maxConcurrentUsers = 1;
+    private int notificationLogPageSize = 1;
+    private NotificationSender notificationSender;
     private Random rng = new Random();
-    private TemplateVariableHelper templateVariableHelper;
+    private boolean skipBetweenBursts = false;
+
+    /**
+     * Bridge config, used to get the max number of users we evaluate at once, the per-user rate limit, the number of
+     * users whose notification logs we look up at once, and whether to skip users between bursts. The max concurrent
+     * users matches the size of the notification thread pool.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        maxConcurrentUsers = config.getInt(CONFIG_KEY_MAX_CONCURRENT_USERS);
+        notificationLogPageSize = config.getInt(CONFIG_KEY_NOTIFICATION_LOG_PAGE_SIZE);
+        setPerUserRateLimit(config.getInt(CONFIG_KEY_PER_USER_RATE_LIMIT));
+        setSkipBetweenBursts(Boolean.parseBoolean(config.get(CONFIG_KEY_SKIP_BETWEEN_BURSTS)));
+    }
 
     /** Bridge helper. */
     @Autowired
@@ -74,20 +112,55 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
         this.dynamoHelper = dynamoHelper;
     }
 
-    /** Set rate limit, in users per second. This is primarily to allow unit tests to run without being throttled. */
+    /** Executor service, used to evaluate users concurrently. */
+    @Resource(name = "notificationExecutorService")
+    public final void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Set rate limit, in users per second. This is shared by all users being evaluated at once. Each user that gets
+     * past the cheap eligibility checks makes a handful of calls to Bridge, so this is effectively our rate budget
+     * against Bridge. Users excluded before we call Bridge don't count against it.
+     */
     public final void setPerUserRateLimit(double rate) {
         perUserRateLimiter.setRate(rate);
     }
 
+    /** Per-user rate limiter. Package-scoped so unit tests can mock it. */
+    void setPerUserRateLimiter(RateLimiter perUserRateLimiter) {
+        this.perUserRateLimiter = perUserRateLimiter;
+    }
+
+    /**
+     * True if users between bursts can be skipped until their next burst. A skip between bursts is computed from the
+     * user's activity events, and the only way we find out that those changed (for example, the user started a burst
+     * early) is the BURST_STARTED event, which deletes the skip. Only turn this on when the NotificationEventWorker is
+     * receiving those events. Skips for completed bursts don't depend on activity events, so they're always written.
+     */
+    public final void setSkipBetweenBursts(boolean skipBetweenBursts) {
+        this.skipBetweenBursts = skipBetweenBursts;
+    }
+
+    /** Last notifications looked up ahead of evaluating users, keyed by user ID. Package-scoped for unit tests. */
+    Map<String, Optional<UserNotification>> getPrefetchedLastNotificationMap() {
+        return prefetchedLastNotificationMap;
+    }
+
+    /** Eligibility predicates, in the order they are evaluated. Package-scoped for unit tests. */
+    List<EligibilityPredicate> getEligibilityPredicateList() {
+        return eligibilityPredicateList;
+    }
+
     /** Allows mocking of the RNG. */
     public void setRng(Random rng) {
         this.rng = rng;
     }
 
-    /** Helper class that resolves template variables in SMS strings. */
+    /** Sends notifications, so that evaluating users doesn't wait on sending SMS. */
     @Autowired
-    public final void setTemplateVariableHelper(TemplateVariableHelper templateVariableHelper) {
-        this.templateVariableHelper = templateVariableHelper;
+    public final void setNotificationSender(NotificationSender notificationSender) {
+        this.notificationSender = notificationSender;
     }
 
     /** Main entry point into the Notification Worker. */
@@ -128,7 +201,51 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
             tag = tagNode.textValue();
         }
 
-        LOG.info("Received request for study=" + studyId + ", date=" + dateString + ", tag=" + tag);
+        // dryRun
+        JsonNode dryRunNode = jsonNode.get(REQUEST_PARAM_DRY_RUN);
+        boolean dryRun = false;
+        if (dryRunNode != null && !dryRunNode.isNull()) {
+            if (!dryRunNode.isBoolean()) {
+                throw new PollSqsWorkerBadRequestException("dryRun must be a boolean");
+            }
+            dryRun = dryRunNode.booleanValue();
+        }
+
+        // endDate, only for dry runs. Defaults to date, so we only simulate one day.
+        JsonNode endDateNode = jsonNode.get(REQUEST_PARAM_END_DATE);
+        LocalDate endDate = date;
+        if (endDateNode != null && !endDateNode.isNull()) {
+            if (!dryRun) {
+                throw new PollSqsWorkerBadRequestException("endDate is only supported for dry runs");
+            }
+            if (!endDateNode.isTextual()) {
+                throw new PollSqsWorkerBadRequestException("endDate must be a string");
+            }
+            try {
+                endDate = LocalDate.parse(endDateNode.textValue());
+            } catch (IllegalArgumentException ex) {
+                throw new PollSqsWorkerBadRequestException("endDate must be in the format YYYY-MM-DD");
+            }
+            if (endDate.isBefore(date)) {
+                throw new PollSqsWorkerBadRequestException("endDate can't be before date");
+            }
+        }
+
+        // incremental. Active users are marked per date, so this can't be combined with a range of dates.
+        JsonNode incrementalNode = jsonNode.get(REQUEST_PARAM_INCREMENTAL);
+        boolean incremental = false;
+        if (incrementalNode != null && !incrementalNode.isNull()) {
+            if (!incrementalNode.isBoolean()) {
+                throw new PollSqsWorkerBadRequestException("incremental must be a boolean");
+            }
+            incremental = incrementalNode.booleanValue();
+        }
+        if (incremental && !endDate.equals(date)) {
+            throw new PollSqsWorkerBadRequestException("incremental is not supported with endDate");
+        }
+
+        LOG.info("Received request for study=" + studyId + ", date=" + dateString + ", tag=" + tag +
+                (dryRun ? ", dry run to " + endDate : "") + (incremental ? ", incremental" : ""));
 
         // Iterate over each user. All we care about is the userID, so transform the iterator.
         Iterator<String> userIdIterator;
@@ -136,147 +253,332 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
         if (userListNode != null) {
             userIdIterator = Iterators.transform(userListNode.elements(), JsonNode::textValue);
             LOG.info("Custom user list received, " + userListNode.size() + " users");
+        } else if (incremental) {
+            // Only users whose state or burst window changed, as marked by the NotificationEventWorker.
+            userIdIterator = dynamoHelper.getActiveUserIdsForDate(studyId, date);
         } else {
             userIdIterator = Iterators.transform(bridgeHelper.getAllAccountSummaries(studyId), AccountSummary::getId);
         }
 
-        int numUsers = 0;
+        // Evaluate users concurrently. The semaphore bounds the number of users in flight, so we don't read ahead of
+        // the thread pool. Users are read in pages, so we can look up their notification logs all at once.
+        // Notifications are handed off to the notification sender, which sends them on its own threads.
+        Iterator<List<String>> userIdPageIterator = Iterators.partition(userIdIterator, notificationLogPageSize);
+        Semaphore inFlightSemaphore = new Semaphore(maxConcurrentUsers);
+        int numUsers;
         Stopwatch stopwatch = Stopwatch.createStarted();
-        while (userIdIterator.hasNext()) {
-            // Rate limit
-            perUserRateLimiter.acquire();
+        if (dryRun) {
+            // Dry runs don't send notifications or write user state, so they don't need the notification sender.
+            DryRunReport dryRunReport = new DryRunReport(studyId, date, endDate);
+            numUsers = processUserPages(userIdPageIterator, inFlightSemaphore, stopwatch,
+                    userId -> dryRunUser(dryRunReport, userId));
+            inFlightSemaphore.acquireUninterruptibly(maxConcurrentUsers);
+            dryRunReport.log();
+        } else {
+            notificationSender.start();
+            try {
+                numUsers = processUserPages(userIdPageIterator, inFlightSemaphore, stopwatch,
+                        userId -> processUser(studyId, date, userId));
+
+                // Wait for all users to finish. Once we hold all the permits, nothing is in flight.
+                inFlightSemaphore.acquireUninterruptibly(maxConcurrentUsers);
+            } finally {
+                // Wait for the sender to send all the notifications.
+                notificationSender.finish();
+            }
+        }
+
+        // Users that failed before reading their prefetched notification would otherwise leave entries behind.
+        prefetchedLastNotificationMap.clear();
+        logAndResetEligibilityStats();
+
+        // Write to Worker Log in DDB so we can signal end of processing.
+        dynamoHelper.writeWorkerLog(tag);
 
-            // Process
+        LOG.info("Finished processing users: " + numUsers + " users in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                " seconds");
+        LOG.info("Finished processing request for study " + studyId + " and date " + dateString);
+    }
+
+    // Evaluates each page of users concurrently, using the given user processor. Returns the number of users.
+    private int processUserPages(Iterator<List<String>> userIdPageIterator, Semaphore inFlightSemaphore,
+            Stopwatch stopwatch, Consumer<String> userProcessor) {
+        int numUsers = 0;
+        while (userIdPageIterator.hasNext()) {
+            List<String> userIdPage;
             try {
-                String userId = userIdIterator.next();
+                userIdPage = userIdPageIterator.next();
+            } catch (Exception ex) {
+                LOG.error("Error getting next page of users: " + ex.getMessage(), ex);
+                continue;
+            }
+
+            prefetchLastNotifications(userIdPage);
 
+            for (String userId : userIdPage) {
+                // Process. Users are rate limited when they first call Bridge, see EligibilityContext.
+                inFlightSemaphore.acquireUninterruptibly();
                 try {
-                    processAccountForDate(studyId, date, userId);
-                } catch (UserNotConfiguredException ex) {
-                    // Users not being configured properly is a fairly common occurence. Log a warning instead of an
-                    // error.
-                    LOG.warn("User ID " + userId + " is not configured for notifications: " + ex.getMessage(), ex);
-                } catch (Exception ex) {
+                    executorService.execute(() -> {
+                        try {
+                            userProcessor.accept(userId);
+                        } finally {
+                            inFlightSemaphore.release();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    inFlightSemaphore.release();
                     LOG.error("Error processing user ID " + userId + ": " + ex.getMessage(), ex);
                 }
-            } catch (Exception ex) {
-                LOG.error("Error getting next user: " + ex.getMessage(), ex);
-            }
 
-            // Reporting
-            numUsers++;
-            if (numUsers % REPORTING_INTERVAL == 0) {
-                LOG.info("Processing users in progress: " + numUsers + " users in " +
-                        stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+                // Reporting
+                numUsers++;
+                if (numUsers % REPORTING_INTERVAL == 0) {
+                    LOG.info("Processing users in progress: " + numUsers + " users in " +
+                            stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+                }
             }
         }
+        return numUsers;
+    }
 
-        // Write to Worker Log in DDB so we can signal end of processing.
-        dynamoHelper.writeWorkerLog(tag);
+    // Looks up the last notification for a page of users all at once, so that evaluating each user reads from memory
+    // instead of making its own DynamoDB query. If the lookup fails, users fall back to their own queries.
+    private void prefetchLastNotifications(List<String> userIdPage) {
+        Map<String, UserNotification> lastNotificationsByUserId;
+        try {
+            lastNotificationsByUserId = dynamoHelper.getLastNotificationTimesForUsers(userIdPage);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error getting last notifications for page of users: " + ex.getMessage(), ex);
+            return;
+        }
 
-        LOG.info("Finished processing users: " + numUsers + " users in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                " seconds");
-        LOG.info("Finished processing request for study " + studyId + " and date " + dateString);
+        for (Map.Entry<String, UserNotification> oneEntry : lastNotificationsByUserId.entrySet()) {
+            prefetchedLastNotificationMap.put(oneEntry.getKey(), Optional.ofNullable(oneEntry.getValue()));
+        }
+    }
+
+    // Processes a single user for the given date, logging errors instead of throwing them, so that one user can't
+    // stop the others.
+    private void processUser(String studyId, LocalDate date, String userId) {
+        try {
+            processAccountForDate(studyId, date, userId);
+        } catch (UserNotConfiguredException ex) {
+            // Users not being configured properly is a fairly common occurence. Log a warning instead of an
+            // error.
+            LOG.warn("User ID " + userId + " is not configured for notifications: " + ex.getMessage(), ex);
+        } catch (Exception ex) {
+            LOG.error("Error processing user ID " + userId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Simulates a single user for every date in the dry run, logging errors instead of throwing them. The user's
+    // state is read from DynamoDB once, then kept in memory, so nothing is written back.
+    private void dryRunUser(DryRunReport dryRunReport, String userId) {
+        String studyId = dryRunReport.getStudyId();
+        DryRunUser dryRunUser = new DryRunUser(userId, dryRunReport);
+        try {
+            Optional<UserNotification> prefetchedLastNotification = prefetchedLastNotificationMap.remove(userId);
+            dryRunUser.setLastNotification(prefetchedLastNotification != null ?
+                    prefetchedLastNotification.orElse(null) : dynamoHelper.getLastNotificationTimeForUser(userId));
+            dryRunUser.setNotificationSkip(dynamoHelper.getNotificationSkipForUser(userId));
+            dryRunUser.setBurstState(dynamoHelper.getBurstStateForUser(userId));
+        } catch (RuntimeException ex) {
+            LOG.error("Error getting dry run state for user ID " + userId + ": " + ex.getMessage(), ex);
+            dryRunReport.recordError();
+            return;
+        }
+
+        DateTime realNow = DateTime.now();
+        for (LocalDate date = dryRunReport.getStartDate(); !date.isAfter(dryRunReport.getEndDate());
+                date = date.plusDays(1)) {
+            dryRunUser.setDate(date, realNow);
+            try {
+                processAccountForDate(studyId, date, userId, dryRunUser);
+            } catch (UserNotConfiguredException ex) {
+                // Same as a real run. This is common, so don't count it as an error.
+                LOG.warn("User ID " + userId + " is not configured for notifications: " + ex.getMessage(), ex);
+            } catch (Exception ex) {
+                LOG.error("Error simulating user ID " + userId + " on " + date + ": " + ex.getMessage(), ex);
+                dryRunReport.recordError();
+            }
+            dryRunReport.recordUserDay();
+        }
+        dryRunReport.recordUser();
     }
 
     // Processes a single user for the given date. Package-scoped for unit tests.
     void processAccountForDate(String studyId, LocalDate date, String userId)
             throws IOException, UserNotConfiguredException {
-        // Get participant. We'll need some attributes.
-        StudyParticipant participant = bridgeHelper.getParticipant(studyId, userId);
+        processAccountForDate(studyId, date, userId, null);
+    }
 
-        // Exclude users who are not eligible for notifications.
-        if (shouldExcludeUser(studyId, participant)) {
-            return;
+    // Processes a single user for the given date. If dryRunUser is specified, this is a dry run: user state is read
+    // from and written to dryRunUser instead of DynamoDB, and notifications are recorded instead of sent.
+    // Package-scoped for unit tests.
+    void processAccountForDate(String studyId, LocalDate date, String userId, DryRunUser dryRunUser)
+            throws IOException, UserNotConfiguredException {
+        // Notification config is cached, but we still only get it once per user.
+        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+
+        // Exclude users who are not eligible for notifications. Predicates are evaluated cheapest first, so the
+        // participant is only fetched from Bridge if the user passes the cheaper checks.
+        EligibilityContext eligibilityContext = new EligibilityContext(bridgeHelper, dynamoHelper, studyId, date,
+                userId, workerConfig);
+        eligibilityContext.setBridgeRateLimiter(perUserRateLimiter);
+        if (dryRunUser != null) {
+            eligibilityContext.setNow(dryRunUser.getNow());
+            eligibilityContext.setLastNotification(dryRunUser.getLastNotification());
+            eligibilityContext.setNotificationSkip(dryRunUser.getNotificationSkip());
+            if (dryRunUser.getParticipant() != null) {
+                eligibilityContext.setParticipant(dryRunUser.getParticipant());
+            }
+        } else {
+            Optional<UserNotification> prefetchedLastNotification = prefetchedLastNotificationMap.remove(userId);
+            if (prefetchedLastNotification != null) {
+                eligibilityContext.setLastNotification(prefetchedLastNotification.orElse(null));
+            }
+        }
+        for (EligibilityPredicate onePredicate : eligibilityPredicateList) {
+            if (onePredicate.rejects(eligibilityContext)) {
+                return;
+            }
         }
+        StudyParticipant participant = eligibilityContext.getParticipant();
 
-        // Get user's activity events. Filter events that aren't study burst starts.
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        List<ActivityEvent> activityEventList = bridgeHelper.getActivityEvents(studyId, participant.getId());
+        // Get user's activity events. Filter events that aren't study burst starts. Build the user's burst calendar,
+        // so we only convert timestamps to the user's time zone once. Dry runs only fetch these once per user.
+        List<ActivityEvent> activityEventList;
+        if (dryRunUser != null && dryRunUser.getActivityEventList() != null) {
+            activityEventList = dryRunUser.getActivityEventList();
+        } else {
+            activityEventList = bridgeHelper.getActivityEvents(studyId, participant.getId());
+            if (dryRunUser != null) {
+                dryRunUser.setParticipant(participant);
+                dryRunUser.setActivityEventList(activityEventList);
+            }
+        }
         List<ActivityEvent> filteredActivityEventList = activityEventList.stream()
                 .filter(activityEvent -> workerConfig.getBurstStartEventIdSet().contains(activityEvent.getEventId()))
                 .collect(Collectors.toList());
+        BurstCalendar burstCalendar = new BurstCalendar(eligibilityContext.getTimeZone(), filteredActivityEventList,
+                workerConfig.getBurstDurationDays());
+        int today = BurstCalendar.toEpochDay(date);
 
-        // Find the upcoming burst, if a burst is coming up tomorrow.
-        ActivityEvent upcomingBurstEvent = findUpcomingActivityBurstEvent(date, participant,
-                filteredActivityEventList);
-        if (upcomingBurstEvent != null) {
+        // Check for an upcoming burst, if a burst is coming up tomorrow.
+        if (burstCalendar.hasBurstStartingOn(today + 1)) {
             // Notify user of upcoming burst.
-            notifyUser(studyId, participant, NotificationType.PRE_BURST);
+            notifyUser(studyId, workerConfig, participant, NotificationType.PRE_BURST, dryRunUser);
 
             // If the burst starts tomorrow, no need to check if the user is in the middle of a burst.
             return;
         }
 
         // Find the current activity burst.
-        ActivityEvent burstEvent = findCurrentActivityBurstEventForParticipant(studyId, date, participant,
-                filteredActivityEventList);
-        if (burstEvent == null) {
-             // We're not currently in an activity burst. (Or we are, but we're in the blackout period.) Skip
-            // processing this user.
+        int burstStart = burstCalendar.findCurrentBurstStart(today);
+        if (burstStart == BurstCalendar.NO_BURST) {
+            // We're not currently in an activity burst. Skip processing this user. They don't need a notification
+            // until the next burst's pre-burst notification, so later runs can skip them until then, as long as
+            // burst start events invalidate the skip.
+            int nextBurstStart = burstCalendar.findNextBurstStart(today);
+            if (skipBetweenBursts && nextBurstStart != BurstCalendar.NO_BURST) {
+                saveNotificationSkip(userId, workerConfig, today, nextBurstStart, nextBurstStart - 2,
+                        dryRunUser);
+            }
+            return;
+        }
+
+        // We found the current activity burst. Activity bursts do not overlap, so we don't need to look at any other
+        // activity events. However, we want to check the notification blackout periods. If we're still within the
+        // blackout period, skip processing this user.
+        int burstEnd = burstStart + workerConfig.getBurstDurationDays() - 1;
+        int notificationStart = burstStart + workerConfig.getNotificationBlackoutDaysFromStart();
+        int notificationEnd = burstEnd - workerConfig.getNotificationBlackoutDaysFromEnd();
+        if (today < notificationStart || today > notificationEnd) {
             return;
         }
 
         // Determine if we need to notify the user.
-        NotificationType notificationType = getNotificationTypeForUser(studyId, date, participant, burstEvent);
+        NotificationType notificationType = getNotificationTypeForUser(studyId, workerConfig, today, participant,
+                burstCalendar, burstStart, dryRunUser);
         if (notificationType != null) {
-            notifyUser(studyId, participant, notificationType);
+            notifyUser(studyId, workerConfig, participant, notificationType, dryRunUser);
         }
     }
 
-    // Helper method to determine if a user is ineligible for receiving notifications.
-    private boolean shouldExcludeUser(String studyId, StudyParticipant participant) {
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        Set<String> excludedDataGroupSet = workerConfig.getExcludedDataGroupSet();
-
-        // Unverified phone numbers can't be notified
-        if (Boolean.FALSE.equals(participant.isPhoneVerified())) {
-            return true;
-        }
-
-        // Users without timezones can't be processed
-        if (participant.getTimeZone() == null) {
-            return true;
-        }
-
-        // Users with timezone < UTC-11 or > UTC-1 should be excluded. This is because we'd end up sending at unusually
-        // early or unusually late hours.
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-        int timeZoneOffsetMillis = timeZone.getOffset(DateTime.now());
-        if (timeZoneOffsetMillis < MIN_TIMEZONE_OFFSET_MILLIS || timeZoneOffsetMillis > MAX_TIMEZONE_OFFSET_MILLIS) {
-            return true;
-        }
-
-        // Unconsented users can't be notified
-        if (!isUserConsented(studyId, participant)) {
-            return true;
-        }
-
-        // Check required and excluded data groups.
-        // If the user has any of the excluded data groups, exclude the user
-        for (String oneUserDataGroup : participant.getDataGroups()) {
-            if (excludedDataGroupSet.contains(oneUserDataGroup)) {
-                return true;
-            }
-        }
+    // Helper method which builds the predicates that determine if a user is ineligible for receiving notifications.
+    // These are listed in the order they were historically checked, and sorted by cost.
+    private static List<EligibilityPredicate> makeEligibilityPredicateList() {
+        List<EligibilityPredicate> predicateList = ImmutableList.of(
+                // Unverified phone numbers can't be notified
+                new EligibilityPredicate("phoneNotVerified", EligibilityPredicate.RequiredData.PARTICIPANT,
+                        context -> Boolean.FALSE.equals(context.getParticipant().isPhoneVerified())),
+
+                // Users without timezones can't be processed
+                new EligibilityPredicate("noTimeZone", EligibilityPredicate.RequiredData.PARTICIPANT,
+                        context -> context.getParticipant().getTimeZone() == null),
+
+                // Users with timezone < UTC-11 or > UTC-1 should be excluded. This is because we'd end up sending at
+                // unusually early or unusually late hours.
+                new EligibilityPredicate("timeZoneOutOfRange", EligibilityPredicate.RequiredData.PARTICIPANT,
+                        context -> {
+                            int timeZoneOffsetMillis = context.getTimeZone().getOffset(context.getNow());
+                            return timeZoneOffsetMillis < MIN_TIMEZONE_OFFSET_MILLIS ||
+                                    timeZoneOffsetMillis > MAX_TIMEZONE_OFFSET_MILLIS;
+                        }),
+
+                // Unconsented users can't be notified
+                new EligibilityPredicate("notConsented", EligibilityPredicate.RequiredData.PARTICIPANT,
+                        context -> !isUserConsented(context.getStudyId(), context.getParticipant())),
+
+                // If the user has any of the excluded data groups, exclude the user
+                new EligibilityPredicate("excludedDataGroup", EligibilityPredicate.RequiredData.PARTICIPANT,
+                        context -> {
+                            Set<String> excludedDataGroupSet = context.getWorkerConfig().getExcludedDataGroupSet();
+                            for (String oneUserDataGroup : context.getParticipant().getDataGroups()) {
+                                if (excludedDataGroupSet.contains(oneUserDataGroup)) {
+                                    return true;
+                                }
+                            }
+                            return false;
+                        }),
+
+                // If user was already sent a notification in the last burst duration, don't send another one
+                // Special case: If that notification was a PRE_BURST notification, that's fine.
+                new EligibilityPredicate("notifiedRecently", EligibilityPredicate.RequiredData.NOTIFICATION_LOG,
+                        context -> {
+                            UserNotification lastNotification = context.getLastNotification();
+                            return lastNotification != null &&
+                                    lastNotification.getTime() > context.getNow().minusDays(context.getWorkerConfig()
+                                            .getBurstDurationDays()).getMillis() &&
+                                    lastNotification.getType() != NotificationType.PRE_BURST;
+                        }),
+
+                // If a previous run determined that the user doesn't need a notification until a later date, skip
+                // the user.
+                new EligibilityPredicate("noNotificationNeeded", EligibilityPredicate.RequiredData.NOTIFICATION_SKIP,
+                        context -> {
+                            NotificationSkip notificationSkip = context.getNotificationSkip();
+                            return notificationSkip != null && notificationSkip.appliesTo(context.getDate(),
+                                    context.getWorkerConfig());
+                        }));
+        return EligibilityPredicate.sortByCost(predicateList);
+    }
 
-        // If user was already sent a notification in the last burst duration, don't send another one
-        // Special case: If that notification was a PRE_BURST notification, that's fine.
-        UserNotification lastNotification = dynamoHelper.getLastNotificationTimeForUser(participant.getId());
-        //noinspection RedundantIfStatement
-        if (lastNotification != null &&
-                lastNotification.getTime() > DateTime.now().minusDays(workerConfig.getBurstDurationDays()).getMillis() &&
-                lastNotification.getType() != NotificationType.PRE_BURST) {
-            return true;
+    // Logs how many users each eligibility predicate evaluated and rejected, and how long it took, then resets the
+    // counters for the next request.
+    private void logAndResetEligibilityStats() {
+        for (EligibilityPredicate onePredicate : eligibilityPredicateList) {
+            LOG.info("Eligibility predicate " + onePredicate.getName() + " (cost " + onePredicate.getCost() +
+                    ") evaluated " + onePredicate.getNumEvaluated() + " users, rejected " +
+                    onePredicate.getNumRejected() + " users in " + onePredicate.getTotalMillis() + " ms");
+            onePredicate.resetCounters();
         }
-
-        // We've checked all the exclude conditions. Do not exclude user.
-        return false;
     }
 
     // Hardcode consent logic based on specific data groups. We do this because RequestInfo is volatile, so we need
     // calculate consent status in the Worker.
-    private boolean isUserConsented(String studyId, StudyParticipant participant) {
+    private static boolean isUserConsented(String studyId, StudyParticipant participant) {
         // Some data groups put the user in a subpop that doesn't require e-consent. If the user is in one of these
         // data groups, treat the user as consented.
         Set<String> userDataGroupSet = ImmutableSet.copyOf(participant.getDataGroups());
@@ -298,145 +600,122 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
         return consent.getWithdrewOn() == null;
     }
 
-    // Helper method to determine if there's an upcoming study burst coming up tomorrow.
-    private ActivityEvent findUpcomingActivityBurstEvent(LocalDate date, StudyParticipant participant,
-            List<ActivityEvent> activityEventList) {
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-
-        for (ActivityEvent oneActivityEvent : activityEventList) {
-            if (oneActivityEvent.getTimestamp().withZone(timeZone).toLocalDate().minusDays(1).equals(date)) {
-                // If the burst start is tomorrow, then we've found it!
-                return oneActivityEvent;
-            }
+    // Saves a notification skip for the user, so later runs skip the user through skipUntil (epoch day). This is an
+    // optimization, so if it fails, we log a warning and move on. Dry runs keep the skip in memory.
+    private void saveNotificationSkip(String userId, WorkerConfig workerConfig, int today, int burstStart,
+            int skipUntil, DryRunUser dryRunUser) {
+        if (skipUntil < today) {
+            // Nothing to skip.
+            return;
         }
 
-        // If we make it this far, we didn't find any activities starting tomorrow.
-        return null;
-    }
-
-    // Helper method to determine the study burst event that we should be processing for this user.
-    private ActivityEvent findCurrentActivityBurstEventForParticipant(String studyId, LocalDate date,
-            StudyParticipant participant, List<ActivityEvent> activityEventList) {
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        for (ActivityEvent oneActivityEvent : activityEventList) {
-            // Calculate burst bounds. End date is start + period - 1. Skip if the current day is not within the burst
-            // period (inclusive).
-            DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-            LocalDate burstStartDate = oneActivityEvent.getTimestamp().withZone(timeZone).toLocalDate();
-            LocalDate burstEndDate = burstStartDate.plusDays(workerConfig.getBurstDurationDays()).minusDays(1);
-            if (date.isBefore(burstStartDate) || date.isAfter(burstEndDate)) {
-                continue;
-            }
-
-            // We found the current activity burst. Activity bursts do not overlap, so we don't need to look at any
-            // other activity events. However, we want to check the notification blackout periods. If we're still
-            // within the blackout period, return null.
-            LocalDate notificationStartDate = burstStartDate.plusDays(workerConfig
-                    .getNotificationBlackoutDaysFromStart());
-            LocalDate notificationEndDate = burstEndDate.minusDays(workerConfig.getNotificationBlackoutDaysFromEnd());
-            if (date.isBefore(notificationStartDate) || date.isAfter(notificationEndDate)) {
-                return null;
-            }
-
-            // We should process based on this activity event.
-            return oneActivityEvent;
+        NotificationSkip notificationSkip = new NotificationSkip();
+        notificationSkip.setUserId(userId);
+        notificationSkip.setBurstStartDate(BurstCalendar.fromEpochDay(burstStart));
+        notificationSkip.setSkipUntilDate(BurstCalendar.fromEpochDay(skipUntil));
+        notificationSkip.setBurstRulesHash(workerConfig.getBurstRulesHash());
+        if (dryRunUser != null) {
+            dryRunUser.setNotificationSkip(notificationSkip);
+            return;
+        }
+        try {
+            dynamoHelper.saveNotificationSkip(notificationSkip);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error saving notification skip for user " + userId + ": " + ex.getMessage(), ex);
         }
-
-        // We checked all the activity events, and we've determined we're not currently in an activity burst.
-        return null;
     }
 
     // Helper method which looks at the participant's activities to determine if we should send a notification.
-    // Returns the notification type (or null if we shouldn't send a notification).
-    private NotificationType getNotificationTypeForUser(String studyId, LocalDate date, StudyParticipant participant,
-            ActivityEvent burstEvent) {
+    // Returns the notification type (or null if we shouldn't send a notification). Days are epoch days in the user's
+    // time zone. Dry runs read and write the burst state in memory.
+    private NotificationType getNotificationTypeForUser(String studyId, WorkerConfig workerConfig, int today,
+            StudyParticipant participant, BurstCalendar burstCalendar, int burstStart, DryRunUser dryRunUser) {
         String userId = participant.getId();
-
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
         String taskId = workerConfig.getBurstTaskId();
-        int numMissedDaysToNotify = workerConfig.getNumMissedDaysToNotify();
-        int numMissedConsecutiveDaysToNotify = workerConfig.getNumMissedConsecutiveDaysToNotify();
 
-        // Get user's activities between the burst start and now, including today's activities. Note that because of
+        // Days before settledEnd are settled, and are saved in the burst state. Days from settledEnd through today can
+        // still change, so they're re-read on every run.
+        int settledEnd = today - BURST_STATE_REREAD_DAYS;
+
+        // Get the user's burst state, which has the counters from previous runs. If there isn't one, or it's for a
+        // different burst, or it includes days that aren't settled yet (for example, if we're re-running an earlier
+        // date), start over from the burst start.
+        BurstState burstState = dryRunUser != null ? dryRunUser.getBurstState() :
+                dynamoHelper.getBurstStateForUser(userId);
+        boolean isNewBurstState = false;
+        if (burstState == null || BurstCalendar.toEpochDay(burstState.getBurstStartDate()) != burstStart ||
+                BurstCalendar.toEpochDay(burstState.getLastEvaluatedDate()) >= settledEnd) {
+            burstState = BurstState.create(userId, BurstCalendar.fromEpochDay(burstStart));
+            isNewBurstState = true;
+        }
+
+        // Get user's activities since the last evaluated date, including today's activities. Note that because of
         // how scheduling works, we might have tasks scheduled on midnight before the start of the activity burst.
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-        LocalDate burstStartDate = burstEvent.getTimestamp().withZone(timeZone).toLocalDate();
-        DateTime activityRangeStart = burstStartDate.toDateTimeAtStartOfDay(timeZone);
-        DateTime activityRangeEnd = date.plusDays(1).toDateTimeAtStartOfDay(timeZone);
+        int activityRangeStart = BurstCalendar.toEpochDay(burstState.getLastEvaluatedDate()) + 1;
         Iterator<ScheduledActivity> activityIterator = bridgeHelper.getTaskHistory(studyId, userId, taskId,
-                activityRangeStart, activityRangeEnd);
+                burstCalendar.startOfDay(activityRangeStart), burstCalendar.startOfDay(today + 1));
 
         // If the user somehow has no activities with this task ID, don't notify the user. The account is probably not
-        // fully bootstrapped, and we should avoid sending them a notification.
-        if (!activityIterator.hasNext()) {
+        // fully bootstrapped, and we should avoid sending them a notification. (If we have burst state, we've already
+        // seen activities for this burst, so an empty range just means the user missed those days.)
+        if (isNewBurstState && !activityIterator.hasNext()) {
             return null;
         }
 
-        // Map the events by scheduled date so it's easier to work with.
-        Map<LocalDate, ScheduledActivity> activitiesByDate = new HashMap<>();
-        while (activityIterator.hasNext()) {
-            ScheduledActivity oneActivity = activityIterator.next();
-            LocalDate scheduleDate = oneActivity.getScheduledOn().withZone(timeZone).toLocalDate();
-            if (activitiesByDate.containsKey(scheduleDate)) {
-                // This shouldn't happen. If it does, log a warning and move on.
-                LOG.warn("Duplicate activities found for userId=" + userId + ", taskId=" + taskId + ", date=" +
-                        scheduleDate);
+        // Map the activities into a bitset of finished days, indexed from the start of the range.
+        BitSet duplicateDays = new BitSet();
+        BitSet finishedDays = burstCalendar.mapFinishedDays(activityIterator, activityRangeStart, duplicateDays);
+        for (int i = duplicateDays.nextSetBit(0); i >= 0; i = duplicateDays.nextSetBit(i + 1)) {
+            // This shouldn't happen. If it does, log a warning and move on.
+            LOG.warn("Duplicate activities found for userId=" + userId + ", taskId=" + taskId + ", date=" +
+                    BurstCalendar.fromEpochDay(activityRangeStart + i));
+        }
+
+        // Add the settled days to the burst state, in order by date, so later runs don't need to look at them again.
+        int todayIndex = today - activityRangeStart;
+        int settledIndex = Math.max(settledEnd - activityRangeStart, 0);
+        if (settledIndex > 0) {
+            burstState.addDays(finishedDays, 0, settledIndex, workerConfig);
+            burstState.setLastEvaluatedDate(BurstCalendar.fromEpochDay(settledEnd - 1));
+            if (dryRunUser != null) {
+                dryRunUser.setBurstState(burstState);
             } else {
-                activitiesByDate.put(scheduleDate, oneActivity);
+                dynamoHelper.saveBurstState(burstState);
             }
         }
 
-        // Check today's activities first. If they did today's activities, don't bother notifying.
-        ScheduledActivity todaysActivity = activitiesByDate.get(date);
-        if (todaysActivity != null && todaysActivity.getStatus() == ScheduleStatus.FINISHED) {
-            return null;
+        // Add the rest of the days before today to a copy of the burst state. We don't save these days, since they
+        // might still change, and the next run re-reads them.
+        BurstState currentBurstState = burstState.copy();
+        currentBurstState.addDays(finishedDays, settledIndex, todayIndex, workerConfig);
+
+        // If the user completed the burst, they don't need a notification for the rest of the burst. Skip them through
+        // the end of the notification period, but never through the last day of the burst, since that could be the
+        // day before the next burst.
+        if (currentBurstState.isResolved() && currentBurstState.getResolvedNotificationType() == null) {
+            int burstEnd = burstStart + workerConfig.getBurstDurationDays() - 1;
+            int notificationEnd = burstEnd - workerConfig.getNotificationBlackoutDaysFromEnd();
+            saveNotificationSkip(userId, workerConfig, today, burstStart, Math.min(notificationEnd, burstEnd - 1),
+                    dryRunUser);
         }
 
-        // Loop through activities in order by date
-        int daysMissed = 0;
-        int consecutiveDaysMissed = 0;
-        int numDays = 0;
-        int numActivitiesCompleted = 0;
-        for (LocalDate d = burstStartDate; !d.isAfter(date); d = d.plusDays(1)) {
-            ScheduledActivity daysActivity = activitiesByDate.get(d);
-            if (daysActivity == null || daysActivity.getStatus() != ScheduleStatus.FINISHED) {
-                daysMissed++;
-                consecutiveDaysMissed++;
-
-                if (daysMissed >= numMissedDaysToNotify) {
-                    return NotificationType.CUMULATIVE;
-                }
-                if (consecutiveDaysMissed >= numMissedConsecutiveDaysToNotify) {
-                    if (numDays < workerConfig.getEarlyLateCutoffDays()) {
-                        return NotificationType.EARLY;
-                    } else {
-                        return NotificationType.LATE;
-                    }
-                }
-            } else {
-                consecutiveDaysMissed = 0;
-                numActivitiesCompleted++;
-
-                if (numActivitiesCompleted >= workerConfig.getNumActivitiesToCompleteBurst()) {
-                    // Participant has completed requisite number of activities to complete the study burst. We won't
-                    // send a notification. No need to process any further.
-                    return null;
-                }
-            }
-
-            // Increment the day counter so we can determine early vs late.
-            numDays++;
+        // Check today's activities first. If they did today's activities, don't bother notifying.
+        boolean finishedToday = finishedDays.get(todayIndex);
+        if (finishedToday) {
+            return null;
         }
 
-        // If we make it this far, we've determined we don't need to notify.
-        return null;
+        // Add today to the copy of the burst state. If the burst state resolved to a notification, notify. If it
+        // resolved because the user completed the burst, or if it hasn't resolved, we don't need to notify.
+        currentBurstState.addDay(false, workerConfig);
+        return currentBurstState.getResolvedNotificationType();
     }
 
-    // Encapsulates sending an SMS notification to the user.
-    private void notifyUser(String studyId, StudyParticipant participant, NotificationType notificationType)
-            throws IOException, UserNotConfiguredException {
+    // Picks the SMS notification message for the user, and hands it off to the notification sender. Dry runs record
+    // the notification instead.
+    private void notifyUser(String studyId, WorkerConfig workerConfig, StudyParticipant participant,
+            NotificationType notificationType, DryRunUser dryRunUser) {
         String userId = participant.getId();
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
 
         // Get notification messages for type.
         List<String> messageList = null;
@@ -469,24 +748,16 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
             return;
         }
 
+        if (dryRunUser != null) {
+            dryRunUser.recordNotification(notificationType);
+            return;
+        }
+
         // Pick message at random.
         int randomIndex = rng.nextInt(messageList.size());
         String message = messageList.get(randomIndex);
 
-        // Resolve template variables.
-        message = templateVariableHelper.resolveTemplateVariables(studyId, participant, message);
-
-        LOG.info("Sending " + notificationType.name() + " notification to user " + userId);
-
-        // Log in Dynamo that we notified this user
-        UserNotification userNotification = new UserNotification();
-        userNotification.setMessage(message);
-        userNotification.setTime(DateUtils.getCurrentMillisFromEpoch());
-        userNotification.setType(notificationType);
-        userNotification.setUserId(userId);
-        dynamoHelper.setLastNotificationTimeForUser(userNotification);
-
-        // Send SMS
-        bridgeHelper.sendSmsToUser(studyId, userId, message);
+        // Hand off to the notification sender. Template variables are resolved when the notification is sent.
+        notificationSender.submit(new PendingNotification(studyId, participant, notificationType, message));
     }
 }
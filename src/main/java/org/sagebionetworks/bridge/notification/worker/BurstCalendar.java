@@ -0,0 +1,156 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.rest.model.ActivityEvent;
+import org.sagebionetworks.bridge.rest.model.ScheduleStatus;
+import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
+
+/**
+ * <p>
+ * A user's burst calendar, precomputed once per user. The user's time zone is parsed once, and burst starts are
+ * stored as epoch days (days since 1970-01-01 in the user's local time), so burst lookups are integer comparisons
+ * instead of repeated time zone conversions and LocalDate arithmetic.
+ * </p>
+ * <p>
+ * Burst starts are kept in the order of the activity events, so that lookups return the same burst that iterating
+ * over the activity events would.
+ * </p>
+ */
+public class BurstCalendar {
+    /** Returned by burst lookups when there is no matching burst. */
+    public static final int NO_BURST = Integer.MIN_VALUE;
+
+    private final DateTimeZone timeZone;
+    private final int[] burstStartEpochDays;
+    private final int burstDurationDays;
+
+    /**
+     * Makes a burst calendar.
+     *
+     * @param timeZone
+     *         user's time zone
+     * @param burstStartEventList
+     *         activity events that mark the start of a burst
+     * @param burstDurationDays
+     *         length of each burst, in days
+     */
+    public BurstCalendar(DateTimeZone timeZone, List<ActivityEvent> burstStartEventList, int burstDurationDays) {
+        this.timeZone = timeZone;
+        this.burstDurationDays = burstDurationDays;
+
+        burstStartEpochDays = new int[burstStartEventList.size()];
+        for (int i = 0; i < burstStartEpochDays.length; i++) {
+            burstStartEpochDays[i] = toEpochDay(burstStartEventList.get(i).getTimestamp());
+        }
+    }
+
+    /** Converts a calendar date to an epoch day. */
+    public static int toEpochDay(LocalDate date) {
+        return (int) Math.floorDiv(date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis(),
+                (long) DateTimeConstants.MILLIS_PER_DAY);
+    }
+
+    /** Converts an epoch day to a calendar date. */
+    public static LocalDate fromEpochDay(int epochDay) {
+        return new LocalDate((long) epochDay * DateTimeConstants.MILLIS_PER_DAY, DateTimeZone.UTC);
+    }
+
+    /** User's time zone. */
+    public DateTimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    /** Length of each burst, in days. */
+    public int getBurstDurationDays() {
+        return burstDurationDays;
+    }
+
+    /** Converts an instant to an epoch day in the user's time zone. This doesn't allocate. */
+    public int toEpochDay(DateTime instant) {
+        long millis = instant.getMillis();
+        return (int) Math.floorDiv(millis + timeZone.getOffset(millis), (long) DateTimeConstants.MILLIS_PER_DAY);
+    }
+
+    /** Start of the day, in the user's time zone, for the given epoch day. */
+    public DateTime startOfDay(int epochDay) {
+        return fromEpochDay(epochDay).toDateTimeAtStartOfDay(timeZone);
+    }
+
+    /** True if a burst starts on the given epoch day. */
+    public boolean hasBurstStartingOn(int epochDay) {
+        for (int oneBurstStart : burstStartEpochDays) {
+            if (oneBurstStart == epochDay) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the start of the burst that contains the given epoch day, or {@link #NO_BURST} if the day isn't in a
+     * burst.
+     */
+    public int findCurrentBurstStart(int epochDay) {
+        for (int oneBurstStart : burstStartEpochDays) {
+            if (oneBurstStart <= epochDay && epochDay <= oneBurstStart + burstDurationDays - 1) {
+                return oneBurstStart;
+            }
+        }
+        return NO_BURST;
+    }
+
+    /**
+     * Returns the start of the first burst after the given epoch day, or {@link #NO_BURST} if the day is in a burst
+     * or there are no later bursts.
+     */
+    public int findNextBurstStart(int epochDay) {
+        int nextBurstStart = NO_BURST;
+        for (int oneBurstStart : burstStartEpochDays) {
+            if (oneBurstStart <= epochDay && epochDay <= oneBurstStart + burstDurationDays - 1) {
+                return NO_BURST;
+            }
+            if (oneBurstStart > epochDay && (nextBurstStart == NO_BURST || oneBurstStart < nextBurstStart)) {
+                nextBurstStart = oneBurstStart;
+            }
+        }
+        return nextBurstStart;
+    }
+
+    /**
+     * Maps activities into a bitset of finished days. Bit i is set if the activity scheduled on epoch day
+     * (startEpochDay + i) is finished. Activities before startEpochDay are ignored. If there's more than one activity
+     * on a day, only the first one counts, and the day is also set in duplicateDays, if specified.
+     */
+    public BitSet mapFinishedDays(Iterator<ScheduledActivity> activityIterator, int startEpochDay,
+            BitSet duplicateDays) {
+        BitSet scheduledDays = new BitSet();
+        BitSet finishedDays = new BitSet();
+        while (activityIterator.hasNext()) {
+            ScheduledActivity oneActivity = activityIterator.next();
+            int dayIndex = toEpochDay(oneActivity.getScheduledOn()) - startEpochDay;
+            if (dayIndex < 0) {
+                continue;
+            }
+
+            if (scheduledDays.get(dayIndex)) {
+                if (duplicateDays != null) {
+                    duplicateDays.set(dayIndex);
+                }
+                continue;
+            }
+            scheduledDays.set(dayIndex);
+            if (oneActivity.getStatus() == ScheduleStatus.FINISHED) {
+                finishedDays.set(dayIndex);
+            }
+        }
+        return finishedDays;
+    }
+}
@@ -0,0 +1,207 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.BitSet;
+
+import org.joda.time.LocalDate;
+
+/**
+ * <p>
+ * Running counters for a user's current study burst, persisted in DynamoDB so that each daily run only needs to look
+ * at activities since the last run, instead of the whole burst.
+ * </p>
+ * <p>
+ * Counters only include days up to lastEvaluatedDate (inclusive). The most recent days (today, and
+ * BridgeNotificationWorkerProcessor.BURST_STATE_REREAD_DAYS days before it) aren't included, because the user can
+ * still finish those activities, or their uploads can arrive late. Each run re-reads those days. Once the counters
+ * reach a result (a notification, or the user completing the burst), the state is resolved, and later days no longer
+ * change it.
+ * </p>
+ */
+public class BurstState {
+    private String userId;
+    private LocalDate burstStartDate;
+    private LocalDate lastEvaluatedDate;
+    private int daysMissed;
+    private int consecutiveDaysMissed;
+    private int numDays;
+    private int numActivitiesCompleted;
+    private boolean resolved;
+    private NotificationType resolvedNotificationType;
+
+    /** Makes a new burst state for the given user and burst, with no days evaluated yet. */
+    public static BurstState create(String userId, LocalDate burstStartDate) {
+        BurstState burstState = new BurstState();
+        burstState.setUserId(userId);
+        burstState.setBurstStartDate(burstStartDate);
+        burstState.setLastEvaluatedDate(burstStartDate.minusDays(1));
+        return burstState;
+    }
+
+    /** Makes a copy of this burst state. Used to evaluate recent days without changing the persisted counters. */
+    public BurstState copy() {
+        BurstState copy = new BurstState();
+        copy.setUserId(userId);
+        copy.setBurstStartDate(burstStartDate);
+        copy.setLastEvaluatedDate(lastEvaluatedDate);
+        copy.setDaysMissed(daysMissed);
+        copy.setConsecutiveDaysMissed(consecutiveDaysMissed);
+        copy.setNumDays(numDays);
+        copy.setNumActivitiesCompleted(numActivitiesCompleted);
+        copy.setResolved(resolved);
+        copy.setResolvedNotificationType(resolvedNotificationType);
+        return copy;
+    }
+
+    /**
+     * Adds a single day to the counters. If the counters reach a result, the state is resolved, and later days don't
+     * change it. This doesn't update lastEvaluatedDate. Callers set that once they've added all the days.
+     *
+     * @param finished
+     *         true if the user finished the activity that day
+     * @param workerConfig
+     *         notification config for the study
+     */
+    public void addDay(boolean finished, WorkerConfig workerConfig) {
+        if (resolved) {
+            // We already know the result. Later days don't change it.
+            return;
+        }
+
+        if (!finished) {
+            daysMissed++;
+            consecutiveDaysMissed++;
+
+            if (daysMissed >= workerConfig.getNumMissedDaysToNotify()) {
+                resolve(NotificationType.CUMULATIVE);
+                return;
+            }
+            if (consecutiveDaysMissed >= workerConfig.getNumMissedConsecutiveDaysToNotify()) {
+                resolve(numDays < workerConfig.getEarlyLateCutoffDays() ? NotificationType.EARLY :
+                        NotificationType.LATE);
+                return;
+            }
+        } else {
+            consecutiveDaysMissed = 0;
+            numActivitiesCompleted++;
+
+            if (numActivitiesCompleted >= workerConfig.getNumActivitiesToCompleteBurst()) {
+                // Participant has completed requisite number of activities to complete the study burst. We won't
+                // send a notification.
+                resolve(null);
+                return;
+            }
+        }
+
+        // Increment the day counter so we can determine early vs late.
+        numDays++;
+    }
+
+    /**
+     * Adds days fromIndex (inclusive) to toIndex (exclusive) to the counters, in order. A day is finished if its bit
+     * is set in finishedDays. Stops early once the state is resolved.
+     */
+    public void addDays(BitSet finishedDays, int fromIndex, int toIndex, WorkerConfig workerConfig) {
+        for (int i = fromIndex; i < toIndex && !resolved; i++) {
+            addDay(finishedDays.get(i), workerConfig);
+        }
+    }
+
+    // Marks the burst state as resolved, with the given notification type (or null if we shouldn't notify).
+    private void resolve(NotificationType notificationType) {
+        resolved = true;
+        resolvedNotificationType = notificationType;
+    }
+
+    /** ID of the user this burst state is for. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /** Start date of the burst, in the user's time zone. If the user is in a new burst, the state is discarded. */
+    public LocalDate getBurstStartDate() {
+        return burstStartDate;
+    }
+
+    /** @see #getBurstStartDate */
+    public void setBurstStartDate(LocalDate burstStartDate) {
+        this.burstStartDate = burstStartDate;
+    }
+
+    /** Last date included in the counters. */
+    public LocalDate getLastEvaluatedDate() {
+        return lastEvaluatedDate;
+    }
+
+    /** @see #getLastEvaluatedDate */
+    public void setLastEvaluatedDate(LocalDate lastEvaluatedDate) {
+        this.lastEvaluatedDate = lastEvaluatedDate;
+    }
+
+    /** Number of days in the burst the user didn't finish the activity. */
+    public int getDaysMissed() {
+        return daysMissed;
+    }
+
+    /** @see #getDaysMissed */
+    public void setDaysMissed(int daysMissed) {
+        this.daysMissed = daysMissed;
+    }
+
+    /** Number of days in a row, up to lastEvaluatedDate, the user didn't finish the activity. */
+    public int getConsecutiveDaysMissed() {
+        return consecutiveDaysMissed;
+    }
+
+    /** @see #getConsecutiveDaysMissed */
+    public void setConsecutiveDaysMissed(int consecutiveDaysMissed) {
+        this.consecutiveDaysMissed = consecutiveDaysMissed;
+    }
+
+    /** Number of days evaluated. Used to determine early vs late notifications. */
+    public int getNumDays() {
+        return numDays;
+    }
+
+    /** @see #getNumDays */
+    public void setNumDays(int numDays) {
+        this.numDays = numDays;
+    }
+
+    /** Number of days in the burst the user finished the activity. */
+    public int getNumActivitiesCompleted() {
+        return numActivitiesCompleted;
+    }
+
+    /** @see #getNumActivitiesCompleted */
+    public void setNumActivitiesCompleted(int numActivitiesCompleted) {
+        this.numActivitiesCompleted = numActivitiesCompleted;
+    }
+
+    /** True if the counters have reached a result. Later days don't change a resolved state. */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    /** @see #isResolved */
+    public void setResolved(boolean resolved) {
+        this.resolved = resolved;
+    }
+
+    /**
+     * Notification type the state resolved to. Null if the state isn't resolved, or if it resolved because the user
+     * completed the burst.
+     */
+    public NotificationType getResolvedNotificationType() {
+        return resolvedNotificationType;
+    }
+
+    /** @see #getResolvedNotificationType */
+    public void setResolvedNotificationType(NotificationType resolvedNotificationType) {
+        this.resolvedNotificationType = resolvedNotificationType;
+    }
+}
@@ -0,0 +1,109 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregated results of a dry run of the notification worker: the notifications the worker would have sent, by
+ * notification type, and how fast the simulation ran. Dry runs also serve as a capacity benchmark, so the report
+ * includes throughput in users and user-days per second.
+ */
+public class DryRunReport {
+    private static final Logger LOG = LoggerFactory.getLogger(DryRunReport.class);
+
+    private final String studyId;
+    private final LocalDate startDate;
+    private final LocalDate endDate;
+    private final Map<NotificationType, AtomicLong> numNotificationsByType = new EnumMap<>(NotificationType.class);
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong numUserDays = new AtomicLong();
+    private final AtomicLong numUsers = new AtomicLong();
+    private final Stopwatch stopwatch = Stopwatch.createStarted();
+
+    /** Makes a report for a dry run of the given study, from startDate to endDate (inclusive). */
+    public DryRunReport(String studyId, LocalDate startDate, LocalDate endDate) {
+        this.studyId = studyId;
+        this.startDate = startDate;
+        this.endDate = endDate;
+
+        // Counters are only ever updated, never added or removed, so the map doesn't need to be concurrent.
+        for (NotificationType oneType : NotificationType.values()) {
+            numNotificationsByType.put(oneType, new AtomicLong());
+        }
+    }
+
+    /** Study being simulated. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** First date simulated. */
+    public LocalDate getStartDate() {
+        return startDate;
+    }
+
+    /** Last date simulated (inclusive). */
+    public LocalDate getEndDate() {
+        return endDate;
+    }
+
+    /** Records that the worker would have sent a notification of the given type to the given user on the date. */
+    public void recordNotification(String userId, LocalDate date, NotificationType type) {
+        numNotificationsByType.get(type).incrementAndGet();
+        LOG.info("Dry run: would send " + type + " notification to user " + userId + " on " + date);
+    }
+
+    /** Records that a user was evaluated for one date. */
+    public void recordUserDay() {
+        numUserDays.incrementAndGet();
+    }
+
+    /** Records that a user was evaluated for every date in the range. */
+    public void recordUser() {
+        numUsers.incrementAndGet();
+    }
+
+    /** Records that evaluating a user failed for one date. */
+    public void recordError() {
+        numErrors.incrementAndGet();
+    }
+
+    /** Number of notifications of the given type the worker would have sent. */
+    public long getNumNotifications(NotificationType type) {
+        return numNotificationsByType.get(type).get();
+    }
+
+    /** Number of user-days that failed to evaluate. */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    /** Number of user-days evaluated. */
+    public long getNumUserDays() {
+        return numUserDays.get();
+    }
+
+    /** Number of users evaluated. */
+    public long getNumUsers() {
+        return numUsers.get();
+    }
+
+    /** Logs the aggregated results and throughput. */
+    public void log() {
+        long elapsedMillis = Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        LOG.info("Dry run for study " + studyId + " from " + startDate + " to " + endDate + ": " + numUsers.get() +
+                " users, " + numUserDays.get() + " user-days, " + numErrors.get() + " errors in " + elapsedMillis +
+                " ms (" + (numUsers.get() * 1000 / elapsedMillis) + " users/sec, " +
+                (numUserDays.get() * 1000 / elapsedMillis) + " user-days/sec)");
+        for (NotificationType oneType : NotificationType.values()) {
+            LOG.info("Dry run: would send " + getNumNotifications(oneType) + " " + oneType + " notifications");
+        }
+    }
+}
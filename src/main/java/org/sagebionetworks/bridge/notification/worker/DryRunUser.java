@@ -0,0 +1,121 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.rest.model.ActivityEvent;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+/**
+ * A single user's state during a dry run. The worker reads the user's state from DynamoDB once, then keeps it here
+ * instead of writing it back, so a dry run never changes what a real run would do. Data that doesn't change from day
+ * to day, like the participant and their activity events, is fetched once and reused for every date in the range.
+ */
+public class DryRunUser {
+    private final String userId;
+    private final DryRunReport report;
+
+    private List<ActivityEvent> activityEventList;
+    private BurstState burstState;
+    private LocalDate date;
+    private UserNotification lastNotification;
+    private DateTime now;
+    private NotificationSkip notificationSkip;
+    private StudyParticipant participant;
+
+    /** Makes the dry run state for the given user, which records notifications to the given report. */
+    public DryRunUser(String userId, DryRunReport report) {
+        this.userId = userId;
+        this.report = report;
+    }
+
+    /** ID of the user being simulated. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** Date being simulated. */
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /**
+     * Sets the date being simulated. The current time is simulated as the same time of day on that date, so that
+     * checks like "notified recently" are relative to the simulated date.
+     */
+    public void setDate(LocalDate date, DateTime realNow) {
+        this.date = date;
+        this.now = date.toDateTime(realNow.toLocalTime(), realNow.getZone());
+    }
+
+    /** Simulated current time. */
+    public DateTime getNow() {
+        return now;
+    }
+
+    /** User's activity events, or null if they haven't been fetched yet. */
+    public List<ActivityEvent> getActivityEventList() {
+        return activityEventList;
+    }
+
+    /** @see #getActivityEventList */
+    public void setActivityEventList(List<ActivityEvent> activityEventList) {
+        this.activityEventList = activityEventList;
+    }
+
+    /** User's burst state, as of the last simulated date. Null if the user has no burst state. */
+    public BurstState getBurstState() {
+        return burstState;
+    }
+
+    /** @see #getBurstState */
+    public void setBurstState(BurstState burstState) {
+        this.burstState = burstState;
+    }
+
+    /** User's last notification, including simulated notifications. Null if the user has never been notified. */
+    public UserNotification getLastNotification() {
+        return lastNotification;
+    }
+
+    /** @see #getLastNotification */
+    public void setLastNotification(UserNotification lastNotification) {
+        this.lastNotification = lastNotification;
+    }
+
+    /** User's notification skip, including simulated skips. Null if the user has no notification skip. */
+    public NotificationSkip getNotificationSkip() {
+        return notificationSkip;
+    }
+
+    /** @see #getNotificationSkip */
+    public void setNotificationSkip(NotificationSkip notificationSkip) {
+        this.notificationSkip = notificationSkip;
+    }
+
+    /** Participant, or null if they haven't been fetched yet. */
+    public StudyParticipant getParticipant() {
+        return participant;
+    }
+
+    /** @see #getParticipant */
+    public void setParticipant(StudyParticipant participant) {
+        this.participant = participant;
+    }
+
+    /**
+     * Records that the worker would have notified the user on the simulated date. This becomes the user's last
+     * notification for later dates.
+     */
+    public void recordNotification(NotificationType type) {
+        UserNotification userNotification = new UserNotification();
+        userNotification.setTime(now.getMillis());
+        userNotification.setType(type);
+        userNotification.setUserId(userId);
+        lastNotification = userNotification;
+
+        report.recordNotification(userId, date, type);
+    }
+}
@@ -0,0 +1,161 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.io.IOException;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * The data that eligibility predicates need to evaluate a single user. Data that requires a remote call, such as the
+ * participant or the user's last notification, is loaded the first time a predicate asks for it, so users that are
+ * excluded by cheaper predicates never pay for it.
+ */
+public class EligibilityContext {
+    private final BridgeHelper bridgeHelper;
+    private final DynamoHelper dynamoHelper;
+    private final String studyId;
+    private final LocalDate date;
+    private final String userId;
+    private final WorkerConfig workerConfig;
+
+    private RateLimiter bridgeRateLimiter;
+    private DateTime now = DateTime.now();
+    private boolean lastNotificationLoaded;
+    private boolean notificationSkipLoaded;
+    private NotificationSkip notificationSkip;
+    private UserNotification lastNotification;
+    private StudyParticipant participant;
+    private DateTimeZone timeZone;
+
+    /** Constructs the context for the given user. */
+    public EligibilityContext(BridgeHelper bridgeHelper, DynamoHelper dynamoHelper, String studyId, LocalDate date,
+            String userId, WorkerConfig workerConfig) {
+        this.bridgeHelper = bridgeHelper;
+        this.dynamoHelper = dynamoHelper;
+        this.studyId = studyId;
+        this.date = date;
+        this.userId = userId;
+        this.workerConfig = workerConfig;
+    }
+
+    /** Study the user is in. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** Date we're sending notifications for. */
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /** ID of the user being evaluated. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** Notification config for the study. */
+    public WorkerConfig getWorkerConfig() {
+        return workerConfig;
+    }
+
+    /** Current time, used for checks like "notified recently". Defaults to when the context was made. */
+    public DateTime getNow() {
+        return now;
+    }
+
+    /** Sets the current time. Dry runs use this to simulate a different date. */
+    public void setNow(DateTime now) {
+        this.now = now;
+    }
+
+    /**
+     * Gets the user's last notification from DynamoDB, the first time this is called. Returns null if the user has
+     * never been notified.
+     */
+    public UserNotification getLastNotification() {
+        if (!lastNotificationLoaded) {
+            lastNotification = dynamoHelper.getLastNotificationTimeForUser(userId);
+            lastNotificationLoaded = true;
+        }
+        return lastNotification;
+    }
+
+    /**
+     * Sets the user's last notification, if it was already looked up as part of a page of users. Null means the user
+     * has never been notified.
+     */
+    public void setLastNotification(UserNotification lastNotification) {
+        this.lastNotification = lastNotification;
+        this.lastNotificationLoaded = true;
+    }
+
+    /**
+     * Gets the user's notification skip from DynamoDB, the first time this is called. Returns null if the user has no
+     * notification skip.
+     */
+    public NotificationSkip getNotificationSkip() {
+        if (!notificationSkipLoaded) {
+            notificationSkip = dynamoHelper.getNotificationSkipForUser(userId);
+            notificationSkipLoaded = true;
+        }
+        return notificationSkip;
+    }
+
+    /**
+     * Sets the user's notification skip, if it was already looked up. Null means the user has no notification skip.
+     */
+    public void setNotificationSkip(NotificationSkip notificationSkip) {
+        this.notificationSkip = notificationSkip;
+        this.notificationSkipLoaded = true;
+    }
+
+    /**
+     * Rate limiter for the user's calls to Bridge. Fetching the participant is the user's first call to Bridge, so we
+     * acquire a permit then. Users excluded by predicates that don't need the participant never wait on it.
+     */
+    public void setBridgeRateLimiter(RateLimiter bridgeRateLimiter) {
+        this.bridgeRateLimiter = bridgeRateLimiter;
+    }
+
+    /** Gets the participant from Bridge, the first time this is called. Subsequent calls return the same object. */
+    public StudyParticipant getParticipant() throws IOException {
+        if (participant == null) {
+            if (bridgeRateLimiter != null) {
+                bridgeRateLimiter.acquire();
+            }
+            participant = bridgeHelper.getParticipant(studyId, userId);
+        }
+        return participant;
+    }
+
+    /** Sets the participant, if it was already fetched. */
+    public void setParticipant(StudyParticipant participant) {
+        this.participant = participant;
+    }
+
+    /**
+     * Gets the participant's time zone, parsed the first time this is called. Returns null if the participant has no
+     * time zone.
+     */
+    public DateTimeZone getTimeZone() throws IOException {
+        if (timeZone == null) {
+            String timeZoneString = getParticipant().getTimeZone();
+            if (timeZoneString != null) {
+                timeZone = DateUtils.parseZoneFromOffsetString(timeZoneString);
+            }
+        }
+        return timeZone;
+    }
+
+    /** True if the participant has been loaded. Package-scoped for unit tests. */
+    boolean isParticipantLoaded() {
+        return participant != null;
+    }
+}
@@ -0,0 +1,144 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A single rule that can exclude a user from notifications. Each predicate is annotated with the data it needs, which
+ * determines its cost. The notification worker evaluates predicates cheapest first, so that users who can be excluded
+ * using local data or DynamoDB are excluded before we make any calls to Bridge.
+ * </p>
+ * <p>
+ * Predicates count how many users they evaluated and rejected, and how long they took. Counters are thread-safe, since
+ * users are evaluated concurrently.
+ * </p>
+ */
+public class EligibilityPredicate {
+    /** Relative cost of a predicate. Predicates are evaluated in this order. */
+    public enum Cost {
+        /** Only needs data we already have in memory. */
+        LOCAL,
+
+        /** Needs a call to DynamoDB. */
+        DYNAMO_DB,
+
+        /** Needs a call to Bridge. */
+        BRIDGE,
+    }
+
+    /** The data a predicate needs. Each kind of data has a cost. */
+    public enum RequiredData {
+        /** The study's worker config. */
+        WORKER_CONFIG(Cost.LOCAL),
+
+        /** The user's notification log in DynamoDB. */
+        NOTIFICATION_LOG(Cost.DYNAMO_DB),
+
+        /** The user's notification skip in DynamoDB. */
+        NOTIFICATION_SKIP(Cost.DYNAMO_DB),
+
+        /** The participant from Bridge. Loaded once per user, the first time it's needed. */
+        PARTICIPANT(Cost.BRIDGE);
+
+        private final Cost cost;
+
+        RequiredData(Cost cost) {
+            this.cost = cost;
+        }
+
+        /** Cost of getting this data. */
+        public Cost getCost() {
+            return cost;
+        }
+    }
+
+    /** The rule itself. Returns true if the user should be excluded from notifications. */
+    @FunctionalInterface
+    public interface Rule {
+        boolean shouldExclude(EligibilityContext context) throws IOException;
+    }
+
+    private final String name;
+    private final RequiredData requiredData;
+    private final Rule rule;
+
+    private final AtomicLong numEvaluated = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** Constructs a predicate with the given name (for logging), required data, and rule. */
+    public EligibilityPredicate(String name, RequiredData requiredData, Rule rule) {
+        this.name = name;
+        this.requiredData = requiredData;
+        this.rule = rule;
+    }
+
+    /**
+     * Returns a copy of the given predicates, sorted by cost. Predicates with the same cost keep their original order.
+     */
+    public static List<EligibilityPredicate> sortByCost(List<EligibilityPredicate> predicateList) {
+        List<EligibilityPredicate> sortedList = new ArrayList<>(predicateList);
+        sortedList.sort(Comparator.comparing(EligibilityPredicate::getCost));
+        return sortedList;
+    }
+
+    /** Name of the predicate, used for logging. */
+    public String getName() {
+        return name;
+    }
+
+    /** The data this predicate needs. */
+    public RequiredData getRequiredData() {
+        return requiredData;
+    }
+
+    /** Cost of this predicate, based on the data it needs. */
+    public Cost getCost() {
+        return requiredData.getCost();
+    }
+
+    /**
+     * Evaluates the rule against the given user and updates the counters. Returns true if the user should be
+     * excluded.
+     */
+    public boolean rejects(EligibilityContext context) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            boolean excluded = rule.shouldExclude(context);
+            if (excluded) {
+                numRejected.incrementAndGet();
+            }
+            return excluded;
+        } finally {
+            numEvaluated.incrementAndGet();
+            totalNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Number of users this predicate has evaluated. */
+    public long getNumEvaluated() {
+        return numEvaluated.get();
+    }
+
+    /** Number of users this predicate has excluded. */
+    public long getNumRejected() {
+        return numRejected.get();
+    }
+
+    /** Total time spent evaluating this predicate, in milliseconds. */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+    }
+
+    /** Resets the counters. This is called at the end of each worker run. */
+    public void resetCounters() {
+        numEvaluated.set(0);
+        numRejected.set(0);
+        totalNanos.set(0);
+    }
+}
@@ -0,0 +1,58 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory stand-in for the SQS queue that delivers notification events. Used for local development and testing,
+ * where there is no SQS queue: events are offered to this queue, then fed to the event processor the same way the
+ * SQS callback would.
+ */
+@Component
+public class LocalNotificationEventQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalNotificationEventQueue.class);
+
+    private final Queue<JsonNode> eventQueue = new ConcurrentLinkedQueue<>();
+
+    private NotificationEventProcessor notificationEventProcessor;
+
+    /** Processor that marks users as active. */
+    @Autowired
+    public final void setNotificationEventProcessor(NotificationEventProcessor notificationEventProcessor) {
+        this.notificationEventProcessor = notificationEventProcessor;
+    }
+
+    /** Adds an event to the queue. The event has the same format as the body of an SQS event request. */
+    public void offer(JsonNode event) {
+        eventQueue.add(event);
+    }
+
+    /** Number of events waiting in the queue. */
+    public int size() {
+        return eventQueue.size();
+    }
+
+    /**
+     * Feeds every queued event to the event processor. Events that fail are logged and dropped, so that one bad event
+     * can't block the others. Returns the number of events processed successfully.
+     */
+    public int processPendingEvents() {
+        int numProcessed = 0;
+        JsonNode event;
+        while ((event = eventQueue.poll()) != null) {
+            try {
+                notificationEventProcessor.accept(event);
+                numProcessed++;
+            } catch (Exception ex) {
+                LOG.error("Error processing notification event: " + ex.getMessage(), ex);
+            }
+        }
+        return numProcessed;
+    }
+}
@@ -0,0 +1,102 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.multiplexer.Constants;
+
+/**
+ * Worker that receives activity-completion and burst-start events and marks users as active for the dates their
+ * notification state might change. Incremental runs of the notification worker only evaluate active users, instead of
+ * every account in the study.
+ */
+@Component(Constants.SERVICE_TYPE_NOTIFICATION_EVENT)
+public class NotificationEventProcessor implements ThrowingConsumer<JsonNode> {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationEventProcessor.class);
+
+    static final String REQUEST_PARAM_EVENT_TYPE = "eventType";
+    static final String REQUEST_PARAM_STUDY_ID = "studyId";
+    static final String REQUEST_PARAM_TIMESTAMP = "timestamp";
+    static final String REQUEST_PARAM_USER_ID = "userId";
+
+    private DynamoHelper dynamoHelper;
+
+    /** DynamoDB Helper. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /** Main entry point into the Notification Event Worker. */
+    @Override
+    public void accept(JsonNode jsonNode) throws PollSqsWorkerBadRequestException {
+        String studyId = getRequiredString(jsonNode, REQUEST_PARAM_STUDY_ID);
+        String userId = getRequiredString(jsonNode, REQUEST_PARAM_USER_ID);
+
+        String eventTypeString = getRequiredString(jsonNode, REQUEST_PARAM_EVENT_TYPE);
+        NotificationEventType eventType;
+        try {
+            eventType = NotificationEventType.valueOf(eventTypeString);
+        } catch (IllegalArgumentException ex) {
+            throw new PollSqsWorkerBadRequestException("Invalid eventType " + eventTypeString);
+        }
+
+        String timestampString = getRequiredString(jsonNode, REQUEST_PARAM_TIMESTAMP);
+        DateTime timestamp;
+        try {
+            timestamp = DateTime.parse(timestampString);
+        } catch (IllegalArgumentException ex) {
+            throw new PollSqsWorkerBadRequestException("timestamp must be an ISO 8601 date-time");
+        }
+
+        // We don't know the user's time zone without calling Bridge. The notification worker only notifies users
+        // from UTC-11 to UTC-1, so the user's local date is either the UTC date or the day before.
+        LocalDate utcDate = timestamp.withZone(DateTimeZone.UTC).toLocalDate();
+        LocalDate startDate;
+        LocalDate endDate;
+        switch (eventType) {
+            case ACTIVITY_COMPLETED:
+                // Completing an activity changes the user's burst state for the rest of that day. The run for that
+                // day may already have happened, so evaluate the user the day after as well.
+                startDate = utcDate.minusDays(1);
+                endDate = utcDate.plusDays(1);
+                break;
+            case BURST_STARTED:
+                // Evaluate the user from the day before the burst (for the pre-burst notification) to the last day
+                // of the burst. The user's notification skip was computed without this burst, so it no longer
+                // applies.
+                WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+                startDate = utcDate.minusDays(2);
+                endDate = utcDate.plusDays(workerConfig.getBurstDurationDays() - 1);
+                dynamoHelper.deleteNotificationSkipForUser(userId);
+                break;
+            default:
+                throw new PollSqsWorkerBadRequestException("Unsupported eventType " + eventType);
+        }
+
+        dynamoHelper.markUserActiveForDates(studyId, userId, startDate, endDate);
+        LOG.info("Marked user " + userId + " in study " + studyId + " active from " + startDate + " to " + endDate +
+                " for " + eventType + " event");
+    }
+
+    // Helper method to get a required string param from the request.
+    private static String getRequiredString(JsonNode jsonNode, String key) throws PollSqsWorkerBadRequestException {
+        JsonNode valueNode = jsonNode.get(key);
+        if (valueNode == null || valueNode.isNull()) {
+            throw new PollSqsWorkerBadRequestException(key + " must be specified");
+        }
+        if (!valueNode.isTextual()) {
+            throw new PollSqsWorkerBadRequestException(key + " must be a string");
+        }
+        return valueNode.textValue();
+    }
+}
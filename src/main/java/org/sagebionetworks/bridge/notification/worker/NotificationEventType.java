@@ -0,0 +1,10 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** Represents the type of event that changes whether a participant needs to be evaluated for notifications. */
+public enum NotificationEventType {
+    /** The participant completed a scheduled activity. */
+    ACTIVITY_COMPLETED,
+
+    /** A study burst start event was created for the participant. The timestamp is the start of the burst. */
+    BURST_STARTED,
+}
@@ -0,0 +1,364 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.annotation.Resource;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.notification.exceptions.UserNotConfiguredException;
+import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.MessageTemplate;
+import org.sagebionetworks.bridge.notification.helper.TemplateVariableHelper;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * <p>
+ * Sends SMS notifications for the notification worker. While a run is in progress (between {@link #start} and
+ * {@link #finish}), notifications are pushed onto a bounded queue and sent by a separate pool of senders, so that
+ * evaluating users doesn't wait on the SMS gateway. If the queue is full, the evaluating thread waits for room, so
+ * the senders can't fall arbitrarily far behind.
+ * </p>
+ * <p>
+ * Senders take notifications off the queue in batches, so that template variable values can be fetched for the whole
+ * batch at once. Sends share a rate limit. Sends are only retried if we know the SMS wasn't sent (see
+ * {@link #isSmsRetryable}), so that users don't get duplicate SMS. The notification log is only written once the SMS
+ * is confirmed sent, so a failed send doesn't stop the user from being notified on a later run.
+ * </p>
+ */
+@Component
+public class NotificationSender {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationSender.class);
+
+    // How long a sender waits for a notification before checking if the run is finished.
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    // Status codes that mean Bridge didn't send the SMS, so it's safe to retry: throttled or unavailable.
+    private static final Set<Integer> RETRYABLE_SMS_STATUS_CODE_SET = ImmutableSet.of(429, 503);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_SEND_BATCH_SIZE = "notification.send.batch.size";
+    static final String CONFIG_KEY_SEND_MAX_ATTEMPTS = "notification.send.max.attempts";
+    static final String CONFIG_KEY_SEND_QUEUE_SIZE = "notification.send.queue.size";
+    static final String CONFIG_KEY_SEND_RATE_LIMIT = "notification.send.rate.limit";
+    static final String CONFIG_KEY_SEND_RETRY_DELAY_MILLIS = "notification.send.retry.delay.millis";
+    static final String CONFIG_KEY_SENDER_COUNT = "threadpool.notification.send.count";
+
+    private final Map<NotificationType, AtomicLong> numFailedByType = makeCounterMap();
+    private final Map<NotificationType, AtomicLong> numSentByType = makeCounterMap();
+    private final RateLimiter sendRateLimiter = RateLimiter.create(1.0);
+    private final List<Future<?>> senderFutureList = new ArrayList<>();
+
+    private int batchSize = 1;
+    private BridgeHelper bridgeHelper;
+    private DynamoHelper dynamoHelper;
+    private ExecutorService executorService;
+    private int maxAttempts = 1;
+    private BlockingQueue<PendingNotification> queue = new ArrayBlockingQueue<>(1);
+    private long retryDelayMillis = 0;
+    private volatile boolean running = false;
+    private int senderCount = 1;
+    private TemplateVariableHelper templateVariableHelper;
+
+    /**
+     * Bridge config, used to get the queue size, the number of senders, the batch size, the send rate limit, and the
+     * retry policy. The number of senders matches the size of the sender thread pool.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        batchSize = config.getInt(CONFIG_KEY_SEND_BATCH_SIZE);
+        maxAttempts = config.getInt(CONFIG_KEY_SEND_MAX_ATTEMPTS);
+        queue = new ArrayBlockingQueue<>(config.getInt(CONFIG_KEY_SEND_QUEUE_SIZE));
+        retryDelayMillis = config.getInt(CONFIG_KEY_SEND_RETRY_DELAY_MILLIS);
+        senderCount = config.getInt(CONFIG_KEY_SENDER_COUNT);
+        setSendRateLimit(config.getInt(CONFIG_KEY_SEND_RATE_LIMIT));
+    }
+
+    /** Bridge helper. */
+    @Autowired
+    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** DynamoDB Helper. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /** Executor service, used to run the senders. */
+    @Resource(name = "notificationSendExecutorService")
+    public final void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /** Set send rate limit, in SMS per second. This is shared by all senders. */
+    public final void setSendRateLimit(double rate) {
+        sendRateLimiter.setRate(rate);
+    }
+
+    /** Helper class that resolves template variables in SMS strings. */
+    @Autowired
+    public final void setTemplateVariableHelper(TemplateVariableHelper templateVariableHelper) {
+        this.templateVariableHelper = templateVariableHelper;
+    }
+
+    /** Number of notifications of the given type sent since the start of the current (or last) run. */
+    public long getNumSent(NotificationType type) {
+        return numSentByType.get(type).get();
+    }
+
+    /** Number of notifications of the given type that failed to send since the start of the current (or last) run. */
+    public long getNumFailed(NotificationType type) {
+        return numFailedByType.get(type).get();
+    }
+
+    /** Starts a run. Notifications submitted until {@link #finish} is called are queued and sent by the senders. */
+    public void start() {
+        resetCounters();
+        running = true;
+        for (int i = 0; i < senderCount; i++) {
+            senderFutureList.add(executorService.submit(this::runSender));
+        }
+    }
+
+    /**
+     * Submits a notification. During a run, this queues the notification, waiting for room in the queue if needed.
+     * Otherwise, this sends the notification on the calling thread.
+     */
+    public void submit(PendingNotification pendingNotification) {
+        if (!running) {
+            sendNotification(pendingNotification);
+            return;
+        }
+
+        try {
+            queue.put(pendingNotification);
+        } catch (InterruptedException ex) {
+            // Don't lose the notification. Send it here instead.
+            Thread.currentThread().interrupt();
+            sendNotification(pendingNotification);
+        }
+    }
+
+    /**
+     * Finishes the run. Waits for the senders to send everything in the queue, then logs the counters. Study
+     * commitments are only cached for the run, so the next run sees updated Engagement reports.
+     */
+    public void finish() {
+        running = false;
+        for (Future<?> oneSenderFuture : senderFutureList) {
+            try {
+                oneSenderFuture.get();
+            } catch (ExecutionException ex) {
+                LOG.error("Error in notification sender: " + ex.getMessage(), ex);
+            } catch (InterruptedException ex) {
+                LOG.warn("Interrupted waiting for notification senders");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        senderFutureList.clear();
+
+        // If the senders stopped early, send anything left behind on this thread.
+        List<PendingNotification> remainingList = new ArrayList<>();
+        queue.drainTo(remainingList);
+        if (!remainingList.isEmpty()) {
+            sendBatch(remainingList);
+        }
+
+        templateVariableHelper.clearStudyCommitmentCache();
+        for (NotificationType oneType : NotificationType.values()) {
+            long numSent = getNumSent(oneType);
+            long numFailed = getNumFailed(oneType);
+            if (numSent > 0 || numFailed > 0) {
+                LOG.info("Sent " + numSent + " " + oneType + " notifications, " + numFailed + " failed");
+            }
+        }
+    }
+
+    // Sender loop. Takes batches of notifications off the queue until the run is finished and the queue is empty.
+    private void runSender() {
+        List<PendingNotification> batch = new ArrayList<>();
+        while (true) {
+            PendingNotification first;
+            try {
+                first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (first == null) {
+                if (!running) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            sendBatch(batch);
+            batch.clear();
+        }
+    }
+
+    // Sends a batch of notifications. Study commitments for the batch are fetched all at once, instead of one Bridge
+    // call per notification.
+    private void sendBatch(List<PendingNotification> batch) {
+        List<String> studyCommitmentUserIdList = new ArrayList<>();
+        String studyId = null;
+        for (PendingNotification onePendingNotification : batch) {
+            if (templateVariableHelper.getTemplateVariables(onePendingNotification.getMessage()).contains(
+                    MessageTemplate.Variable.STUDY_COMMITMENT)) {
+                studyCommitmentUserIdList.add(onePendingNotification.getParticipant().getId());
+                studyId = onePendingNotification.getStudyId();
+            }
+        }
+        if (!studyCommitmentUserIdList.isEmpty()) {
+            // The worker processes one study at a time, so every notification in the batch is for the same study.
+            templateVariableHelper.prefetchStudyCommitments(studyId, studyCommitmentUserIdList);
+        }
+
+        for (PendingNotification onePendingNotification : batch) {
+            sendNotification(onePendingNotification);
+        }
+    }
+
+    // Resolves template variables in the notification's message, sends the SMS, and logs the notification once the
+    // SMS is sent. Errors are logged and counted, instead of thrown, so one notification can't stop the others.
+    private void sendNotification(PendingNotification pendingNotification) {
+        String studyId = pendingNotification.getStudyId();
+        NotificationType notificationType = pendingNotification.getType();
+        String userId = pendingNotification.getParticipant().getId();
+
+        // Resolve template variables.
+        String message;
+        try {
+            message = templateVariableHelper.resolveTemplateVariables(studyId, pendingNotification.getParticipant(),
+                    pendingNotification.getMessage());
+        } catch (UserNotConfiguredException ex) {
+            // Users not being configured properly is a fairly common occurence. Log a warning instead of an error.
+            LOG.warn("User ID " + userId + " is not configured for notifications: " + ex.getMessage(), ex);
+            numFailedByType.get(notificationType).incrementAndGet();
+            return;
+        } catch (Exception ex) {
+            LOG.error("Error resolving notification for user ID " + userId + ": " + ex.getMessage(), ex);
+            numFailedByType.get(notificationType).incrementAndGet();
+            return;
+        }
+
+        // Send SMS
+        LOG.info("Sending " + notificationType.name() + " notification to user " + userId);
+        boolean sent = callWithRetries("sending SMS to user " + userId, () -> {
+            sendRateLimiter.acquire();
+            bridgeHelper.sendSmsToUser(studyId, userId, message);
+            return null;
+        }, NotificationSender::isSmsRetryable);
+        if (!sent) {
+            numFailedByType.get(notificationType).incrementAndGet();
+            return;
+        }
+        numSentByType.get(notificationType).incrementAndGet();
+
+        // Log in Dynamo that we notified this user
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage(message);
+        userNotification.setTime(DateUtils.getCurrentMillisFromEpoch());
+        userNotification.setType(notificationType);
+        userNotification.setUserId(userId);
+        boolean logged = callWithRetries("logging notification for user " + userId, () -> {
+            dynamoHelper.setLastNotificationTimeForUser(userNotification);
+            return null;
+        }, ex -> true);
+        if (!logged) {
+            LOG.error("Notification sent to user " + userId + ", but not logged. User may be notified again.");
+        }
+    }
+
+    /**
+     * True if the SMS send failed in a way that means the SMS wasn't sent, so it's safe to retry. This is true if we
+     * couldn't connect to Bridge, or if Bridge throttled us or was unavailable. Other errors (such as read timeouts
+     * and other server errors) are ambiguous, since the SMS might have been sent anyway, so we don't retry them.
+     * Package-scoped for unit tests.
+     */
+    static boolean isSmsRetryable(Exception ex) {
+        for (Throwable oneThrowable : Throwables.getCausalChain(ex)) {
+            if (oneThrowable instanceof ConnectException) {
+                return true;
+            }
+        }
+        return ex instanceof BridgeSDKException && RETRYABLE_SMS_STATUS_CODE_SET.contains(
+                ((BridgeSDKException) ex).getStatusCode());
+    }
+
+    // Calls the given callable, retrying up to the max attempts, waiting longer between each attempt. Only errors that
+    // match the retry predicate are retried. Returns true if the call succeeded.
+    private boolean callWithRetries(String description, Callable<Void> callable, Predicate<Exception> retryPredicate) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                callable.call();
+                return true;
+            } catch (Exception ex) {
+                if (!retryPredicate.test(ex)) {
+                    LOG.error("Error " + description + " on attempt " + attempt + ", not retrying: " +
+                            ex.getMessage(), ex);
+                    return false;
+                }
+                if (attempt >= maxAttempts) {
+                    LOG.error("Error " + description + " after " + attempt + " attempts: " + ex.getMessage(), ex);
+                    return false;
+                }
+                LOG.warn("Error " + description + " on attempt " + attempt + ", retrying: " + ex.getMessage(), ex);
+            }
+
+            try {
+                Thread.sleep(retryDelayMillis * attempt);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Resets the counters for a new run.
+    private void resetCounters() {
+        for (NotificationType oneType : NotificationType.values()) {
+            numFailedByType.get(oneType).set(0);
+            numSentByType.get(oneType).set(0);
+        }
+    }
+
+    // Makes a counter for each notification type. Counters are only ever updated, never added or removed, so the map
+    // doesn't need to be concurrent.
+    private static Map<NotificationType, AtomicLong> makeCounterMap() {
+        Map<NotificationType, AtomicLong> counterMap = new EnumMap<>(NotificationType.class);
+        for (NotificationType oneType : NotificationType.values()) {
+            counterMap.put(oneType, new AtomicLong());
+        }
+        return counterMap;
+    }
+}
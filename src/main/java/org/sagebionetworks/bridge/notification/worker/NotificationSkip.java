@@ -0,0 +1,69 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import org.joda.time.LocalDate;
+
+/**
+ * <p>
+ * Records that a user doesn't need a notification until after a given date, for example because they've already
+ * completed their current burst, or because their next burst hasn't started yet. Later runs skip the user with a single
+ * lookup, instead of fetching the participant, activity events, and task history.
+ * </p>
+ * <p>
+ * The skip date never goes past the end of the burst (or the day before the next burst's pre-burst notification), so a
+ * new burst is always evaluated. The skip also only applies if the study's burst rules haven't changed since the skip
+ * was written. See {@link WorkerConfig#getBurstRulesHash}. Skips between bursts also depend on the user's activity
+ * events, so they're only written when BURST_STARTED events delete them. See
+ * {@link BridgeNotificationWorkerProcessor#setSkipBetweenBursts}.
+ * </p>
+ */
+public class NotificationSkip {
+    private String userId;
+    private LocalDate burstStartDate;
+    private LocalDate skipUntilDate;
+    private int burstRulesHash;
+
+    /** ID of the user to skip. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /** Start date of the burst this skip was written for. This is the current burst, or the next burst. */
+    public LocalDate getBurstStartDate() {
+        return burstStartDate;
+    }
+
+    /** @see #getBurstStartDate */
+    public void setBurstStartDate(LocalDate burstStartDate) {
+        this.burstStartDate = burstStartDate;
+    }
+
+    /** Last date (inclusive) the user can be skipped. */
+    public LocalDate getSkipUntilDate() {
+        return skipUntilDate;
+    }
+
+    /** @see #getSkipUntilDate */
+    public void setSkipUntilDate(LocalDate skipUntilDate) {
+        this.skipUntilDate = skipUntilDate;
+    }
+
+    /** Hash of the study's burst rules when this skip was written. */
+    public int getBurstRulesHash() {
+        return burstRulesHash;
+    }
+
+    /** @see #getBurstRulesHash */
+    public void setBurstRulesHash(int burstRulesHash) {
+        this.burstRulesHash = burstRulesHash;
+    }
+
+    /** True if this skip applies to the given date and the given config. */
+    public boolean appliesTo(LocalDate date, WorkerConfig workerConfig) {
+        return !date.isAfter(skipUntilDate) && burstRulesHash == workerConfig.getBurstRulesHash();
+    }
+}
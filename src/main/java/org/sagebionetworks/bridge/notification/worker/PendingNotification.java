@@ -0,0 +1,42 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+/**
+ * A notification the worker decided to send, but hasn't sent yet. The message still has its template variables, so
+ * that variable values can be fetched for a batch of pending notifications at once.
+ */
+public class PendingNotification {
+    private final String studyId;
+    private final StudyParticipant participant;
+    private final NotificationType type;
+    private final String message;
+
+    /** Makes a pending notification for the given participant, with the given type and unresolved message. */
+    public PendingNotification(String studyId, StudyParticipant participant, NotificationType type, String message) {
+        this.studyId = studyId;
+        this.participant = participant;
+        this.type = type;
+        this.message = message;
+    }
+
+    /** Study the participant is in. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** Participant to notify. */
+    public StudyParticipant getParticipant() {
+        return participant;
+    }
+
+    /** Notification type. */
+    public NotificationType getType() {
+        return type;
+    }
+
+    /** Message to send, before resolving template variables. */
+    public String getMessage() {
+        return message;
+    }
+}
@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.notification.worker;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
@@ -211,4 +212,15 @@ public class WorkerConfig {
         this.preburstMessagesByDataGroup = preburstMessagesByDataGroup != null ?
                 ImmutableMap.copyOf(preburstMessagesByDataGroup) : ImmutableMap.of();
     }
+
+    /**
+     * Hash of the settings that determine when a user is in a burst and whether they need a notification. Used to
+     * invalidate {@link NotificationSkip}s if the burst rules change. This is stable across JVMs, since it only
+     * depends on ints and strings.
+     */
+    public int getBurstRulesHash() {
+        return Objects.hash(burstDurationDays, burstStartEventIdSet, burstTaskId, earlyLateCutoffDays,
+                notificationBlackoutDaysFromStart, notificationBlackoutDaysFromEnd, numActivitiesToCompleteBurst,
+                numMissedConsecutiveDaysToNotify, numMissedDaysToNotify);
+    }
 }
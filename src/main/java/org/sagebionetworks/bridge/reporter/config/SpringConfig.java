@@ -6,8 +6,12 @@ import org.sagebionetworks.bridge.reporter.worker.RetentionReportGenerator;
 import org.sagebionetworks.bridge.reporter.worker.SignUpsReportGenerator;
 import org.sagebionetworks.bridge.reporter.worker.UploadsReportGenerator;
 
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Table;
 import com.google.common.collect.ImmutableMap;
 
+import org.sagebionetworks.bridge.dynamodb.DynamoNamingHelper;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -21,6 +25,13 @@ import java.util.Map;
 @ComponentScan("org.sagebionetworks.bridge.reporter")
 @Configuration("reporterConfig")
 public class SpringConfig {
+    @Bean(name = "ddbReporterParticipantFactsTable")
+    @Autowired
+    public Table ddbReporterParticipantFactsTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("ReporterParticipantFacts");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name="generatorMap")
     public Map<ReportType, ReportGenerator> generatorMap(UploadsReportGenerator uploadsGenerator,
             SignUpsReportGenerator signupsGenerator, RetentionReportGenerator retentionGenerator) {
@@ -14,8 +14,8 @@ public class AccountSummaryIterator implements Iterator<AccountSummary> {
     static final int PAGE_SIZE = 100;
 
     // Instance invariants
-    private final ClientManager clientManager;
     private final String studyId;
+    private final PageLoader pageLoader;
 
     // Instance state tracking
     private AccountSummaryList accountSummaryList;
@@ -27,8 +27,17 @@ public class AccountSummaryIterator implements Iterator<AccountSummary> {
      * first page.
      */
     public AccountSummaryIterator(ClientManager clientManager, String studyId) {
-        this.clientManager = clientManager;
+        this(studyId, offset -> clientManager.getClient(ForWorkersApi.class).getParticipantsForStudy(studyId,
+                offset, PAGE_SIZE, null, null, null, null).execute().body());
+    }
+
+    /**
+     * Constructs a AccountSummaryIterator for the given study, which loads each page through the given page loader.
+     * This allows callers to wrap page loads in rate limiting and retries.
+     */
+    public AccountSummaryIterator(String studyId, PageLoader pageLoader) {
         this.studyId = studyId;
+        this.pageLoader = pageLoader;
 
         // Load first page.
         loadNextPage();
@@ -40,8 +49,7 @@ public class AccountSummaryIterator implements Iterator<AccountSummary> {
         try {
             // The offset into the next page is equal to the number of accounts that we have seen.
             // Phone number not neccessary, unlike the AccountSummaryIterator for the Notification worker
-            accountSummaryList = clientManager.getClient(ForWorkersApi.class).getParticipantsForStudy(studyId, numAccounts,
-                    PAGE_SIZE, null, null, null, null).execute().body();
+            accountSummaryList = pageLoader.loadPage(numAccounts);
         } catch (IOException ex) {
             // Iterator can't throw exceptions. Wrap in a RuntimeException.
             throw new RuntimeException("Error getting next page for study " + studyId + ": " + ex.getMessage(), ex);
@@ -87,4 +95,10 @@ public class AccountSummaryIterator implements Iterator<AccountSummary> {
         numAccounts++;
         return accountSummary;
     }
+
+    /** Loads the page of account summaries starting at the given offset, with a page size of PAGE_SIZE. */
+    @FunctionalInterface
+    public interface PageLoader {
+        AccountSummaryList loadPage(int offset) throws IOException;
+    }
 }
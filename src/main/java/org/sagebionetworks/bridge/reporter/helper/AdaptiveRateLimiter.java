@@ -0,0 +1,69 @@
+package org.sagebionetworks.bridge.reporter.helper;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Request budget against Bridge, shared by every report being generated. The rate starts at the max. Each time Bridge
+ * throttles us, the rate is halved, down to the min. After about a second's worth of successful calls, the rate goes
+ * back up by a tenth of the max. This lets the reporter run as fast as Bridge allows, without a fixed sleep between
+ * calls.
+ */
+public class AdaptiveRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private final RateLimiter rateLimiter;
+    private double maxRate;
+    private double minRate;
+    private double rate;
+    private int numSuccessesSinceChange;
+
+    /** Makes a rate limiter that starts at, and never exceeds, maxRate. Rates are in calls per second. */
+    public AdaptiveRateLimiter(double maxRate, double minRate) {
+        this.rateLimiter = RateLimiter.create(maxRate);
+        setRates(maxRate, minRate);
+    }
+
+    /** Sets the max and min rates, and resets the current rate to the max. */
+    public synchronized void setRates(double maxRate, double minRate) {
+        if (minRate <= 0 || minRate > maxRate) {
+            throw new IllegalArgumentException("minRate must be positive and no greater than maxRate");
+        }
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+        updateRate(maxRate);
+    }
+
+    /** Current rate, in calls per second. */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /** Blocks until the budget allows another call. */
+    public void acquire() {
+        rateLimiter.acquire();
+    }
+
+    /** Records a successful call. Enough successes in a row raise the rate. */
+    public synchronized void recordSuccess() {
+        numSuccessesSinceChange++;
+        if (rate < maxRate && numSuccessesSinceChange >= rate) {
+            updateRate(Math.min(maxRate, rate + maxRate / 10));
+        }
+    }
+
+    /** Records that Bridge throttled a call. This halves the rate. */
+    public synchronized void recordThrottled() {
+        double newRate = Math.max(minRate, rate / 2);
+        LOG.warn("Bridge throttled the reporter, reducing rate from " + rate + " to " + newRate + " calls/sec");
+        updateRate(newRate);
+    }
+
+    // Applies the new rate and restarts counting successes.
+    private void updateRate(double newRate) {
+        rate = newRate;
+        rateLimiter.setRate(newRate);
+        numSuccessesSinceChange = 0;
+    }
+}
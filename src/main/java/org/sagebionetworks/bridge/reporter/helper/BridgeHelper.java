@@ -4,17 +4,27 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import javax.annotation.Resource;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.reporter.worker.Report;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.api.StudiesApi;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.AccountSummaryList;
 import org.sagebionetworks.bridge.rest.model.ActivityEventList;
@@ -32,12 +42,25 @@ import org.sagebionetworks.bridge.rest.model.UploadList;
 public class BridgeHelper {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeHelper.class);
 
-    // match read capacity in ddb table
-    static final int MAX_PAGE_SIZE = 10;
-    private static final long THREAD_SLEEP_INTERVAL = 1000L;
-    private static final int PARTICIPANT_PAGE_SIZE = 100;
+    // Max page size allowed by the Bridge API. Package-scoped for unit tests.
+    static final int MAX_PAGE_SIZE = 100;
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_RATE_LIMIT = "reporter.bridge.max.rate.limit";
+    static final String CONFIG_KEY_MIN_RATE_LIMIT = "reporter.bridge.min.rate.limit";
+    static final String CONFIG_KEY_PARTICIPANT_PAGE_SIZE = "reporter.participant.page.size";
+    static final String CONFIG_KEY_UPLOAD_PAGE_SIZE = "reporter.upload.page.size";
+
+    // Bridge returns these when it's over capacity. Throttled calls are retried, after reducing the request budget.
+    private static final int MAX_THROTTLED_ATTEMPTS = 3;
+    private static final Set<Integer> THROTTLED_STATUS_CODE_SET = ImmutableSet.of(429, 503);
+
+    private final AdaptiveRateLimiter requestBudget = new AdaptiveRateLimiter(10.0, 1.0);
 
     private ClientManager bridgeClientManager;
+    private ExecutorService participantExecutorService;
+    private int participantPageSize = MAX_PAGE_SIZE;
+    private int uploadPageSize = MAX_PAGE_SIZE;
 
     /** Bridge Client Manager, with credentials for Exporter account. This is used to refresh the session. */
     @Autowired
@@ -45,102 +68,203 @@ public class BridgeHelper {
         this.bridgeClientManager = bridgeClientManager;
     }
 
+    /**
+     * Bridge config, used to get the request budget (calls per second) and page sizes. Page sizes are capped at the
+     * Bridge API max.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        requestBudget.setRates(config.getInt(CONFIG_KEY_MAX_RATE_LIMIT), config.getInt(CONFIG_KEY_MIN_RATE_LIMIT));
+        participantPageSize = Math.min(MAX_PAGE_SIZE, config.getInt(CONFIG_KEY_PARTICIPANT_PAGE_SIZE));
+        uploadPageSize = Math.min(MAX_PAGE_SIZE, config.getInt(CONFIG_KEY_UPLOAD_PAGE_SIZE));
+    }
+
+    /**
+     * Executor service, used to fetch participants in a page concurrently. All fetches share the request budget, so
+     * the thread pool size only bounds the number of calls in flight.
+     */
+    @Resource(name = "reporterParticipantExecutorService")
+    public final void setParticipantExecutorService(ExecutorService participantExecutorService) {
+        this.participantExecutorService = participantExecutorService;
+    }
+
+    /** Request budget shared by all calls to Bridge. Package-scoped for unit tests. */
+    AdaptiveRateLimiter getRequestBudget() {
+        return requestBudget;
+    }
+
     /*
      * Helper method to get all studies summary as list from sdk
      */
     public List<Study> getAllStudiesSummary() throws IOException {
-        return bridgeClientManager.getClient(StudiesApi.class).getStudies(true).execute().body().getItems();
+        return callBridge(() -> bridgeClientManager.getClient(StudiesApi.class).getStudies(true).execute().body()
+                .getItems());
     }
 
-    /*
-     * Helper method to get all uploads for specified study and date range
-     * Paginated results should be added in one list altogether
+    /**
+     * Gets the uploads for the specified study and date range, one page at a time. Pages are fetched lazily, so the
+     * caller can aggregate each page and drop it, instead of holding every upload in memory. Since the iterator can't
+     * throw checked exceptions, errors calling Bridge are wrapped in a RuntimeException.
      */
-    public List<Upload> getUploadsForStudy(String studyId, DateTime startDateTime, DateTime endDateTime)
-            throws IOException {
+    public Iterator<List<Upload>> getUploadPagesForStudy(String studyId, DateTime startDateTime,
+            DateTime endDateTime) {
+        ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
+        return new AbstractIterator<List<Upload>>() {
+            private boolean isFirstPage = true;
+            private String offsetKey = null;
 
-        List<Upload> retList = new ArrayList<>();
-        String offsetKey = null;
+            @Override
+            protected List<Upload> computeNext() {
+                if (!isFirstPage && offsetKey == null) {
+                    return endOfData();
+                }
+                isFirstPage = false;
 
-        ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
-        do {
-            
-            final String temOffsetKey = offsetKey;
-            UploadList retBody = workersApi
-                    .getUploadsForStudy(studyId, startDateTime, endDateTime, MAX_PAGE_SIZE, temOffsetKey).execute()
-                    .body();
-            retList.addAll(retBody.getItems());
-            offsetKey = retBody.getNextPageOffsetKey();
-            doSleep();
-        } while (offsetKey != null);
-
-        return retList;
+                String pageOffsetKey = offsetKey;
+                UploadList retBody;
+                try {
+                    retBody = callBridge(() -> workersApi.getUploadsForStudy(studyId, startDateTime, endDateTime,
+                            uploadPageSize, pageOffsetKey).execute().body());
+                } catch (IOException ex) {
+                    throw new RuntimeException("Error getting next page of uploads for study " + studyId + ": " +
+                            ex.getMessage(), ex);
+                }
+                offsetKey = retBody.getNextPageOffsetKey();
+                return retBody.getItems();
+            }
+        };
     }
-    
-    public List<StudyParticipant> getParticipantsForStudy(String studyId, DateTime startDateTime, DateTime endDateTime)
-            throws IOException {
-        List<StudyParticipant> retList = new ArrayList<>();
-        
+
+    /**
+     * Gets the participants who signed up in the specified study and date range, one page at a time. Participants in
+     * a page are fetched concurrently. Pages are fetched lazily, so the caller can aggregate each page and drop it.
+     * Since the iterator can't throw checked exceptions, errors calling Bridge are wrapped in a RuntimeException.
+     */
+    public Iterator<List<StudyParticipant>> getParticipantPagesForStudy(String studyId, DateTime startDateTime,
+            DateTime endDateTime) {
         ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
-        
-        int offset = 0;
-        int total;
-        do {
-            AccountSummaryList summaries = workersApi
-                    .getParticipantsForStudy(studyId, offset, PARTICIPANT_PAGE_SIZE, null, null, startDateTime, endDateTime)
-                    .execute().body();
-            for (AccountSummary summary : summaries.getItems()) {
-                StudyParticipant participant = workersApi.getParticipantByIdForStudy(studyId, summary.getId(), false).execute().body();
-                retList.add(participant);
-                doSleep();
+        return new AbstractIterator<List<StudyParticipant>>() {
+            private int offset = 0;
+            private int total = Integer.MAX_VALUE;
+
+            @Override
+            protected List<StudyParticipant> computeNext() {
+                if (offset >= total) {
+                    return endOfData();
+                }
+
+                int pageOffset = offset;
+                try {
+                    AccountSummaryList summaries = callBridge(() -> workersApi.getParticipantsForStudy(studyId,
+                            pageOffset, participantPageSize, null, null, startDateTime, endDateTime).execute()
+                            .body());
+                    total = summaries.getTotal();
+                    offset += participantPageSize;
+
+                    // Fetch the participants in the page concurrently, but keep them in page order.
+                    List<Future<StudyParticipant>> participantFutureList = new ArrayList<>();
+                    for (AccountSummary summary : summaries.getItems()) {
+                        participantFutureList.add(participantExecutorService.submit(() -> getStudyPartcipant(
+                                studyId, summary.getId())));
+                    }
+                    List<StudyParticipant> participantList = new ArrayList<>();
+                    for (Future<StudyParticipant> participantFuture : participantFutureList) {
+                        participantList.add(getParticipantResult(participantFuture, participantFutureList));
+                    }
+                    return participantList;
+                } catch (IOException ex) {
+                    throw new RuntimeException("Error getting next page of participants for study " + studyId +
+                            ": " + ex.getMessage(), ex);
+                }
             }
-            total = summaries.getTotal();
-            offset += PARTICIPANT_PAGE_SIZE;
-        } while(offset < total);
-        
-        return retList;
+        };
+    }
+
+    // Waits for a participant fetch. If it failed, cancels the rest of the page and rethrows the failure.
+    private static StudyParticipant getParticipantResult(Future<StudyParticipant> participantFuture,
+            List<Future<StudyParticipant>> participantFutureList) throws IOException {
+        try {
+            return participantFuture.get();
+        } catch (ExecutionException ex) {
+            participantFutureList.forEach(future -> future.cancel(true));
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException("Error getting participant: " + cause.getMessage(), cause);
+            }
+        } catch (InterruptedException ex) {
+            participantFutureList.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted getting participants", ex);
+        }
     }
     
     public StudyParticipant getStudyPartcipant (String studyId, String userId) throws IOException {
         ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
-        return workersApi.getParticipantByIdForStudy(studyId, userId, false).execute().body();
+        return callBridge(() -> workersApi.getParticipantByIdForStudy(studyId, userId, false).execute().body());
     }
     
     public RequestInfo getRequestInfoForParticipant (String studyId, String userId) throws IOException {
         ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
-        return workersApi.getRequestInfoForWorker(studyId, userId).execute().body();
+        return callBridge(() -> workersApi.getRequestInfoForWorker(studyId, userId).execute().body());
     }
     
     public ActivityEventList getActivityEventForParticipant (String studyId, String userId) throws IOException {
         ForWorkersApi workersApi = bridgeClientManager.getClient(ForWorkersApi.class);
-        return workersApi.getActivityEventsForParticipantAndStudy(studyId, userId).execute().body();
+        return callBridge(() -> workersApi.getActivityEventsForParticipantAndStudy(studyId, userId).execute()
+                .body());
     }
     
     /**
      * Get an iterator for all account summaries in the given study. Note that since getAllAccountSummaries is a
-     * paginated API, the iterator may continue to call the server.
+     * paginated API, the iterator may continue to call the server. Each page load is subject to the request budget
+     * and throttling retries.
      */
     public Iterator<AccountSummary> getAllAccountSummaries(String studyId) {
-        return new AccountSummaryIterator(bridgeClientManager, studyId);
+        return new AccountSummaryIterator(studyId, offset -> callBridge(() -> bridgeClientManager
+                .getClient(ForWorkersApi.class).getParticipantsForStudy(studyId, offset,
+                        AccountSummaryIterator.PAGE_SIZE, null, null, null, null).execute().body()));
     }
 
-    
-    private void doSleep() {
-        // sleep a second
-        try {
-            Thread.sleep(THREAD_SLEEP_INTERVAL);
-        } catch (InterruptedException e) {
-            LOG.warn("The thread for get uploads was being interrupted.", e);
+
+    // Makes a call to Bridge within the request budget. If Bridge throttles the call, the budget is reduced and the
+    // call is retried, up to MAX_THROTTLED_ATTEMPTS times.
+    private <T> T callBridge(BridgeCall<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            requestBudget.acquire();
+            try {
+                T result = call.call();
+                requestBudget.recordSuccess();
+                return result;
+            } catch (BridgeSDKException ex) {
+                if (!THROTTLED_STATUS_CODE_SET.contains(ex.getStatusCode())) {
+                    throw ex;
+                }
+                requestBudget.recordThrottled();
+                if (attempt >= MAX_THROTTLED_ATTEMPTS) {
+                    throw ex;
+                }
+                LOG.info("Retrying throttled Bridge call, attempt " + (attempt + 1));
+            }
         }
     }
 
+    // A single call to Bridge.
+    @FunctionalInterface
+    private interface BridgeCall<T> {
+        T call() throws IOException;
+    }
+
     /**
      * Helper method to save report for specified study with report id and report data
      */
     public void saveReportForStudy(Report report) throws IOException {
         ReportData reportData = new ReportData().date(report.getDate().toString()).data(report.getData());
-        bridgeClientManager.getClient(ForWorkersApi.class)
-                .saveReport(report.getStudyId(), report.getReportId(), reportData).execute();
+        callBridge(() -> bridgeClientManager.getClient(ForWorkersApi.class)
+                .saveReport(report.getStudyId(), report.getReportId(), reportData).execute());
     }
 
 }
@@ -0,0 +1,86 @@
+package org.sagebionetworks.bridge.reporter.helper;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import org.joda.time.DateTime;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.reporter.worker.ParticipantFacts;
+import org.sagebionetworks.bridge.rest.model.Role;
+
+/** Abstracts away DynamoDB calls for the reporter. */
+@Component("ReporterDynamoHelper")
+public class DynamoHelper {
+    // DDB column names. Package-scoped for unit tests.
+    static final String KEY_CREATED_ON = "createdOn";
+    static final String KEY_REFRESHED_ON = "refreshedOn";
+    static final String KEY_ROLE_SET = "roleSet";
+    static final String KEY_STUDY_ID = "studyId";
+    static final String KEY_STUDY_START_DATE = "studyStartDate";
+    static final String KEY_USER_ID = "userId";
+
+    private Table ddbReporterParticipantFactsTable;
+
+    /**
+     * DDB table for cached participant facts, keyed by study and user. Used by the retention report so it doesn't
+     * need to fetch facts that never change from Bridge every day.
+     */
+    @Resource(name = "ddbReporterParticipantFactsTable")
+    public final void setDdbReporterParticipantFactsTable(Table ddbReporterParticipantFactsTable) {
+        this.ddbReporterParticipantFactsTable = ddbReporterParticipantFactsTable;
+    }
+
+    /** Gets the cached facts for the given participant. Returns null if the participant hasn't been cached. */
+    public ParticipantFacts getParticipantFacts(String studyId, String userId) {
+        Item item = ddbReporterParticipantFactsTable.getItem(KEY_STUDY_ID, studyId, KEY_USER_ID, userId);
+        if (item == null) {
+            return null;
+        }
+
+        ParticipantFacts participantFacts = new ParticipantFacts();
+        participantFacts.setStudyId(item.getString(KEY_STUDY_ID));
+        participantFacts.setUserId(item.getString(KEY_USER_ID));
+        participantFacts.setRefreshedOn(item.getLong(KEY_REFRESHED_ON));
+
+        String createdOnString = item.getString(KEY_CREATED_ON);
+        if (createdOnString != null) {
+            participantFacts.setCreatedOn(DateTime.parse(createdOnString));
+        }
+
+        Set<String> roleStringSet = item.getStringSet(KEY_ROLE_SET);
+        if (roleStringSet != null) {
+            participantFacts.setRoles(roleStringSet.stream().map(Role::valueOf).collect(Collectors.toSet()));
+        }
+
+        String studyStartDateString = item.getString(KEY_STUDY_START_DATE);
+        if (studyStartDateString != null) {
+            participantFacts.setStudyStartDate(DateTime.parse(studyStartDateString));
+        }
+
+        return participantFacts;
+    }
+
+    /** Saves the facts for the participant, replacing any previous facts. */
+    public void saveParticipantFacts(ParticipantFacts participantFacts) {
+        Item item = new Item().withPrimaryKey(KEY_STUDY_ID, participantFacts.getStudyId(), KEY_USER_ID,
+                participantFacts.getUserId()).withLong(KEY_REFRESHED_ON, participantFacts.getRefreshedOn());
+        if (participantFacts.getCreatedOn() != null) {
+            item.withString(KEY_CREATED_ON, participantFacts.getCreatedOn().toString());
+        }
+
+        // DDB doesn't allow empty sets, so only write roles if there are any.
+        if (!participantFacts.getRoles().isEmpty()) {
+            item.withStringSet(KEY_ROLE_SET, participantFacts.getRoles().stream().map(Role::name)
+                    .collect(Collectors.toSet()));
+        }
+
+        if (participantFacts.getStudyStartDate() != null) {
+            item.withString(KEY_STUDY_START_DATE, participantFacts.getStudyStartDate().toString());
+        }
+        ddbReporterParticipantFactsTable.putItem(item);
+    }
+}
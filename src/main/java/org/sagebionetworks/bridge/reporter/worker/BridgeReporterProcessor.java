@@ -2,9 +2,15 @@ package org.sagebionetworks.bridge.reporter.worker;
 
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
@@ -19,6 +25,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.reporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
@@ -31,10 +38,35 @@ import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 @Component
 public class BridgeReporterProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeReporterProcessor.class);
-    
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_STUDY_TIMEOUT_MINUTES = "reporter.study.timeout.minutes";
+
     private Map<ReportType, ReportGenerator> generatorMap;
     private BridgeHelper bridgeHelper;
-    
+    private ExecutorService executorService;
+    private long studyTimeoutMillis;
+
+    /** Bridge config, used to get the per-study timeout. */
+    @Autowired
+    public final void setConfig(Config config) {
+        setStudyTimeoutMillis(TimeUnit.MINUTES.toMillis(config.getInt(CONFIG_KEY_STUDY_TIMEOUT_MINUTES)));
+    }
+
+    /**
+     * How long to wait for a study's report before giving up on it. Each study gets at least this long, counting from
+     * when the processor starts waiting on it. Exposed for unit tests.
+     */
+    public final void setStudyTimeoutMillis(long studyTimeoutMillis) {
+        this.studyTimeoutMillis = studyTimeoutMillis;
+    }
+
+    /** Executor service, used to generate reports for studies concurrently. */
+    @Resource(name = "reporterExecutorService")
+    public final void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
     @Autowired
     @Qualifier("ReporterHelper")
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
@@ -72,15 +104,9 @@ public class BridgeReporterProcessor {
                 studyIdList = studySummaries.stream().map(Study::getIdentifier).collect(Collectors.toList());
             }
 
-            for (String studyId : studyIdList) {
-                Report report = generator.generate(request, studyId);
-                
-                bridgeHelper.saveReportForStudy(report);
-                
-                LOG.info("Saved uploads report for hash[studyId]=" + report.getStudyId() + ", scheduleType=" + scheduleType
-                        + ", startDate=" + startDateTime + ",endDate=" + endDateTime + ", reportId=" + report.getReportId()
-                        + ", reportData=" + report.getData().toString());
-            }
+            ReportRunSummary summary = generateReports(request, generator, studyIdList);
+            LOG.info("Finished reports for hash[scheduler]=" + scheduler + ", scheduleType=" + scheduleType + ": "
+                    + summary);
         } finally {
             LOG.info("Request took " + requestStopwatch.elapsed(TimeUnit.SECONDS) + " seconds for hash[scheduler]="
                     + scheduler + ", scheduleType=" + scheduleType + ", startDate=" + startDateTime + ", endDate="
@@ -88,6 +114,66 @@ public class BridgeReporterProcessor {
         }
     }
 
+    // Generates each study's report concurrently, then saves them in study order. A study that fails or times out
+    // doesn't affect the others. If we're interrupted, studies that haven't finished are cancelled and skipped.
+    // Package-scoped for unit tests.
+    ReportRunSummary generateReports(BridgeReporterRequest request, ReportGenerator generator,
+            List<String> studyIdList) throws InterruptedException {
+        Map<String, Future<Report>> futuresByStudyId = new LinkedHashMap<>();
+        for (String studyId : studyIdList) {
+            futuresByStudyId.put(studyId, executorService.submit(() -> generator.generate(request, studyId)));
+        }
+
+        ReportRunSummary summary = new ReportRunSummary();
+        Iterator<Map.Entry<String, Future<Report>>> futureEntryIter = futuresByStudyId.entrySet().iterator();
+        while (futureEntryIter.hasNext()) {
+            Map.Entry<String, Future<Report>> futureEntry = futureEntryIter.next();
+            String studyId = futureEntry.getKey();
+            Future<Report> future = futureEntry.getValue();
+
+            Report report;
+            try {
+                report = future.get(studyTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                LOG.error("Error generating report for hash[studyId]=" + studyId + ": " + cause.getMessage(), cause);
+                summary.recordFailed(studyId);
+                continue;
+            } catch (TimeoutException ex) {
+                future.cancel(true);
+                LOG.error("Timed out generating report for hash[studyId]=" + studyId + " after " + studyTimeoutMillis
+                        + " ms");
+                summary.recordTimedOut(studyId);
+                continue;
+            } catch (InterruptedException ex) {
+                // Cancel this study and every study after it, then let the caller know we were interrupted.
+                future.cancel(true);
+                summary.recordSkipped(studyId);
+                futureEntryIter.forEachRemaining(remainingEntry -> {
+                    remainingEntry.getValue().cancel(true);
+                    summary.recordSkipped(remainingEntry.getKey());
+                });
+                LOG.error("Interrupted generating reports: " + summary);
+                throw ex;
+            }
+
+            try {
+                bridgeHelper.saveReportForStudy(report);
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Error saving report for hash[studyId]=" + studyId + ": " + ex.getMessage(), ex);
+                summary.recordFailed(studyId);
+                continue;
+            }
+            summary.recordSaved(studyId);
+
+            LOG.info("Saved report for hash[studyId]=" + report.getStudyId() + ", scheduleType="
+                    + request.getScheduleType() + ", startDate=" + request.getStartDateTime() + ",endDate="
+                    + request.getEndDateTime() + ", reportId=" + report.getReportId() + ", reportData="
+                    + report.getData().toString());
+        }
+        return summary;
+    }
+
     private BridgeReporterRequest deserializeRequest(JsonNode body) throws PollSqsWorkerBadRequestException {
         try {
             return DefaultObjectMapper.INSTANCE.treeToValue(body, BridgeReporterRequest.class);
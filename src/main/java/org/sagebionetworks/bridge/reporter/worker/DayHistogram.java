@@ -0,0 +1,36 @@
+package org.sagebionetworks.bridge.reporter.worker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thread-safe count of participants by day in study. Counts are kept in a primitive array that grows as needed, so
+ * many threads can add participants without boxing a counter per day.
+ */
+public class DayHistogram {
+    private int[] counts = new int[0];
+
+    /** Adds one to the count for the given day. Day must be non-negative. */
+    public synchronized void increment(int day) {
+        if (day >= counts.length) {
+            counts = Arrays.copyOf(counts, day + 1);
+        }
+        counts[day]++;
+    }
+
+    /**
+     * Returns the cumulative counts, where the value for each day is the number of participants on that day or later.
+     * The list ends at the last day with a participant.
+     */
+    public synchronized List<Integer> toCumulativeList() {
+        List<Integer> cumulativeList = new ArrayList<>(counts.length);
+        for (int count : counts) {
+            cumulativeList.add(count);
+        }
+        for (int i = cumulativeList.size() - 2; i >= 0; i--) {
+            cumulativeList.set(i, cumulativeList.get(i) + cumulativeList.get(i + 1));
+        }
+        return cumulativeList;
+    }
+}
@@ -0,0 +1,86 @@
+package org.sagebionetworks.bridge.reporter.worker;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+
+import org.sagebionetworks.bridge.rest.model.Role;
+
+/**
+ * Per-participant facts that never or rarely change, cached in DynamoDB so the retention report doesn't need to fetch
+ * the participant and their activity events from Bridge every day. Facts are refreshed from Bridge once they're older
+ * than the configured refresh period.
+ */
+public class ParticipantFacts {
+    private String studyId;
+    private String userId;
+    private DateTime createdOn;
+    private long refreshedOn;
+    private Set<Role> roles = ImmutableSet.of();
+    private DateTime studyStartDate;
+
+    /** Study the participant is in. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** @see #getStudyId */
+    public void setStudyId(String studyId) {
+        this.studyId = studyId;
+    }
+
+    /** ID of the participant. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /** When the participant's account was created. May be null. */
+    public DateTime getCreatedOn() {
+        return createdOn;
+    }
+
+    /** @see #getCreatedOn */
+    public void setCreatedOn(DateTime createdOn) {
+        this.createdOn = createdOn;
+    }
+
+    /** When the participant was last fetched from Bridge, in epoch milliseconds. */
+    public long getRefreshedOn() {
+        return refreshedOn;
+    }
+
+    /** @see #getRefreshedOn */
+    public void setRefreshedOn(long refreshedOn) {
+        this.refreshedOn = refreshedOn;
+    }
+
+    /** Participant's roles. Never null, and empty for ordinary participants. */
+    public Set<Role> getRoles() {
+        return roles;
+    }
+
+    /** @see #getRoles */
+    public void setRoles(Collection<Role> roles) {
+        this.roles = roles != null ? ImmutableSet.copyOf(roles) : ImmutableSet.of();
+    }
+
+    /**
+     * Timestamp of the participant's study_start_date event. Null if the participant doesn't have one yet. Once set, this
+     * never changes.
+     */
+    public DateTime getStudyStartDate() {
+        return studyStartDate;
+    }
+
+    /** @see #getStudyStartDate */
+    public void setStudyStartDate(DateTime studyStartDate) {
+        this.studyStartDate = studyStartDate;
+    }
+}
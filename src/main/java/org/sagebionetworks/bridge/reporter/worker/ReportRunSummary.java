@@ -0,0 +1,63 @@
+package org.sagebionetworks.bridge.reporter.worker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a reporter request, by study. Each study is saved, failed (including timed out), or skipped because the
+ * request was interrupted before the study's report was generated.
+ */
+public class ReportRunSummary {
+    private final List<String> savedStudyIdList = new ArrayList<>();
+    private final List<String> failedStudyIdList = new ArrayList<>();
+    private final List<String> timedOutStudyIdList = new ArrayList<>();
+    private final List<String> skippedStudyIdList = new ArrayList<>();
+
+    /** Records that the study's report was generated and saved. */
+    public void recordSaved(String studyId) {
+        savedStudyIdList.add(studyId);
+    }
+
+    /** Records that generating or saving the study's report threw. */
+    public void recordFailed(String studyId) {
+        failedStudyIdList.add(studyId);
+    }
+
+    /** Records that the study's report didn't finish within the per-study timeout. Timeouts also count as failed. */
+    public void recordTimedOut(String studyId) {
+        timedOutStudyIdList.add(studyId);
+        failedStudyIdList.add(studyId);
+    }
+
+    /** Records that the study's report was never generated. */
+    public void recordSkipped(String studyId) {
+        skippedStudyIdList.add(studyId);
+    }
+
+    /** Studies whose reports were saved. */
+    public List<String> getSavedStudyIdList() {
+        return savedStudyIdList;
+    }
+
+    /** Studies whose reports failed, including studies that timed out. */
+    public List<String> getFailedStudyIdList() {
+        return failedStudyIdList;
+    }
+
+    /** Studies whose reports timed out. */
+    public List<String> getTimedOutStudyIdList() {
+        return timedOutStudyIdList;
+    }
+
+    /** Studies whose reports were never generated. */
+    public List<String> getSkippedStudyIdList() {
+        return skippedStudyIdList;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ReportRunSummary [saved=%d, failed=%d, timedOut=%d, skipped=%d, failedStudies=%s, " +
+                "skippedStudies=%s]", savedStudyIdList.size(), failedStudyIdList.size(), timedOutStudyIdList.size(),
+                skippedStudyIdList.size(), failedStudyIdList, skippedStudyIdList);
+    }
+}
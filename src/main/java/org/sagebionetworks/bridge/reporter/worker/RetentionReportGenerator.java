@@ -1,22 +1,28 @@
 package org.sagebionetworks.bridge.reporter.worker;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Resource;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
+import org.joda.time.Duration;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import com.google.common.util.concurrent.RateLimiter;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.reporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.reporter.helper.DynamoHelper;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.ActivityEventList;
@@ -32,8 +38,17 @@ import org.slf4j.LoggerFactory;
 @Component
 public class RetentionReportGenerator implements ReportGenerator {
     private static final Logger LOG = LoggerFactory.getLogger(RetentionReportGenerator.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_CONCURRENT_ACCOUNTS = "threadpool.reporter.retention.count";
+    static final String CONFIG_KEY_PARTICIPANT_FACTS_REFRESH_DAYS = "reporter.participant.facts.refresh.days";
+
     private final RateLimiter perUserRateLimiter = RateLimiter.create(100.0);
     private BridgeHelper bridgeHelper;
+    private DynamoHelper dynamoHelper;
+    private ExecutorService executorService;
+    private int maxConcurrentAccounts = 1;
+    private long participantFactsRefreshMillis;
     
     @Autowired
     @Qualifier("ReporterHelper")
@@ -41,6 +56,30 @@ public class RetentionReportGenerator implements ReportGenerator {
         this.bridgeHelper = bridgeHelper;
     }
 
+    /**
+     * Bridge config, used to get the max number of accounts we process at once (which matches the thread pool size)
+     * and how often cached participant facts are refreshed.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        this.maxConcurrentAccounts = config.getInt(CONFIG_KEY_MAX_CONCURRENT_ACCOUNTS);
+        this.participantFactsRefreshMillis = Duration.standardDays(config.getInt(
+                CONFIG_KEY_PARTICIPANT_FACTS_REFRESH_DAYS)).getMillis();
+    }
+
+    /** DynamoDB helper, used to cache participant facts between runs. */
+    @Autowired
+    @Qualifier("ReporterDynamoHelper")
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /** Executor service, used to process accounts concurrently. */
+    @Resource(name = "retentionExecutorService")
+    public final void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
     @Override
     public Report generate(BridgeReporterRequest request, String studyId) throws IOException {
 
@@ -50,81 +89,128 @@ public class RetentionReportGenerator implements ReportGenerator {
 
         Iterator<AccountSummary> accountSummaryIter = bridgeHelper.getAllAccountSummaries(studyId);
 
-        List<Integer> signInData = new ArrayList<>();
-        List<Integer> uploadedOnData = new ArrayList<>();
-        
-        while (accountSummaryIter.hasNext()) {
-            // Rate limit
-            perUserRateLimiter.acquire();
-            
-            AccountSummary accountSummary = accountSummaryIter.next();
-            try {
-                StudyParticipant studyParticipant = bridgeHelper.getStudyPartcipant(studyId, accountSummary.getId());
-                if (!studyParticipant.getRoles().isEmpty()) {
-                    continue;
-                }
-                
-                ActivityEventList activityEventList = bridgeHelper.getActivityEventForParticipant(
-                        studyId, accountSummary.getId());
-                DateTime studyStartDate = null;
-                
-                for (int i = 0; i < activityEventList.getItems().size(); i++) {
-                    if (activityEventList.getItems().get(i).getEventId().equals("study_start_date")) {
-                        studyStartDate = activityEventList.getItems().get(i).getTimestamp();
-                        break;
-                    }
-                }
-                
-                if (studyStartDate == null) {
-                    LOG.error("No study_state_date event for id=" + accountSummary.getId());
-                    continue;
-                }
-                
-                RequestInfo requestInfo = bridgeHelper.getRequestInfoForParticipant(
-                        studyId, accountSummary.getId());
-                if (requestInfo.getSignedInOn() != null) {
-                    int sign_in_days = Days.daysBetween(studyStartDate.withZone(DateTimeZone.UTC), 
-                            requestInfo.getSignedInOn().withZone(DateTimeZone.UTC)).getDays();
-                    if (sign_in_days < 0) {
-                        LOG.error("study_state_date is negative for id=" + accountSummary.getId());
-                        continue;
-                    }
-                    
-                    while (signInData.size() < (sign_in_days + 1)) {
-                        signInData.add(0);
-                    }
-                    signInData.set(sign_in_days, signInData.get(sign_in_days) + 1);
-                }
-                if (requestInfo.getUploadedOn() != null) {
-                    int upload_on_days = Days.daysBetween(studyStartDate.withZone(DateTimeZone.UTC), 
-                            requestInfo.getUploadedOn().withZone(DateTimeZone.UTC)).getDays();
-                    if (upload_on_days < 0) {
-                        LOG.error("upload_on_days is negative for id=" + accountSummary.getId());
-                        continue;
-                    }
-                    
-                    while (uploadedOnData.size() < (upload_on_days + 1)) {
-                        uploadedOnData.add(0);
-                    }
-                    uploadedOnData.set(upload_on_days, uploadedOnData.get(upload_on_days) + 1);
+        DayHistogram signInHistogram = new DayHistogram();
+        DayHistogram uploadedOnHistogram = new DayHistogram();
+
+        // Process accounts concurrently. The semaphore bounds the number of accounts in flight, so we don't read
+        // ahead of the thread pool.
+        Semaphore inFlightSemaphore = new Semaphore(maxConcurrentAccounts);
+        try {
+            while (accountSummaryIter.hasNext()) {
+                // Rate limit
+                perUserRateLimiter.acquire();
+
+                String userId = accountSummaryIter.next().getId();
+                inFlightSemaphore.acquire();
+                try {
+                    executorService.execute(() -> {
+                        try {
+                            processAccount(studyId, userId, signInHistogram, uploadedOnHistogram);
+                        } finally {
+                            inFlightSemaphore.release();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    inFlightSemaphore.release();
+                    LOG.error("Error getting data for id " + userId + ": " + ex.getMessage(), ex);
                 }
-            } catch (Exception ex) {
-                LOG.error("Error getting data for id " + accountSummary.getId() + ": " + ex.getMessage(), ex);
             }
+
+            // Wait for all accounts to finish. Once we hold all the permits, nothing is in flight.
+            inFlightSemaphore.acquire(maxConcurrentAccounts);
+        } catch (InterruptedException ex) {
+            // Stop queuing accounts. Accounts already in flight still finish, but their results are discarded.
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating retention report for study " + studyId, ex);
         }
-        
-        for (int i = signInData.size() - 2; i >= 0; i--) {
-            signInData.set(i, signInData.get(i) + signInData.get(i + 1));
-        }
-        for (int i = uploadedOnData.size() - 2; i >= 0; i--) {
-            uploadedOnData.set(i, uploadedOnData.get(i) + uploadedOnData.get(i + 1));
-        }
-        
+
         Map<String, List<Integer>> reportData = new HashMap<>();
-        reportData.put("bySignIn", signInData);
-        reportData.put("byUploadedOn", uploadedOnData);
+        reportData.put("bySignIn", signInHistogram.toCumulativeList());
+        reportData.put("byUploadedOn", uploadedOnHistogram.toCumulativeList());
         
         return new Report.Builder().withStudyId(studyId).withReportId(reportId).withDate(startDate.toLocalDate())
                 .withReportData(reportData).build();
     }
+
+    // Adds a single account's sign in and upload days to the histograms, logging errors instead of throwing them, so
+    // that one account can't stop the others.
+    private void processAccount(String studyId, String userId, DayHistogram signInHistogram,
+            DayHistogram uploadedOnHistogram) {
+        try {
+            ParticipantFacts participantFacts = getParticipantFacts(studyId, userId);
+            if (!participantFacts.getRoles().isEmpty()) {
+                return;
+            }
+
+            DateTime studyStartDate = participantFacts.getStudyStartDate();
+            if (studyStartDate == null) {
+                LOG.error("No study_state_date event for id=" + userId);
+                return;
+            }
+
+            RequestInfo requestInfo = bridgeHelper.getRequestInfoForParticipant(studyId, userId);
+            if (requestInfo.getSignedInOn() != null) {
+                int sign_in_days = Days.daysBetween(studyStartDate.withZone(DateTimeZone.UTC),
+                        requestInfo.getSignedInOn().withZone(DateTimeZone.UTC)).getDays();
+                if (sign_in_days < 0) {
+                    LOG.error("study_state_date is negative for id=" + userId);
+                    return;
+                }
+                signInHistogram.increment(sign_in_days);
+            }
+            if (requestInfo.getUploadedOn() != null) {
+                int upload_on_days = Days.daysBetween(studyStartDate.withZone(DateTimeZone.UTC),
+                        requestInfo.getUploadedOn().withZone(DateTimeZone.UTC)).getDays();
+                if (upload_on_days < 0) {
+                    LOG.error("upload_on_days is negative for id=" + userId);
+                    return;
+                }
+                uploadedOnHistogram.increment(upload_on_days);
+            }
+        } catch (Exception ex) {
+            LOG.error("Error getting data for id " + userId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Gets the participant's roles and study start date from the DynamoDB cache. If the participant isn't cached, or
+    // the cache is older than the refresh period, we fetch the participant from Bridge. Participants without a study
+    // start date need their activity events fetched each run until they get one. Once found, the start date never
+    // changes, so it's kept across refreshes.
+    private ParticipantFacts getParticipantFacts(String studyId, String userId) throws IOException {
+        ParticipantFacts participantFacts = dynamoHelper.getParticipantFacts(studyId, userId);
+        boolean modified = false;
+
+        long nowMillis = DateTime.now().getMillis();
+        if (participantFacts == null || participantFacts.getRefreshedOn() + participantFactsRefreshMillis <
+                nowMillis) {
+            StudyParticipant studyParticipant = bridgeHelper.getStudyPartcipant(studyId, userId);
+
+            DateTime studyStartDate = participantFacts != null ? participantFacts.getStudyStartDate() : null;
+            participantFacts = new ParticipantFacts();
+            participantFacts.setStudyId(studyId);
+            participantFacts.setUserId(userId);
+            participantFacts.setCreatedOn(studyParticipant.getCreatedOn());
+            participantFacts.setRefreshedOn(nowMillis);
+            participantFacts.setRoles(studyParticipant.getRoles());
+            participantFacts.setStudyStartDate(studyStartDate);
+            modified = true;
+        }
+
+        // Participants with roles are skipped, so we don't need their study start date.
+        if (participantFacts.getRoles().isEmpty() && participantFacts.getStudyStartDate() == null) {
+            ActivityEventList activityEventList = bridgeHelper.getActivityEventForParticipant(studyId, userId);
+            for (int i = 0; i < activityEventList.getItems().size(); i++) {
+                if (activityEventList.getItems().get(i).getEventId().equals("study_start_date")) {
+                    participantFacts.setStudyStartDate(activityEventList.getItems().get(i).getTimestamp());
+                    modified = true;
+                    break;
+                }
+            }
+        }
+
+        if (modified) {
+            dynamoHelper.saveParticipantFacts(participantFacts);
+        }
+        return participantFacts;
+    }
 }
@@ -1,7 +1,9 @@
 package org.sagebionetworks.bridge.reporter.worker;
 
 import java.io.IOException;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -16,9 +18,6 @@ import org.sagebionetworks.bridge.rest.model.AccountStatus;
 import org.sagebionetworks.bridge.rest.model.SharingScope;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-
 /**
  * Generate a report of signups by account statuses.
  *
@@ -43,36 +42,34 @@ public class SignUpsReportGenerator implements ReportGenerator {
 
         String reportId = scheduler + scheduleType.getSuffix();
 
-        Multiset<AccountStatus> statuses = HashMultiset.create();
-        Multiset<SharingScope> sharingScopes = HashMultiset.create();
+        // Count participants one page at a time, so we never hold all of the study's participants in memory.
+        Map<AccountStatus, Integer> statusCounts = new EnumMap<>(AccountStatus.class);
+        Map<SharingScope, Integer> sharingScopeCounts = new EnumMap<>(SharingScope.class);
 
-        List<StudyParticipant> participants = bridgeHelper.getParticipantsForStudy(studyId, startDate, endDate);
-        for (StudyParticipant participant : participants) {
-            if (participant.getRoles().isEmpty()) {
-                statuses.add(participant.getStatus());
-                // Accounts that aren't enabled do not have interesting sharing statuses. 
-                // We'd like to count these for consented accounts, but this isn't easy to do.
-                if (participant.getStatus() == AccountStatus.ENABLED) {
-                    sharingScopes.add(participant.getSharingScope());    
+        Iterator<List<StudyParticipant>> participantPageIter = bridgeHelper.getParticipantPagesForStudy(studyId,
+                startDate, endDate);
+        while (participantPageIter.hasNext()) {
+            for (StudyParticipant participant : participantPageIter.next()) {
+                if (participant.getRoles().isEmpty()) {
+                    statusCounts.merge(participant.getStatus(), 1, Integer::sum);
+                    // Accounts that aren't enabled do not have interesting sharing statuses. 
+                    // We'd like to count these for consented accounts, but this isn't easy to do.
+                    if (participant.getStatus() == AccountStatus.ENABLED) {
+                        sharingScopeCounts.merge(participant.getSharingScope(), 1, Integer::sum);
+                    }
                 }
             }
         }
         
-        // Multiset doesn't record zeroes, so add these first for all enum values, then overwrite
-        // (so JSON includes properties for all enumerations, even if missing).
+        // Include all enum values, even with zero counts (so JSON includes properties for all enumerations, even if
+        // missing).
         Map<String, Integer> statusData = new HashMap<>();
         for (AccountStatus status : AccountStatus.values()) {
-            statusData.put(status.name().toLowerCase(), 0);
-        }
-        for (AccountStatus status : statuses) {
-            statusData.put(status.name().toLowerCase(), statuses.count(status));
+            statusData.put(status.name().toLowerCase(), statusCounts.getOrDefault(status, 0));
         }
         Map<String, Integer> sharingData = new HashMap<>();
         for (SharingScope scope : SharingScope.values()) {
-            sharingData.put(scope.name().toLowerCase(), 0);
-        }
-        for (SharingScope scope : sharingScopes) {
-            sharingData.put(scope.name().toLowerCase(), sharingScopes.count(scope));
+            sharingData.put(scope.name().toLowerCase(), sharingScopeCounts.getOrDefault(scope, 0));
         }
         Map<String, Map<String,Integer>> reportData = new HashMap<>();
         reportData.put("bySharing", sharingData);
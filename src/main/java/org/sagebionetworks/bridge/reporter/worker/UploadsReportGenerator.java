@@ -1,12 +1,11 @@
 package org.sagebionetworks.bridge.reporter.worker;
 
-import static java.util.stream.Collectors.counting;
-
 import java.io.IOException;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +15,7 @@ import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.reporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
 import org.sagebionetworks.bridge.rest.model.Upload;
+import org.sagebionetworks.bridge.rest.model.UploadStatus;
 
 @Component
 public class UploadsReportGenerator implements ReportGenerator {
@@ -37,15 +37,18 @@ public class UploadsReportGenerator implements ReportGenerator {
 
         String reportId = scheduler + scheduleType.getSuffix();
         
-        Map<String, Integer> data = new HashMap<>();
+        // Count uploads by status one page at a time, so we never hold all of the study's uploads in memory.
+        Map<UploadStatus, Integer> countsByStatus = new EnumMap<>(UploadStatus.class);
+        Iterator<List<Upload>> uploadPageIter = bridgeHelper.getUploadPagesForStudy(studyId, startDateTime,
+                endDateTime);
+        while (uploadPageIter.hasNext()) {
+            for (Upload upload : uploadPageIter.next()) {
+                countsByStatus.merge(upload.getStatus(), 1, Integer::sum);
+            }
+        }
 
-        // get all uploads for this studyid
-        List<Upload> uploadsForStudy = bridgeHelper.getUploadsForStudy(studyId, startDateTime, endDateTime);
-
-        // aggregate and grouping by upload status
-        uploadsForStudy.stream()
-                .collect(Collectors.groupingBy(Upload::getStatus, counting()))
-                .forEach((status, cnt) -> data.put(status.toString(), cnt.intValue()));
+        Map<String, Integer> data = new HashMap<>();
+        countsByStatus.forEach((status, cnt) -> data.put(status.toString(), cnt));
 
         return new Report.Builder().withStudyId(studyId).withReportId(reportId).withDate(startDateTime.toLocalDate())
                 .withReportData(data).build();
@@ -0,0 +1,81 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import com.google.common.base.Strings;
+import org.joda.time.DateTime;
+
+/**
+ * Encapsulates an entry in the UDD result cache, which records the master zip file from a recent UDD request, so that
+ * a repeat of the same request can reuse that file instead of querying Synapse again.
+ */
+public class CachedUddArchive {
+    private final String masterZipFileName;
+    private final String watermark;
+    private final DateTime expiresOn;
+
+    /** Private constructor. To construct, use builder. */
+    private CachedUddArchive(String masterZipFileName, String watermark, DateTime expiresOn) {
+        this.masterZipFileName = masterZipFileName;
+        this.watermark = watermark;
+        this.expiresOn = expiresOn;
+    }
+
+    /** Name of the master zip file in the S3 user data bucket. */
+    public String getMasterZipFileName() {
+        return masterZipFileName;
+    }
+
+    /**
+     * Watermark of the study's data and the user's data at the time the master zip was created. If the watermark has
+     * changed, the archive may be out of date and should not be reused.
+     */
+    public String getWatermark() {
+        return watermark;
+    }
+
+    /** When the cached archive can no longer be reused. This is the expiration time of the original pre-signed URL. */
+    public DateTime getExpiresOn() {
+        return expiresOn;
+    }
+
+    /** CachedUddArchive builder. */
+    public static class Builder {
+        private String masterZipFileName;
+        private String watermark;
+        private DateTime expiresOn;
+
+        /** @see CachedUddArchive#getMasterZipFileName */
+        public Builder withMasterZipFileName(String masterZipFileName) {
+            this.masterZipFileName = masterZipFileName;
+            return this;
+        }
+
+        /** @see CachedUddArchive#getWatermark */
+        public Builder withWatermark(String watermark) {
+            this.watermark = watermark;
+            return this;
+        }
+
+        /** @see CachedUddArchive#getExpiresOn */
+        public Builder withExpiresOn(DateTime expiresOn) {
+            this.expiresOn = expiresOn;
+            return this;
+        }
+
+        /** Builds a CachedUddArchive object and validates that all parameters are specified. */
+        public CachedUddArchive build() {
+            if (Strings.isNullOrEmpty(masterZipFileName)) {
+                throw new IllegalStateException("masterZipFileName must be specified");
+            }
+
+            if (Strings.isNullOrEmpty(watermark)) {
+                throw new IllegalStateException("watermark must be specified");
+            }
+
+            if (expiresOn == null) {
+                throw new IllegalStateException("expiresOn must be specified");
+            }
+
+            return new CachedUddArchive(masterZipFileName, watermark, expiresOn);
+        }
+    }
+}
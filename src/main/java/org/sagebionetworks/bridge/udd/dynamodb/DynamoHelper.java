@@ -2,20 +2,32 @@ package org.sagebionetworks.bridge.udd.dynamodb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.annotation.Resource;
 
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -27,26 +39,74 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 @Component("uddDynamoHelper")
 public class DynamoHelper {
     // Package-scoped for unit tests.
+    static final String ATTR_CREATED_ON = "createdOn";
+    static final String ATTR_EXPIRES_ON = "expiresOn";
+    static final String ATTR_HEALTH_CODE = "healthCode";
+    static final String ATTR_INDEXED_ON = "indexedOn";
+    static final String ATTR_JOB_ID = "jobId";
+    static final String ATTR_MASTER_ZIP_FILE_NAME = "masterZipFileName";
+    static final String ATTR_MAX_UPLOAD_DATE = "maxUploadDate";
+    static final String ATTR_MIN_UPLOAD_DATE = "minUploadDate";
+    static final String ATTR_PROGRESS_KEY = "progressKey";
+    static final String ATTR_PROGRESS_VALUE = "progressValue";
+    static final String ATTR_REQUEST_KEY = "requestKey";
     static final String ATTR_STUDY_ID = "studyId";
     static final String ATTR_TABLE_ID = "tableId";
     static final String ATTR_TABLE_ID_SET = "tableIdSet";
     static final String ATTR_TABLE_NAME = "tableName";
+    static final String ATTR_WATERMARK = "watermark";
+    static final int MAX_BATCH_WRITE_ATTEMPTS = 3;
+    static final int MAX_BATCH_WRITE_SIZE = 25;
     static final String SUFFIX_DEFAULT = "-default";
+    static final String TABLE_ID_PRESENCE_COMPLETE = "_presenceComplete";
+    static final int UDD_JOB_PROGRESS_TTL_HOURS = 24;
 
+    // Concurrent presence updates for the same user and table are rare, so a few attempts is plenty.
+    private static final int MAX_PRESENCE_UPDATE_ATTEMPTS = 5;
+
+    private DynamoDB ddbClient;
+    private Index ddbHealthDataRecordCreatedOnIndex;
     private Table ddbStudyTable;
     private Table ddbSynapseMapTable;
     private Table ddbSynapseMetaTable;
     private Table ddbSynapseSurveyTablesTable;
+    private Table ddbUddJobProgressTable;
+    private Table ddbUddResultCacheTable;
     private Table ddbUploadSchemaTable;
+    private Table ddbUserTablePresenceTable;
     private Index ddbUploadSchemaStudyIndex;
     private DynamoQueryHelper queryHelper;
 
+    /** DynamoDB client, used for batch writes. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /** HealthDataRecord3 healthCode-createdOn-index, used to find the user's latest record. */
+    @Resource(name = "ddbHealthDataRecordCreatedOnIndex")
+    public final void setDdbHealthDataRecordCreatedOnIndex(Index ddbHealthDataRecordCreatedOnIndex) {
+        this.ddbHealthDataRecordCreatedOnIndex = ddbHealthDataRecordCreatedOnIndex;
+    }
+
     /** Study table. */
     @Resource(name = "ddbStudyTable")
     public final void setDdbStudyTable(Table ddbStudyTable) {
         this.ddbStudyTable = ddbStudyTable;
     }
 
+    /** DDB table with progress of UDD jobs, so redelivered requests can resume. */
+    @Resource(name = "ddbUddJobProgressTable")
+    public final void setDdbUddJobProgressTable(Table ddbUddJobProgressTable) {
+        this.ddbUddJobProgressTable = ddbUddJobProgressTable;
+    }
+
+    /** DDB table with recent UDD archives, so repeated requests can reuse them. */
+    @Resource(name = "ddbUddResultCacheTable")
+    public final void setDdbUddResultCacheTable(Table ddbUddResultCacheTable) {
+        this.ddbUddResultCacheTable = ddbUddResultCacheTable;
+    }
+
     /** DDB table that maps upload schemas to Synapse table IDs. */
     @Resource(name = "ddbSynapseMapTable")
     public final void setDdbSynapseMapTable(Table ddbSynapseMapTable) {
@@ -81,6 +141,12 @@ public class DynamoHelper {
         this.ddbUploadSchemaTable = ddbUploadSchemaTable;
     }
 
+    /** DDB table that indexes which Synapse tables each user (health code) has data in. */
+    @Resource(name = "ddbUserTablePresenceTable")
+    public final void setDdbUserTablePresenceTable(Table ddbUserTablePresenceTable) {
+        this.ddbUserTablePresenceTable = ddbUserTablePresenceTable;
+    }
+
     /** UploadSchema studyId-index. */
     @Resource(name = "ddbUploadSchemaStudyIndex")
     public final void setDdbUploadSchemaStudyIndex(Index ddbUploadSchemaStudyIndex) {
@@ -246,4 +312,319 @@ public class DynamoHelper {
     public void deleteSynapseTableIdMapping(UploadSchemaKey schemaKey) {
         ddbSynapseMapTable.deleteItem("schemaKey", schemaKey.toString());
     }
+
+    /**
+     * Gets the Synapse tables that the given user has data in, along with the range of upload dates for that data.
+     * Tables not in this map have no data for the user.
+     *
+     * @param healthCode
+     *         health code of the user to get tables for
+     * @return map from Synapse table ID to table presence, or null if the user's table presence isn't complete yet
+     *         (see {@link #markTablePresenceCompleteForUser})
+     */
+    public Map<String, TablePresence> getTablePresenceForUser(String healthCode) {
+        QuerySpec query = new QuerySpec().withHashKey(ATTR_HEALTH_CODE, healthCode);
+        Iterable<Item> itemIter = queryHelper.query(ddbUserTablePresenceTable, query);
+
+        boolean isComplete = false;
+        Map<String, TablePresence> presenceByTableId = new HashMap<>();
+        for (Item oneItem : itemIter) {
+            if (TABLE_ID_PRESENCE_COMPLETE.equals(oneItem.getString(ATTR_TABLE_ID))) {
+                isComplete = true;
+                continue;
+            }
+            TablePresence presence = makeTablePresence(oneItem);
+            presenceByTableId.put(presence.getSynapseTableId(), presence);
+        }
+
+        // Rows written before the user was marked complete only cover some of the user's data, so we can't use them
+        // to rule out tables.
+        return isComplete ? presenceByTableId : null;
+    }
+
+    /**
+     * Marks the given user's table presence as complete. This should only be called by whatever has seen all of the
+     * user's data, that is, the exporter's upload path (which records presence for every new record) once a backfill
+     * of the user's existing records is done. Both live outside this worker. Until then,
+     * {@link #getTablePresenceForUser} returns null, and UDD queries all tables for the user.
+     *
+     * @param healthCode
+     *         health code of the user to mark complete
+     */
+    public void markTablePresenceCompleteForUser(String healthCode) {
+        Item item = new Item().withPrimaryKey(ATTR_HEALTH_CODE, healthCode, ATTR_TABLE_ID, TABLE_ID_PRESENCE_COMPLETE)
+                .withLong(ATTR_INDEXED_ON, DateTimeUtils.currentTimeMillis());
+        ddbUserTablePresenceTable.putItem(item);
+    }
+
+    // Helper method which converts a DynamoDB item to a table presence. A missing bound means the user has data in the
+    // table, but the range is unbounded on that side.
+    private static TablePresence makeTablePresence(Item item) {
+        String minUploadDateString = item.getString(ATTR_MIN_UPLOAD_DATE);
+        String maxUploadDateString = item.getString(ATTR_MAX_UPLOAD_DATE);
+        return new TablePresence.Builder().withSynapseTableId(item.getString(ATTR_TABLE_ID))
+                .withMinUploadDate(minUploadDateString != null ? LocalDate.parse(minUploadDateString) : null)
+                .withMaxUploadDate(maxUploadDateString != null ? LocalDate.parse(maxUploadDateString) : null)
+                .build();
+    }
+
+    /**
+     * Records that the given user has data in the given Synapse table for the given upload date. See
+     * {@link #updateTablePresenceForUser(String, String, LocalDate, LocalDate)}.
+     */
+    public void updateTablePresenceForUser(String healthCode, String synapseTableId, LocalDate uploadDate) {
+        updateTablePresenceForUser(healthCode, synapseTableId, uploadDate, uploadDate);
+    }
+
+    /**
+     * Records that the given user has data in the given Synapse table from the min upload date to the max upload date
+     * (inclusive). This widens the table's upload date range for the user if needed. Both bounds are written in a
+     * single conditional update, which only succeeds if the row hasn't changed since we read it, so concurrent updates
+     * can't narrow the range and the row never has only one of its bounds written.
+     *
+     * @param healthCode
+     *         health code of the user who uploaded the data
+     * @param synapseTableId
+     *         Synapse table that the data was written to
+     * @param minUploadDate
+     *         earliest upload date of the data
+     * @param maxUploadDate
+     *         latest upload date of the data
+     */
+    public void updateTablePresenceForUser(String healthCode, String synapseTableId, LocalDate minUploadDate,
+            LocalDate maxUploadDate) {
+        // ISO dates sort lexicographically, so we can compare them as strings.
+        String minUploadDateString = minUploadDate.toString();
+        String maxUploadDateString = maxUploadDate.toString();
+        for (int attempt = 1; ; attempt++) {
+            Item item = ddbUserTablePresenceTable.getItem(new GetItemSpec().withPrimaryKey(ATTR_HEALTH_CODE,
+                    healthCode, ATTR_TABLE_ID, synapseTableId).withConsistentRead(true));
+
+            ValueMap valueMap = new ValueMap();
+            List<String> setList = new ArrayList<>();
+            String conditionExpression;
+            if (item == null) {
+                setList.add(ATTR_MIN_UPLOAD_DATE + "=:newMin");
+                valueMap.withString(":newMin", minUploadDateString);
+                setList.add(ATTR_MAX_UPLOAD_DATE + "=:newMax");
+                valueMap.withString(":newMax", maxUploadDateString);
+                conditionExpression = "attribute_not_exists(" + ATTR_HEALTH_CODE + ")";
+            } else {
+                // A missing bound is unbounded, which already covers the new dates, so we leave it missing.
+                String oldMin = item.getString(ATTR_MIN_UPLOAD_DATE);
+                String oldMax = item.getString(ATTR_MAX_UPLOAD_DATE);
+                if (oldMin != null && minUploadDateString.compareTo(oldMin) < 0) {
+                    setList.add(ATTR_MIN_UPLOAD_DATE + "=:newMin");
+                    valueMap.withString(":newMin", minUploadDateString);
+                }
+                if (oldMax != null && maxUploadDateString.compareTo(oldMax) > 0) {
+                    setList.add(ATTR_MAX_UPLOAD_DATE + "=:newMax");
+                    valueMap.withString(":newMax", maxUploadDateString);
+                }
+                if (setList.isEmpty()) {
+                    // The existing range already covers these dates. Nothing to do.
+                    return;
+                }
+
+                conditionExpression = makeBoundCondition(ATTR_MIN_UPLOAD_DATE, ":oldMin", oldMin, valueMap) +
+                        " and " + makeBoundCondition(ATTR_MAX_UPLOAD_DATE, ":oldMax", oldMax, valueMap);
+            }
+
+            UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+                    .withPrimaryKey(ATTR_HEALTH_CODE, healthCode, ATTR_TABLE_ID, synapseTableId)
+                    .withUpdateExpression("set " + String.join(", ", setList))
+                    .withConditionExpression(conditionExpression).withValueMap(valueMap);
+            try {
+                ddbUserTablePresenceTable.updateItem(updateItemSpec);
+                return;
+            } catch (ConditionalCheckFailedException ex) {
+                // Someone else updated the row since we read it. Read it again and retry.
+                if (attempt >= MAX_PRESENCE_UPDATE_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    // Helper method which makes a condition that the bound still has the value we read, or is still missing.
+    private static String makeBoundCondition(String attrName, String valueName, String oldValue, ValueMap valueMap) {
+        if (oldValue == null) {
+            return "attribute_not_exists(" + attrName + ")";
+        }
+        valueMap.withString(valueName, oldValue);
+        return attrName + "=" + valueName;
+    }
+
+    /**
+     * Gets the time the user's latest health data record was created. This changes whenever the user uploads new
+     * data, so it can be used to tell whether the user's data has changed.
+     *
+     * @param healthCode
+     *         user's health code
+     * @return created on time of the user's latest record, or null if the user has no records
+     */
+    public DateTime getLatestHealthDataRecordCreatedOn(String healthCode) {
+        // Newest first, and we only need the one.
+        QuerySpec query = new QuerySpec().withHashKey(ATTR_HEALTH_CODE, healthCode).withScanIndexForward(false)
+                .withMaxResultSize(1);
+        for (Item oneItem : queryIndex(ddbHealthDataRecordCreatedOnIndex, query)) {
+            return new DateTime(oneItem.getLong(ATTR_CREATED_ON));
+        }
+        return null;
+    }
+
+    // Wrapper around Index.query(). DynamoQueryHelper only queries indices by hash key, and we need a query spec to
+    // get only the newest item. Package-scoped so unit tests can spy on it.
+    Iterable<Item> queryIndex(Index index, QuerySpec query) {
+        return index.query(query);
+    }
+
+    /**
+     * Gets the progress of the given UDD job. If the job has no progress (it's new, or it finished), this returns an
+     * empty progress object. Progress older than UDD_JOB_PROGRESS_TTL_HOURS is ignored, since Synapse may have dropped
+     * the async job results by then.
+     *
+     * @param jobId
+     *         job ID, see {@link UddJobProgress#makeJobId}
+     * @return job progress, never null
+     */
+    public UddJobProgress getUddJobProgress(String jobId) {
+        QuerySpec query = new QuerySpec().withHashKey(ATTR_JOB_ID, jobId);
+        Iterable<Item> itemIter = queryHelper.query(ddbUddJobProgressTable, query);
+
+        long nowSeconds = DateTimeUtils.currentTimeMillis() / 1000;
+        Map<String, String> valuesByKey = new HashMap<>();
+        for (Item oneItem : itemIter) {
+            if (oneItem.getLong(ATTR_EXPIRES_ON) > nowSeconds) {
+                valuesByKey.put(oneItem.getString(ATTR_PROGRESS_KEY), oneItem.getString(ATTR_PROGRESS_VALUE));
+            }
+        }
+        return new UddJobProgress(this, jobId, valuesByKey);
+    }
+
+    /**
+     * Writes a single progress value for a UDD job. The item's expiration time is in epoch seconds, so it can also be
+     * used as a DynamoDB TTL attribute.
+     *
+     * @param jobId
+     *         job ID, see {@link UddJobProgress#makeJobId}
+     * @param progressKey
+     *         progress key
+     * @param value
+     *         progress value
+     */
+    public void putUddJobProgress(String jobId, String progressKey, String value) {
+        ddbUddJobProgressTable.putItem(makeUddJobProgressItem(jobId, progressKey, value));
+    }
+
+    /**
+     * Writes a progress value and deletes another progress value for a UDD job, in a single batch write. This is used
+     * when an async job's result supersedes its job token.
+     *
+     * @param jobId
+     *         job ID, see {@link UddJobProgress#makeJobId}
+     * @param oldProgressKey
+     *         progress key to delete
+     * @param newProgressKey
+     *         progress key to write
+     * @param value
+     *         progress value to write
+     */
+    public void replaceUddJobProgress(String jobId, String oldProgressKey, String newProgressKey, String value) {
+        TableWriteItems writeItems = new TableWriteItems(ddbUddJobProgressTable.getTableName())
+                .withItemsToPut(makeUddJobProgressItem(jobId, newProgressKey, value))
+                .withPrimaryKeysToDelete(new PrimaryKey(ATTR_JOB_ID, jobId, ATTR_PROGRESS_KEY, oldProgressKey));
+        batchWrite(writeItems);
+    }
+
+    // Helper method which makes a UDD job progress item. The item's expiration time is in epoch seconds, so it can
+    // also be used as a DynamoDB TTL attribute.
+    private static Item makeUddJobProgressItem(String jobId, String progressKey, String value) {
+        long expiresOnSeconds = DateTimeUtils.currentTimeMillis() / 1000 + UDD_JOB_PROGRESS_TTL_HOURS * 60 * 60;
+        return new Item().withPrimaryKey(ATTR_JOB_ID, jobId, ATTR_PROGRESS_KEY, progressKey)
+                .withString(ATTR_PROGRESS_VALUE, value).withLong(ATTR_EXPIRES_ON, expiresOnSeconds);
+    }
+
+    /**
+     * Deletes a single progress value for a UDD job.
+     *
+     * @param jobId
+     *         job ID, see {@link UddJobProgress#makeJobId}
+     * @param progressKey
+     *         progress key
+     */
+    public void deleteUddJobProgress(String jobId, String progressKey) {
+        ddbUddJobProgressTable.deleteItem(ATTR_JOB_ID, jobId, ATTR_PROGRESS_KEY, progressKey);
+    }
+
+    /**
+     * Deletes the given progress values for a UDD job, in batches of MAX_BATCH_WRITE_SIZE.
+     *
+     * @param jobId
+     *         job ID, see {@link UddJobProgress#makeJobId}
+     * @param progressKeys
+     *         progress keys to delete
+     */
+    public void deleteUddJobProgress(String jobId, Collection<String> progressKeys) {
+        for (List<String> oneBatch : Iterables.partition(progressKeys, MAX_BATCH_WRITE_SIZE)) {
+            List<PrimaryKey> primaryKeyList = new ArrayList<>();
+            for (String oneProgressKey : oneBatch) {
+                primaryKeyList.add(new PrimaryKey(ATTR_JOB_ID, jobId, ATTR_PROGRESS_KEY, oneProgressKey));
+            }
+            batchWrite(new TableWriteItems(ddbUddJobProgressTable.getTableName()).withPrimaryKeysToDelete(
+                    primaryKeyList.toArray(new PrimaryKey[primaryKeyList.size()])));
+        }
+    }
+
+    // Helper method which does a batch write, retrying unprocessed items up to MAX_BATCH_WRITE_ATTEMPTS.
+    private void batchWrite(TableWriteItems writeItems) {
+        BatchWriteItemOutcome outcome = ddbClient.batchWriteItem(writeItems);
+        for (int attempt = 1; !outcome.getUnprocessedItems().isEmpty(); attempt++) {
+            if (attempt >= MAX_BATCH_WRITE_ATTEMPTS) {
+                throw new IllegalStateException("DynamoDB batch write still had unprocessed items after " +
+                        MAX_BATCH_WRITE_ATTEMPTS + " attempts");
+            }
+            outcome = ddbClient.batchWriteItemUnprocessed(outcome.getUnprocessedItems());
+        }
+    }
+
+    /**
+     * Gets the cached archive for the given UDD request. Returns null if there is no cached archive, or if the cached
+     * archive has expired.
+     *
+     * @param requestKey
+     *         request key, see {@link UddJobProgress#makeJobId}
+     * @return cached archive, or null if there is no usable cached archive
+     */
+    public CachedUddArchive getCachedUddArchive(String requestKey) {
+        Item item = ddbUddResultCacheTable.getItem(ATTR_REQUEST_KEY, requestKey);
+        if (item == null) {
+            return null;
+        }
+
+        // Expiration time is in epoch seconds, so it can also be used as a DynamoDB TTL attribute.
+        long expiresOnMillis = item.getLong(ATTR_EXPIRES_ON) * 1000;
+        if (expiresOnMillis <= DateTimeUtils.currentTimeMillis()) {
+            return null;
+        }
+
+        return new CachedUddArchive.Builder().withMasterZipFileName(item.getString(ATTR_MASTER_ZIP_FILE_NAME))
+                .withWatermark(item.getString(ATTR_WATERMARK)).withExpiresOn(new DateTime(expiresOnMillis)).build();
+    }
+
+    /**
+     * Caches the archive for the given UDD request, replacing any previously cached archive.
+     *
+     * @param requestKey
+     *         request key, see {@link UddJobProgress#makeJobId}
+     * @param archive
+     *         archive to cache
+     */
+    public void putCachedUddArchive(String requestKey, CachedUddArchive archive) {
+        Item item = new Item().withPrimaryKey(ATTR_REQUEST_KEY, requestKey)
+                .withString(ATTR_MASTER_ZIP_FILE_NAME, archive.getMasterZipFileName())
+                .withString(ATTR_WATERMARK, archive.getWatermark())
+                .withLong(ATTR_EXPIRES_ON, archive.getExpiresOn().getMillis() / 1000);
+        ddbUddResultCacheTable.putItem(item);
+    }
 }
@@ -0,0 +1,83 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import com.google.common.base.Strings;
+import org.joda.time.LocalDate;
+
+/**
+ * Encapsulates an entry in the user table presence index, which records that a user has data in a Synapse table, and
+ * the range of upload dates for that data. Either bound may be null, which means the range is unbounded on that side.
+ */
+public class TablePresence {
+    private final String synapseTableId;
+    private final LocalDate minUploadDate;
+    private final LocalDate maxUploadDate;
+
+    /** Private constructor. To construct, use builder. */
+    private TablePresence(String synapseTableId, LocalDate minUploadDate, LocalDate maxUploadDate) {
+        this.synapseTableId = synapseTableId;
+        this.minUploadDate = minUploadDate;
+        this.maxUploadDate = maxUploadDate;
+    }
+
+    /** Synapse table ID that the user has data in. */
+    public String getSynapseTableId() {
+        return synapseTableId;
+    }
+
+    /** Earliest upload date of the user's data in this table. Null if unbounded. */
+    public LocalDate getMinUploadDate() {
+        return minUploadDate;
+    }
+
+    /** Latest upload date of the user's data in this table. Null if unbounded. */
+    public LocalDate getMaxUploadDate() {
+        return maxUploadDate;
+    }
+
+    /**
+     * True if the user's data in this table might fall into the given date range (inclusive). Note that the user might
+     * still have no data in that range, if the range falls between two uploads.
+     */
+    public boolean overlaps(LocalDate startDate, LocalDate endDate) {
+        return (minUploadDate == null || !minUploadDate.isAfter(endDate)) &&
+                (maxUploadDate == null || !maxUploadDate.isBefore(startDate));
+    }
+
+    /** TablePresence builder. */
+    public static class Builder {
+        private String synapseTableId;
+        private LocalDate minUploadDate;
+        private LocalDate maxUploadDate;
+
+        /** @see TablePresence#getSynapseTableId */
+        public Builder withSynapseTableId(String synapseTableId) {
+            this.synapseTableId = synapseTableId;
+            return this;
+        }
+
+        /** @see TablePresence#getMinUploadDate */
+        public Builder withMinUploadDate(LocalDate minUploadDate) {
+            this.minUploadDate = minUploadDate;
+            return this;
+        }
+
+        /** @see TablePresence#getMaxUploadDate */
+        public Builder withMaxUploadDate(LocalDate maxUploadDate) {
+            this.maxUploadDate = maxUploadDate;
+            return this;
+        }
+
+        /** Builds a TablePresence object and validates the parameters. Upload dates are optional. */
+        public TablePresence build() {
+            if (Strings.isNullOrEmpty(synapseTableId)) {
+                throw new IllegalStateException("synapseTableId must be specified");
+            }
+
+            if (minUploadDate != null && maxUploadDate != null && minUploadDate.isAfter(maxUploadDate)) {
+                throw new IllegalStateException("minUploadDate can't be after maxUploadDate");
+            }
+
+            return new TablePresence(synapseTableId, minUploadDate, maxUploadDate);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Progress of a single UDD job, persisted in DynamoDB so that if the worker dies and SQS redelivers the request, the
+ * new attempt can reattach to Synapse async jobs that are already running (or finished) instead of starting over.
+ * </p>
+ * <p>
+ * Progress is a map from progress key to value. Keys for Synapse async jobs are derived from the content of the
+ * request (the query or the set of file handles), so a redelivered request only reuses a job if it would have started
+ * the exact same job. Writes go through to DynamoDB immediately, but are coalesced where possible. Unchanged values
+ * aren't rewritten, an async job's result replaces its token in a single batch write, and clearing the job is a
+ * batch delete. Progress is best effort. If DynamoDB fails, we log a warning and continue, since the job itself can
+ * still succeed.
+ * </p>
+ */
+public class UddJobProgress {
+    private static final Logger LOG = LoggerFactory.getLogger(UddJobProgress.class);
+
+    /** Progress key for the name of the master zip file, once it's been uploaded to S3. */
+    public static final String KEY_MASTER_ZIP = "masterZip";
+
+    private final DynamoHelper dynamoHelper;
+    private final String jobId;
+    private final Map<String, String> valuesByKey;
+
+    /**
+     * Constructs the job progress. This is generally called by the DynamoHelper.
+     *
+     * @param dynamoHelper
+     *         DynamoDB helper, used to write progress
+     * @param jobId
+     *         job ID, see {@link #makeJobId}
+     * @param valuesByKey
+     *         progress already recorded for this job, if any
+     */
+    public UddJobProgress(DynamoHelper dynamoHelper, String jobId, Map<String, String> valuesByKey) {
+        this.dynamoHelper = dynamoHelper;
+        this.jobId = jobId;
+        this.valuesByKey = new ConcurrentHashMap<>(valuesByKey);
+    }
+
+    /**
+     * Makes the job ID for a UDD request. Redelivered requests have the same study, user, and date range, and
+     * therefore the same job ID.
+     */
+    public static String makeJobId(String studyId, String healthCode, String startDate, String endDate) {
+        return studyId + ":" + healthCode + ":" + startDate + ":" + endDate;
+    }
+
+    /**
+     * Makes a progress key for a Synapse async job, based on the job type and the content of the request. The content
+     * is hashed, since queries and file handle lists can be longer than a DynamoDB key.
+     */
+    public static String makeAsyncJobKey(String jobType, String content) {
+        return jobType + ":" + Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+    }
+
+    /** Job ID. */
+    public String getJobId() {
+        return jobId;
+    }
+
+    /** Gets the progress value for the given key, or null if there is no such value. */
+    public String get(String progressKey) {
+        return valuesByKey.get(progressKey);
+    }
+
+    /** Records the progress value for the given key. If the key already has this value, this is a no-op. */
+    public void put(String progressKey, String value) {
+        String oldValue = valuesByKey.put(progressKey, value);
+        if (value.equals(oldValue)) {
+            return;
+        }
+        try {
+            dynamoHelper.putUddJobProgress(jobId, progressKey, value);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error writing progress " + progressKey + " for UDD job: " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Removes the progress value for the given key, for example if the async job it refers to has failed. */
+    public void remove(String progressKey) {
+        valuesByKey.remove(progressKey);
+        try {
+            dynamoHelper.deleteUddJobProgress(jobId, progressKey);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error deleting progress " + progressKey + " for UDD job: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Records the progress value for the new key and removes the old key, in a single DynamoDB write. This is used
+     * when an async job finishes, and its result supersedes its job token.
+     */
+    public void replace(String oldProgressKey, String newProgressKey, String value) {
+        valuesByKey.remove(oldProgressKey);
+        valuesByKey.put(newProgressKey, value);
+        try {
+            dynamoHelper.replaceUddJobProgress(jobId, oldProgressKey, newProgressKey, value);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error replacing progress " + oldProgressKey + " with " + newProgressKey + " for UDD job: " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    /** Removes all progress for this job, in a batch delete. This is called when the job is done. */
+    public void clear() {
+        List<String> progressKeyList = new ArrayList<>(valuesByKey.keySet());
+        if (progressKeyList.isEmpty()) {
+            return;
+        }
+        valuesByKey.clear();
+        try {
+            dynamoHelper.deleteUddJobProgress(jobId, progressKeyList);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error clearing progress for UDD job: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Tracks temp disk usage across concurrent UDD jobs, so that a few heavy users can't fill the disk and fail every
+ * in-flight request.
+ * </p>
+ * <p>
+ * Each job is admitted with an up-front reservation, and reports the files it writes as it goes. A job's usage is the
+ * greater of its reservation and the bytes it has written. New jobs are only admitted if their reservation fits in
+ * the budget, and admitted jobs wait for headroom before submitting their download tasks, before each CSV or bulk
+ * download, and before zipping. To guarantee progress, the oldest job never waits. It finishes and releases its usage,
+ * which lets the other jobs continue.
+ * </p>
+ * <p>
+ * Download tasks run on the shared Synapse thread pool. If newer jobs' waiting tasks took every pool thread, the
+ * oldest job's tasks would never run to release its reservation. So at most (pool size - 1) tasks wait at once. Past
+ * that, tasks go ahead without waiting, which may overshoot the budget by a few downloads.
+ * </p>
+ */
+@Component
+public class TempStorageBudget {
+    private static final Logger LOG = LoggerFactory.getLogger(TempStorageBudget.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_BUDGET_MB = "udd.temp.storage.budget.mb";
+    static final String CONFIG_KEY_JOB_RESERVE_MB = "udd.temp.storage.job.reserve.mb";
+    static final String CONFIG_KEY_SYNAPSE_THREAD_COUNT = "threadpool.synapse.count";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    // Admitted reservations, in order of admission. Guarded by this.
+    private final Set<Reservation> reservationSet = new LinkedHashSet<>();
+    // Number of pool tasks currently waiting for headroom. Guarded by this.
+    private int pooledWaiterCount = 0;
+    private long budgetBytes;
+    private FileHelper fileHelper;
+    private long jobReserveBytes;
+    private int maxPooledWaiters;
+
+    /**
+     * Bridge config, used to get the total budget, the reservation for each job, and the size of the Synapse thread
+     * pool.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        budgetBytes = config.getInt(CONFIG_KEY_BUDGET_MB) * BYTES_PER_MB;
+        jobReserveBytes = config.getInt(CONFIG_KEY_JOB_RESERVE_MB) * BYTES_PER_MB;
+        maxPooledWaiters = config.getInt(CONFIG_KEY_SYNAPSE_THREAD_COUNT) - 1;
+    }
+
+    /** File helper, used to get the sizes of files written by jobs. */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /**
+     * Waits until there's room in the budget for a new job's reservation, then admits the job. If there are no jobs
+     * running, the job is always admitted. Callers must close the returned reservation when the job's temp files have
+     * been deleted.
+     *
+     * @return reservation for the new job
+     * @throws InterruptedIOException
+     *         if the thread is interrupted while waiting
+     */
+    public synchronized Reservation admitJob() throws InterruptedIOException {
+        while (!reservationSet.isEmpty() && getUsedBytes() + jobReserveBytes > budgetBytes) {
+            waitForRelease();
+        }
+
+        Reservation reservation = new Reservation();
+        reservationSet.add(reservation);
+        return reservation;
+    }
+
+    /** Total bytes used by all admitted jobs. Package-scoped for unit tests. */
+    synchronized long getUsedBytes() {
+        long usedBytes = 0;
+        for (Reservation oneReservation : reservationSet) {
+            usedBytes += oneReservation.getUsedBytes();
+        }
+        return usedBytes;
+    }
+
+    /** Number of pool tasks waiting for headroom. Package-scoped for unit tests. */
+    synchronized int getPooledWaiterCount() {
+        return pooledWaiterCount;
+    }
+
+    /** Number of admitted jobs. Package-scoped for unit tests. */
+    synchronized int getJobCount() {
+        return reservationSet.size();
+    }
+
+    // Helper method which gets the size of a file through the file helper. Files that don't exist count as zero. Real
+    // files are sized from the channel. Other streams (like in-memory files) are counted.
+    private long getFileSize(File file) throws IOException {
+        if (!fileHelper.fileExists(file)) {
+            return 0;
+        }
+        try (InputStream inputStream = fileHelper.getInputStream(file)) {
+            if (inputStream instanceof FileInputStream) {
+                return ((FileInputStream) inputStream).getChannel().size();
+            }
+            return ByteStreams.copy(inputStream, ByteStreams.nullOutputStream());
+        }
+    }
+
+    // Must be called while holding the lock on this.
+    private void waitForRelease() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for temp storage");
+        }
+    }
+
+    /** Temp storage held by a single UDD job. */
+    public class Reservation implements AutoCloseable {
+        // Guarded by the enclosing TempStorageBudget.
+        private long writtenBytes = 0;
+
+        // Private constructor. To construct, use TempStorageBudget.admitJob().
+        private Reservation() {
+        }
+
+        /** Bytes this job counts against the budget. */
+        private long getUsedBytes() {
+            return Math.max(jobReserveBytes, writtenBytes);
+        }
+
+        /**
+         * Waits until the budget has headroom before this job writes more files. Returns immediately if this is the
+         * oldest running job. Must only be called from the job's own thread. Tasks on the shared thread pool use
+         * {@link #awaitHeadroomFromPool} instead.
+         *
+         * @throws InterruptedIOException
+         *         if the thread is interrupted while waiting
+         */
+        public void awaitHeadroom() throws InterruptedIOException {
+            synchronized (TempStorageBudget.this) {
+                waitWhileOverBudget();
+            }
+        }
+
+        /**
+         * Waits until the budget has headroom before a download task writes more files for this job. Returns
+         * immediately if this is the oldest running job, or if (pool size - 1) tasks are already waiting, so that the
+         * pool always has a thread free to run the oldest job's tasks.
+         *
+         * @throws InterruptedIOException
+         *         if the thread is interrupted while waiting
+         */
+        public void awaitHeadroomFromPool() throws InterruptedIOException {
+            synchronized (TempStorageBudget.this) {
+                if (!isOverBudget()) {
+                    return;
+                }
+                if (pooledWaiterCount >= maxPooledWaiters) {
+                    LOG.info("Temp storage budget exhausted, but too many tasks are waiting, continuing");
+                    return;
+                }
+
+                pooledWaiterCount++;
+                try {
+                    waitWhileOverBudget();
+                } finally {
+                    pooledWaiterCount--;
+                }
+            }
+        }
+
+        // True if this isn't the oldest job and the budget is used up. Must be called while holding the lock on the
+        // enclosing TempStorageBudget.
+        private boolean isOverBudget() {
+            return reservationSet.iterator().next() != this && TempStorageBudget.this.getUsedBytes() >= budgetBytes;
+        }
+
+        // Must be called while holding the lock on the enclosing TempStorageBudget.
+        private void waitWhileOverBudget() throws InterruptedIOException {
+            boolean waited = false;
+            while (isOverBudget()) {
+                if (!waited) {
+                    LOG.info("Temp storage budget exhausted, waiting for other jobs to finish");
+                    waited = true;
+                }
+                waitForRelease();
+            }
+        }
+
+        /**
+         * Records a file written by this job. Files that don't exist count as zero.
+         *
+         * @throws IOException
+         *         if the file size can't be read
+         */
+        public void recordFile(File file) throws IOException {
+            recordBytes(getFileSize(file));
+        }
+
+        /** Records bytes written by this job. */
+        public void recordBytes(long bytes) {
+            synchronized (TempStorageBudget.this) {
+                writtenBytes += bytes;
+            }
+        }
+
+        /** Releases this job's usage and wakes up waiting jobs. Closing more than once is a no-op. */
+        @Override
+        public void close() {
+            synchronized (TempStorageBudget.this) {
+                if (reservationSet.remove(this)) {
+                    TempStorageBudget.this.notifyAll();
+                }
+            }
+        }
+    }
+}
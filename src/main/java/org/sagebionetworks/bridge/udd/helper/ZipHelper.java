@@ -1,24 +1,90 @@
 package org.sagebionetworks.bridge.udd.helper;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import javax.annotation.Resource;
 
-import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.FileHelper;
 
-/** This helper zips the given input files into the given target file. */
+/**
+ * <p>
+ * This helper zips the given input files into the given target file.
+ * </p>
+ * <p>
+ * Files that are already compressed (zip, gz, jpg, m4a, etc) are stored without compression, since deflating them
+ * again wastes CPU for no size gain. Large files are split into blocks that are deflated in parallel, using the
+ * previous block's tail as the dictionary. (This is the same approach pigz uses.) Small files are deflated normally.
+ * </p>
+ */
 @Component
 public class ZipHelper {
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_COMPRESSION_LEVEL = "udd.zip.compression.level";
+    static final String CONFIG_KEY_THREAD_COUNT = "threadpool.zip.count";
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    static final int DEFAULT_PARALLEL_THRESHOLD = 4 * DEFAULT_BLOCK_SIZE;
+    static final Set<String> STORED_EXTENSION_SET = ImmutableSet.of("gz", "jpeg", "jpg", "m4a", "mp4", "png", "zip");
+
+    // Deflate dictionaries are at most 32kb.
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int compressionLevel;
+    private ExecutorService compressionExecutorService;
     private FileHelper fileHelper;
+    private int maxPendingBlocks;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /** Block size for parallel compression. Package-scoped so unit tests can use small blocks. */
+    void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Bridge config, used to get the compression level and the number of compression threads. The number of threads
+     * bounds the number of blocks in flight.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        compressionLevel = config.getInt(CONFIG_KEY_COMPRESSION_LEVEL);
+        maxPendingBlocks = Math.max(2, 2 * config.getInt(CONFIG_KEY_THREAD_COUNT));
+    }
+
+    /**
+     * Executor service (thread pool), used to compress blocks of large files in parallel. The pool size is configured
+     * in threadpool.zip.count.
+     */
+    @Resource(name = "zipExecutorService")
+    public final void setCompressionExecutorService(ExecutorService compressionExecutorService) {
+        this.compressionExecutorService = compressionExecutorService;
+    }
 
     /** File helper, used to read data from the input files and write to the output file. */
     @Autowired
@@ -26,6 +92,13 @@ public class ZipHelper {
         this.fileHelper = fileHelper;
     }
 
+    /**
+     * Files at least this big are compressed in parallel blocks. Package-scoped so unit tests can use small files.
+     */
+    void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
     /**
      * Zips the list of input files and writes the result to the output file.
      *
@@ -37,18 +110,193 @@ public class ZipHelper {
      *         if reading from input or writing to output fails
      */
     public void zip(List<File> fromList, File to) throws IOException {
+        // Temp dir for compressed blocks, created on first use.
+        File tmpDir = null;
         try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to));
-                ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream, Charsets.UTF_8)) {
+                ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(bufferedOutputStream)) {
+            zipOutputStream.setLevel(compressionLevel);
+
             for (File oneFromFile : fromList) {
-                ZipEntry oneZipEntry = new ZipEntry(oneFromFile.getName());
-                zipOutputStream.putNextEntry(oneZipEntry);
+                String extension = Files.getFileExtension(oneFromFile.getName()).toLowerCase(Locale.US);
+                if (STORED_EXTENSION_SET.contains(extension)) {
+                    addStoredEntry(zipOutputStream, oneFromFile);
+                    continue;
+                }
 
                 try (InputStream fromFileInputStream = fileHelper.getInputStream(oneFromFile)) {
-                    ByteStreams.copy(fromFileInputStream, zipOutputStream);
+                    // Read the first chunk. If that's the whole file, it's small enough to deflate normally.
+                    byte[] firstChunk = readChunk(fromFileInputStream, parallelThreshold);
+                    if (firstChunk.length < parallelThreshold) {
+                        ZipArchiveEntry oneZipEntry = new ZipArchiveEntry(oneFromFile.getName());
+                        oneZipEntry.setMethod(ZipEntry.DEFLATED);
+                        oneZipEntry.setSize(firstChunk.length);
+                        zipOutputStream.putArchiveEntry(oneZipEntry);
+                        zipOutputStream.write(firstChunk);
+                        zipOutputStream.closeArchiveEntry();
+                    } else {
+                        if (tmpDir == null) {
+                            tmpDir = fileHelper.createTempDir();
+                        }
+                        addParallelDeflatedEntry(zipOutputStream, oneFromFile, firstChunk, fromFileInputStream,
+                                tmpDir);
+                    }
                 }
+            }
+        } finally {
+            if (tmpDir != null) {
+                fileHelper.deleteDir(tmpDir);
+            }
+        }
+    }
 
-                zipOutputStream.closeEntry();
+    // Adds the file to the zip without compression. Stored entries need the CRC and size up front, so this reads the
+    // file twice.
+    private void addStoredEntry(ZipArchiveOutputStream zipOutputStream, File fromFile) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream fromFileInputStream = fileHelper.getInputStream(fromFile)) {
+            int bytesRead;
+            while ((bytesRead = fromFileInputStream.read(buffer)) >= 0) {
+                crc.update(buffer, 0, bytesRead);
+                size += bytesRead;
             }
         }
+
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(fromFile.getName());
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setCrc(crc.getValue());
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(size);
+        try (InputStream fromFileInputStream = fileHelper.getInputStream(fromFile)) {
+            zipOutputStream.addRawArchiveEntry(zipEntry, fromFileInputStream);
+        }
+    }
+
+    // Splits the file into blocks, deflates the blocks in parallel, and writes the concatenated raw deflate stream to
+    // a temp file. Then adds the temp file to the zip as a raw (pre-compressed) entry.
+    private void addParallelDeflatedEntry(ZipArchiveOutputStream zipOutputStream, File fromFile, byte[] firstChunk,
+            InputStream remainingInputStream, File tmpDir) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long compressedSize = 0;
+        File deflatedFile = fileHelper.newFile(tmpDir, fromFile.getName() + ".deflated");
+        try {
+            Deque<Future<byte[]>> pendingBlockQueue = new ArrayDeque<>();
+            try (InputStream fromFileInputStream = new SequenceInputStream(new ByteArrayInputStream(firstChunk),
+                    remainingInputStream);
+                    OutputStream deflatedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(
+                            deflatedFile))) {
+                byte[] previousBlock = null;
+                byte[] block = readChunk(fromFileInputStream, blockSize);
+                while (true) {
+                    // Read ahead one block, so we know if the current block is the last one.
+                    byte[] nextBlock = readChunk(fromFileInputStream, blockSize);
+                    boolean isLast = nextBlock.length == 0;
+
+                    crc.update(block);
+                    size += block.length;
+
+                    byte[] dictionary = getDictionary(previousBlock);
+                    byte[] blockToDeflate = block;
+                    pendingBlockQueue.add(compressionExecutorService.submit(() -> deflateBlock(blockToDeflate,
+                            dictionary, isLast)));
+
+                    // Bound the number of blocks in flight, so we don't hold the whole file in memory.
+                    while (pendingBlockQueue.size() >= maxPendingBlocks) {
+                        compressedSize += writeBlock(pendingBlockQueue.remove(), deflatedOutputStream);
+                    }
+
+                    if (isLast) {
+                        break;
+                    }
+                    previousBlock = block;
+                    block = nextBlock;
+                }
+
+                while (!pendingBlockQueue.isEmpty()) {
+                    compressedSize += writeBlock(pendingBlockQueue.remove(), deflatedOutputStream);
+                }
+            } finally {
+                // If we failed partway, don't leave compression tasks running.
+                for (Future<byte[]> onePendingBlock : pendingBlockQueue) {
+                    onePendingBlock.cancel(true);
+                }
+            }
+
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(fromFile.getName());
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zipEntry.setCrc(crc.getValue());
+            zipEntry.setSize(size);
+            zipEntry.setCompressedSize(compressedSize);
+            try (InputStream deflatedInputStream = fileHelper.getInputStream(deflatedFile)) {
+                zipOutputStream.addRawArchiveEntry(zipEntry, deflatedInputStream);
+            }
+        } finally {
+            if (fileHelper.fileExists(deflatedFile)) {
+                fileHelper.deleteFile(deflatedFile);
+            }
+        }
+    }
+
+    // Waits for the compressed block and writes it to the output stream. Returns the number of bytes written.
+    private static long writeBlock(Future<byte[]> pendingBlock, OutputStream outputStream) throws IOException {
+        byte[] deflatedBlock;
+        try {
+            deflatedBlock = pendingBlock.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Error compressing block: " + ex.getCause().getMessage(), ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing block", ex);
+        }
+        outputStream.write(deflatedBlock);
+        return deflatedBlock.length;
+    }
+
+    // Deflates a single block. Blocks other than the last end with a sync flush, so the raw outputs can be
+    // concatenated into a single valid deflate stream. Package-scoped for unit tests.
+    byte[] deflateBlock(byte[] block, byte[] dictionary, boolean isLast) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block);
+
+            ByteArrayOutputStream deflatedOutputStream = new ByteArrayOutputStream(block.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int numBytes = deflater.deflate(buffer);
+                    deflatedOutputStream.write(buffer, 0, numBytes);
+                }
+            } else {
+                // With sync flush, a full buffer means there might be more output.
+                int numBytes;
+                do {
+                    numBytes = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    deflatedOutputStream.write(buffer, 0, numBytes);
+                } while (numBytes == buffer.length);
+            }
+            return deflatedOutputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // The dictionary for a block is the last 32kb of the previous block.
+    private static byte[] getDictionary(byte[] previousBlock) {
+        if (previousBlock == null) {
+            return null;
+        }
+        int dictionaryLength = Math.min(DICTIONARY_SIZE, previousBlock.length);
+        return Arrays.copyOfRange(previousBlock, previousBlock.length - dictionaryLength, previousBlock.length);
+    }
+
+    // Reads up to maxBytes from the input stream. Returns fewer bytes only if the stream ends first.
+    private static byte[] readChunk(InputStream inputStream, int maxBytes) throws IOException {
+        return ByteStreams.toByteArray(ByteStreams.limit(inputStream, maxBytes));
     }
 }
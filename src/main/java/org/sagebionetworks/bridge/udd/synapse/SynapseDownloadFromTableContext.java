@@ -1,9 +1,12 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
@@ -16,8 +19,9 @@ public class SynapseDownloadFromTableContext {
     private File csvFile;
     private SynapseTableColumnInfo columnInfo;
     private final Set<String> fileHandleIdSet = new HashSet<>();
-    private File bulkDownloadFile;
-    private List<FileDownloadSummary> fileSummaryList;
+    private final List<File> bulkDownloadFileList = new ArrayList<>();
+    private final List<FileDownloadSummary> fileSummaryList = new ArrayList<>();
+    private final Map<String, String> zipFileNameByFileHandleId = new HashMap<>();
     private File editedCsvFile;
 
     /** Downloaded CSV from Synapse. */
@@ -55,24 +59,42 @@ public class SynapseDownloadFromTableContext {
         Collections.addAll(fileHandleIdSet, fileHandleIds);
     }
 
-    /** Zip file of Synapse bulk file download. */
-    public File getBulkDownloadFile() {
-        return bulkDownloadFile;
+    /** Zip files of Synapse bulk file download, one per chunk of file handles. */
+    public List<File> getBulkDownloadFileList() {
+        return bulkDownloadFileList;
     }
 
-    /** @see #getBulkDownloadFile */
-    public void setBulkDownloadFile(File bulkDownloadFile) {
-        this.bulkDownloadFile = bulkDownloadFile;
+    /** Called by bulkDownloadFileHandles() as each chunk is downloaded. */
+    public void addBulkDownloadFile(File bulkDownloadFile) {
+        bulkDownloadFileList.add(bulkDownloadFile);
     }
 
-    /** File summary list from Synapse bulk file download API. */
+    /** File summary list from Synapse bulk file download API, merged across all chunks. */
     public List<FileDownloadSummary> getFileSummaryList() {
         return fileSummaryList;
     }
 
-    /** @see #getFileSummaryList */
-    public void setFileSummaryList(List<FileDownloadSummary> fileSummaryList) {
-        this.fileSummaryList = fileSummaryList;
+    /** Called by bulkDownloadFileHandles() for file summaries that aren't in any zip file. */
+    public void addFileSummaries(List<FileDownloadSummary> fileSummaries) {
+        fileSummaryList.addAll(fileSummaries);
+    }
+
+    /**
+     * Called by bulkDownloadFileHandles() as each chunk is downloaded. Also records which zip file each downloaded
+     * file handle is in.
+     */
+    public void addFileSummaries(List<FileDownloadSummary> fileSummaries, File bulkDownloadFile) {
+        addFileSummaries(fileSummaries);
+        for (FileDownloadSummary oneFileSummary : fileSummaries) {
+            if (oneFileSummary.getZipEntryName() != null) {
+                zipFileNameByFileHandleId.put(oneFileSummary.getFileHandleId(), bulkDownloadFile.getName());
+            }
+        }
+    }
+
+    /** Name of the bulk download zip file that contains the given file handle, or null if it wasn't downloaded. */
+    public String getZipFileNameForFileHandle(String fileHandleId) {
+        return zipFileNameByFileHandleId.get(fileHandleId);
     }
 
     /** CSV file with health codes stripped out and file handle IDs replaced with zip entry names. */
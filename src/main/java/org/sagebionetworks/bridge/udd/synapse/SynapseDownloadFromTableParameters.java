@@ -6,6 +6,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
 
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
 
 /** Necessary args for downloading user data (query result CSV and attached file handles) from a Synapse table. */
 public class SynapseDownloadFromTableParameters {
@@ -16,10 +17,11 @@ public class SynapseDownloadFromTableParameters {
     private final File tempDir;
     private final UploadSchema schema;
     private final String studyId;
+    private final TablePresence tablePresence;
 
     /** Private constructor. To build, use builder. */
     private SynapseDownloadFromTableParameters(String synapseTableId, String healthCode, LocalDate startDate,
-            LocalDate endDate, File tempDir, UploadSchema schema, String studyId) {
+            LocalDate endDate, File tempDir, UploadSchema schema, String studyId, TablePresence tablePresence) {
         this.synapseTableId = synapseTableId;
         this.healthCode = healthCode;
         this.startDate = startDate;
@@ -27,6 +29,7 @@ public class SynapseDownloadFromTableParameters {
         this.tempDir = tempDir;
         this.schema = schema;
         this.studyId = studyId;
+        this.tablePresence = tablePresence;
     }
 
     /** ID of the Synapse table to query against. */
@@ -64,6 +67,14 @@ public class SynapseDownloadFromTableParameters {
         return studyId;
     }
 
+    /**
+     * The user's upload date range in this table, from the table presence index. Used to decide whether to partition
+     * the query. Null if the user's table presence isn't complete.
+     */
+    public TablePresence getTablePresence() {
+        return tablePresence;
+    }
+
     /** Parameter class builder. */
     public static class Builder {
         private String synapseTableId;
@@ -73,6 +84,7 @@ public class SynapseDownloadFromTableParameters {
         private File tempDir;
         private UploadSchema schema;
         private String studyId;
+        private TablePresence tablePresence;
 
         /** @see SynapseDownloadFromTableParameters#getSynapseTableId */
         public Builder withSynapseTableId(String synapseTableId) {
@@ -116,6 +128,12 @@ public class SynapseDownloadFromTableParameters {
             return this;
         }
 
+        /** @see SynapseDownloadFromTableParameters#getTablePresence */
+        public Builder withTablePresence(TablePresence tablePresence) {
+            this.tablePresence = tablePresence;
+            return this;
+        }
+
         /** Builds the parameters object and validates parameters. */
         public SynapseDownloadFromTableParameters build() {
             if (StringUtils.isBlank(synapseTableId)) {
@@ -147,7 +165,7 @@ public class SynapseDownloadFromTableParameters {
             }
 
             return new SynapseDownloadFromTableParameters(synapseTableId, healthCode, startDate, endDate, tempDir,
-                    schema, studyId);
+                    schema, studyId, tablePresence);
         }
     }
 }
@@ -1,16 +1,19 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.util.List;
 
-/** Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file and the bulk download zip file. */
+import com.google.common.collect.ImmutableList;
+
+/** Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file and the bulk download zip files. */
 public class SynapseDownloadFromTableResult {
     private final File csvFile;
-    private final File bulkDownloadFile;
+    private final List<File> bulkDownloadFileList;
 
     /** Private constructor. To construct, use Builder. */
-    private SynapseDownloadFromTableResult(File csvFile, File bulkDownloadFile) {
+    private SynapseDownloadFromTableResult(File csvFile, List<File> bulkDownloadFileList) {
         this.csvFile = csvFile;
-        this.bulkDownloadFile = bulkDownloadFile;
+        this.bulkDownloadFileList = bulkDownloadFileList;
     }
 
     /** CSV file of query against the Synapse table. May be null if the table contained no data for the query. */
@@ -19,17 +22,18 @@ public class SynapseDownloadFromTableResult {
     }
 
     /**
-     * Bulk download zip file of all file handles associated with the CSV. May be null if there are no file handles
-     * associated with the CSV.
+     * Bulk download zip files of all file handles associated with the CSV. File handles are downloaded in chunks, so
+     * there may be more than one zip file. May be empty if there are no file handles associated with the CSV, but
+     * will never be null.
      */
-    public File getBulkDownloadFile() {
-        return bulkDownloadFile;
+    public List<File> getBulkDownloadFileList() {
+        return bulkDownloadFileList;
     }
 
     /** Builder for the SynapseDownloadFromTableResult. */
     public static class Builder {
         private File csvFile;
-        private File bulkDownloadFile;
+        private List<File> bulkDownloadFileList;
 
         /** @see SynapseDownloadFromTableResult#getCsvFile */
         public Builder withCsvFile(File csvFile) {
@@ -37,16 +41,18 @@ public class SynapseDownloadFromTableResult {
             return this;
         }
 
-        /** @see SynapseDownloadFromTableResult#getBulkDownloadFile */
-        public Builder withBulkDownloadFile(File bulkDownloadFile) {
-            this.bulkDownloadFile = bulkDownloadFile;
+        /** @see SynapseDownloadFromTableResult#getBulkDownloadFileList */
+        public Builder withBulkDownloadFileList(List<File> bulkDownloadFileList) {
+            this.bulkDownloadFileList = bulkDownloadFileList;
             return this;
         }
 
         /** Builds the SynapseDownloadFromTableResult. */
         public SynapseDownloadFromTableResult build() {
-            // No need to validate, since either field can be null.
-            return new SynapseDownloadFromTableResult(csvFile, bulkDownloadFile);
+            // No need to validate, since either field can be empty. Null file list is converted to an empty list.
+            List<File> builtFileList = bulkDownloadFileList != null ? ImmutableList.copyOf(bulkDownloadFileList) :
+                    ImmutableList.of();
+            return new SynapseDownloadFromTableResult(csvFile, builtFileList);
         }
     }
 }
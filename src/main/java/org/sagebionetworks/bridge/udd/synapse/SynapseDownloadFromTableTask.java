@@ -5,26 +5,39 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.LocalDate;
+import org.joda.time.Months;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
+import org.sagebionetworks.repo.model.file.FileDownloadCode;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudget;
 
 /**
  * A one-shot asynchronous task to query a Synapse table and download the CSV. This task returns the struct of files
@@ -37,18 +50,38 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
     private static final String COL_HEALTH_CODE = "healthCode";
     private static final String COL_RAW_DATA = "rawData";
     private static final String ERROR_DOWNLOADING_ATTACHMENT = "Unknown error downloading attachment";
-    private static final String QUERY_TEMPLATE =
-            "SELECT * FROM %s WHERE healthCode = '%s' AND uploadDate >= '%s' AND uploadDate <= '%s'";
+    private static final String JOB_TYPE_BULK_DOWNLOAD_TOKEN = "bulk-download-token";
+    private static final Joiner COMMA_JOINER = Joiner.on(',');
+
+    // Package-scoped for unit tests.
+    static final int BULK_DOWNLOAD_CHUNK_MAX_ATTEMPTS = 2;
+    static final int DEFAULT_BULK_DOWNLOAD_CHUNK_SIZE = 100;
+    static final long DEFAULT_BULK_DOWNLOAD_CHUNK_MAX_BYTES = 1024L * 1024 * 1024;
+    static final int DEFAULT_BULK_DOWNLOAD_MAX_CONCURRENT_JOBS = 1;
+    static final int DEFAULT_PARTITION_MAX_CONCURRENT_QUERIES = 1;
+    static final int DEFAULT_PARTITION_MIN_MONTHS = 0;
 
     // Task parameters. Params is passed in by constructor. Context is created by this task.
     private final SynapseDownloadFromTableParameters params;
     private final SynapseDownloadFromTableContext ctx = new SynapseDownloadFromTableContext();
 
+    // Bulk download settings. These come from the config and are passed in by the packager.
+    private int bulkDownloadChunkSize = DEFAULT_BULK_DOWNLOAD_CHUNK_SIZE;
+    private long bulkDownloadChunkMaxBytes = DEFAULT_BULK_DOWNLOAD_CHUNK_MAX_BYTES;
+    private int bulkDownloadMaxConcurrentJobs = DEFAULT_BULK_DOWNLOAD_MAX_CONCURRENT_JOBS;
+
+    // Query partitioning settings. These come from the config and are passed in by the packager.
+    private int partitionMaxConcurrentQueries = DEFAULT_PARTITION_MAX_CONCURRENT_QUERIES;
+    private int partitionMinMonths = DEFAULT_PARTITION_MIN_MONTHS;
+
     // Helpers and config objects. Originates from Spring configs and is passed in through setters using a similar
     // pattern.
     private DynamoHelper dynamoHelper;
     private FileHelper fileHelper;
+    private UddJobProgress jobProgress;
     private SynapseHelper synapseHelper;
+    private SynapseQueryBatcher synapseQueryBatcher;
+    private TempStorageBudget.Reservation tempStorageReservation;
 
     /**
      * Constructs this task with the specified task parameters
@@ -60,6 +93,62 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
         this.params = params;
     }
 
+    /** Max number of file handles in a single Synapse bulk download request. */
+    public final void setBulkDownloadChunkSize(int bulkDownloadChunkSize) {
+        this.bulkDownloadChunkSize = bulkDownloadChunkSize;
+    }
+
+    // Package-scoped for unit tests.
+    int getBulkDownloadChunkSize() {
+        return bulkDownloadChunkSize;
+    }
+
+    /**
+     * Max total content size, in bytes, of the file handles in a single Synapse bulk download request. This should
+     * match Synapse's bulk download size limit.
+     */
+    public final void setBulkDownloadChunkMaxBytes(long bulkDownloadChunkMaxBytes) {
+        this.bulkDownloadChunkMaxBytes = bulkDownloadChunkMaxBytes;
+    }
+
+    // Package-scoped for unit tests.
+    long getBulkDownloadChunkMaxBytes() {
+        return bulkDownloadChunkMaxBytes;
+    }
+
+    /** Max number of bulk download jobs this task has running in Synapse at once. */
+    public final void setBulkDownloadMaxConcurrentJobs(int bulkDownloadMaxConcurrentJobs) {
+        this.bulkDownloadMaxConcurrentJobs = bulkDownloadMaxConcurrentJobs;
+    }
+
+    // Package-scoped for unit tests.
+    int getBulkDownloadMaxConcurrentJobs() {
+        return bulkDownloadMaxConcurrentJobs;
+    }
+
+    /** Max number of partition queries this task has running in Synapse at once. */
+    public final void setPartitionMaxConcurrentQueries(int partitionMaxConcurrentQueries) {
+        this.partitionMaxConcurrentQueries = partitionMaxConcurrentQueries;
+    }
+
+    // Package-scoped for unit tests.
+    int getPartitionMaxConcurrentQueries() {
+        return partitionMaxConcurrentQueries;
+    }
+
+    /**
+     * If the user's data in this table spans at least this many months of the requested date range, the query is
+     * split into one query per month. 0 disables partitioning.
+     */
+    public final void setPartitionMinMonths(int partitionMinMonths) {
+        this.partitionMinMonths = partitionMinMonths;
+    }
+
+    // Package-scoped for unit tests.
+    int getPartitionMinMonths() {
+        return partitionMinMonths;
+    }
+
     /** DynamoDB helper, used to delete entries from the table mappings when the table has been deleted. */
     public final void setDynamoHelper(DynamoHelper dynamoHelper) {
         this.dynamoHelper = dynamoHelper;
@@ -83,6 +172,19 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
         return fileHelper;
     }
 
+    /**
+     * Progress of the UDD job this task is part of. Used to record Synapse async job tokens, so a redelivered request
+     * can reattach to them.
+     */
+    public final void setJobProgress(UddJobProgress jobProgress) {
+        this.jobProgress = jobProgress;
+    }
+
+    // Package-scoped for unit tests.
+    UddJobProgress getJobProgress() {
+        return jobProgress;
+    }
+
     /** Synapse helper, used to download CSV and bulk file download from Synapse. */
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
@@ -93,6 +195,32 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
         return synapseHelper;
     }
 
+    /**
+     * Synapse query batcher, used to query the table for the user's data. This may be batched with queries for other
+     * users in the same study.
+     */
+    public final void setSynapseQueryBatcher(SynapseQueryBatcher synapseQueryBatcher) {
+        this.synapseQueryBatcher = synapseQueryBatcher;
+    }
+
+    // Package-scoped for unit tests.
+    SynapseQueryBatcher getSynapseQueryBatcher() {
+        return synapseQueryBatcher;
+    }
+
+    /**
+     * Temp storage reservation for the UDD job this task is part of. Each CSV and bulk download waits for headroom
+     * before it starts, and records the files it writes. See {@link TempStorageBudget}.
+     */
+    public final void setTempStorageReservation(TempStorageBudget.Reservation tempStorageReservation) {
+        this.tempStorageReservation = tempStorageReservation;
+    }
+
+    // Package-scoped for unit tests.
+    TempStorageBudget.Reservation getTempStorageReservation() {
+        return tempStorageReservation;
+    }
+
     /**
      * Executes the SynapseDownloadFromTableTask. Returns the list of files downloaded. These files all live in the
      * temp directory passed in from the task parameters.
@@ -125,10 +253,17 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
                 }
             }
 
-            editCsv();
+            if (ctx.getColumnInfo().getHealthCodeColumnIndex() < 0 &&
+                    ctx.getColumnInfo().getFileHandleColumnIndexSet().isEmpty()) {
+                // Column-projected queries don't return health codes. If there are no file handles either, there's
+                // nothing to edit, so we can skip rewriting the CSV.
+                LOG.info("No columns to edit in file " + ctx.getCsvFilePath() + ". Skipping editing CSV.");
+            } else {
+                editCsv();
+            }
 
             return new SynapseDownloadFromTableResult.Builder().withCsvFile(ctx.getCsvFile())
-                    .withBulkDownloadFile(ctx.getBulkDownloadFile()).build();
+                    .withBulkDownloadFileList(ctx.getBulkDownloadFileList()).build();
         } catch (AsyncTaskExecutionException | RuntimeException ex) {
             // Cleanup files. No need to leave garbage behind.
             cleanupFiles();
@@ -139,21 +274,29 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
     /**
      * Queries a Synapse table based on the params and downloads the result as a CSV. This method reads all params
      * (except schema) from {@link SynapseDownloadFromTableParameters} to generate the query and writes the resulting
-     * CSV to {@link SynapseDownloadFromTableContext#setCsvFile}.
+     * CSV to {@link SynapseDownloadFromTableContext#setCsvFile}. If the user's data spans a long date range, the query
+     * is split into month-sized partitions. See {@link #downloadPartitionedCsv}.
      */
     private void downloadCsv() throws AsyncTaskExecutionException {
         String synapseTableId = params.getSynapseTableId();
         File csvFile = fileHelper.newFile(params.getTempDir(), getDownloadFilenamePrefix() + ".csv");
         String csvFilePath = csvFile.getAbsolutePath();
 
+        // Set the CSV file in the context first, so that it's cleaned up if the download fails partway through.
+        ctx.setCsvFile(csvFile);
+
         Stopwatch downloadCsvStopwatch = Stopwatch.createStarted();
         try {
-            String query = String.format(QUERY_TEMPLATE, synapseTableId, params.getHealthCode(), params.getStartDate(),
-                    params.getEndDate());
-            String csvFileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
-            synapseHelper.downloadFileHandle(csvFileHandleId, csvFile);
-            ctx.setCsvFile(csvFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
+            List<QueryPartition> partitionList = getQueryPartitionList();
+            tempStorageReservation.awaitHeadroomFromPool();
+            if (partitionList.size() > 1) {
+                downloadPartitionedCsv(partitionList, csvFile);
+            } else {
+                synapseQueryBatcher.downloadCsv(synapseTableId, params.getHealthCode(), params.getStartDate(),
+                        params.getEndDate(), params.getTempDir(), csvFile, jobProgress);
+            }
+            tempStorageReservation.recordFile(csvFile);
+        } catch (AsyncTimeoutException | IOException | SynapseException ex) {
             throw new AsyncTaskExecutionException("Error downloading synapse table " + synapseTableId + " to file " +
                     csvFilePath + ": " + ex.getMessage(), ex);
         } finally {
@@ -163,6 +306,187 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
         }
     }
 
+    /**
+     * Splits the requested date range into calendar months, if the user's data in this table spans at least
+     * partitionMinMonths of the range. The range is first narrowed to the user's upload dates in the table presence
+     * index (if the user's table presence is complete), so we don't run queries for months with no data. Otherwise,
+     * returns a single partition with the requested date range.
+     */
+    private List<QueryPartition> getQueryPartitionList() {
+        LocalDate startDate = params.getStartDate();
+        LocalDate endDate = params.getEndDate();
+        List<QueryPartition> unpartitionedList = ImmutableList.of(new QueryPartition(startDate, endDate));
+        if (partitionMinMonths <= 0 || countMonths(startDate, endDate) < partitionMinMonths) {
+            // Partitioning is disabled, or the range is short.
+            return unpartitionedList;
+        }
+
+        TablePresence presence = params.getTablePresence();
+        if (presence != null) {
+            if (presence.getMinUploadDate() != null && presence.getMinUploadDate().isAfter(startDate)) {
+                startDate = presence.getMinUploadDate();
+            }
+            if (presence.getMaxUploadDate() != null && presence.getMaxUploadDate().isBefore(endDate)) {
+                endDate = presence.getMaxUploadDate();
+            }
+        }
+        if (startDate.isAfter(endDate) || countMonths(startDate, endDate) < partitionMinMonths) {
+            return unpartitionedList;
+        }
+
+        return splitByMonth(startDate, endDate);
+    }
+
+    // Number of calendar months that the date range touches, inclusive.
+    private static int countMonths(LocalDate startDate, LocalDate endDate) {
+        return Months.monthsBetween(startDate.withDayOfMonth(1), endDate.withDayOfMonth(1)).getMonths() + 1;
+    }
+
+    /**
+     * Splits the date range (inclusive) into calendar months. The first and last partitions are clipped to the start
+     * and end dates. Package-scoped for unit tests.
+     */
+    static List<QueryPartition> splitByMonth(LocalDate startDate, LocalDate endDate) {
+        List<QueryPartition> partitionList = new ArrayList<>();
+        LocalDate partitionStartDate = startDate;
+        while (!partitionStartDate.isAfter(endDate)) {
+            LocalDate partitionEndDate = partitionStartDate.dayOfMonth().withMaximumValue();
+            if (partitionEndDate.isAfter(endDate)) {
+                partitionEndDate = endDate;
+            }
+            partitionList.add(new QueryPartition(partitionStartDate, partitionEndDate));
+            partitionStartDate = partitionEndDate.plusDays(1);
+        }
+        return partitionList;
+    }
+
+    /**
+     * <p>
+     * Downloads the CSV as a series of per-month queries, then concatenates the results into the given CSV file,
+     * keeping only the first header row.
+     * </p>
+     * <p>
+     * Like bulk downloads, we keep up to partitionMaxConcurrentQueries running in Synapse at once, and download each
+     * partition's CSV in order as its query finishes. Partition queries bypass the query batcher, since they're only
+     * used for users with a lot of data. Like the batcher's per-user queries, they record their async job tokens and
+     * results in the job progress, so a redelivered request can reattach to them.
+     * </p>
+     */
+    private void downloadPartitionedCsv(List<QueryPartition> partitionList, File csvFile)
+            throws AsyncTimeoutException, IOException, SynapseException {
+        LOG.info("Splitting query for synapse table " + params.getSynapseTableId() + " into " + partitionList.size() +
+                " partitions");
+
+        Queue<QueryPartition> pendingPartitionQueue = new LinkedList<>(partitionList);
+        Queue<PartitionQuery> runningQueryQueue = new LinkedList<>();
+        int numPartitions = 0;
+        boolean headerWritten = false;
+        try (CSVWriter csvWriter = new CSVWriter(fileHelper.getWriter(csvFile))) {
+            while (!pendingPartitionQueue.isEmpty() || !runningQueryQueue.isEmpty()) {
+                // Top off the running queries, so Synapse can work on them in parallel while we download.
+                while (runningQueryQueue.size() < partitionMaxConcurrentQueries && !pendingPartitionQueue.isEmpty()) {
+                    runningQueryQueue.add(startPartitionQuery(pendingPartitionQueue.remove()));
+                }
+
+                // Wait for the oldest query and append its CSV.
+                PartitionQuery query = runningQueryQueue.remove();
+                String csvFileHandleId = getPartitionQueryResult(query);
+
+                numPartitions++;
+                File partitionCsvFile = fileHelper.newFile(params.getTempDir(), getDownloadFilenamePrefix() +
+                        "-part" + numPartitions + ".csv");
+                try {
+                    tempStorageReservation.awaitHeadroomFromPool();
+                    synapseHelper.downloadFileHandle(csvFileHandleId, partitionCsvFile);
+                    headerWritten |= appendPartitionCsv(partitionCsvFile, csvWriter, !headerWritten);
+                } finally {
+                    if (fileHelper.fileExists(partitionCsvFile)) {
+                        fileHelper.deleteFile(partitionCsvFile);
+                    }
+                }
+            }
+        }
+    }
+
+    // Starts the query for the given partition, or reattaches to it if a previous attempt at this job started it.
+    private PartitionQuery startPartitionQuery(QueryPartition partition) throws SynapseException {
+        String query = synapseQueryBatcher.makeSingleUserQuery(params.getSynapseTableId(), params.getHealthCode(),
+                partition.getStartDate(), partition.getEndDate());
+        PartitionQuery partitionQuery = new PartitionQuery(query);
+
+        // If we already have the result, or a token to reattach to, we don't need to start the query.
+        if (jobProgress.get(partitionQuery.resultKey) == null) {
+            if (jobProgress.get(partitionQuery.tokenKey) != null) {
+                partitionQuery.resumed = true;
+            } else {
+                runPartitionQuery(partitionQuery);
+            }
+        }
+        return partitionQuery;
+    }
+
+    // Starts the given partition query in Synapse and records its token in the job progress.
+    private void runPartitionQuery(PartitionQuery partitionQuery) throws SynapseException {
+        String asyncJobToken = synapseHelper.startTableQuery(partitionQuery.query, params.getSynapseTableId());
+        jobProgress.put(partitionQuery.tokenKey, asyncJobToken);
+    }
+
+    /**
+     * Waits for the given partition query and returns the file handle ID of the resulting CSV. If the query was
+     * reattached from a previous attempt and fails (the old job may have failed or expired), we restart it once, like
+     * the query batcher does for single-user queries.
+     */
+    private String getPartitionQueryResult(PartitionQuery partitionQuery) throws AsyncTimeoutException,
+            SynapseException {
+        String csvFileHandleId = jobProgress.get(partitionQuery.resultKey);
+        if (csvFileHandleId != null) {
+            return csvFileHandleId;
+        }
+
+        String synapseTableId = params.getSynapseTableId();
+        try {
+            csvFileHandleId = synapseHelper.getTableQueryResult(jobProgress.get(partitionQuery.tokenKey),
+                    synapseTableId);
+        } catch (AsyncTimeoutException | SynapseException ex) {
+            // Forget the failed query, so that a redelivered request doesn't reattach to it.
+            jobProgress.remove(partitionQuery.tokenKey);
+            if (!partitionQuery.resumed) {
+                throw ex;
+            }
+
+            LOG.warn("Error reattaching to partition query against synapse table " + synapseTableId +
+                    ", restarting query: " + ex.getMessage(), ex);
+            partitionQuery.resumed = false;
+            runPartitionQuery(partitionQuery);
+            return getPartitionQueryResult(partitionQuery);
+        }
+        jobProgress.replace(partitionQuery.tokenKey, partitionQuery.resultKey, csvFileHandleId);
+        return csvFileHandleId;
+    }
+
+    // Appends the rows of the partition CSV to the CSV writer, and the header row too if writeHeader is true. Returns
+    // true if the partition CSV had a header row, so the caller can write the header from the first non-empty
+    // partition.
+    private boolean appendPartitionCsv(File partitionCsvFile, CSVWriter csvWriter, boolean writeHeader)
+            throws IOException {
+        try (CSVReader partitionCsvReader = new CSVReader(fileHelper.getReader(partitionCsvFile))) {
+            String[] headerRow = partitionCsvReader.readNext();
+            if (headerRow == null) {
+                // Empty file. Nothing to append.
+                return false;
+            }
+            if (writeHeader) {
+                csvWriter.writeNext(headerRow);
+            }
+
+            String[] row;
+            while ((row = partitionCsvReader.readNext()) != null) {
+                csvWriter.writeNext(row);
+            }
+        }
+        return true;
+    }
+
     /**
      * <p>
      * Sometimes, a Synapse table contains no data for the given user and time range. This method counts the lines in
@@ -269,42 +593,200 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
     }
 
     /**
+     * <p>
      * This method takes the set of file handle IDs and bulk downloads them from Synapse (using the bulk download API).
      * This method reads from {@link SynapseDownloadFromTableParameters#getTempDir} to determine download location,
      * {@link SynapseDownloadFromTableParameters#getSynapseTableId}, and
      * {@link SynapseDownloadFromTableContext#getFileHandleIdSet}, and writes the results to
-     * {@link SynapseDownloadFromTableContext#setFileSummaryList} and
-     * {@link SynapseDownloadFromTableContext#setBulkDownloadFile}.
+     * {@link SynapseDownloadFromTableContext#addFileSummaries} and
+     * {@link SynapseDownloadFromTableContext#addBulkDownloadFile}.
+     * </p>
+     * <p>
+     * File handles are split into chunks, and each chunk is a separate bulk download job, so that a single failure
+     * doesn't throw away the whole download. Chunks are capped at bulkDownloadChunkSize file handles and at
+     * bulkDownloadChunkMaxBytes of content, using the file handle sizes from Synapse. We keep up to
+     * bulkDownloadMaxConcurrentJobs running in Synapse at once, and download the resulting zip files as each job
+     * finishes.
+     * </p>
+     * <p>
+     * Synapse caps the size of a bulk download, and excludes file handles past that cap as EXCEEDS_SIZE_LIMIT. This
+     * should only happen if we couldn't get the file handle sizes. As long as the chunk made progress, we re-queue
+     * those file handles as a new chunk.
+     * </p>
      */
     private void bulkDownloadFileHandles() throws AsyncTaskExecutionException {
-        // download file handles
-        File bulkDownloadFile = fileHelper.newFile(params.getTempDir(), getDownloadFilenamePrefix() + ".zip");
-        String bulkDownloadFilePath = bulkDownloadFile.getAbsolutePath();
+        // Sort the file handle IDs so that chunking is deterministic.
+        List<String> fileHandleIdList = new ArrayList<>(new TreeSet<>(ctx.getFileHandleIdSet()));
+
+        // Get file handle sizes, so we can keep chunks under the bulk download size limit. If this fails, fall back
+        // to chunking by count and let Synapse tell us what didn't fit.
+        Map<String, Long> sizeByFileHandleId;
+        try {
+            sizeByFileHandleId = synapseHelper.getFileHandleSizes(params.getSynapseTableId(), fileHandleIdList);
+        } catch (SynapseException ex) {
+            LOG.warn("Error getting file handle sizes for synapse table " + params.getSynapseTableId() +
+                    ", chunking by count only: " + ex.getMessage(), ex);
+            sizeByFileHandleId = ImmutableMap.of();
+        }
+        Queue<List<String>> pendingChunkQueue = new LinkedList<>(makeBulkDownloadChunks(fileHandleIdList,
+                sizeByFileHandleId, bulkDownloadChunkSize, bulkDownloadChunkMaxBytes));
+        Queue<BulkDownloadJob> runningJobQueue = new LinkedList<>();
 
         Stopwatch bulkDownloadStopwatch = Stopwatch.createStarted();
-        BulkFileDownloadResponse bulkDownloadResponse;
+        int numChunks = 0;
         try {
-            bulkDownloadResponse = synapseHelper.generateBulkDownloadFileHandle(params.getSynapseTableId(),
-                    ctx.getFileHandleIdSet());
-            ctx.setFileSummaryList(bulkDownloadResponse.getFileSummary());
+            while (!pendingChunkQueue.isEmpty() || !runningJobQueue.isEmpty()) {
+                // Top off the running jobs, so Synapse can work on them in parallel while we download.
+                while (runningJobQueue.size() < bulkDownloadMaxConcurrentJobs && !pendingChunkQueue.isEmpty()) {
+                    runningJobQueue.add(startBulkDownloadJob(pendingChunkQueue.remove()));
+                }
 
-            String bulkDownloadFileHandleId = bulkDownloadResponse.getResultZipFileHandleId();
-            synapseHelper.downloadFileHandle(bulkDownloadFileHandleId, bulkDownloadFile);
-            ctx.setBulkDownloadFile(bulkDownloadFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
-            throw new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
-                    bulkDownloadFilePath + ": " + ex.getMessage(), ex);
+                // Wait for the oldest job and download its zip file. First chunk is named like the old single zip
+                // file, and subsequent chunks are numbered.
+                BulkDownloadJob job = runningJobQueue.remove();
+                numChunks++;
+                String chunkSuffix = numChunks == 1 ? "" : "-" + numChunks;
+                File chunkFile = fileHelper.newFile(params.getTempDir(), getDownloadFilenamePrefix() + chunkSuffix +
+                        ".zip");
+                BulkFileDownloadResponse bulkDownloadResponse;
+                try {
+                    tempStorageReservation.awaitHeadroomFromPool();
+                    bulkDownloadResponse = downloadBulkDownloadJob(job, chunkFile);
+                    ctx.addBulkDownloadFile(chunkFile);
+                    tempStorageReservation.recordFile(chunkFile);
+                } catch (IOException ex) {
+                    throw new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
+                            chunkFile.getAbsolutePath() + ": " + ex.getMessage(), ex);
+                }
+
+                // Merge file summaries, separating out the file handles that didn't fit into the zip.
+                List<FileDownloadSummary> fileSummaryList = new ArrayList<>();
+                List<FileDownloadSummary> overflowSummaryList = new ArrayList<>();
+                for (FileDownloadSummary oneFileSummary : bulkDownloadResponse.getFileSummary()) {
+                    if (oneFileSummary.getFailureCode() == FileDownloadCode.EXCEEDS_SIZE_LIMIT) {
+                        overflowSummaryList.add(oneFileSummary);
+                    } else {
+                        fileSummaryList.add(oneFileSummary);
+                    }
+                }
+                ctx.addFileSummaries(fileSummaryList, chunkFile);
+
+                if (!overflowSummaryList.isEmpty()) {
+                    if (fileSummaryList.isEmpty()) {
+                        // Nothing fit into the zip, so re-queueing would loop forever. Keep the failure summaries so
+                        // editCsv() writes the error messages.
+                        ctx.addFileSummaries(overflowSummaryList);
+                    } else {
+                        List<String> overflowIdList = new ArrayList<>();
+                        for (FileDownloadSummary oneOverflowSummary : overflowSummaryList) {
+                            overflowIdList.add(oneOverflowSummary.getFileHandleId());
+                        }
+                        pendingChunkQueue.add(overflowIdList);
+                    }
+                }
+            }
         } finally {
             bulkDownloadStopwatch.stop();
-            LOG.info("Bulk downloading file handles to file " + bulkDownloadFilePath + " took " +
+            LOG.info("Bulk downloading " + fileHandleIdList.size() + " file handles in " + numChunks +
+                    " chunks for file " + ctx.getCsvFilePath() + " took " +
                     bulkDownloadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
     }
 
+    /**
+     * Splits the file handle IDs into chunks of at most maxCount file handles and at most maxBytes of total content
+     * size, keeping the file handles in order. File handles with unknown sizes count as zero bytes. A single file
+     * handle larger than maxBytes goes into a chunk by itself. Package-scoped for unit tests.
+     */
+    static List<List<String>> makeBulkDownloadChunks(List<String> fileHandleIdList,
+            Map<String, Long> sizeByFileHandleId, int maxCount, long maxBytes) {
+        List<List<String>> chunkList = new ArrayList<>();
+        List<String> curChunk = new ArrayList<>();
+        long curChunkBytes = 0;
+        for (String oneFileHandleId : fileHandleIdList) {
+            Long size = sizeByFileHandleId.get(oneFileHandleId);
+            long fileBytes = size != null ? size : 0;
+            if (!curChunk.isEmpty() && (curChunk.size() >= maxCount || curChunkBytes + fileBytes > maxBytes)) {
+                chunkList.add(curChunk);
+                curChunk = new ArrayList<>();
+                curChunkBytes = 0;
+            }
+            curChunk.add(oneFileHandleId);
+            curChunkBytes += fileBytes;
+        }
+        if (!curChunk.isEmpty()) {
+            chunkList.add(curChunk);
+        }
+        return chunkList;
+    }
+
+    /**
+     * Starts the bulk download job for a chunk of file handles. If a previous attempt at this UDD job already started
+     * a bulk download for the exact same chunk, reattach to it instead. If starting the job fails, we leave the job
+     * token null, and {@link #downloadBulkDownloadJob} retries it.
+     */
+    private BulkDownloadJob startBulkDownloadJob(List<String> fileHandleIdList) {
+        String progressKey = UddJobProgress.makeAsyncJobKey(JOB_TYPE_BULK_DOWNLOAD_TOKEN, params.getSynapseTableId() +
+                ":" + COMMA_JOINER.join(fileHandleIdList));
+        String asyncJobToken = jobProgress.get(progressKey);
+        if (asyncJobToken != null) {
+            LOG.info("Reattaching to bulk download for synapse table " + params.getSynapseTableId());
+        } else {
+            try {
+                asyncJobToken = synapseHelper.startBulkDownloadFileHandle(params.getSynapseTableId(),
+                        new HashSet<>(fileHandleIdList));
+                jobProgress.put(progressKey, asyncJobToken);
+            } catch (SynapseException ex) {
+                LOG.warn("Error starting bulk download for synapse table " + params.getSynapseTableId() + ": " +
+                        ex.getMessage(), ex);
+            }
+        }
+        return new BulkDownloadJob(fileHandleIdList, progressKey, asyncJobToken);
+    }
+
+    /**
+     * Waits for the given bulk download job and downloads the result to the given file. If this fails, we restart the
+     * job for that chunk, up to BULK_DOWNLOAD_CHUNK_MAX_ATTEMPTS.
+     */
+    private BulkFileDownloadResponse downloadBulkDownloadJob(BulkDownloadJob job, File chunkFile)
+            throws AsyncTaskExecutionException {
+        String chunkFilePath = chunkFile.getAbsolutePath();
+        String asyncJobToken = job.getAsyncJobToken();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (asyncJobToken == null) {
+                    asyncJobToken = synapseHelper.startBulkDownloadFileHandle(params.getSynapseTableId(),
+                            new HashSet<>(job.getFileHandleIdList()));
+                    jobProgress.put(job.getProgressKey(), asyncJobToken);
+                }
+                BulkFileDownloadResponse bulkDownloadResponse = synapseHelper.getBulkDownloadFileHandleResult(
+                        asyncJobToken);
+                synapseHelper.downloadFileHandle(bulkDownloadResponse.getResultZipFileHandleId(), chunkFile);
+                return bulkDownloadResponse;
+            } catch (AsyncTimeoutException | SynapseException ex) {
+                // Clean up the partial download, if any. Also forget the job, so that neither the retry nor a
+                // redelivered request reattaches to it.
+                if (fileHelper.fileExists(chunkFile)) {
+                    fileHelper.deleteFile(chunkFile);
+                }
+                jobProgress.remove(job.getProgressKey());
+
+                if (attempt >= BULK_DOWNLOAD_CHUNK_MAX_ATTEMPTS) {
+                    throw new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
+                            chunkFilePath + ": " + ex.getMessage(), ex);
+                }
+                LOG.warn("Error bulk downloading file handles to file " + chunkFilePath + ", retrying: " +
+                        ex.getMessage(), ex);
+                asyncJobToken = null;
+            }
+        }
+    }
+
     /**
      * <p>
-     * We need to make edits to the CSV: (1) Replace the file handle IDs with zip entry names. (2) Remove health
-     * codes, since those aren't supposed to be exposed to users. This method reads from
+     * We need to make edits to the CSV: (1) Replace the file handle IDs with zip entry names, prefixed with the zip
+     * file name if there's more than one zip file. (2) Remove health codes (if the query returned them), since those
+     * aren't supposed to be exposed to users. This method reads from
      * {@link SynapseDownloadFromTableParameters#getTempDir} to determine where to write the edited CSV. It also reads from
      * {@link SynapseDownloadFromTableContext#getFileSummaryList},
      * {@link SynapseDownloadFromTableContext#getColumnInfo}, {@link SynapseDownloadFromTableContext#getCsvFile}, and
@@ -315,23 +797,27 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
      * </p>
      */
     void editCsv() throws AsyncTaskExecutionException {
-        // Convert file summary in bulk download response into a map from file handle ID to zip entry name.
+        // Convert file summary in bulk download response into a map from file handle ID to zip entry name. If the
+        // attachments are split across multiple zip files, the zip entry name is prefixed with its zip file name, so
+        // users can tell which zip file to look in.
+        boolean isMultipleZipFiles = ctx.getBulkDownloadFileList().size() > 1;
         Map<String, String> fileHandleIdToReplacement = new HashMap<>();
-        List<FileDownloadSummary> fileSummaryList = ctx.getFileSummaryList();
-        if (fileSummaryList != null) {
-            for (FileDownloadSummary oneFileSummary : fileSummaryList) {
-                String fileHandleId = oneFileSummary.getFileHandleId();
-                if (!Strings.isNullOrEmpty(fileHandleId)) {
-                    String zipEntryName = oneFileSummary.getZipEntryName();
-                    String failureMessage = oneFileSummary.getFailureMessage();
-
-                    if (!Strings.isNullOrEmpty(zipEntryName)) {
-                        // replace file handle ID with zip entry name
-                        fileHandleIdToReplacement.put(fileHandleId, zipEntryName);
-                    } else if (!Strings.isNullOrEmpty(failureMessage)) {
-                        // replace file handle ID with error message
-                        fileHandleIdToReplacement.put(fileHandleId, failureMessage);
+        for (FileDownloadSummary oneFileSummary : ctx.getFileSummaryList()) {
+            String fileHandleId = oneFileSummary.getFileHandleId();
+            if (!Strings.isNullOrEmpty(fileHandleId)) {
+                String zipEntryName = oneFileSummary.getZipEntryName();
+                String failureMessage = oneFileSummary.getFailureMessage();
+
+                if (!Strings.isNullOrEmpty(zipEntryName)) {
+                    // replace file handle ID with zip entry name
+                    String zipFileName = ctx.getZipFileNameForFileHandle(fileHandleId);
+                    if (isMultipleZipFiles && zipFileName != null) {
+                        zipEntryName = zipFileName + "/" + zipEntryName;
                     }
+                    fileHandleIdToReplacement.put(fileHandleId, zipEntryName);
+                } else if (!Strings.isNullOrEmpty(failureMessage)) {
+                    // replace file handle ID with error message
+                    fileHandleIdToReplacement.put(fileHandleId, failureMessage);
                 }
             }
         }
@@ -353,7 +839,9 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
             String[] row;
             while ((row = csvFileReader.readNext()) != null) {
                 // Clear health code.
-                row[healthCodeIdx] = null;
+                if (healthCodeIdx >= 0) {
+                    row[healthCodeIdx] = null;
+                }
 
                 // Replace file handle IDs with zip entry names (if known)
                 for (int oneFileHandleColIdx : fileHandleColIdxSet) {
@@ -397,7 +885,7 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
      * This is called when an error is thrown or if there's no data to download. We'll need to delete all intermediate
      * files to ensure we leave the file system in the state we started it in. The specific intemediate files in
      * question are {@link SynapseDownloadFromTableContext#getCsvFile},
-     * {@link SynapseDownloadFromTableContext#getBulkDownloadFile},
+     * {@link SynapseDownloadFromTableContext#getBulkDownloadFileList},
      * {@link SynapseDownloadFromTableContext#getEditedCsvFile}, if any/all exist.
      * </p>
      * <p>
@@ -407,7 +895,7 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
     void cleanupFiles() {
         List<File> filesToDelete = new ArrayList<>();
         filesToDelete.add(ctx.getCsvFile());
-        filesToDelete.add(ctx.getBulkDownloadFile());
+        filesToDelete.addAll(ctx.getBulkDownloadFileList());
         filesToDelete.add(ctx.getEditedCsvFile());
 
         for (File oneFileToDelete : filesToDelete) {
@@ -443,4 +931,69 @@ public abstract class SynapseDownloadFromTableTask implements Callable<SynapseDo
 
     /** Verifies that the Synapse table exists, cleaning up DynamoDB mappings as needed. */
     protected abstract void verifySynapseTableExists() throws AsyncTaskExecutionException;
+
+    /** An inclusive date range of a partitioned query. Package-scoped for unit tests. */
+    static class QueryPartition {
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+
+        QueryPartition(LocalDate startDate, LocalDate endDate) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        /** Start date of the partition, inclusive. */
+        LocalDate getStartDate() {
+            return startDate;
+        }
+
+        /** End date of the partition, inclusive. */
+        LocalDate getEndDate() {
+            return endDate;
+        }
+    }
+
+    /** A partition query and its keys in the job progress. */
+    private static class PartitionQuery {
+        private final String query;
+        private final String resultKey;
+        private final String tokenKey;
+
+        // True if the query's token came from a previous attempt at this job, rather than a query we started.
+        private boolean resumed = false;
+
+        PartitionQuery(String query) {
+            this.query = query;
+            this.resultKey = UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_RESULT, query);
+            this.tokenKey = UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_TOKEN, query);
+        }
+    }
+
+    /** A chunk of file handles and the token for its bulk download job in Synapse. */
+    private static class BulkDownloadJob {
+        private final List<String> fileHandleIdList;
+        private final String progressKey;
+        private final String asyncJobToken;
+
+        BulkDownloadJob(List<String> fileHandleIdList, String progressKey, String asyncJobToken) {
+            this.fileHandleIdList = fileHandleIdList;
+            this.progressKey = progressKey;
+            this.asyncJobToken = asyncJobToken;
+        }
+
+        /** File handle IDs in this chunk. */
+        List<String> getFileHandleIdList() {
+            return fileHandleIdList;
+        }
+
+        /** Key for this chunk's job token in the UDD job progress. */
+        String getProgressKey() {
+            return progressKey;
+        }
+
+        /** Async job token. May be null if the job failed to start. */
+        String getAsyncJobToken() {
+            return asyncJobToken;
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
@@ -31,6 +32,7 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
     private DynamoHelper dynamoHelper;
     private FileHelper fileHelper;
     private SynapseHelper synapseHelper;
+    private SynapseTableCache synapseTableCache;
 
     /**
      * Constructs this task with the specified task parameters
@@ -75,6 +77,19 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
         return synapseHelper;
     }
 
+    /**
+     * Local disk cache of survey tables. Survey tables are the same for every user in the study, so we only download
+     * them from Synapse when the table has changed.
+     */
+    public final void setSynapseTableCache(SynapseTableCache synapseTableCache) {
+        this.synapseTableCache = synapseTableCache;
+    }
+
+    // Package-scoped for unit tests.
+    SynapseTableCache getSynapseTableCache() {
+        return synapseTableCache;
+    }
+
     /**
      * Executes this task. Downloads the survey metadata from the Synapse table specified in the params.
      *
@@ -99,10 +114,20 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
         String surveyFilePath = surveyFile.getAbsolutePath();
         Stopwatch downloadSurveyStopwatch = Stopwatch.createStarted();
         try {
-            // We want the whole survey table.
-            String query = "SELECT * FROM " + synapseTableId;
-            String fileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
-            synapseHelper.downloadFileHandle(fileHandleId, surveyFile);
+            synapseTableCache.copyTableToFile(synapseTableId, table.getEtag(), surveyFile, cacheFile -> {
+                // We want the whole survey table.
+                String query = "SELECT * FROM " + synapseTableId;
+                String fileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
+                synapseHelper.downloadFileHandle(fileHandleId, cacheFile);
+            });
+        } catch (IOException ex) {
+            // cleanup file (if it were partially started and not finished)
+            if (fileHelper.fileExists(surveyFile)) {
+                fileHelper.deleteFile(surveyFile);
+            }
+
+            throw new AsyncTaskExecutionException("Error copying survey table " + synapseTableId + ": " +
+                    ex.getMessage(), ex);
         } catch (AsyncTimeoutException | SynapseException | RuntimeException ex) {
             // cleanup file (if it were partially started and not finished)
             if (fileHelper.fileExists(surveyFile)) {
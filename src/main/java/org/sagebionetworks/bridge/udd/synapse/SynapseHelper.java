@@ -2,23 +2,31 @@ package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.RateLimiter;
 import com.jcabi.aspects.RetryOnFailure;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+import org.sagebionetworks.repo.model.file.BatchFileRequest;
+import org.sagebionetworks.repo.model.file.BatchFileResult;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadRequest;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
+import org.sagebionetworks.repo.model.file.FileHandle;
 import org.sagebionetworks.repo.model.file.FileHandleAssociateType;
 import org.sagebionetworks.repo.model.file.FileHandleAssociation;
+import org.sagebionetworks.repo.model.file.FileResult;
 import org.sagebionetworks.repo.model.status.StackStatus;
 import org.sagebionetworks.repo.model.status.StatusEnum;
+import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.DownloadFromTableResult;
 import org.sagebionetworks.repo.model.table.TableEntity;
 import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
@@ -41,6 +49,9 @@ public class SynapseHelper {
     static final String CONFIG_KEY_POLL_INTERVAL_MILLIS = "synapse.poll.interval.millis";
     static final String CONFIG_KEY_POLL_MAX_TRIES = "synapse.poll.max.tries";
 
+    // Max number of file handles Synapse returns in a single batch file request. Package-scoped for unit tests.
+    static final int FILE_HANDLE_BATCH_SIZE = 100;
+
     // Rate limiter, used to limit the amount of traffic to Synapse. Synapse throttles at 10 requests per second.
     private final RateLimiter rateLimiter = RateLimiter.create(10.0);
 
@@ -97,24 +108,104 @@ public class SynapseHelper {
      */
     public BulkFileDownloadResponse generateBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet)
             throws AsyncTimeoutException, SynapseException {
-        // Need to create file handle association objects as part of the request.
+        String asyncJobToken = startBulkDownloadFileHandle(synapseTableId, fileHandleIdSet);
+        return getBulkDownloadFileHandleResult(asyncJobToken);
+    }
+
+    /**
+     * Starts an async bulk download of the specified file handles for the specified table, without waiting for the
+     * results. This allows callers to have multiple bulk downloads running in Synapse at once. Call
+     * {@link #getBulkDownloadFileHandleResult} to get the results.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdSet
+     *         file handle IDs to download
+     * @return async job token
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String startBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet)
+            throws SynapseException {
+        // create request
+        BulkFileDownloadRequest request = new BulkFileDownloadRequest();
+        request.setRequestedFiles(makeFileHandleAssociationList(synapseTableId, fileHandleIdSet));
+
+        // Kick off async call.
+        return startBulkFileDownload(request);
+    }
+
+    /**
+     * Gets the content sizes of the specified file handles for the specified table. This is used to split bulk
+     * downloads into chunks that fit under Synapse's bulk download size limit. File handles are looked up in batches
+     * of FILE_HANDLE_BATCH_SIZE. File handles that Synapse doesn't return a size for are left out of the map.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdList
+     *         file handle IDs to look up
+     * @return map from file handle ID to content size in bytes, never null
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public Map<String, Long> getFileHandleSizes(String synapseTableId, List<String> fileHandleIdList)
+            throws SynapseException {
+        Map<String, Long> sizeByFileHandleId = new HashMap<>();
+        for (List<String> oneBatch : Lists.partition(fileHandleIdList, FILE_HANDLE_BATCH_SIZE)) {
+            // We only need the file handle metadata, not pre-signed URLs.
+            BatchFileRequest request = new BatchFileRequest();
+            request.setRequestedFiles(makeFileHandleAssociationList(synapseTableId, oneBatch));
+            request.setIncludeFileHandles(true);
+            request.setIncludePreSignedURLs(false);
+            request.setIncludePreviewPreSignedURLs(false);
+
+            BatchFileResult result = getFileHandleAndUrlBatch(request);
+            for (FileResult oneFileResult : result.getRequestedFiles()) {
+                FileHandle fileHandle = oneFileResult.getFileHandle();
+                if (fileHandle != null && fileHandle.getContentSize() != null) {
+                    sizeByFileHandleId.put(oneFileResult.getFileHandleId(), fileHandle.getContentSize());
+                }
+            }
+        }
+        return sizeByFileHandleId;
+    }
+
+    // Helper method which makes file handle association objects, which Synapse needs to look up or download file
+    // handles attached to a table.
+    private static List<FileHandleAssociation> makeFileHandleAssociationList(String synapseTableId,
+            Iterable<String> fileHandleIds) {
         List<FileHandleAssociation> fhaList = new ArrayList<>();
-        for (String oneFileHandleId : fileHandleIdSet) {
+        for (String oneFileHandleId : fileHandleIds) {
             FileHandleAssociation fha = new FileHandleAssociation();
             fha.setAssociateObjectId(synapseTableId);
             fha.setAssociateObjectType(FileHandleAssociateType.TableEntity);
             fha.setFileHandleId(oneFileHandleId);
             fhaList.add(fha);
         }
+        return fhaList;
+    }
 
-        // create request
-        BulkFileDownloadRequest request = new BulkFileDownloadRequest();
-        request.setRequestedFiles(fhaList);
-
-        // Kick off async call.
-        String asyncJobToken = startBulkFileDownload(request);
+    /** Wrapper around SynapseClient.getFileHandleAndUrlBatch to enable retries. */
+    @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            randomize = false)
+    private BatchFileResult getFileHandleAndUrlBatch(BatchFileRequest request) throws SynapseException {
+        rateLimiter.acquire();
+        return synapseClient.getFileHandleAndUrlBatch(request);
+    }
 
-        // Poll Synapse until results are ready.
+    /**
+     * Polls Synapse until the results of a bulk download started with {@link #startBulkDownloadFileHandle} are ready.
+     *
+     * @param asyncJobToken
+     *         async job token returned by startBulkDownloadFileHandle
+     * @return bulk download API response
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public BulkFileDownloadResponse getBulkDownloadFileHandleResult(String asyncJobToken)
+            throws AsyncTimeoutException, SynapseException {
         return pollAsync(() -> getBulkFileDownloadResults(asyncJobToken));
     }
 
@@ -154,10 +245,41 @@ public class SynapseHelper {
      */
     public String generateFileHandleFromTableQuery(String query, String synapseTableId) throws AsyncTimeoutException,
             SynapseException {
-        // Kick off async call.
-        String asyncJobToken = downloadCsvFromTableAsyncStart(query, synapseTableId);
+        String asyncJobToken = startTableQuery(query, synapseTableId);
+        return getTableQueryResult(asyncJobToken, synapseTableId);
+    }
+
+    /**
+     * Starts an async query against a Synapse table, without waiting for the results. Call
+     * {@link #getTableQueryResult} to get the results.
+     *
+     * @param query
+     *         query to run
+     * @param synapseTableId
+     *         table to query against
+     * @return async job token
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String startTableQuery(String query, String synapseTableId) throws SynapseException {
+        return downloadCsvFromTableAsyncStart(query, synapseTableId);
+    }
 
-        // Poll Synapse until results are ready.
+    /**
+     * Polls Synapse until the results of a query started with {@link #startTableQuery} are ready.
+     *
+     * @param asyncJobToken
+     *         async job token returned by startTableQuery
+     * @param synapseTableId
+     *         table the query was run against
+     * @return file handle ID of the results in CSV form
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String getTableQueryResult(String asyncJobToken, String synapseTableId) throws AsyncTimeoutException,
+            SynapseException {
         DownloadFromTableResult result = pollAsync(() -> downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId));
         return result.getResultsFileHandleId();
     }
@@ -185,6 +307,23 @@ public class SynapseHelper {
         }
     }
 
+    /**
+     * Gets the column models for the given table, in table order. This is used to build column projections for UDD
+     * queries. Also includes retries.
+     *
+     * @param tableId
+     *         ID of table to get columns for
+     * @return list of column models
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            ignore = SynapseNotFoundException.class, randomize = false)
+    public List<ColumnModel> getColumnModelsForTable(String tableId) throws SynapseException {
+        rateLimiter.acquire();
+        return synapseClient.getColumnModelsForTableEntity(tableId);
+    }
+
     /**
      * Convenience method to get a table entity. This exists mainly so all Synapse calls go through the helper, instead
      * of forcing callers to sometimes use the helper and sometimes use the client. This also enables retry logic.
@@ -33,6 +33,9 @@ import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudget;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
@@ -48,7 +51,12 @@ public class SynapsePackager {
     private static final Logger LOG = LoggerFactory.getLogger(SynapsePackager.class);
 
     // package-scoped to be available in tests
+    static final String CONFIG_KEY_BULK_DOWNLOAD_CHUNK_MAX_MB = "udd.bulk.download.chunk.max.mb";
+    static final String CONFIG_KEY_BULK_DOWNLOAD_CHUNK_SIZE = "udd.bulk.download.chunk.size";
+    static final String CONFIG_KEY_BULK_DOWNLOAD_MAX_CONCURRENT_JOBS = "udd.bulk.download.max.concurrent.jobs";
     static final String CONFIG_KEY_EXPIRATION_HOURS = "s3.url.expiration.hours";
+    static final String CONFIG_KEY_PARTITION_MAX_CONCURRENT_QUERIES = "udd.query.partition.max.concurrent.queries";
+    static final String CONFIG_KEY_PARTITION_MIN_MONTHS = "udd.query.partition.min.months";
     static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
     static final String ERROR_LOG_FILE_NAME = "error.log";
     static final String METADATA_ERROR_LOG_FILE_NAME = "metadata-error.log";
@@ -56,10 +64,18 @@ public class SynapsePackager {
     private static final Joiner LINE_JOINER = Joiner.on('\n');
 
     private ExecutorService auxiliaryExecutorService;
+    private long bulkDownloadChunkMaxBytes;
+    private int bulkDownloadChunkSize;
+    private int bulkDownloadMaxConcurrentJobs;
+    private int partitionMaxConcurrentQueries;
+    private int partitionMinMonths;
     private DynamoHelper dynamoHelper;
     private FileHelper fileHelper;
     private S3Helper s3Helper;
     private SynapseHelper synapseHelper;
+    private SynapseQueryBatcher synapseQueryBatcher;
+    private SynapseTableCache synapseTableCache;
+    private TempStorageBudget tempStorageBudget;
     private int urlExpirationHours;
     private String userdataBucketName;
     private ZipHelper zipHelper;
@@ -72,10 +88,17 @@ public class SynapsePackager {
         this.auxiliaryExecutorService = auxiliaryExecutorService;
     }
 
-    /** Bridge config, used to get the S3 upload bucket and pre-signed URL expiration. */
+    /**
+     * Bridge config, used to get the S3 upload bucket, pre-signed URL expiration, and bulk download chunk settings.
+     */
     @Autowired
     public final void setConfig(Config config) {
+        bulkDownloadChunkMaxBytes = config.getInt(CONFIG_KEY_BULK_DOWNLOAD_CHUNK_MAX_MB) * 1024L * 1024L;
+        bulkDownloadChunkSize = config.getInt(CONFIG_KEY_BULK_DOWNLOAD_CHUNK_SIZE);
+        bulkDownloadMaxConcurrentJobs = config.getInt(CONFIG_KEY_BULK_DOWNLOAD_MAX_CONCURRENT_JOBS);
         urlExpirationHours = config.getInt(CONFIG_KEY_EXPIRATION_HOURS);
+        partitionMaxConcurrentQueries = config.getInt(CONFIG_KEY_PARTITION_MAX_CONCURRENT_QUERIES);
+        partitionMinMonths = config.getInt(CONFIG_KEY_PARTITION_MIN_MONTHS);
         userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
     }
 
@@ -106,6 +129,24 @@ public class SynapsePackager {
         this.synapseHelper = synapseHelper;
     }
 
+    /** Synapse query batcher, used to batch per-user table queries across concurrent requests. */
+    @Autowired
+    public final void setSynapseQueryBatcher(SynapseQueryBatcher synapseQueryBatcher) {
+        this.synapseQueryBatcher = synapseQueryBatcher;
+    }
+
+    /** Local disk cache of survey tables, shared across requests. */
+    @Autowired
+    public final void setSynapseTableCache(SynapseTableCache synapseTableCache) {
+        this.synapseTableCache = synapseTableCache;
+    }
+
+    /** Temp storage budget, shared across concurrent UDD jobs so they don't fill the disk. */
+    @Autowired
+    public final void setTempStorageBudget(TempStorageBudget tempStorageBudget) {
+        this.tempStorageBudget = tempStorageBudget;
+    }
+
     /** Zip helper. */
     @Autowired
     public final void setZipHelper(ZipHelper zipHelper) {
@@ -132,45 +173,74 @@ public class SynapsePackager {
      *         user data download request, used to determine start and end dates for requested data
      * @param surveyTableIdSet
      *         set of survey table IDs, which need to be downloaded in their entirety
+     * @param presenceByTableId
+     *         user's table presence by Synapse table ID, used to decide whether to partition queries, null if the
+     *         user's table presence isn't complete
+     * @param jobProgress
+     *         progress of this UDD job, used to resume if this is a redelivered request
      * @return pre-signed URL and expiration time
      */
     public PresignedUrlInfo packageSynapseData(String studyId, Map<String, UploadSchema> synapseToSchemaMap,
-            String defaultSynapseTableId, String healthCode,
-            BridgeUddRequest request, Set<String> surveyTableIdSet) throws IOException, SynapseUnavailableException {
-        List<File> allFileList = new ArrayList<>();
-        File masterZipFile = null;
-        File tmpDir = fileHelper.createTempDir();
-        try {
-            // create and execute Synapse downloads asynchronously
-            List<Future<SynapseDownloadFromTableResult>> queryFutureList = initAsyncQueryTasks(studyId,
-                    synapseToSchemaMap, defaultSynapseTableId, healthCode, request, tmpDir);
-            List<Future<File>> surveyFutureList = initAsyncSurveyTasks(studyId, surveyTableIdSet, tmpDir);
-
-            // wait for async tasks - We need to wait for all tasks and gather up all files before we check whether we
-            // have no query results. Otherwise, we won't know to clean up these files, and we'll leave garbage on our
-            // file system.
-            List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, queryFutureList);
-            allFileList.addAll(queryFileList);
-            List<File> surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyFutureList);
-            allFileList.addAll(surveyFileList);
-
-            if (queryFileList.isEmpty()) {
-                // There are no files to send, meaning there is no user data to send. Return null, to signal that there
-                // is no pre-signed URL to send.
-                return null;
-            }
+            String defaultSynapseTableId, String healthCode, BridgeUddRequest request, Set<String> surveyTableIdSet,
+            Map<String, TablePresence> presenceByTableId, UddJobProgress jobProgress) throws IOException,
+            SynapseUnavailableException {
+        // If a previous attempt at this job already uploaded the master zip, we just need a new pre-signed URL.
+        String uploadedMasterZipFileName = jobProgress.get(UddJobProgress.KEY_MASTER_ZIP);
+        if (uploadedMasterZipFileName != null) {
+            LOG.info("Resuming UDD job with master zip file " + uploadedMasterZipFileName + " already in S3");
+            return generatePresignedUrlInfo(uploadedMasterZipFileName);
+        }
 
-            // Zip up all upload files. Filename is "userdata-[startDate]-to-[endDate]-[random guid].zip". This allows
-            // the filename to be unique, user-friendly, and contain no identifying info.
-            String masterZipFileName = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate() + "-" +
-                    UUID.randomUUID().toString() + ".zip";
-            masterZipFile = fileHelper.newFile(tmpDir, masterZipFileName);
-            zipFiles(allFileList, masterZipFile);
+        // Wait for room in the temp storage budget. The reservation is released after we clean up our files.
+        try (TempStorageBudget.Reservation tempStorageReservation = tempStorageBudget.admitJob()) {
+            List<File> allFileList = new ArrayList<>();
+            File masterZipFile = null;
+            File tmpDir = fileHelper.createTempDir();
+            try {
+                // Wait for headroom here, on the job's own thread, before submitting tasks to the shared pool. Tasks
+                // also wait before each download, but only a limited number at a time, so they can't fill the pool.
+                tempStorageReservation.awaitHeadroom();
+
+                // create and execute Synapse downloads asynchronously
+                List<Future<SynapseDownloadFromTableResult>> queryFutureList = initAsyncQueryTasks(studyId,
+                        synapseToSchemaMap, defaultSynapseTableId, healthCode, request, presenceByTableId, tmpDir,
+                        tempStorageReservation, jobProgress);
+                List<Future<File>> surveyFutureList = initAsyncSurveyTasks(studyId, surveyTableIdSet, tmpDir);
+
+                // wait for async tasks - We need to wait for all tasks and gather up all files before we check whether
+                // we have no query results. Otherwise, we won't know to clean up these files, and we'll leave garbage
+                // on our file system.
+                List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, queryFutureList);
+                allFileList.addAll(queryFileList);
+                List<File> surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyFutureList);
+                allFileList.addAll(surveyFileList);
+
+                // Query tasks record their own files. Survey tasks don't know about the reservation.
+                for (File oneSurveyFile : surveyFileList) {
+                    tempStorageReservation.recordFile(oneSurveyFile);
+                }
 
-            uploadToS3(masterZipFile);
-            return generatePresignedUrlInfo(masterZipFileName);
-        } finally {
-            cleanupFiles(allFileList, masterZipFile, tmpDir);
+                if (queryFileList.isEmpty()) {
+                    // There are no files to send, meaning there is no user data to send. Return null, to signal that
+                    // there is no pre-signed URL to send.
+                    return null;
+                }
+
+                // Zip up all upload files. Filename is "userdata-[startDate]-to-[endDate]-[random guid].zip". This
+                // allows the filename to be unique, user-friendly, and contain no identifying info.
+                String masterZipFileName = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate() +
+                        "-" + UUID.randomUUID().toString() + ".zip";
+                masterZipFile = fileHelper.newFile(tmpDir, masterZipFileName);
+                tempStorageReservation.awaitHeadroom();
+                zipFiles(allFileList, masterZipFile);
+                tempStorageReservation.recordFile(masterZipFile);
+
+                uploadToS3(masterZipFile);
+                jobProgress.put(UddJobProgress.KEY_MASTER_ZIP, masterZipFileName);
+                return generatePresignedUrlInfo(masterZipFileName);
+            } finally {
+                cleanupFiles(allFileList, masterZipFile, tmpDir);
+            }
         }
     }
 
@@ -193,13 +263,20 @@ public class SynapsePackager {
      *         user's health code, used for generating queries
      * @param request
      *         Bridge UDD request, used to get the start and end date
+     * @param presenceByTableId
+     *         user's table presence by Synapse table ID, null if the user's table presence isn't complete
      * @param tmpDir
      *         temp directory that files should be downloaded to
+     * @param tempStorageReservation
+     *         temp storage reservation for this job, which tasks use to record their files
+     * @param jobProgress
+     *         progress of this UDD job, which tasks use to record and reattach to Synapse async jobs
      * @return list of Futures for the async tasks
      */
     List<Future<SynapseDownloadFromTableResult>> initAsyncQueryTasks(String studyId,
             Map<String, UploadSchema> synapseToSchemaMap, String defaultSynapseTableId, String healthCode,
-            BridgeUddRequest request, File tmpDir) {
+            BridgeUddRequest request, Map<String, TablePresence> presenceByTableId, File tmpDir,
+            TempStorageBudget.Reservation tempStorageReservation, UddJobProgress jobProgress) {
         List<Future<SynapseDownloadFromTableResult>> taskFutureList = new ArrayList<>();
         for (Map.Entry<String, UploadSchema> oneSynapseToSchemaEntry : synapseToSchemaMap.entrySet()) {
             // create params
@@ -208,13 +285,22 @@ public class SynapsePackager {
             SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
                     .withSynapseTableId(synapseTableId).withHealthCode(healthCode)
                     .withStartDate(request.getStartDate()) .withEndDate(request.getEndDate()).withTempDir(tmpDir)
-                    .withSchema(schema).withStudyId(studyId).build();
+                    .withSchema(schema).withStudyId(studyId)
+                    .withTablePresence(getTablePresence(presenceByTableId, synapseTableId)).build();
 
             // kick off async task
             SynapseDownloadFromTableTask task = new SchemaBasedTableTask(param);
             task.setDynamoHelper(dynamoHelper);
             task.setFileHelper(fileHelper);
             task.setSynapseHelper(synapseHelper);
+            task.setSynapseQueryBatcher(synapseQueryBatcher);
+            task.setBulkDownloadChunkMaxBytes(bulkDownloadChunkMaxBytes);
+            task.setBulkDownloadChunkSize(bulkDownloadChunkSize);
+            task.setBulkDownloadMaxConcurrentJobs(bulkDownloadMaxConcurrentJobs);
+            task.setPartitionMaxConcurrentQueries(partitionMaxConcurrentQueries);
+            task.setPartitionMinMonths(partitionMinMonths);
+            task.setTempStorageReservation(tempStorageReservation);
+            task.setJobProgress(jobProgress);
             Future<SynapseDownloadFromTableResult> taskFuture = auxiliaryExecutorService.submit(task);
             taskFutureList.add(taskFuture);
         }
@@ -224,13 +310,22 @@ public class SynapsePackager {
             SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
                     .withSynapseTableId(defaultSynapseTableId).withHealthCode(healthCode)
                     .withStartDate(request.getStartDate()).withEndDate(request.getEndDate()).withTempDir(tmpDir)
-                    .withStudyId(studyId).build();
+                    .withStudyId(studyId).withTablePresence(getTablePresence(presenceByTableId, defaultSynapseTableId))
+                    .build();
 
             // kick off async task
             SynapseDownloadFromTableTask task = new DefaultTableTask(param);
             task.setDynamoHelper(dynamoHelper);
             task.setFileHelper(fileHelper);
             task.setSynapseHelper(synapseHelper);
+            task.setSynapseQueryBatcher(synapseQueryBatcher);
+            task.setBulkDownloadChunkMaxBytes(bulkDownloadChunkMaxBytes);
+            task.setBulkDownloadChunkSize(bulkDownloadChunkSize);
+            task.setBulkDownloadMaxConcurrentJobs(bulkDownloadMaxConcurrentJobs);
+            task.setPartitionMaxConcurrentQueries(partitionMaxConcurrentQueries);
+            task.setPartitionMinMonths(partitionMinMonths);
+            task.setTempStorageReservation(tempStorageReservation);
+            task.setJobProgress(jobProgress);
             Future<SynapseDownloadFromTableResult> taskFuture = auxiliaryExecutorService.submit(task);
             taskFutureList.add(taskFuture);
         }
@@ -238,6 +333,12 @@ public class SynapsePackager {
         return taskFutureList;
     }
 
+    // Gets the user's table presence for the given table, or null if the user's table presence isn't complete.
+    private static TablePresence getTablePresence(Map<String, TablePresence> presenceByTableId,
+            String synapseTableId) {
+        return presenceByTableId != null ? presenceByTableId.get(synapseTableId) : null;
+    }
+
     /**
      * Kicks off async tasks to download survey metadata from Synapse.
      *
@@ -261,6 +362,7 @@ public class SynapsePackager {
             task.setDynamoHelper(dynamoHelper);
             task.setFileHelper(fileHelper);
             task.setSynapseHelper(synapseHelper);
+            task.setSynapseTableCache(synapseTableCache);
             Future<File> future = auxiliaryExecutorService.submit(task);
             futureList.add(future);
         }
@@ -293,9 +395,7 @@ public class SynapsePackager {
                     allFileList.add(taskResult.getCsvFile());
                 }
 
-                if (taskResult.getBulkDownloadFile() != null) {
-                    allFileList.add(taskResult.getBulkDownloadFile());
-                }
+                allFileList.addAll(taskResult.getBulkDownloadFileList());
             } catch (ExecutionException | InterruptedException ex) {
                 rethrowIfSynapseIsReadOnly(ex);
 
@@ -440,13 +540,14 @@ public class SynapsePackager {
     }
 
     /**
-     * Generate the pre-signed URL for the master zip file.
+     * Generate the pre-signed URL for the master zip file. This is also used to generate a fresh URL for an archive
+     * that was uploaded by a previous request.
      *
      * @param masterZipFilename
      *         master zip file name
      * @return pre-signed URL info, including the actual URL and the expiration time.
      */
-    private PresignedUrlInfo generatePresignedUrlInfo(String masterZipFilename) {
+    public PresignedUrlInfo generatePresignedUrlInfo(String masterZipFilename) {
         // Get pre-signed URL for download. This URL expires after a number of hours, defined by configuration.
         DateTime expirationTime = DateTime.now().plusHours(urlExpirationHours);
         URL presignedUrl = s3Helper.generatePresignedUrl(userdataBucketName, masterZipFilename, expirationTime,
@@ -0,0 +1,487 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.table.ColumnModel;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+
+/**
+ * <p>
+ * Runs the per-user queries that UDD makes against Synapse tables. When a study sends a "download your data" campaign,
+ * many UDD requests for the same study arrive together, and each one queries every table in the study.
+ * </p>
+ * <p>
+ * If the batch window is enabled, the first query for a table opens a batch, and queries for the same table that
+ * arrive within the window join the batch. When the window closes (or the batch is full), we run a single
+ * "healthCode IN (...)" query over the widest date range in the batch, then split the resulting CSV locally into the
+ * per-user CSVs. If the window is disabled, or if nobody else joins the batch, we run the per-user query as before.
+ * </p>
+ * <p>
+ * Per-user queries record their async job token and result in the UDD job progress, so a redelivered request can
+ * reattach to them. Batched queries are shared with other requests, so they aren't recorded.
+ * </p>
+ * <p>
+ * Queries select an explicit list of columns, built from the table's column models, which leaves out the health code
+ * and any configured internal columns. File handle columns are always kept. Users never see these columns, so there's
+ * no reason for Synapse to generate them or for us to download them. Column models are cached per table, and expire
+ * after a configured TTL so that new columns are picked up. If we can't get the column models, we fall back to
+ * "SELECT *".
+ * </p>
+ */
+@Component
+public class SynapseQueryBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseQueryBatcher.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_BATCH_MAX_SIZE = "udd.query.batch.max.size";
+    static final String CONFIG_KEY_BATCH_WINDOW_MILLIS = "udd.query.batch.window.millis";
+    static final String CONFIG_KEY_COLUMN_CACHE_TTL_MINUTES = "udd.query.column.cache.ttl.minutes";
+    static final String CONFIG_KEY_EXCLUDED_COLUMNS = "udd.query.excluded.columns";
+
+    private static final String COL_HEALTH_CODE = "healthCode";
+    private static final String COL_UPLOAD_DATE = "uploadDate";
+    private static final Joiner COMMA_JOINER = Joiner.on(',');
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+    private static final String SELECT_ALL = "*";
+
+    // Package-scoped to be available in unit tests and partitioned queries in SynapseDownloadFromTableTask
+    static final String JOB_TYPE_QUERY_RESULT = "query-result";
+    static final String JOB_TYPE_QUERY_TOKEN = "query-token";
+    static final String BATCH_QUERY_TEMPLATE =
+            "SELECT %s FROM %s WHERE healthCode IN (%s) AND uploadDate >= '%s' AND uploadDate <= '%s'";
+    static final String QUERY_TEMPLATE =
+            "SELECT %s FROM %s WHERE healthCode = '%s' AND uploadDate >= '%s' AND uploadDate <= '%s'";
+
+    private final Map<String, Batch> openBatchesByTableId = new HashMap<>();
+    private final Map<String, ColumnProjection> projectionsByTableId = new ConcurrentHashMap<>();
+
+    private int batchMaxSize;
+    private long batchWindowMillis;
+    private long columnCacheTtlMillis;
+    private Set<String> excludedColumnSet;
+    private FileHelper fileHelper;
+    private SynapseHelper synapseHelper;
+
+    /** Bridge config, used to get the batch window, max batch size, and column projection settings. */
+    @Autowired
+    public final void setConfig(Config config) {
+        batchMaxSize = config.getInt(CONFIG_KEY_BATCH_MAX_SIZE);
+        batchWindowMillis = config.getInt(CONFIG_KEY_BATCH_WINDOW_MILLIS);
+        columnCacheTtlMillis = config.getInt(CONFIG_KEY_COLUMN_CACHE_TTL_MINUTES) * MILLIS_PER_MINUTE;
+
+        // Health code is always excluded.
+        excludedColumnSet = new HashSet<>();
+        excludedColumnSet.add(COL_HEALTH_CODE);
+        String excludedColumns = config.get(CONFIG_KEY_EXCLUDED_COLUMNS);
+        if (excludedColumns != null) {
+            excludedColumnSet.addAll(COMMA_SPLITTER.splitToList(excludedColumns));
+        }
+    }
+
+    /**
+     * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
+     * system.
+     */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** Synapse helper, used to query Synapse tables and download the results. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /**
+     * Queries the given Synapse table for the given user's data in the given date range (inclusive), and writes the
+     * result as a CSV to the target file. This may be batched with other users' queries against the same table.
+     *
+     * @param synapseTableId
+     *         Synapse table to query
+     * @param healthCode
+     *         health code of the user to get data for
+     * @param startDate
+     *         start date of the data to get, inclusive
+     * @param endDate
+     *         end date of the data to get, inclusive
+     * @param tempDir
+     *         temp dir for intermediate files
+     * @param targetFile
+     *         file to write the CSV to
+     * @param jobProgress
+     *         progress of the UDD job, used to resume per-user queries
+     * @throws AsyncTimeoutException
+     *         if the Synapse query times out
+     * @throws IOException
+     *         if splitting the batched CSV fails
+     * @throws SynapseException
+     *         if the Synapse query fails
+     */
+    public void downloadCsv(String synapseTableId, String healthCode, LocalDate startDate, LocalDate endDate,
+            File tempDir, File targetFile, UddJobProgress jobProgress) throws AsyncTimeoutException, IOException,
+            SynapseException {
+        if (batchWindowMillis <= 0) {
+            // Batching is disabled.
+            downloadSingleCsv(synapseTableId, healthCode, startDate, endDate, targetFile, jobProgress);
+            return;
+        }
+
+        BatchMember member = new BatchMember(healthCode, startDate, endDate, targetFile, jobProgress);
+        Batch batch;
+        boolean isLeader = false;
+        synchronized (this) {
+            batch = openBatchesByTableId.get(synapseTableId);
+            if (batch == null) {
+                batch = new Batch();
+                openBatchesByTableId.put(synapseTableId, batch);
+                isLeader = true;
+            }
+            batch.memberList.add(member);
+
+            if (batch.memberList.size() >= batchMaxSize) {
+                // Batch is full. Close it and wake up the leader.
+                openBatchesByTableId.remove(synapseTableId, batch);
+                batch.fullLatch.countDown();
+            }
+        }
+
+        // The leader waits for the window to close, then runs the batch for everyone.
+        if (isLeader) {
+            Uninterruptibles.awaitUninterruptibly(batch.fullLatch, batchWindowMillis, TimeUnit.MILLISECONDS);
+
+            List<BatchMember> memberList;
+            synchronized (this) {
+                openBatchesByTableId.remove(synapseTableId, batch);
+                memberList = new ArrayList<>(batch.memberList);
+            }
+            runBatch(synapseTableId, tempDir, memberList);
+        }
+
+        try {
+            Uninterruptibles.getUninterruptibly(member.future);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof AsyncTimeoutException) {
+                throw (AsyncTimeoutException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    // Runs the batch and completes each member's future. Never throws. Errors are passed to all members.
+    private void runBatch(String synapseTableId, File tempDir, List<BatchMember> memberList) {
+        try {
+            if (memberList.size() == 1) {
+                // Nobody joined the batch. Just run the single-user query.
+                BatchMember member = memberList.get(0);
+                downloadSingleCsv(synapseTableId, member.healthCode, member.startDate, member.endDate,
+                        member.targetFile, member.jobProgress);
+            } else {
+                downloadAndSplitBatchCsv(synapseTableId, tempDir, memberList);
+            }
+
+            for (BatchMember oneMember : memberList) {
+                oneMember.future.complete(null);
+            }
+        } catch (AsyncTimeoutException | IOException | SynapseException | RuntimeException ex) {
+            for (BatchMember oneMember : memberList) {
+                // cleanup file (if it were partially started and not finished)
+                if (fileHelper.fileExists(oneMember.targetFile)) {
+                    fileHelper.deleteFile(oneMember.targetFile);
+                }
+                oneMember.future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Makes the per-user query for the given table, user, and date range (inclusive), using the table's column
+     * projection. Package-scoped so that SynapseDownloadFromTableTask can make queries for partitioned date ranges.
+     */
+    String makeSingleUserQuery(String synapseTableId, String healthCode, LocalDate startDate, LocalDate endDate) {
+        List<String> columnNameList = getColumnProjection(synapseTableId).columnNameList;
+        String selectList = columnNameList != null ? makeSelectList(columnNameList) : SELECT_ALL;
+        return String.format(QUERY_TEMPLATE, selectList, synapseTableId, healthCode, startDate, endDate);
+    }
+
+    // Returns the column projection for the given table, loading it from Synapse if it's not cached or if it's
+    // expired. Never throws. If we can't get the column models, returns a projection that selects all columns.
+    private ColumnProjection getColumnProjection(String synapseTableId) {
+        long now = DateTimeUtils.currentTimeMillis();
+        ColumnProjection projection = projectionsByTableId.get(synapseTableId);
+        if (projection != null && now - projection.loadedOnMillis < columnCacheTtlMillis) {
+            return projection;
+        }
+
+        List<ColumnModel> columnModelList;
+        try {
+            columnModelList = synapseHelper.getColumnModelsForTable(synapseTableId);
+        } catch (SynapseException | RuntimeException ex) {
+            // Don't cache this, so we try again next time.
+            LOG.warn("Error getting columns for synapse table " + synapseTableId + ", selecting all columns: " +
+                    ex.getMessage(), ex);
+            return new ColumnProjection(null, now);
+        }
+        if (columnModelList == null || columnModelList.isEmpty()) {
+            // This is unusual, but don't cache it, in case it's a transient issue.
+            return new ColumnProjection(null, now);
+        }
+
+        List<String> columnNameList = new ArrayList<>();
+        for (ColumnModel oneColumnModel : columnModelList) {
+            if (oneColumnModel.getColumnType() == ColumnType.FILEHANDLEID ||
+                    !excludedColumnSet.contains(oneColumnModel.getName())) {
+                columnNameList.add(oneColumnModel.getName());
+            }
+        }
+        projection = new ColumnProjection(columnNameList, now);
+        projectionsByTableId.put(synapseTableId, projection);
+        return projection;
+    }
+
+    // Makes the select list for the given column names. Column names are double-quoted, since Bridge column names can
+    // contain characters like dots.
+    private static String makeSelectList(List<String> columnNameList) {
+        List<String> quotedColumnNameList = new ArrayList<>();
+        for (String oneColumnName : columnNameList) {
+            quotedColumnNameList.add('"' + oneColumnName.replace("\"", "\"\"") + '"');
+        }
+        return COMMA_JOINER.join(quotedColumnNameList);
+    }
+
+    // Runs the per-user query and downloads the result directly to the target file. If a previous attempt at this job
+    // already ran or started this query, reuse that instead.
+    private void downloadSingleCsv(String synapseTableId, String healthCode, LocalDate startDate, LocalDate endDate,
+            File targetFile, UddJobProgress jobProgress) throws AsyncTimeoutException, SynapseException {
+        String query = makeSingleUserQuery(synapseTableId, healthCode, startDate, endDate);
+        String resultKey = UddJobProgress.makeAsyncJobKey(JOB_TYPE_QUERY_RESULT, query);
+        String tokenKey = UddJobProgress.makeAsyncJobKey(JOB_TYPE_QUERY_TOKEN, query);
+
+        String csvFileHandleId = jobProgress.get(resultKey);
+        if (csvFileHandleId == null) {
+            String asyncJobToken = jobProgress.get(tokenKey);
+            if (asyncJobToken != null) {
+                try {
+                    csvFileHandleId = synapseHelper.getTableQueryResult(asyncJobToken, synapseTableId);
+                    LOG.info("Reattached to query against synapse table " + synapseTableId);
+                } catch (AsyncTimeoutException | SynapseException ex) {
+                    // The old job may have failed or expired. Fall through to start a new one.
+                    LOG.warn("Error reattaching to query against synapse table " + synapseTableId + ": " +
+                            ex.getMessage(), ex);
+                    jobProgress.remove(tokenKey);
+                }
+            }
+
+            if (csvFileHandleId == null) {
+                asyncJobToken = synapseHelper.startTableQuery(query, synapseTableId);
+                jobProgress.put(tokenKey, asyncJobToken);
+                csvFileHandleId = synapseHelper.getTableQueryResult(asyncJobToken, synapseTableId);
+            }
+
+            // The result supersedes the token.
+            jobProgress.replace(tokenKey, resultKey, csvFileHandleId);
+        }
+
+        synapseHelper.downloadFileHandle(csvFileHandleId, targetFile);
+    }
+
+    // Runs a single query for all members in the batch, then splits the result into each member's target file.
+    private void downloadAndSplitBatchCsv(String synapseTableId, File tempDir, List<BatchMember> memberList)
+            throws AsyncTimeoutException, IOException, SynapseException {
+        // Group members by health code and determine the widest date range.
+        Map<String, List<BatchMember>> membersByHealthCode = new LinkedHashMap<>();
+        LocalDate minStartDate = null;
+        LocalDate maxEndDate = null;
+        for (BatchMember oneMember : memberList) {
+            membersByHealthCode.computeIfAbsent(oneMember.healthCode, key -> new ArrayList<>()).add(oneMember);
+            if (minStartDate == null || oneMember.startDate.isBefore(minStartDate)) {
+                minStartDate = oneMember.startDate;
+            }
+            if (maxEndDate == null || oneMember.endDate.isAfter(maxEndDate)) {
+                maxEndDate = oneMember.endDate;
+            }
+        }
+
+        List<String> quotedHealthCodeList = new ArrayList<>();
+        for (String oneHealthCode : membersByHealthCode.keySet()) {
+            quotedHealthCodeList.add("'" + oneHealthCode + "'");
+        }
+
+        // We need the health code and upload date to split the batch. These are selected after the projected columns,
+        // so we can drop them when we split.
+        List<String> columnNameList = getColumnProjection(synapseTableId).columnNameList;
+        String selectList;
+        int outputColumnCount;
+        if (columnNameList != null) {
+            List<String> batchColumnNameList = new ArrayList<>(columnNameList);
+            batchColumnNameList.add(COL_HEALTH_CODE);
+            if (!columnNameList.contains(COL_UPLOAD_DATE)) {
+                batchColumnNameList.add(COL_UPLOAD_DATE);
+            }
+            selectList = makeSelectList(batchColumnNameList);
+            outputColumnCount = columnNameList.size();
+        } else {
+            selectList = SELECT_ALL;
+            outputColumnCount = -1;
+        }
+        String query = String.format(BATCH_QUERY_TEMPLATE, selectList, synapseTableId,
+                COMMA_JOINER.join(quotedHealthCodeList), minStartDate, maxEndDate);
+
+        File batchCsvFile = fileHelper.newFile(tempDir, synapseTableId + "-batch-" + UUID.randomUUID() + ".csv");
+        Stopwatch batchStopwatch = Stopwatch.createStarted();
+        try {
+            String csvFileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
+            synapseHelper.downloadFileHandle(csvFileHandleId, batchCsvFile);
+            splitBatchCsv(synapseTableId, batchCsvFile, outputColumnCount, memberList, membersByHealthCode);
+        } finally {
+            if (fileHelper.fileExists(batchCsvFile)) {
+                fileHelper.deleteFile(batchCsvFile);
+            }
+
+            batchStopwatch.stop();
+            LOG.info("Batched query for " + memberList.size() + " requests (" + membersByHealthCode.size() +
+                    " users) from synapse table " + synapseTableId + " took " +
+                    batchStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+    }
+
+    // Splits the batched CSV into each member's target file, by health code and upload date. Each target file gets
+    // the header row, even if it has no data rows. If outputColumnCount is non-negative, only that many leading
+    // columns are written. Otherwise, all columns are written.
+    private void splitBatchCsv(String synapseTableId, File batchCsvFile, int outputColumnCount,
+            List<BatchMember> memberList, Map<String, List<BatchMember>> membersByHealthCode) throws IOException {
+        Map<BatchMember, CSVWriter> writersByMember = new HashMap<>();
+        try (CSVReader batchCsvReader = new CSVReader(fileHelper.getReader(batchCsvFile))) {
+            String[] headerRow = batchCsvReader.readNext();
+            if (headerRow == null) {
+                throw new IOException("Batched query from synapse table " + synapseTableId + " has no header row");
+            }
+
+            int healthCodeIdx = -1;
+            int uploadDateIdx = -1;
+            for (int i = 0; i < headerRow.length; i++) {
+                if (COL_HEALTH_CODE.equals(headerRow[i])) {
+                    healthCodeIdx = i;
+                } else if (COL_UPLOAD_DATE.equals(headerRow[i])) {
+                    uploadDateIdx = i;
+                }
+            }
+            if (healthCodeIdx < 0 || uploadDateIdx < 0) {
+                throw new IOException("Batched query from synapse table " + synapseTableId +
+                        " is missing healthCode or uploadDate columns");
+            }
+
+            String[] outputHeaderRow = truncateRow(headerRow, outputColumnCount);
+            for (BatchMember oneMember : memberList) {
+                CSVWriter writer = new CSVWriter(fileHelper.getWriter(oneMember.targetFile));
+                writersByMember.put(oneMember, writer);
+                writer.writeNext(outputHeaderRow);
+            }
+
+            // Upload dates are ISO-8601 strings, so lexicographic comparison matches what Synapse does.
+            String[] row;
+            while ((row = batchCsvReader.readNext()) != null) {
+                List<BatchMember> rowMemberList = membersByHealthCode.get(row[healthCodeIdx]);
+                if (rowMemberList == null) {
+                    continue;
+                }
+
+                String uploadDate = row[uploadDateIdx];
+                String[] outputRow = truncateRow(row, outputColumnCount);
+                for (BatchMember oneMember : rowMemberList) {
+                    if (uploadDate.compareTo(oneMember.startDate.toString()) >= 0 &&
+                            uploadDate.compareTo(oneMember.endDate.toString()) <= 0) {
+                        writersByMember.get(oneMember).writeNext(outputRow);
+                    }
+                }
+            }
+        } finally {
+            for (CSVWriter oneWriter : writersByMember.values()) {
+                oneWriter.close();
+            }
+        }
+    }
+
+    // Returns the leading columns of the row, or the whole row if the column count is negative.
+    private static String[] truncateRow(String[] row, int columnCount) {
+        return columnCount >= 0 ? Arrays.copyOf(row, columnCount) : row;
+    }
+
+    // The columns to select from a single table. A null column name list means select all columns.
+    private static class ColumnProjection {
+        private final List<String> columnNameList;
+        private final long loadedOnMillis;
+
+        ColumnProjection(List<String> columnNameList, long loadedOnMillis) {
+            this.columnNameList = columnNameList;
+            this.loadedOnMillis = loadedOnMillis;
+        }
+    }
+
+    // A batch of queries against a single table.
+    private static class Batch {
+        private final CountDownLatch fullLatch = new CountDownLatch(1);
+        private final List<BatchMember> memberList = new ArrayList<>();
+    }
+
+    // A single user's query within a batch.
+    private static class BatchMember {
+        private final String healthCode;
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+        private final File targetFile;
+        private final UddJobProgress jobProgress;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        BatchMember(String healthCode, LocalDate startDate, LocalDate endDate, File targetFile,
+                UddJobProgress jobProgress) {
+            this.healthCode = healthCode;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.targetFile = targetFile;
+            this.jobProgress = jobProgress;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.annotation.PreDestroy;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.joda.time.DateTimeUtils;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+
+/**
+ * <p>
+ * Local disk cache for full-table downloads from Synapse, such as survey metadata tables. These tables are identical
+ * for every user in a study and rarely change, so there's no reason to re-query Synapse for every UDD request.
+ * </p>
+ * <p>
+ * Entries are keyed by Synapse table ID and table etag. Synapse doesn't update the entity etag when rows are appended,
+ * so entries also expire after a configured TTL. The cache is bounded by total size and evicts least recently used
+ * entries. Concurrent requests for the same table and etag share a single download.
+ * </p>
+ */
+@Component
+public class SynapseTableCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseTableCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_MB = "udd.table.cache.max.mb";
+    static final String CONFIG_KEY_TTL_MINUTES = "udd.table.cache.ttl.minutes";
+
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+
+    // Access-ordered, so iteration order is least recently used first.
+    private final Map<String, CacheEntry> entriesByTableId = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, PendingLoad> pendingLoadsByKey = new HashMap<>();
+
+    private File cacheDir;
+    private FileHelper fileHelper;
+    private long maxBytes;
+    private long ttlMillis;
+    private long totalBytes = 0;
+
+    /** Bridge config, used to get the cache size and TTL. */
+    @Autowired
+    public final void setConfig(Config config) {
+        maxBytes = config.getInt(CONFIG_KEY_MAX_MB) * BYTES_PER_MB;
+        ttlMillis = config.getInt(CONFIG_KEY_TTL_MINUTES) * MILLIS_PER_MINUTE;
+    }
+
+    /** Max total size of the cache, in bytes. Package-scoped so unit tests can use a small cache. */
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
+     * system.
+     */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /**
+     * Copies the cached table into the target file. If the table isn't cached (or if the cached copy is stale), this
+     * calls the downloader to download the table into the cache first.
+     *
+     * @param synapseTableId
+     *         ID of the Synapse table to get
+     * @param etag
+     *         current etag of the Synapse table, used to detect stale entries
+     * @param targetFile
+     *         file to copy the table to
+     * @param downloader
+     *         called to download the table from Synapse if it's not cached
+     * @throws AsyncTimeoutException
+     *         if the download from Synapse times out
+     * @throws IOException
+     *         if reading or writing the files fails
+     * @throws SynapseException
+     *         if the download from Synapse fails
+     */
+    public void copyTableToFile(String synapseTableId, String etag, File targetFile, TableDownloader downloader)
+            throws AsyncTimeoutException, IOException, SynapseException {
+        CacheEntry entry = acquireEntry(synapseTableId, etag, targetFile, downloader);
+        if (entry == null) {
+            // We downloaded the table ourselves, and it was copied to the target file as part of the download.
+            return;
+        }
+
+        try {
+            copyFile(entry.file, targetFile);
+        } finally {
+            releaseEntry(entry);
+        }
+    }
+
+    /** Deletes the cache directory on shutdown, so cached tables don't pile up in the temp dir across restarts. */
+    @PreDestroy
+    public void destroy() {
+        clear();
+    }
+
+    /** Removes all entries from the cache and deletes the cache directory. */
+    public synchronized void clear() {
+        Iterator<CacheEntry> entryIter = entriesByTableId.values().iterator();
+        while (entryIter.hasNext()) {
+            CacheEntry entry = entryIter.next();
+            entryIter.remove();
+            evict(entry);
+        }
+
+        if (cacheDir != null && pendingLoadsByKey.isEmpty()) {
+            fileHelper.deleteDir(cacheDir);
+            cacheDir = null;
+        }
+    }
+
+    // Returns the cache entry for the given table and etag, downloading it if needed. The returned entry is pinned, so
+    // it won't be deleted until releaseEntry() is called. If this call downloaded the table, the table has already
+    // been copied to the target file, and this returns null.
+    private CacheEntry acquireEntry(String synapseTableId, String etag, File targetFile, TableDownloader downloader)
+            throws AsyncTimeoutException, IOException, SynapseException {
+        String key = synapseTableId + ':' + etag;
+        PendingLoad pendingLoad;
+        boolean isOwner = false;
+        synchronized (this) {
+            CacheEntry entry = entriesByTableId.get(synapseTableId);
+            if (entry != null && Objects.equals(entry.etag, etag) &&
+                    DateTimeUtils.currentTimeMillis() - entry.loadedOnMillis < ttlMillis) {
+                entry.pinCount++;
+                return entry;
+            }
+
+            // Either it's not cached or it's stale. If someone else is already downloading it, wait for them.
+            pendingLoad = pendingLoadsByKey.get(key);
+            if (pendingLoad == null) {
+                File cacheFile = fileHelper.newFile(getCacheDir(), synapseTableId + "-" + UUID.randomUUID() + ".csv");
+                pendingLoad = new PendingLoad(new FutureTask<>(() -> loadEntry(synapseTableId, etag, cacheFile,
+                        targetFile, downloader)));
+                pendingLoadsByKey.put(key, pendingLoad);
+                isOwner = true;
+            } else {
+                pendingLoad.numWaiters++;
+            }
+        }
+
+        // The owner runs the download in its own thread. Everyone else waits for it.
+        if (isOwner) {
+            pendingLoad.task.run();
+        }
+
+        try {
+            CacheEntry entry = Uninterruptibles.getUninterruptibly(pendingLoad.task);
+            return isOwner ? null : entry;
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                pendingLoadsByKey.remove(key, pendingLoad);
+            }
+
+            Throwable cause = ex.getCause();
+            if (cause instanceof AsyncTimeoutException) {
+                throw (AsyncTimeoutException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    // Downloads the table into the cache file, copies it to the owner's target file, and adds it to the cache. The size
+    // of the entry is counted during the copy, so we don't need to read the file again. This is run by the owner of the
+    // pending load.
+    private CacheEntry loadEntry(String synapseTableId, String etag, File cacheFile, File targetFile,
+            TableDownloader downloader) throws AsyncTimeoutException, IOException, SynapseException {
+        long sizeBytes;
+        try {
+            downloader.download(cacheFile);
+            sizeBytes = copyFile(cacheFile, targetFile);
+        } catch (AsyncTimeoutException | IOException | SynapseException | RuntimeException ex) {
+            // Clean up partial downloads.
+            if (fileHelper.fileExists(cacheFile)) {
+                fileHelper.deleteFile(cacheFile);
+            }
+            throw ex;
+        }
+
+        synchronized (this) {
+            String key = synapseTableId + ':' + etag;
+            PendingLoad pendingLoad = pendingLoadsByKey.remove(key);
+
+            // Pin the entry once for everyone waiting on this load. The owner already has its copy.
+            CacheEntry entry = new CacheEntry(etag, cacheFile, sizeBytes, DateTimeUtils.currentTimeMillis());
+            entry.pinCount = pendingLoad.numWaiters;
+
+            // Replace the stale entry, if there is one.
+            CacheEntry oldEntry = entriesByTableId.put(synapseTableId, entry);
+            if (oldEntry != null) {
+                evict(oldEntry);
+            }
+            totalBytes += sizeBytes;
+            evictIfOverBudget();
+
+            LOG.info("Cached Synapse table " + synapseTableId + " with etag " + etag + ", " + sizeBytes + " bytes");
+            return entry;
+        }
+    }
+
+    // Copies the source file to the target file, and returns the number of bytes copied.
+    private long copyFile(File sourceFile, File targetFile) throws IOException {
+        try (InputStream sourceInputStream = fileHelper.getInputStream(sourceFile);
+                OutputStream targetOutputStream = fileHelper.getOutputStream(targetFile)) {
+            return ByteStreams.copy(sourceInputStream, targetOutputStream);
+        }
+    }
+
+    // Un-pins the entry. If it was evicted while it was pinned, this deletes the file.
+    private synchronized void releaseEntry(CacheEntry entry) {
+        entry.pinCount--;
+        if (entry.evicted && entry.pinCount <= 0) {
+            deleteCacheFile(entry);
+        }
+    }
+
+    // Evicts least recently used entries until the cache is within its size budget. Must be called while holding the
+    // lock.
+    private void evictIfOverBudget() {
+        Iterator<Map.Entry<String, CacheEntry>> entryIter = entriesByTableId.entrySet().iterator();
+        while (totalBytes > maxBytes && entryIter.hasNext()) {
+            Map.Entry<String, CacheEntry> lruEntry = entryIter.next();
+            LOG.info("Evicting Synapse table " + lruEntry.getKey() + " from cache");
+            entryIter.remove();
+            evict(lruEntry.getValue());
+        }
+    }
+
+    // Marks the entry as evicted and deletes the file, unless someone is still reading it. Must be called while holding
+    // the lock, and the entry must already be removed from the entry map.
+    private void evict(CacheEntry entry) {
+        totalBytes -= entry.sizeBytes;
+        entry.evicted = true;
+        if (entry.pinCount <= 0) {
+            deleteCacheFile(entry);
+        }
+    }
+
+    private void deleteCacheFile(CacheEntry entry) {
+        if (fileHelper.fileExists(entry.file)) {
+            fileHelper.deleteFile(entry.file);
+        }
+    }
+
+    // Creates the cache dir on first use. Must be called while holding the lock.
+    private File getCacheDir() {
+        if (cacheDir == null) {
+            cacheDir = fileHelper.createTempDir();
+        }
+        return cacheDir;
+    }
+
+    /** Returns the IDs of all cached tables, in least recently used order. Package-scoped for unit tests. */
+    synchronized List<String> getCachedTableIds() {
+        return new ArrayList<>(entriesByTableId.keySet());
+    }
+
+    /** Total size in bytes of all cached tables. Package-scoped for unit tests. */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** Downloads a Synapse table to the given file. Used to fill the cache. */
+    public interface TableDownloader {
+        void download(File targetFile) throws AsyncTimeoutException, IOException, SynapseException;
+    }
+
+    // A single cached table.
+    private static class CacheEntry {
+        private final String etag;
+        private final File file;
+        private final long sizeBytes;
+        private final long loadedOnMillis;
+        private int pinCount = 0;
+        private boolean evicted = false;
+
+        CacheEntry(String etag, File file, long sizeBytes, long loadedOnMillis) {
+            this.etag = etag;
+            this.file = file;
+            this.sizeBytes = sizeBytes;
+            this.loadedOnMillis = loadedOnMillis;
+        }
+    }
+
+    // An in-progress download, shared by all concurrent requests for the same table and etag.
+    private static class PendingLoad {
+        private final FutureTask<CacheEntry> task;
+        private int numWaiters = 0;
+
+        PendingLoad(FutureTask<CacheEntry> task) {
+            this.task = task;
+        }
+    }
+}
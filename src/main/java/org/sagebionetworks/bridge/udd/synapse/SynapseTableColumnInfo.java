@@ -7,7 +7,7 @@ import com.google.common.collect.ImmutableSet;
 
 /**
  * Contains info about columns for a particular Synapse table. In particular, the indices for file handle ID columns
- * and health codes.
+ * and health codes. Column-projected queries don't return health codes, so the health code column may be absent.
  */
 public class SynapseTableColumnInfo {
     private final Set<Integer> fileHandleColumnIndexSet;
@@ -24,7 +24,7 @@ public class SynapseTableColumnInfo {
         return fileHandleColumnIndexSet;
     }
 
-    /** Column index for health code. */
+    /** Column index for health code, or -1 if the table has no health code column. */
     public int getHealthCodeColumnIndex() {
         return healthCodeColumnIndex;
     }
@@ -50,8 +50,11 @@ public class SynapseTableColumnInfo {
 
         /** Builds a SynapseTableColumnInfo and validates fields. */
         public SynapseTableColumnInfo build() {
-            if (healthCodeColumnIndex == null || healthCodeColumnIndex < 0) {
-                throw new IllegalStateException("healthCodeColumnIndex must be specified and non-negative");
+            if (healthCodeColumnIndex == null) {
+                // No health code column.
+                healthCodeColumnIndex = -1;
+            } else if (healthCodeColumnIndex < 0) {
+                throw new IllegalStateException("healthCodeColumnIndex must be non-negative");
             }
 
             // fileHandleColumnIndexSet is guaranteed to be non-null and can only contain non-null entries, but we need
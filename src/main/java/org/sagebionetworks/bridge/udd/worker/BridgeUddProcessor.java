@@ -1,12 +1,17 @@
 package org.sagebionetworks.bridge.udd.worker;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.schema.adapter.JSONObjectAdapterException;
 import org.slf4j.Logger;
@@ -14,14 +19,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.CachedUddArchive;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
@@ -34,8 +43,12 @@ import org.sagebionetworks.bridge.workerPlatform.exceptions.SynapseUnavailableEx
 public class BridgeUddProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeUddProcessor.class);
 
+    // Package-scoped for unit tests.
+    static final String CONFIG_KEY_RESULT_CACHE_MIN_RECORD_AGE_HOURS = "udd.result.cache.min.record.age.hours";
+
     private BridgeHelper bridgeHelper;
     private DynamoHelper dynamoHelper;
+    private int resultCacheMinRecordAgeHours;
     private SnsHelper snsHelper;
     private SesHelper sesHelper;
     private SynapseHelper synapseHelper;
@@ -47,6 +60,12 @@ public class BridgeUddProcessor {
         this.bridgeHelper = bridgeHelper;
     }
 
+    /** Bridge config, used to get how long the user's data must be unchanged before we cache their archive. */
+    @Autowired
+    public final void setConfig(Config config) {
+        resultCacheMinRecordAgeHours = config.getInt(CONFIG_KEY_RESULT_CACHE_MIN_RECORD_AGE_HOURS);
+    }
+
     /** Dynamo DB helper, used to get study info and uploads. */
     @Autowired
     public final void setDynamoHelper(DynamoHelper dynamoHelper) {
@@ -119,9 +138,46 @@ public class BridgeUddProcessor {
 
             Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy(studyId);
             String defaultSynapseTableId = dynamoHelper.getDefaultSynapseTableForStudy(studyId);
+
+            // If the user's table presence is complete, skip tables that can't contain any of the user's data in the
+            // requested date range. Otherwise, fall back to querying all tables.
+            Map<String, TablePresence> presenceByTableId = dynamoHelper.getTablePresenceForUser(healthCode);
+            if (presenceByTableId != null) {
+                int numTables = synapseToSchemaMap.size();
+                synapseToSchemaMap = filterTablesByPresence(synapseToSchemaMap, presenceByTableId, request);
+                if (defaultSynapseTableId != null && !isTablePresent(defaultSynapseTableId, presenceByTableId,
+                        request)) {
+                    defaultSynapseTableId = null;
+                }
+                LOG.info("Table presence index reduced tables to query from " + numTables + " to " +
+                        synapseToSchemaMap.size() + " for userId=" + userId + ", study=" + studyId);
+            }
             Set<String> surveyTableIdSet = dynamoHelper.getSynapseSurveyTablesForStudy(studyId);
-            PresignedUrlInfo presignedUrlInfo = synapsePackager.packageSynapseData(studyId, synapseToSchemaMap,
-                    defaultSynapseTableId, healthCode, request, surveyTableIdSet);
+
+            // If the user made the same request recently, and their data hasn't changed since, reuse that archive.
+            // The user's latest record tells us whether they have new data.
+            String requestKey = UddJobProgress.makeJobId(studyId, healthCode, startDateStr, endDateStr);
+            DateTime latestRecordCreatedOn = getLatestRecordCreatedOn(healthCode);
+            String watermark = makeDataWatermark(synapseToSchemaMap, defaultSynapseTableId, surveyTableIdSet,
+                    presenceByTableId, latestRecordCreatedOn);
+            boolean isCacheable = isArchiveCacheable(latestRecordCreatedOn, resultCacheMinRecordAgeHours);
+            PresignedUrlInfo presignedUrlInfo = isCacheable ? getCachedArchiveUrl(requestKey, watermark) : null;
+
+            // If this request was redelivered (for example, the worker died), this picks up where the last attempt
+            // left off.
+            UddJobProgress jobProgress = dynamoHelper.getUddJobProgress(requestKey);
+            if (presignedUrlInfo == null) {
+                presignedUrlInfo = synapsePackager.packageSynapseData(studyId, synapseToSchemaMap,
+                        defaultSynapseTableId, healthCode, request, surveyTableIdSet, presenceByTableId,
+                        jobProgress);
+                if (presignedUrlInfo != null && isCacheable) {
+                    cacheArchive(requestKey, watermark, jobProgress.get(UddJobProgress.KEY_MASTER_ZIP),
+                            presignedUrlInfo);
+                }
+            } else {
+                LOG.info("Reusing cached archive for userId=" + userId + ", study=" + studyId + ", startDate=" +
+                        startDateStr + ",endDate=" + endDateStr);
+            }
 
             if (presignedUrlInfo == null) {
                 LOG.info("No data for request for account " + accountInfo.getUserId() + ", study=" + studyId
@@ -138,6 +194,9 @@ public class BridgeUddProcessor {
                     snsHelper.sendPresignedUrlToAccount(studyInfo, presignedUrlInfo, accountInfo);
                 }
             }
+
+            // The user has their data. A new request with the same parameters should start from scratch.
+            jobProgress.clear();
         } catch (BridgeSDKException ex) {
             int status = ex.getStatusCode();
             if (status >= 400 && status < 500) {
@@ -151,4 +210,110 @@ public class BridgeUddProcessor {
                     ", startDate=" + startDateStr + ",endDate=" + endDateStr);
         }
     }
+
+    // Gets the time the user's latest record was created, or null if the user has no records or the lookup fails. This
+    // is only used for the cache, so errors are logged and ignored.
+    private DateTime getLatestRecordCreatedOn(String healthCode) {
+        try {
+            return dynamoHelper.getLatestHealthDataRecordCreatedOn(healthCode);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error getting latest health data record: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    // Gets a fresh pre-signed URL for the cached archive for this request, if there is one and the data watermark
+    // still matches. Returns null otherwise. The cache is an optimization, so errors are logged and ignored.
+    private PresignedUrlInfo getCachedArchiveUrl(String requestKey, String watermark) {
+        try {
+            CachedUddArchive cachedArchive = dynamoHelper.getCachedUddArchive(requestKey);
+            if (cachedArchive == null || !watermark.equals(cachedArchive.getWatermark())) {
+                return null;
+            }
+            return synapsePackager.generatePresignedUrlInfo(cachedArchive.getMasterZipFileName());
+        } catch (RuntimeException ex) {
+            LOG.warn("Error reading UDD result cache: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    // Caches the archive for this request until the pre-signed URL expires. Errors are logged and ignored.
+    private void cacheArchive(String requestKey, String watermark, String masterZipFileName,
+            PresignedUrlInfo presignedUrlInfo) {
+        if (masterZipFileName == null) {
+            // Can't cache an archive without knowing where it is.
+            return;
+        }
+
+        try {
+            CachedUddArchive cachedArchive = new CachedUddArchive.Builder().withMasterZipFileName(masterZipFileName)
+                    .withWatermark(watermark).withExpiresOn(presignedUrlInfo.getExpirationTime()).build();
+            dynamoHelper.putCachedUddArchive(requestKey, cachedArchive);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error writing UDD result cache: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Makes a watermark of the study's data and the user's data. This changes whenever the study gets new tables or
+     * schema revisions, when the user's table presence changes (which changes the tables we query), or when the user
+     * uploads new data (which creates a new latest record). Package-scoped for unit tests.
+     */
+    static String makeDataWatermark(Map<String, UploadSchema> synapseToSchemaMap, String defaultSynapseTableId,
+            Set<String> surveyTableIdSet, Map<String, TablePresence> presenceByTableId,
+            DateTime latestRecordCreatedOn) {
+        // Sort everything, so that the watermark doesn't depend on iteration order.
+        StringBuilder watermarkBuilder = new StringBuilder();
+        for (String oneTableId : new TreeSet<>(synapseToSchemaMap.keySet())) {
+            watermarkBuilder.append("table:").append(oneTableId).append('=')
+                    .append(synapseToSchemaMap.get(oneTableId).getKey()).append('\n');
+        }
+        watermarkBuilder.append("default:").append(defaultSynapseTableId).append('\n');
+        for (String oneTableId : new TreeSet<>(surveyTableIdSet)) {
+            watermarkBuilder.append("survey:").append(oneTableId).append('\n');
+        }
+        if (presenceByTableId != null) {
+            for (String oneTableId : new TreeSet<>(presenceByTableId.keySet())) {
+                TablePresence presence = presenceByTableId.get(oneTableId);
+                watermarkBuilder.append("presence:").append(oneTableId).append('=')
+                        .append(presence.getMinUploadDate()).append('/').append(presence.getMaxUploadDate())
+                        .append('\n');
+            }
+        }
+        if (latestRecordCreatedOn != null) {
+            watermarkBuilder.append("latestRecord:").append(latestRecordCreatedOn.getMillis()).append('\n');
+        }
+        return Hashing.sha256().hashString(watermarkBuilder, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * True if the data watermark is a real freshness signal, so we can cache and reuse the archive. New uploads change
+     * the user's latest record, which changes the watermark, regardless of the requested date range. But records take
+     * a while to be exported to Synapse, so the latest record must be at least minRecordAgeHours old. Otherwise, the
+     * archive might be missing it, and the watermark wouldn't change once it's exported. If we don't know the user's
+     * latest record, the archive isn't cacheable. Package-scoped for unit tests.
+     */
+    static boolean isArchiveCacheable(DateTime latestRecordCreatedOn, int minRecordAgeHours) {
+        return latestRecordCreatedOn != null && latestRecordCreatedOn.plusHours(minRecordAgeHours).isBeforeNow();
+    }
+
+    // Returns a copy of the Synapse-to-schema map containing only tables that might have the user's data in the
+    // requested date range. Package-scoped for unit tests.
+    static Map<String, UploadSchema> filterTablesByPresence(Map<String, UploadSchema> synapseToSchemaMap,
+            Map<String, TablePresence> presenceByTableId, BridgeUddRequest request) {
+        Map<String, UploadSchema> filteredMap = new HashMap<>();
+        for (Map.Entry<String, UploadSchema> oneEntry : synapseToSchemaMap.entrySet()) {
+            if (isTablePresent(oneEntry.getKey(), presenceByTableId, request)) {
+                filteredMap.put(oneEntry.getKey(), oneEntry.getValue());
+            }
+        }
+        return filteredMap;
+    }
+
+    // True if the presence index says the table might have the user's data in the requested date range.
+    private static boolean isTablePresent(String synapseTableId, Map<String, TablePresence> presenceByTableId,
+            BridgeUddRequest request) {
+        TablePresence presence = presenceByTableId.get(synapseTableId);
+        return presence != null && presence.overlaps(request.getStartDate(), request.getEndDate());
+    }
 }
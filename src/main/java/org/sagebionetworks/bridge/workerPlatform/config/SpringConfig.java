@@ -20,9 +20,13 @@ import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.BillingMode;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTimeToLiveRequest;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveSpecification;
+import com.amazonaws.services.dynamodbv2.model.TimeToLiveStatus;
+import com.amazonaws.services.dynamodbv2.model.UpdateTimeToLiveRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
@@ -125,6 +129,12 @@ public class SpringConfig {
         return new DynamoQueryHelper();
     }
 
+    @Bean(name = "ddbHealthDataRecordCreatedOnIndex")
+    public Index ddbHealthDataRecordCreatedOnIndex() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("HealthDataRecord3");
+        return ddbClient().getTable(fullyQualifiedTableName).getIndex("healthCode-createdOn-index");
+    }
+
     @Bean(name = "ddbStudyTable")
     public Table ddbStudyTable() {
         String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("Study");
@@ -162,22 +172,80 @@ public class SpringConfig {
         return ddbUploadSchemaTable(bridgeConfig()).getIndex("studyId-index");
     }
 
+    @Bean(name = "ddbUddJobProgressTable")
+    public Table ddbUddJobProgressTable() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("UddJobProgress");
+        return ddbClient().getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbUddResultCacheTable")
+    public Table ddbUddResultCacheTable() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("UddResultCache");
+        return ddbClient().getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbUserTablePresenceTable")
+    public Table ddbUserTablePresenceTable() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("UserTablePresence");
+        return ddbClient().getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbWorkerLogTable")
     public Table ddbWorkerLogTable() {
         String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("WorkerLog");
         return ddbClient().getTable(fullyQualifiedTableName);
     }
 
+    @Bean(name = "engagementExecutorService")
+    public ExecutorService engagementExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.engagement.count"));
+    }
+
     @Bean(name = "generalExecutorService")
     public ExecutorService generalExecutorService() {
         return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.general.count"));
     }
 
+    @Bean(name = "notificationExecutorService")
+    public ExecutorService notificationExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.notification.count"));
+    }
+
+    @Bean(name = "notificationLogExecutorService")
+    public ExecutorService notificationLogExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.notification.log.count"));
+    }
+
+    @Bean(name = "notificationSendExecutorService")
+    public ExecutorService notificationSendExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.notification.send.count"));
+    }
+
+    @Bean(name = "reporterExecutorService")
+    public ExecutorService reporterExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.reporter.count"));
+    }
+
+    @Bean(name = "reporterParticipantExecutorService")
+    public ExecutorService reporterParticipantExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.reporter.participant.count"));
+    }
+
+    @Bean(name = "retentionExecutorService")
+    public ExecutorService retentionExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.reporter.retention.count"));
+    }
+
     @Bean(name = "synapseExecutorService")
     public ExecutorService synapseExecutorService() {
         return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.count"));
     }
 
+    @Bean(name = "zipExecutorService")
+    public ExecutorService zipExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.zip.count"));
+    }
+
     @Bean
     public FileHelper fileHelper() {
         return new FileHelper();
@@ -274,22 +342,52 @@ public class SpringConfig {
         // Create tables.
         createTable(ddbClient, namingHelper, "FitBitTables",
                 "studyId", ScalarAttributeType.S, "tableId", ScalarAttributeType.S);
+        createTable(ddbClient, namingHelper, "NotificationActiveUser",
+                "studyIdDate", ScalarAttributeType.S, "userId", ScalarAttributeType.S);
+        createTable(ddbClient, namingHelper, "NotificationBurstState",
+                "userId", ScalarAttributeType.S, null, null);
         createTable(ddbClient, namingHelper, "NotificationConfig",
                 "studyId", ScalarAttributeType.S, null, null);
         createTable(ddbClient, namingHelper, "NotificationLog",
                 "userId", ScalarAttributeType.S, "notificationTime", ScalarAttributeType.N);
+        createTable(ddbClient, namingHelper, "NotificationSkip",
+                "userId", ScalarAttributeType.S, null, null);
+        createTable(ddbClient, namingHelper, "ReporterParticipantFacts",
+                "studyId", ScalarAttributeType.S, "userId", ScalarAttributeType.S);
         createTable(ddbClient, namingHelper, "SynapseSurveyTables",
                 "studyId", ScalarAttributeType.S, null, null);
+        createTable(ddbClient, namingHelper, "UddJobProgress",
+                "jobId", ScalarAttributeType.S, "progressKey", ScalarAttributeType.S);
+        createTable(ddbClient, namingHelper, "UddResultCache",
+                "requestKey", ScalarAttributeType.S, null, null);
+        createTable(ddbClient, namingHelper, "UserTablePresence",
+                "healthCode", ScalarAttributeType.S, "tableId", ScalarAttributeType.S);
         createTable(ddbClient, namingHelper, "WorkerLog",
                 "workerId", ScalarAttributeType.S, "finishTime", ScalarAttributeType.N);
 
         // Wait for tables to be ready.
         waitForTable(ddbClient, namingHelper, "FitBitTables");
+        waitForTable(ddbClient, namingHelper, "NotificationActiveUser");
+        waitForTable(ddbClient, namingHelper, "NotificationBurstState");
         waitForTable(ddbClient, namingHelper, "NotificationConfig");
         waitForTable(ddbClient, namingHelper, "NotificationLog");
+        waitForTable(ddbClient, namingHelper, "NotificationSkip");
+        waitForTable(ddbClient, namingHelper, "ReporterParticipantFacts");
         waitForTable(ddbClient, namingHelper, "SynapseSurveyTables");
+        waitForTable(ddbClient, namingHelper, "UddJobProgress");
+        waitForTable(ddbClient, namingHelper, "UddResultCache");
+        waitForTable(ddbClient, namingHelper, "UserTablePresence");
         waitForTable(ddbClient, namingHelper, "WorkerLog");
 
+        // Active users are only needed for a few days, so let DynamoDB expire them.
+        enableTimeToLive(ddbClient, namingHelper, "NotificationActiveUser", "expirationTime");
+
+        // UDD job progress is ignored after a day. Let DynamoDB expire it, in case a job never cleans up.
+        enableTimeToLive(ddbClient, namingHelper, "UddJobProgress", "expiresOn");
+
+        // Cached UDD archives are useless once their pre-signed URL expires.
+        enableTimeToLive(ddbClient, namingHelper, "UddResultCache", "expiresOn");
+
         LOG.info("Finished initializing DynamoDB tables...");
     }
 
@@ -318,6 +416,19 @@ public class SpringConfig {
         TableUtils.createTableIfNotExists(ddbClient, req);
     }
 
+    // Enables TTL on the given table, if it isn't already. DynamoDB rejects enabling TTL twice, so we check first.
+    private static void enableTimeToLive(AmazonDynamoDB ddbClient, DynamoNamingHelper namingHelper, String tableName,
+            String ttlAttributeName) {
+        String resolvedTableName = namingHelper.getFullyQualifiedTableName(tableName);
+        String ttlStatus = ddbClient.describeTimeToLive(new DescribeTimeToLiveRequest()
+                .withTableName(resolvedTableName)).getTimeToLiveDescription().getTimeToLiveStatus();
+        if (TimeToLiveStatus.DISABLED.toString().equals(ttlStatus)) {
+            ddbClient.updateTimeToLive(new UpdateTimeToLiveRequest().withTableName(resolvedTableName)
+                    .withTimeToLiveSpecification(new TimeToLiveSpecification().withAttributeName(ttlAttributeName)
+                            .withEnabled(true)));
+        }
+    }
+
     private static void waitForTable(AmazonDynamoDB ddbClient, DynamoNamingHelper namingHelper, String tableName)
             throws InterruptedException {
         TableUtils.waitUntilActive(ddbClient, namingHelper.getFullyQualifiedTableName(tableName));
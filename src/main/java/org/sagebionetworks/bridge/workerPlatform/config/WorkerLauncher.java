@@ -1,5 +1,6 @@
 package org.sagebionetworks.bridge.workerPlatform.config;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.sqs.PollSqsWorker;
 import org.slf4j.Logger;
@@ -16,9 +17,19 @@ import org.springframework.stereotype.Component;
 public class WorkerLauncher implements CommandLineRunner {
     private static final Logger LOG = LoggerFactory.getLogger(WorkerLauncher.class);
 
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_SQS_WORKER_COUNT = "workerPlatform.request.sqs.worker.count";
+
     private HeartbeatLogger heartbeatLogger;
+    private int numPollSqsThreads;
     private PollSqsWorker pollSqsWorkers;
 
+    /** Bridge config, used to get the number of poll SQS threads. */
+    @Autowired
+    public final void setConfig(Config config) {
+        numPollSqsThreads = config.getInt(CONFIG_KEY_SQS_WORKER_COUNT);
+    }
+
     @Autowired
     public final void setHeartbeatLogger(HeartbeatLogger heartbeatLogger) {
         this.heartbeatLogger = heartbeatLogger;
@@ -40,8 +51,11 @@ public class WorkerLauncher implements CommandLineRunner {
         LOG.info("Worker Platform Starting heartbeat...");
         new Thread(heartbeatLogger).start();
 
-        // TODO: make this multi-threaded
-        LOG.info("Worker Platform Starting poll SQS worker...");
-        new Thread(pollSqsWorkers).start();
+        // Multiple threads let concurrent UDD requests overlap, so UDD can batch queries for the same study. Other
+        // services still run one request at a time. See BridgeWorkerPlatformSqsCallback.
+        LOG.info("Worker Platform Starting " + numPollSqsThreads + " poll SQS worker threads...");
+        for (int i = 0; i < numPollSqsThreads; i++) {
+            new Thread(pollSqsWorkers).start();
+        }
     }
 }
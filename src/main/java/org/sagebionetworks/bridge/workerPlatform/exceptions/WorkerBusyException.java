@@ -0,0 +1,26 @@
+package org.sagebionetworks.bridge.workerPlatform.exceptions;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
+
+/**
+ * Represents when the worker is already running a request that can't run concurrently with this one. Used to signal
+ * the PollSqsWorker to cycle the request and try again later. This is an expected retry, not an error, so it's a
+ * retryable exception.
+ */
+@SuppressWarnings("serial")
+public class WorkerBusyException extends PollSqsWorkerRetryableException {
+    public WorkerBusyException() {
+    }
+
+    public WorkerBusyException(String message) {
+        super(message);
+    }
+
+    public WorkerBusyException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public WorkerBusyException(Throwable cause) {
+        super(cause);
+    }
+}
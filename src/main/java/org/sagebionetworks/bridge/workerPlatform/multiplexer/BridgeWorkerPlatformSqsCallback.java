@@ -2,9 +2,13 @@ package org.sagebionetworks.bridge.workerPlatform.multiplexer;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,6 +18,7 @@ import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.sqs.PollSqsCallback;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.exceptions.WorkerBusyException;
 
 /**
  * SQS callback. Called by the PollSqsWorker. This handles a reporting request.
@@ -24,6 +29,14 @@ public class BridgeWorkerPlatformSqsCallback implements PollSqsCallback {
 
     private static final Joiner COMMA_SPACE_JOINER = Joiner.on(", ").useForNull("");
 
+    // Services that keep all of their per-request state on the stack, so requests can run on multiple poll SQS
+    // threads at once. The notification event worker only marks a user active in DynamoDB, so it doesn't need to wait
+    // behind a long notification or reporter run. Other workers (like the notification worker) keep per-run state in
+    // their singletons, so they only run one request at a time across all services.
+    private static final Set<String> CONCURRENT_SERVICE_SET = ImmutableSet.of(Constants.SERVICE_TYPE_NOTIFICATION_EVENT,
+            Constants.SERVICE_TYPE_UDD);
+
+    private final Lock serialServiceLock = new ReentrantLock();
     private Map<String, ThrowingConsumer<JsonNode>> workersByServiceName;
 
     @Autowired
@@ -46,11 +59,25 @@ public class BridgeWorkerPlatformSqsCallback implements PollSqsCallback {
         JsonNode body = request.getBody();
 
         ThrowingConsumer<JsonNode> worker = workersByServiceName.get(service);
-        if (worker != null) {
-            LOG.info("Received request for service=" + service);
-            worker.accept(body);
-        } else {
+        if (worker == null) {
             throw new PollSqsWorkerBadRequestException("Invalid service " + service);
         }
+
+        LOG.info("Received request for service=" + service);
+        if (CONCURRENT_SERVICE_SET.contains(service)) {
+            worker.accept(body);
+            return;
+        }
+
+        // Don't block the poll thread while another request runs, since it could be serving UDD requests. The
+        // PollSqsWorker will cycle this request, and we'll get it again later.
+        if (!serialServiceLock.tryLock()) {
+            throw new WorkerBusyException("Another request is already running, can't run service=" + service);
+        }
+        try {
+            worker.accept(body);
+        } finally {
+            serialServiceLock.unlock();
+        }
     }
 }
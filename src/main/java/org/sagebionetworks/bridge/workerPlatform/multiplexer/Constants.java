@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.workerPlatform.multiplexer;
 
 /** Constants relevant to the Bridge Worker Platform. */
 public class Constants {
+    public static final String SERVICE_TYPE_NOTIFICATION_EVENT = "NotificationEventWorker";
     public static final String SERVICE_TYPE_REPORTER = "REPORTER";
     public static final String SERVICE_TYPE_UDD = "UDD";
 }
@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.notification.helper;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -10,9 +11,13 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
@@ -20,15 +25,20 @@ import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.notification.worker.BurstState;
+import org.sagebionetworks.bridge.notification.worker.NotificationSkip;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
@@ -39,9 +49,13 @@ public class DynamoHelperTest {
     private static final String USER_ID = "test-user";
 
     private DynamoHelper dynamoHelper;
+    private ExecutorService executorService;
     private DynamoQueryHelper mockQueryHelper;
+    private Table mockNotificationActiveUserTable;
+    private Table mockNotificationBurstStateTable;
     private Table mockNotificationConfigTable;
     private Table mockNotificationLogTable;
+    private Table mockNotificationSkipTable;
     private Table mockWorkerLogTable;
 
     @BeforeClass
@@ -58,16 +72,30 @@ public class DynamoHelperTest {
     public void before() {
         // Set up mocks
         mockQueryHelper = mock(DynamoQueryHelper.class);
+        mockNotificationActiveUserTable = mock(Table.class);
+        mockNotificationBurstStateTable = mock(Table.class);
         mockNotificationConfigTable = mock(Table.class);
         mockNotificationLogTable = mock(Table.class);
+        mockNotificationSkipTable = mock(Table.class);
         mockWorkerLogTable = mock(Table.class);
 
         // Create DynamoHelper
         dynamoHelper = new DynamoHelper();
         dynamoHelper.setDynamoQueryHelper(mockQueryHelper);
+        dynamoHelper.setDdbNotificationActiveUserTable(mockNotificationActiveUserTable);
+        dynamoHelper.setDdbNotificationBurstStateTable(mockNotificationBurstStateTable);
         dynamoHelper.setDdbNotificationConfigTable(mockNotificationConfigTable);
         dynamoHelper.setDdbNotificationLogTable(mockNotificationLogTable);
+        dynamoHelper.setDdbNotificationSkipTable(mockNotificationSkipTable);
         dynamoHelper.setDdbWorkerLogTable(mockWorkerLogTable);
+
+        executorService = Executors.newFixedThreadPool(2);
+        dynamoHelper.setNotificationLogExecutorService(executorService);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
     }
 
     @Test
@@ -133,6 +161,66 @@ public class DynamoHelperTest {
         verifyNoMoreInteractions(mockNotificationConfigTable);
     }
 
+    @Test
+    public void getBurstStateForUser() {
+        // Set up mock
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_USER_ID, USER_ID)
+                .withString(DynamoHelper.KEY_BURST_START_DATE, "2018-04-20")
+                .withString(DynamoHelper.KEY_LAST_EVALUATED_DATE, "2018-04-24")
+                .withInt(DynamoHelper.KEY_DAYS_MISSED, 2)
+                .withInt(DynamoHelper.KEY_CONSECUTIVE_DAYS_MISSED, 1)
+                .withInt(DynamoHelper.KEY_NUM_DAYS, 5)
+                .withInt(DynamoHelper.KEY_NUM_ACTIVITIES_COMPLETED, 3)
+                .withBoolean(DynamoHelper.KEY_RESOLVED, true)
+                .withString(DynamoHelper.KEY_RESOLVED_NOTIFICATION_TYPE, "LATE");
+        when(mockNotificationBurstStateTable.getItem(DynamoHelper.KEY_USER_ID, USER_ID)).thenReturn(item);
+
+        // Execute and validate
+        BurstState burstState = dynamoHelper.getBurstStateForUser(USER_ID);
+        assertEquals(burstState.getUserId(), USER_ID);
+        assertEquals(burstState.getBurstStartDate(), LocalDate.parse("2018-04-20"));
+        assertEquals(burstState.getLastEvaluatedDate(), LocalDate.parse("2018-04-24"));
+        assertEquals(burstState.getDaysMissed(), 2);
+        assertEquals(burstState.getConsecutiveDaysMissed(), 1);
+        assertEquals(burstState.getNumDays(), 5);
+        assertEquals(burstState.getNumActivitiesCompleted(), 3);
+        assertTrue(burstState.isResolved());
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.LATE);
+    }
+
+    @Test
+    public void getBurstStateForUser_NoResult() {
+        BurstState burstState = dynamoHelper.getBurstStateForUser(USER_ID);
+        assertNull(burstState);
+    }
+
+    @Test
+    public void saveBurstState() {
+        // Execute. Burst state isn't resolved, so there's no resolved notification type.
+        BurstState burstState = BurstState.create(USER_ID, LocalDate.parse("2018-04-20"));
+        burstState.setLastEvaluatedDate(LocalDate.parse("2018-04-24"));
+        burstState.setDaysMissed(2);
+        burstState.setConsecutiveDaysMissed(1);
+        burstState.setNumDays(5);
+        burstState.setNumActivitiesCompleted(3);
+        dynamoHelper.saveBurstState(burstState);
+
+        // Validate back-end
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockNotificationBurstStateTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_BURST_START_DATE), "2018-04-20");
+        assertEquals(item.getString(DynamoHelper.KEY_LAST_EVALUATED_DATE), "2018-04-24");
+        assertEquals(item.getInt(DynamoHelper.KEY_DAYS_MISSED), 2);
+        assertEquals(item.getInt(DynamoHelper.KEY_CONSECUTIVE_DAYS_MISSED), 1);
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_DAYS), 5);
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_ACTIVITIES_COMPLETED), 3);
+        assertFalse(item.getBoolean(DynamoHelper.KEY_RESOLVED));
+        assertFalse(item.isPresent(DynamoHelper.KEY_RESOLVED_NOTIFICATION_TYPE));
+    }
+
     @Test
     public void getLastNotificationTimeForUser_NormalCase() {
         // Set up mock
@@ -182,6 +270,129 @@ public class DynamoHelperTest {
         assertNull(result);
     }
 
+    @Test
+    public void getLastNotificationTimesForUsers() {
+        // Set up mocks. User 1 has a notification. User 2 has never been notified. User 3's query fails.
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_USER_ID, "user-1",
+                DynamoHelper.KEY_NOTIFICATION_TIME, 1234L)
+                .withString(DynamoHelper.KEY_MESSAGE, "dummy message")
+                .withString(DynamoHelper.KEY_NOTIFICATION_TYPE, "LATE");
+        when(mockQueryHelper.query(same(mockNotificationLogTable), any())).thenAnswer(invocation -> {
+            QuerySpec query = invocation.getArgumentAt(1, QuerySpec.class);
+            switch ((String) query.getHashKey().getValue()) {
+                case "user-1":
+                    return ImmutableList.of(item);
+                case "user-2":
+                    return ImmutableList.of();
+                default:
+                    throw new RuntimeException("test exception");
+            }
+        });
+
+        // Execute and validate
+        Map<String, UserNotification> resultMap = dynamoHelper.getLastNotificationTimesForUsers(ImmutableList.of(
+                "user-1", "user-2", "user-3"));
+        assertEquals(resultMap.size(), 2);
+        assertEquals(resultMap.get("user-1").getTime(), 1234L);
+        assertEquals(resultMap.get("user-1").getType(), NotificationType.LATE);
+        assertTrue(resultMap.containsKey("user-2"));
+        assertNull(resultMap.get("user-2"));
+        assertFalse(resultMap.containsKey("user-3"));
+    }
+
+    @Test
+    public void getNotificationSkipForUser() {
+        // Set up mock
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_USER_ID, USER_ID)
+                .withString(DynamoHelper.KEY_BURST_START_DATE, "2018-04-20")
+                .withString(DynamoHelper.KEY_SKIP_UNTIL_DATE, "2018-04-27")
+                .withInt(DynamoHelper.KEY_BURST_RULES_HASH, 1234);
+        when(mockNotificationSkipTable.getItem(DynamoHelper.KEY_USER_ID, USER_ID)).thenReturn(item);
+
+        // Execute and validate
+        NotificationSkip notificationSkip = dynamoHelper.getNotificationSkipForUser(USER_ID);
+        assertEquals(notificationSkip.getUserId(), USER_ID);
+        assertEquals(notificationSkip.getBurstStartDate(), LocalDate.parse("2018-04-20"));
+        assertEquals(notificationSkip.getSkipUntilDate(), LocalDate.parse("2018-04-27"));
+        assertEquals(notificationSkip.getBurstRulesHash(), 1234);
+    }
+
+    @Test
+    public void getNotificationSkipForUser_NoResult() {
+        NotificationSkip notificationSkip = dynamoHelper.getNotificationSkipForUser(USER_ID);
+        assertNull(notificationSkip);
+    }
+
+    @Test
+    public void saveNotificationSkip() {
+        // Execute
+        NotificationSkip notificationSkip = new NotificationSkip();
+        notificationSkip.setUserId(USER_ID);
+        notificationSkip.setBurstStartDate(LocalDate.parse("2018-04-20"));
+        notificationSkip.setSkipUntilDate(LocalDate.parse("2018-04-27"));
+        notificationSkip.setBurstRulesHash(1234);
+        dynamoHelper.saveNotificationSkip(notificationSkip);
+
+        // Validate back-end
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockNotificationSkipTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_BURST_START_DATE), "2018-04-20");
+        assertEquals(item.getString(DynamoHelper.KEY_SKIP_UNTIL_DATE), "2018-04-27");
+        assertEquals(item.getInt(DynamoHelper.KEY_BURST_RULES_HASH), 1234);
+    }
+
+    @Test
+    public void deleteNotificationSkipForUser() {
+        dynamoHelper.deleteNotificationSkipForUser(USER_ID);
+        verify(mockNotificationSkipTable).deleteItem(DynamoHelper.KEY_USER_ID, USER_ID);
+    }
+
+    @Test
+    public void getActiveUserIdsForDate() {
+        // Set up mock
+        Item item1 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID_DATE, STUDY_ID + ":2018-04-27",
+                DynamoHelper.KEY_USER_ID, "user-1");
+        Item item2 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID_DATE, STUDY_ID + ":2018-04-27",
+                DynamoHelper.KEY_USER_ID, "user-2");
+        when(mockQueryHelper.query(same(mockNotificationActiveUserTable), any())).thenReturn(ImmutableList.of(item1,
+                item2));
+
+        // Execute and validate
+        Iterator<String> userIdIter = dynamoHelper.getActiveUserIdsForDate(STUDY_ID, LocalDate.parse("2018-04-27"));
+        assertEquals(Lists.newArrayList(userIdIter), ImmutableList.of("user-1", "user-2"));
+
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockQueryHelper).query(same(mockNotificationActiveUserTable), queryCaptor.capture());
+
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.KEY_STUDY_ID_DATE);
+        assertEquals(query.getHashKey().getValue(), STUDY_ID + ":2018-04-27");
+    }
+
+    @Test
+    public void markUserActiveForDates() {
+        // Execute
+        dynamoHelper.markUserActiveForDates(STUDY_ID, USER_ID, LocalDate.parse("2018-04-27"),
+                LocalDate.parse("2018-04-29"));
+
+        // Validate back-end. One item per date, each expiring a week after its date.
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockNotificationActiveUserTable, times(3)).putItem(itemCaptor.capture());
+
+        List<Item> itemList = itemCaptor.getAllValues();
+        assertEquals(itemList.get(0).getString(DynamoHelper.KEY_STUDY_ID_DATE), STUDY_ID + ":2018-04-27");
+        assertEquals(itemList.get(1).getString(DynamoHelper.KEY_STUDY_ID_DATE), STUDY_ID + ":2018-04-28");
+        assertEquals(itemList.get(2).getString(DynamoHelper.KEY_STUDY_ID_DATE), STUDY_ID + ":2018-04-29");
+        for (Item oneItem : itemList) {
+            assertEquals(oneItem.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        }
+        assertEquals(itemList.get(0).getLong(DynamoHelper.KEY_EXPIRATION_TIME),
+                LocalDate.parse("2018-05-04").toDateTimeAtStartOfDay().getMillis() / 1000);
+    }
+
     @Test
     public void setLastNotificationTimeForUser() {
         // Execute
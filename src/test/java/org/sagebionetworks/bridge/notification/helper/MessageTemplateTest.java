@@ -0,0 +1,56 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+public class MessageTemplateTest {
+    private static final Map<MessageTemplate.Variable, String> VALUE_MAP = new EnumMap<>(
+            MessageTemplate.Variable.class);
+    static {
+        VALUE_MAP.put(MessageTemplate.Variable.STUDY_COMMITMENT, "dummy answer");
+        VALUE_MAP.put(MessageTemplate.Variable.URL, "http://example.com/app-url");
+    }
+
+    @Test
+    public void noVariables() {
+        MessageTemplate template = MessageTemplate.compile("no variables");
+        assertTrue(template.getVariableSet().isEmpty());
+        assertEquals(template.render(VALUE_MAP), "no variables");
+    }
+
+    @Test
+    public void emptyMessage() {
+        MessageTemplate template = MessageTemplate.compile("");
+        assertTrue(template.getVariableSet().isEmpty());
+        assertEquals(template.render(VALUE_MAP), "");
+    }
+
+    @Test
+    public void allVariables() {
+        MessageTemplate template = MessageTemplate.compile(
+                "url=${url} ${url}, studyCommitment=${studyCommitment} ${studyCommitment}");
+        assertEquals(template.getVariableSet(), ImmutableSet.of(MessageTemplate.Variable.STUDY_COMMITMENT,
+                MessageTemplate.Variable.URL));
+        assertEquals(template.render(VALUE_MAP), "url=http://example.com/app-url http://example.com/app-url, " +
+                "studyCommitment=dummy answer dummy answer");
+    }
+
+    @Test
+    public void adjacentVariables() {
+        MessageTemplate template = MessageTemplate.compile("${url}${studyCommitment}");
+        assertEquals(template.render(VALUE_MAP), "http://example.com/app-urldummy answer");
+    }
+
+    @Test
+    public void unknownVariablesAreLiteral() {
+        MessageTemplate template = MessageTemplate.compile("${unknown} $${url} ${url");
+        assertEquals(template.getVariableSet(), ImmutableSet.of(MessageTemplate.Variable.URL));
+        assertEquals(template.render(VALUE_MAP), "${unknown} $http://example.com/app-url ${url");
+    }
+}
@@ -1,13 +1,21 @@
 package org.sagebionetworks.bridge.notification.helper;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -19,10 +27,12 @@ import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 
 public class TemplateVariableHelperTest {
     private static final String APP_URL = "http://example.com/app-url";
+    private static final String OTHER_USER_ID = "other-user";
     private static final String STUDY_ID = "test-study";
     private static final String USER_ID = "test-user";
 
     private ReportData engagementReport;
+    private ExecutorService engagementExecutorService;
     private BridgeHelper mockBridgeHelper;
     private DynamoHelper mockDynamoHelper;
     private StudyParticipant mockParticipant;
@@ -49,11 +59,19 @@ public class TemplateVariableHelperTest {
         templateVariableHelper.setBridgeHelper(mockBridgeHelper);
         templateVariableHelper.setDynamoHelper(mockDynamoHelper);
 
+        engagementExecutorService = Executors.newFixedThreadPool(2);
+        templateVariableHelper.setEngagementExecutorService(engagementExecutorService);
+
         // Participant needs to be mocked because we can't set ID
         mockParticipant = mock(StudyParticipant.class);
         when(mockParticipant.getId()).thenReturn(USER_ID);
     }
 
+    @AfterMethod
+    public void after() {
+        engagementExecutorService.shutdownNow();
+    }
+
     @Test
     public void resolveNoVars() throws Exception {
         // Base case. Test that no vars means the string is returned as is and none of the dependent services are
@@ -174,4 +192,68 @@ public class TemplateVariableHelperTest {
                 "studyCommitment=${studyCommitment}");
         assertEquals(result, "studyCommitment=true");
     }
+
+    @Test
+    public void getTemplateVariables() {
+        assertTrue(templateVariableHelper.getTemplateVariables("no variables").isEmpty());
+        assertEquals(templateVariableHelper.getTemplateVariables("studyCommitment=${studyCommitment}"),
+                ImmutableSet.of(MessageTemplate.Variable.STUDY_COMMITMENT));
+
+        // Templates are compiled once per message string.
+        assertSame(templateVariableHelper.getMessageTemplate("url=${url}"),
+                templateVariableHelper.getMessageTemplate("url=${url}"));
+    }
+
+    @Test
+    public void studyCommitment_cached() throws Exception {
+        setBenefits(engagementReport, "dummy answer");
+
+        // Resolve twice. We only call Bridge once.
+        for (int i = 0; i < 2; i++) {
+            String result = templateVariableHelper.resolveTemplateVariables(STUDY_ID, mockParticipant,
+                    "studyCommitment=${studyCommitment}");
+            assertEquals(result, "studyCommitment=dummy answer");
+        }
+        verifyEngagementReportFetched(USER_ID, 1);
+
+        // Clearing the cache means we call Bridge again.
+        templateVariableHelper.clearStudyCommitmentCache();
+        templateVariableHelper.resolveTemplateVariables(STUDY_ID, mockParticipant,
+                "studyCommitment=${studyCommitment}");
+        verifyEngagementReportFetched(USER_ID, 2);
+    }
+
+    @Test
+    public void prefetchStudyCommitments() throws Exception {
+        // The first user has an Engagement report. The second user doesn't, so they aren't cached.
+        setBenefits(engagementReport, "dummy answer");
+        when(mockBridgeHelper.getParticipantReports(STUDY_ID, OTHER_USER_ID,
+                TemplateVariableHelper.REPORT_ID_ENGAGEMENT, TemplateVariableHelper.GLOBAL_REPORT_DATE,
+                TemplateVariableHelper.GLOBAL_REPORT_DATE)).thenReturn(ImmutableList.of());
+
+        templateVariableHelper.prefetchStudyCommitments(STUDY_ID, ImmutableList.of(USER_ID, OTHER_USER_ID));
+        verifyEngagementReportFetched(USER_ID, 1);
+        verifyEngagementReportFetched(OTHER_USER_ID, 1);
+
+        // Resolving the first user's message uses the prefetched value. Prefetching again skips the first user.
+        String result = templateVariableHelper.resolveTemplateVariables(STUDY_ID, mockParticipant,
+                "studyCommitment=${studyCommitment}");
+        assertEquals(result, "studyCommitment=dummy answer");
+        templateVariableHelper.prefetchStudyCommitments(STUDY_ID, ImmutableList.of(USER_ID, OTHER_USER_ID));
+        verifyEngagementReportFetched(USER_ID, 1);
+        verifyEngagementReportFetched(OTHER_USER_ID, 2);
+    }
+
+    private static void setBenefits(ReportData report, String benefits) {
+        String reportDataJson = "{\n" +
+                "   \"benefits\":\"" + benefits + "\"\n" +
+                "}";
+        report.setData(RestUtils.GSON.fromJson(reportDataJson, Map.class));
+    }
+
+    private void verifyEngagementReportFetched(String userId, int times) throws Exception {
+        verify(mockBridgeHelper, times(times)).getParticipantReports(STUDY_ID, userId,
+                TemplateVariableHelper.REPORT_ID_ENGAGEMENT, TemplateVariableHelper.GLOBAL_REPORT_DATE,
+                TemplateVariableHelper.GLOBAL_REPORT_DATE);
+    }
 }
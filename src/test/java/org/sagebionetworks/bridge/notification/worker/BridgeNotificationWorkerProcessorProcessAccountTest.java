@@ -4,20 +4,24 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.joda.time.LocalDate;
@@ -69,6 +73,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     private UserConsentHistory mockConsent;
     private DynamoHelper mockDynamoHelper;
     private StudyParticipant mockParticipant;
+    private RateLimiter mockRateLimiter;
     private TemplateVariableHelper mockTemplateVariableHelper;
     private BridgeNotificationWorkerProcessor processor;
     private WorkerConfig config;
@@ -170,7 +175,16 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         processor = new BridgeNotificationWorkerProcessor();
         processor.setBridgeHelper(mockBridgeHelper);
         processor.setDynamoHelper(mockDynamoHelper);
-        processor.setTemplateVariableHelper(mockTemplateVariableHelper);
+
+        mockRateLimiter = mock(RateLimiter.class);
+        processor.setPerUserRateLimiter(mockRateLimiter);
+
+        // Use a real notification sender, which sends on the calling thread outside of a request.
+        NotificationSender notificationSender = new NotificationSender();
+        notificationSender.setBridgeHelper(mockBridgeHelper);
+        notificationSender.setDynamoHelper(mockDynamoHelper);
+        notificationSender.setTemplateVariableHelper(mockTemplateVariableHelper);
+        processor.setNotificationSender(notificationSender);
     }
 
     @Test
@@ -303,6 +317,95 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         verifyNoNotification();
     }
 
+    @Test
+    public void completedBurstWritesNotificationSkip() throws Exception {
+        // Same as above. Participant completed the burst on day 5. Skip the user through the end of the notification
+        // period, which is day 7.
+        for (int i = 0; i <= 5; i++) {
+            activityList.get(i).setStatus(ScheduleStatus.FINISHED);
+        }
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(6), USER_ID);
+        verifyNoNotification();
+        verifyNotificationSkip(ENROLLMENT_DATE, ENROLLMENT_DATE.plusDays(7));
+    }
+
+    @Test
+    public void betweenBurstsWritesNotificationSkip() throws Exception {
+        // Next burst starts on enrollment + 14 days. Pre-burst notification is on enrollment + 13. Skip the user
+        // through enrollment + 12.
+        processor.setSkipBetweenBursts(true);
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(10), USER_ID);
+        verifyNoNotification();
+        verifyNotificationSkip(STUDY_BURST_2_START_TIME.toLocalDate(), ENROLLMENT_DATE.plusDays(12));
+    }
+
+    @Test
+    public void betweenBurstsDoesNotWriteNotificationSkipByDefault() throws Exception {
+        // Without burst start events to invalidate it, the skip could hide a burst that starts early.
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(10), USER_ID);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).saveNotificationSkip(any());
+    }
+
+    @Test
+    public void blackoutDoesNotWriteNotificationSkip() throws Exception {
+        // User is in the blackout period of a burst. They'll need a notification later in the burst.
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(2), USER_ID);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).saveNotificationSkip(any());
+    }
+
+    @Test
+    public void afterBurstsDoesNotWriteNotificationSkip() throws Exception {
+        // There are no later bursts, but the user might get one later.
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(23), USER_ID);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).saveNotificationSkip(any());
+    }
+
+    @Test
+    public void notificationSkipSkipsUser() throws Exception {
+        when(mockDynamoHelper.getNotificationSkipForUser(USER_ID)).thenReturn(makeNotificationSkip(TEST_DATE,
+                config.getBurstRulesHash()));
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifyNoNotification();
+        verify(mockBridgeHelper, never()).getParticipant(any(), any());
+    }
+
+    @Test
+    public void rateLimitedWhenCallingBridge() throws Exception {
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verify(mockRateLimiter, times(1)).acquire();
+    }
+
+    @Test
+    public void notRateLimitedWhenSkippedBeforeCallingBridge() throws Exception {
+        when(mockDynamoHelper.getNotificationSkipForUser(USER_ID)).thenReturn(makeNotificationSkip(TEST_DATE,
+                config.getBurstRulesHash()));
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verify(mockRateLimiter, never()).acquire();
+    }
+
+    @Test
+    public void expiredNotificationSkip() throws Exception {
+        when(mockDynamoHelper.getNotificationSkipForUser(USER_ID)).thenReturn(makeNotificationSkip(
+                TEST_DATE.minusDays(1), config.getBurstRulesHash()));
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+    }
+
+    @Test
+    public void notificationSkipForOldBurstRules() throws Exception {
+        when(mockDynamoHelper.getNotificationSkipForUser(USER_ID)).thenReturn(makeNotificationSkip(TEST_DATE,
+                config.getBurstRulesHash() + 1));
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+    }
+
     @Test
     public void notifiedRecently() throws Exception {
         // For the purposes of this test, set the last notification time to enrollment time. This is very recent, so we
@@ -317,6 +420,57 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         // Execute and verify
         processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
         verifyNoNotification();
+
+        // The notification log is checked before any Bridge calls, so we never fetch the participant.
+        verify(mockBridgeHelper, never()).getParticipant(any(), any());
+
+        // Only the first predicate was evaluated, and it rejected the user.
+        List<EligibilityPredicate> predicateList = processor.getEligibilityPredicateList();
+        assertEquals(predicateList.get(0).getName(), "notifiedRecently");
+        assertEquals(predicateList.get(0).getNumEvaluated(), 1);
+        assertEquals(predicateList.get(0).getNumRejected(), 1);
+        for (EligibilityPredicate onePredicate : predicateList.subList(1, predicateList.size())) {
+            assertEquals(onePredicate.getNumEvaluated(), 0);
+        }
+    }
+
+    @Test
+    public void eligiblePredicatesFetchParticipantOnce() throws Exception {
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+
+        // Every predicate evaluated the user and none rejected. Participant and config were only fetched once.
+        for (EligibilityPredicate onePredicate : processor.getEligibilityPredicateList()) {
+            assertEquals(onePredicate.getNumEvaluated(), 1);
+            assertEquals(onePredicate.getNumRejected(), 0);
+        }
+        verify(mockBridgeHelper, times(1)).getParticipant(STUDY_ID, USER_ID);
+        verify(mockDynamoHelper, times(1)).getNotificationConfigForStudy(STUDY_ID);
+    }
+
+    @Test
+    public void notifiedRecentlyPrefetched() throws Exception {
+        // Same as above, but the last notification was looked up ahead of time with the rest of the page.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage(MESSAGE_EARLY);
+        userNotification.setTime(ENROLLMENT_TIME.getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId(USER_ID);
+        processor.getPrefetchedLastNotificationMap().put(USER_ID, Optional.of(userNotification));
+
+        // Execute and verify. We read from memory, not DynamoDB, and the prefetched entry is consumed.
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
+        assertTrue(processor.getPrefetchedLastNotificationMap().isEmpty());
+    }
+
+    @Test
+    public void neverNotifiedPrefetched() throws Exception {
+        processor.getPrefetchedLastNotificationMap().put(USER_ID, Optional.empty());
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
     }
 
     // branch coverage
@@ -368,6 +522,138 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         verifySentNotification(NotificationType.CUMULATIVE, MESSAGE_CUMULATIVE);
     }
 
+    @Test
+    public void burstStateSavedThroughSettledDays() throws Exception {
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+
+        // With no burst state, we get the task history from the start of the burst.
+        verifyTaskHistoryStartDate(ENROLLMENT_DATE);
+
+        // Burst state includes every day before yesterday, since yesterday can still change. User missed the first 2
+        // days, so the state is resolved.
+        ArgumentCaptor<BurstState> burstStateCaptor = ArgumentCaptor.forClass(BurstState.class);
+        verify(mockDynamoHelper).saveBurstState(burstStateCaptor.capture());
+
+        BurstState burstState = burstStateCaptor.getValue();
+        assertEquals(burstState.getUserId(), USER_ID);
+        assertEquals(burstState.getBurstStartDate(), ENROLLMENT_DATE);
+        assertEquals(burstState.getLastEvaluatedDate(), TEST_DATE.minusDays(
+                BridgeNotificationWorkerProcessor.BURST_STATE_REREAD_DAYS + 1));
+        assertEquals(burstState.getDaysMissed(), 2);
+        assertEquals(burstState.getConsecutiveDaysMissed(), 2);
+        assertTrue(burstState.isResolved());
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.EARLY);
+    }
+
+    @Test
+    public void resumesFromBurstState() throws Exception {
+        // Burst state says the user did 4 of the first 5 days. If we recomputed from the start of the burst, we'd
+        // send an EARLY notification. Since we resume from the burst state, the user only misses 2 days in a row
+        // starting on day 4, so this is a LATE notification. Day 6 is re-read, so day 5 is the only new settled day.
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE);
+        burstState.setLastEvaluatedDate(ENROLLMENT_DATE.plusDays(4));
+        burstState.setDaysMissed(1);
+        burstState.setConsecutiveDaysMissed(1);
+        burstState.setNumDays(5);
+        burstState.setNumActivitiesCompleted(4);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(7), USER_ID);
+        verifySentNotification(NotificationType.LATE, MESSAGE_LATE);
+
+        // We only get the task history since the last evaluated date.
+        verifyTaskHistoryStartDate(ENROLLMENT_DATE.plusDays(5));
+
+        ArgumentCaptor<BurstState> burstStateCaptor = ArgumentCaptor.forClass(BurstState.class);
+        verify(mockDynamoHelper).saveBurstState(burstStateCaptor.capture());
+
+        BurstState savedBurstState = burstStateCaptor.getValue();
+        assertEquals(savedBurstState.getLastEvaluatedDate(), ENROLLMENT_DATE.plusDays(5));
+        assertEquals(savedBurstState.getDaysMissed(), 2);
+        assertEquals(savedBurstState.getConsecutiveDaysMissed(), 2);
+        assertEquals(savedBurstState.getResolvedNotificationType(), NotificationType.LATE);
+    }
+
+    @Test
+    public void recentDaysReReadEachRun() throws Exception {
+        // Burst state says the user did the first day and missed the second. The previous run also saw yesterday as
+        // missed, but the user's activity for yesterday has since arrived. If we had saved yesterday, we'd send an
+        // EARLY notification for 2 missed days in a row.
+        activityList.get(2).setStatus(ScheduleStatus.FINISHED);
+
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE);
+        burstState.setLastEvaluatedDate(ENROLLMENT_DATE.plusDays(1));
+        burstState.setDaysMissed(1);
+        burstState.setConsecutiveDaysMissed(1);
+        burstState.setNumDays(2);
+        burstState.setNumActivitiesCompleted(1);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifyNoNotification();
+
+        // We re-read yesterday. There are no new settled days, so there's nothing to save.
+        verifyTaskHistoryStartDate(TEST_DATE.minusDays(1));
+        verify(mockDynamoHelper, never()).saveBurstState(any());
+    }
+
+    @Test
+    public void burstStateWithUnsettledDaysIgnored() throws Exception {
+        // Burst state includes yesterday, which can still change. For example, it was saved before yesterday was
+        // re-read on every run. Start over from the burst start.
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE);
+        burstState.setLastEvaluatedDate(TEST_DATE.minusDays(1));
+        burstState.setResolved(true);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+        verifyTaskHistoryStartDate(ENROLLMENT_DATE);
+    }
+
+    @Test
+    public void burstStateForOtherBurstIgnored() throws Exception {
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE.minusDays(20));
+        burstState.setLastEvaluatedDate(ENROLLMENT_DATE.minusDays(12));
+        burstState.setResolved(true);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+        verifyTaskHistoryStartDate(ENROLLMENT_DATE);
+    }
+
+    @Test
+    public void burstStateAheadOfDateIgnored() throws Exception {
+        // Burst state is from a later run. For example, we're re-running an earlier date.
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE);
+        burstState.setLastEvaluatedDate(TEST_DATE.plusDays(2));
+        burstState.setResolved(true);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
+        verifyTaskHistoryStartDate(ENROLLMENT_DATE);
+    }
+
+    @Test
+    public void burstStateCompleted() throws Exception {
+        // Burst state says the user already completed the burst, as of the day before yesterday. Today's activity
+        // isn't done yet, but we don't notify.
+        BurstState burstState = BurstState.create(USER_ID, ENROLLMENT_DATE);
+        burstState.setLastEvaluatedDate(TEST_DATE.minusDays(2));
+        burstState.setResolved(true);
+        when(mockDynamoHelper.getBurstStateForUser(USER_ID)).thenReturn(burstState);
+
+        processor.processAccountForDate(STUDY_ID, TEST_DATE, USER_ID);
+        verifyNoNotification();
+
+        // There are no new settled days, so there's nothing to save.
+        verifyTaskHistoryStartDate(TEST_DATE.minusDays(1));
+        verify(mockDynamoHelper, never()).saveBurstState(any());
+    }
+
     @Test
     public void preburstNotification() throws Exception {
         // Set up data group
@@ -470,6 +756,83 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY);
     }
 
+    private static NotificationSkip makeNotificationSkip(LocalDate skipUntilDate, int burstRulesHash) {
+        NotificationSkip notificationSkip = new NotificationSkip();
+        notificationSkip.setUserId(USER_ID);
+        notificationSkip.setBurstStartDate(ENROLLMENT_DATE);
+        notificationSkip.setSkipUntilDate(skipUntilDate);
+        notificationSkip.setBurstRulesHash(burstRulesHash);
+        return notificationSkip;
+    }
+
+    @Test
+    public void dryRun() throws Exception {
+        // Simulate enrollment day (in the blackout period), the test date (notified), and the day after the test date
+        // (notified recently, so not notified again).
+        DryRunReport report = new DryRunReport(STUDY_ID, ENROLLMENT_DATE, TEST_DATE.plusDays(1));
+        DryRunUser dryRunUser = new DryRunUser(USER_ID, report);
+        DateTime realNow = DateTime.now();
+        for (LocalDate oneDate : ImmutableList.of(ENROLLMENT_DATE, TEST_DATE, TEST_DATE.plusDays(1))) {
+            dryRunUser.setDate(oneDate, realNow);
+            processor.processAccountForDate(STUDY_ID, oneDate, USER_ID, dryRunUser);
+        }
+
+        // The notification is recorded, and becomes the user's last notification.
+        assertEquals(report.getNumNotifications(NotificationType.EARLY), 1);
+        assertEquals(dryRunUser.getLastNotification().getType(), NotificationType.EARLY);
+        assertEquals(dryRunUser.getLastNotification().getTime(), TEST_DATE.toDateTime(realNow.toLocalTime(),
+                realNow.getZone()).getMillis());
+
+        // Burst state is kept in memory. It was last updated on the test date.
+        assertEquals(dryRunUser.getBurstState().getLastEvaluatedDate(), TEST_DATE.minusDays(2));
+
+        // The participant and activity events are only fetched once.
+        verify(mockBridgeHelper, times(1)).getParticipant(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper, times(1)).getActivityEvents(STUDY_ID, USER_ID);
+
+        // Nothing is sent or written. User state is only read through the dry run user.
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).getBurstStateForUser(any());
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
+        verify(mockDynamoHelper, never()).getNotificationSkipForUser(any());
+        verify(mockDynamoHelper, never()).saveBurstState(any());
+        verify(mockDynamoHelper, never()).saveNotificationSkip(any());
+    }
+
+    @Test
+    public void dryRunKeepsNotificationSkipInMemory() throws Exception {
+        // The day after burst 1 ends, the user would get a notification skip until burst 2.
+        LocalDate date = ENROLLMENT_DATE.plusDays(9);
+        processor.setSkipBetweenBursts(true);
+        DryRunReport report = new DryRunReport(STUDY_ID, date, date);
+        DryRunUser dryRunUser = new DryRunUser(USER_ID, report);
+        dryRunUser.setDate(date, DateTime.now());
+        processor.processAccountForDate(STUDY_ID, date, USER_ID, dryRunUser);
+
+        assertEquals(dryRunUser.getNotificationSkip().getSkipUntilDate(), STUDY_BURST_2_START_TIME.toLocalDate()
+                .minusDays(2));
+        verify(mockDynamoHelper, never()).saveNotificationSkip(any());
+        verifyNoNotification();
+    }
+
+    private void verifyNotificationSkip(LocalDate burstStartDate, LocalDate skipUntilDate) {
+        ArgumentCaptor<NotificationSkip> notificationSkipCaptor = ArgumentCaptor.forClass(NotificationSkip.class);
+        verify(mockDynamoHelper).saveNotificationSkip(notificationSkipCaptor.capture());
+
+        NotificationSkip notificationSkip = notificationSkipCaptor.getValue();
+        assertEquals(notificationSkip.getUserId(), USER_ID);
+        assertEquals(notificationSkip.getBurstStartDate(), burstStartDate);
+        assertEquals(notificationSkip.getSkipUntilDate(), skipUntilDate);
+        assertEquals(notificationSkip.getBurstRulesHash(), config.getBurstRulesHash());
+    }
+
+    private void verifyTaskHistoryStartDate(LocalDate startDate) {
+        ArgumentCaptor<DateTime> rangeStartCaptor = ArgumentCaptor.forClass(DateTime.class);
+        verify(mockBridgeHelper).getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), rangeStartCaptor.capture(),
+                any());
+        assertEquals(rangeStartCaptor.getValue().toLocalDate(), startDate);
+    }
+
     private void verifySentNotification(NotificationType type, String message) throws Exception {
         // Verify notification log
         ArgumentCaptor<UserNotification> userNotificationCaptor = ArgumentCaptor.forClass(UserNotification.class);
@@ -1,24 +1,45 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.LocalDate;
+import org.mockito.InOrder;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.notification.exceptions.UserNotConfiguredException;
 import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
 import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
@@ -32,8 +53,13 @@ public class BridgeNotificationWorkerProcessorTest {
     private static final String STUDY_ID = "test-study";
     private static final String TAG = "dummy tag";
 
+    private static final int MAX_CONCURRENT_USERS = 2;
+    private static final int NOTIFICATION_LOG_PAGE_SIZE = 2;
+
     private BridgeHelper mockBridgeHelper;
     private DynamoHelper mockDynamoHelper;
+    private NotificationSender mockNotificationSender;
+    private ExecutorService executorService;
     private BridgeNotificationWorkerProcessor processor;
 
     @BeforeMethod
@@ -42,15 +68,33 @@ public class BridgeNotificationWorkerProcessorTest {
         mockBridgeHelper = mock(BridgeHelper.class);
         mockDynamoHelper = mock(DynamoHelper.class);
 
+        mockNotificationSender = mock(NotificationSender.class);
+
         // Create processor. Spy the processor so we can test processAccountForDate() in a separate set of tests.
         processor = spy(new BridgeNotificationWorkerProcessor());
         processor.setBridgeHelper(mockBridgeHelper);
         processor.setDynamoHelper(mockDynamoHelper);
-        processor.setPerUserRateLimit(1000.0);
+        processor.setNotificationSender(mockNotificationSender);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeNotificationWorkerProcessor.CONFIG_KEY_MAX_CONCURRENT_USERS)).thenReturn(
+                MAX_CONCURRENT_USERS);
+        when(mockConfig.getInt(BridgeNotificationWorkerProcessor.CONFIG_KEY_PER_USER_RATE_LIMIT)).thenReturn(1000);
+        when(mockConfig.getInt(BridgeNotificationWorkerProcessor.CONFIG_KEY_NOTIFICATION_LOG_PAGE_SIZE)).thenReturn(
+                NOTIFICATION_LOG_PAGE_SIZE);
+        processor.setConfig(mockConfig);
+
+        executorService = Executors.newFixedThreadPool(MAX_CONCURRENT_USERS);
+        processor.setExecutorService(executorService);
 
         doNothing().when(processor).processAccountForDate(any(), any(), any());
     }
 
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
+    }
+
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
             "studyId must be specified")
     public void argsNoStudyId() throws Exception {
@@ -107,6 +151,67 @@ public class BridgeNotificationWorkerProcessorTest {
         processor.accept(requestNode);
     }
 
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "dryRun must be a boolean")
+    public void argsDryRunWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, "true");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "endDate is only supported for dry runs")
+    public void argsEndDateWithoutDryRun() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, "2018-04-29");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "endDate must be a string")
+    public void argsEndDateWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, true);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, 20180429);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "endDate must be in the format YYYY-MM-DD")
+    public void argsEndDateInvalidFormat() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, true);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, "April 29, 2018");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "endDate can't be before date")
+    public void argsEndDateBeforeDate() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, true);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, "2018-04-26");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "incremental must be a boolean")
+    public void argsIncrementalWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_INCREMENTAL, "true");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "incremental is not supported with endDate")
+    public void argsIncrementalWithEndDate() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, true);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, "2018-04-29");
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_INCREMENTAL, true);
+        processor.accept(requestNode);
+    }
+
     @Test
     public void multipleUsers() throws Exception {
         // Bridge returns 4 users. The second user throws an exception during processing. The third user throws a
@@ -137,6 +242,139 @@ public class BridgeNotificationWorkerProcessorTest {
         verify(mockDynamoHelper).writeWorkerLog(TAG);
     }
 
+    @Test
+    public void usersEvaluatedConcurrently() throws Exception {
+        // Each user waits until both users have started. This only finishes if the users are evaluated concurrently.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        AtomicInteger numFinished = new AtomicInteger();
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            assertTrue(startedLatch.await(10, TimeUnit.SECONDS));
+            numFinished.incrementAndGet();
+            return null;
+        }).when(processor).processAccountForDate(any(), any(), any());
+
+        // The worker log is only written after every user has finished.
+        doAnswer(invocation -> {
+            assertEquals(numFinished.get(), 2);
+            return null;
+        }).when(mockDynamoHelper).writeWorkerLog(TAG);
+
+        ArrayNode userListNode = JSON_MAPPER.createArrayNode();
+        userListNode.add("user-A").add("user-B");
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.set(BridgeNotificationWorkerProcessor.REQUEST_PARAM_USER_LIST, userListNode);
+
+        // Execute and verify.
+        processor.accept(requestNode);
+        assertEquals(numFinished.get(), 2);
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void lastNotificationsPrefetchedByPage() throws Exception {
+        // Users are read in pages of 2. Notifications for each page are looked up at once.
+        UserNotification notification = new UserNotification();
+        notification.setUserId("user-A");
+        Map<String, UserNotification> page1Map = new HashMap<>();
+        page1Map.put("user-A", notification);
+        page1Map.put("user-B", null);
+        when(mockDynamoHelper.getLastNotificationTimesForUsers(ImmutableList.of("user-A", "user-B"))).thenReturn(
+                page1Map);
+
+        // The second page fails. We still process the user.
+        when(mockDynamoHelper.getLastNotificationTimesForUsers(ImmutableList.of("user-C"))).thenThrow(
+                RuntimeException.class);
+
+        // While processing, the prefetched notifications are available to the processor.
+        doAnswer(invocation -> {
+            Map<String, Optional<UserNotification>> prefetchedMap = processor.getPrefetchedLastNotificationMap();
+            assertSame(prefetchedMap.get("user-A").get(), notification);
+            assertFalse(prefetchedMap.get("user-B").isPresent());
+            return null;
+        }).when(processor).processAccountForDate(STUDY_ID, DATE, "user-A");
+
+        ArrayNode userListNode = JSON_MAPPER.createArrayNode();
+        userListNode.add("user-A").add("user-B").add("user-C");
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.set(BridgeNotificationWorkerProcessor.REQUEST_PARAM_USER_LIST, userListNode);
+
+        // Execute and verify.
+        processor.accept(requestNode);
+        verify(mockDynamoHelper).getLastNotificationTimesForUsers(ImmutableList.of("user-A", "user-B"));
+        verify(mockDynamoHelper).getLastNotificationTimesForUsers(ImmutableList.of("user-C"));
+        verify(processor).processAccountForDate(STUDY_ID, DATE, "user-A");
+        verify(processor).processAccountForDate(STUDY_ID, DATE, "user-B");
+        verify(processor).processAccountForDate(STUDY_ID, DATE, "user-C");
+
+        // Prefetched notifications don't outlive the request.
+        assertTrue(processor.getPrefetchedLastNotificationMap().isEmpty());
+    }
+
+    @Test
+    public void notificationSenderFinishedBeforeWorkerLog() throws Exception {
+        ArrayNode userListNode = JSON_MAPPER.createArrayNode();
+        userListNode.add("user-A");
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.set(BridgeNotificationWorkerProcessor.REQUEST_PARAM_USER_LIST, userListNode);
+
+        // Execute and verify. The worker log signals that processing is done, so we only write it once all the
+        // notifications are sent.
+        processor.accept(requestNode);
+        InOrder inOrder = inOrder(mockNotificationSender, processor, mockDynamoHelper);
+        inOrder.verify(mockNotificationSender).start();
+        inOrder.verify(processor).processAccountForDate(STUDY_ID, DATE, "user-A");
+        inOrder.verify(mockNotificationSender).finish();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void dryRun() throws Exception {
+        // User A has a prefetched last notification. User B doesn't, so their notification log is queried.
+        UserNotification notification = new UserNotification();
+        notification.setUserId("user-A");
+        Map<String, UserNotification> lastNotificationMap = new HashMap<>();
+        lastNotificationMap.put("user-A", notification);
+        when(mockDynamoHelper.getLastNotificationTimesForUsers(ImmutableList.of("user-A", "user-B"))).thenReturn(
+                lastNotificationMap);
+
+        // Each user is simulated for every date in the range, with their own dry run state.
+        Set<String> simulatedUserDateSet = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            String userId = invocation.getArgumentAt(2, String.class);
+            LocalDate date = invocation.getArgumentAt(1, LocalDate.class);
+            DryRunUser dryRunUser = invocation.getArgumentAt(3, DryRunUser.class);
+            assertEquals(dryRunUser.getUserId(), userId);
+            assertEquals(dryRunUser.getDate(), date);
+            if (userId.equals("user-A")) {
+                assertSame(dryRunUser.getLastNotification(), notification);
+            }
+            simulatedUserDateSet.add(userId + "@" + date);
+            return null;
+        }).when(processor).processAccountForDate(any(), any(), any(), any());
+
+        ArrayNode userListNode = JSON_MAPPER.createArrayNode();
+        userListNode.add("user-A").add("user-B");
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.set(BridgeNotificationWorkerProcessor.REQUEST_PARAM_USER_LIST, userListNode);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DRY_RUN, true);
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_END_DATE, "2018-04-29");
+
+        // Execute and verify.
+        processor.accept(requestNode);
+        assertEquals(simulatedUserDateSet, ImmutableSet.of("user-A@2018-04-27", "user-A@2018-04-28",
+                "user-A@2018-04-29", "user-B@2018-04-27", "user-B@2018-04-28", "user-B@2018-04-29"));
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser("user-A");
+        verify(mockDynamoHelper).getLastNotificationTimeForUser("user-B");
+
+        // Dry runs never use the real processing path or the notification sender.
+        verify(processor, never()).processAccountForDate(any(), any(), any());
+        verifyZeroInteractions(mockNotificationSender);
+
+        // The worker log is still written, so callers know the dry run is done.
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
     private static AccountSummary mockAccountSummary(String id) {
         AccountSummary summary = mock(AccountSummary.class);
         when(summary.getId()).thenReturn(id);
@@ -167,6 +405,29 @@ public class BridgeNotificationWorkerProcessorTest {
         verify(mockBridgeHelper, never()).getAllAccountSummaries(any());
     }
 
+    @Test
+    public void incremental() throws Exception {
+        // Only the users marked active for the date are evaluated.
+        when(mockDynamoHelper.getActiveUserIdsForDate(STUDY_ID, DATE)).thenReturn(ImmutableList.of("user-A",
+                "user-B").iterator());
+
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_INCREMENTAL, true);
+
+        // Execute.
+        processor.accept(requestNode);
+
+        // Verify calls to processAccount()
+        verify(processor).processAccountForDate(STUDY_ID, DATE, "user-A");
+        verify(processor).processAccountForDate(STUDY_ID, DATE, "user-B");
+
+        // Verify call to dynamoHelper.writeWorkerLog()
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+
+        // We don't call Bridge to get users.
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any());
+    }
+
     private static ObjectNode makeValidRequestNode() {
         ObjectNode requestNode = JSON_MAPPER.createObjectNode();
         requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_STUDY_ID, STUDY_ID);
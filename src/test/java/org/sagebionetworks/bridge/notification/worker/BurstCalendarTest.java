@@ -0,0 +1,119 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.model.ActivityEvent;
+import org.sagebionetworks.bridge.rest.model.ScheduleStatus;
+import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
+
+public class BurstCalendarTest {
+    private static final DateTimeZone TIME_ZONE = DateTimeZone.forOffsetHours(-7);
+
+    // 18:51 in the user's time zone is the next day in UTC. Burst days must be computed in the user's time zone.
+    private static final DateTime BURST_1_START_TIME = DateTime.parse("2018-04-27T18:51:47.159-0700");
+    private static final DateTime BURST_2_START_TIME = BURST_1_START_TIME.plusDays(14);
+    private static final LocalDate BURST_1_START_DATE = LocalDate.parse("2018-04-27");
+
+    private static final int BURST_1_START = BurstCalendar.toEpochDay(BURST_1_START_DATE);
+    private static final int BURST_2_START = BURST_1_START + 14;
+    private static final int BURST_DURATION_DAYS = 9;
+
+    @Test
+    public void epochDays() {
+        assertEquals(BurstCalendar.toEpochDay(LocalDate.parse("1970-01-01")), 0);
+        assertEquals(BurstCalendar.toEpochDay(LocalDate.parse("1970-01-02")), 1);
+        assertEquals(BurstCalendar.toEpochDay(LocalDate.parse("1969-12-31")), -1);
+        assertEquals(BurstCalendar.fromEpochDay(BURST_1_START), BURST_1_START_DATE);
+        assertEquals(BurstCalendar.fromEpochDay(-1), LocalDate.parse("1969-12-31"));
+
+        // Instants are converted in the user's time zone.
+        BurstCalendar calendar = makeCalendar();
+        assertEquals(calendar.toEpochDay(BURST_1_START_TIME), BURST_1_START);
+        assertEquals(calendar.toEpochDay(BURST_1_START_TIME.withZone(DateTimeZone.UTC)), BURST_1_START);
+        assertEquals(calendar.startOfDay(BURST_1_START), BURST_1_START_DATE.toDateTimeAtStartOfDay(TIME_ZONE));
+    }
+
+    @Test
+    public void burstLookups() {
+        BurstCalendar calendar = makeCalendar();
+        int burst1End = BURST_1_START + BURST_DURATION_DAYS - 1;
+
+        // Upcoming bursts
+        assertTrue(calendar.hasBurstStartingOn(BURST_1_START));
+        assertTrue(calendar.hasBurstStartingOn(BURST_2_START));
+        assertFalse(calendar.hasBurstStartingOn(BURST_1_START + 1));
+
+        // Current bursts
+        assertEquals(calendar.findCurrentBurstStart(BURST_1_START - 1), BurstCalendar.NO_BURST);
+        assertEquals(calendar.findCurrentBurstStart(BURST_1_START), BURST_1_START);
+        assertEquals(calendar.findCurrentBurstStart(burst1End), BURST_1_START);
+        assertEquals(calendar.findCurrentBurstStart(burst1End + 1), BurstCalendar.NO_BURST);
+        assertEquals(calendar.findCurrentBurstStart(BURST_2_START + 3), BURST_2_START);
+
+        // Next bursts
+        assertEquals(calendar.findNextBurstStart(BURST_1_START - 5), BURST_1_START);
+        assertEquals(calendar.findNextBurstStart(BURST_1_START + 2), BurstCalendar.NO_BURST);
+        assertEquals(calendar.findNextBurstStart(burst1End + 1), BURST_2_START);
+        assertEquals(calendar.findNextBurstStart(BURST_2_START + BURST_DURATION_DAYS), BurstCalendar.NO_BURST);
+    }
+
+    @Test
+    public void noBursts() {
+        BurstCalendar calendar = new BurstCalendar(TIME_ZONE, ImmutableList.of(), BURST_DURATION_DAYS);
+        assertFalse(calendar.hasBurstStartingOn(BURST_1_START));
+        assertEquals(calendar.findCurrentBurstStart(BURST_1_START), BurstCalendar.NO_BURST);
+        assertEquals(calendar.findNextBurstStart(BURST_1_START), BurstCalendar.NO_BURST);
+    }
+
+    @Test
+    public void mapFinishedDays() throws Exception {
+        // Day -1 is before the range. Days 0 and 2 are finished. Day 1 isn't. Day 2 has a duplicate activity, which
+        // is ignored.
+        List<ScheduledActivity> activityList = ImmutableList.of(
+                makeActivity(BURST_1_START_TIME.minusDays(1), ScheduleStatus.FINISHED),
+                makeActivity(BURST_1_START_TIME, ScheduleStatus.FINISHED),
+                makeActivity(BURST_1_START_TIME.plusDays(1), ScheduleStatus.AVAILABLE),
+                makeActivity(BURST_1_START_TIME.plusDays(2), ScheduleStatus.FINISHED),
+                makeActivity(BURST_1_START_TIME.plusDays(2).plusHours(1), ScheduleStatus.AVAILABLE));
+
+        BitSet duplicateDays = new BitSet();
+        BitSet finishedDays = makeCalendar().mapFinishedDays(activityList.iterator(), BURST_1_START, duplicateDays);
+        assertEquals(finishedDays.cardinality(), 2);
+        assertTrue(finishedDays.get(0));
+        assertFalse(finishedDays.get(1));
+        assertTrue(finishedDays.get(2));
+
+        assertEquals(duplicateDays.cardinality(), 1);
+        assertTrue(duplicateDays.get(2));
+    }
+
+    private static BurstCalendar makeCalendar() {
+        List<ActivityEvent> eventList = ImmutableList.of(
+                new ActivityEvent().eventId("enrollment").timestamp(BURST_1_START_TIME),
+                new ActivityEvent().eventId("custom:activityBurst2Start").timestamp(BURST_2_START_TIME));
+        return new BurstCalendar(TIME_ZONE, eventList, BURST_DURATION_DAYS);
+    }
+
+    private static ScheduledActivity makeActivity(DateTime scheduledOn, ScheduleStatus status) throws Exception {
+        ScheduledActivity activity = new ScheduledActivity().status(status);
+
+        // Use reflection to set scheduledOn.
+        Field scheduledOnField = ScheduledActivity.class.getDeclaredField("scheduledOn");
+        scheduledOnField.setAccessible(true);
+        scheduledOnField.set(activity, scheduledOn);
+
+        return activity;
+    }
+}
@@ -0,0 +1,196 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.joda.time.LocalDate;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.model.ScheduleStatus;
+import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
+
+public class BurstStateTest {
+    private static final LocalDate BURST_START_DATE = LocalDate.parse("2018-04-27");
+    private static final int NUM_RANDOM_TRIALS = 10000;
+    private static final String USER_ID = "test-user";
+
+    @Test
+    public void missedConsecutiveDaysEarly() {
+        BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+        WorkerConfig config = makeConfig(3, 2, 2, 6);
+        burstState.addDay(false, config);
+        assertFalse(burstState.isResolved());
+        burstState.addDay(false, config);
+        assertTrue(burstState.isResolved());
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.EARLY);
+
+        // Later days don't change the result.
+        burstState.addDay(true, config);
+        assertEquals(burstState.getNumActivitiesCompleted(), 0);
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.EARLY);
+    }
+
+    @Test
+    public void missedConsecutiveDaysLate() {
+        BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+        WorkerConfig config = makeConfig(3, 2, 2, 6);
+        burstState.addDay(true, config);
+        burstState.addDay(true, config);
+        burstState.addDay(false, config);
+        burstState.addDay(false, config);
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.LATE);
+    }
+
+    @Test
+    public void missedCumulativeDays() {
+        BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+        WorkerConfig config = makeConfig(3, 2, 5, 6);
+        BitSet finishedDays = new BitSet();
+        finishedDays.set(1);
+        finishedDays.set(3);
+        burstState.addDays(finishedDays, 0, 5, config);
+        assertEquals(burstState.getDaysMissed(), 3);
+        assertEquals(burstState.getResolvedNotificationType(), NotificationType.CUMULATIVE);
+    }
+
+    @Test
+    public void completedBurst() {
+        BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+        WorkerConfig config = makeConfig(3, 2, 5, 2);
+        BitSet finishedDays = new BitSet();
+        finishedDays.set(0, 2);
+        burstState.addDays(finishedDays, 0, 9, config);
+        assertTrue(burstState.isResolved());
+        assertNull(burstState.getResolvedNotificationType());
+
+        // We stop as soon as we're resolved.
+        assertEquals(burstState.getNumDays(), 1);
+        assertEquals(burstState.getNumActivitiesCompleted(), 2);
+    }
+
+    @Test
+    public void copy() {
+        BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+        burstState.addDay(false, makeConfig(3, 2, 5, 6));
+
+        BurstState copy = burstState.copy();
+        assertEquals(copy.getUserId(), USER_ID);
+        assertEquals(copy.getBurstStartDate(), BURST_START_DATE);
+        assertEquals(copy.getLastEvaluatedDate(), BURST_START_DATE.minusDays(1));
+        assertEquals(copy.getDaysMissed(), 1);
+        assertEquals(copy.getConsecutiveDaysMissed(), 1);
+
+        // Changing the copy doesn't change the original.
+        copy.addDay(false, makeConfig(3, 2, 5, 6));
+        assertEquals(burstState.getDaysMissed(), 1);
+        assertFalse(burstState.isResolved());
+        assertTrue(copy.isResolved());
+    }
+
+    @Test
+    public void matchesDayByDayEvaluation() {
+        // Compare against the original day-by-day evaluation over a map of activities, for random activity histories
+        // and configs. For each trial, split the days at a random point into a previous run (saved in the burst state)
+        // and the current run.
+        Random random = new Random(1234);
+        for (int trial = 0; trial < NUM_RANDOM_TRIALS; trial++) {
+            int burstDurationDays = 1 + random.nextInt(20);
+            WorkerConfig config = makeConfig(random.nextInt(8), 1 + random.nextInt(5), 1 + random.nextInt(8),
+                    1 + random.nextInt(burstDurationDays + 1));
+
+            int numDays = 1 + random.nextInt(burstDurationDays);
+            BitSet finishedDays = new BitSet();
+            Map<LocalDate, ScheduledActivity> activitiesByDate = new HashMap<>();
+            for (int i = 0; i < numDays; i++) {
+                int roll = random.nextInt(3);
+                if (roll == 0) {
+                    // No activity this day.
+                    continue;
+                }
+                ScheduleStatus status = roll == 1 ? ScheduleStatus.FINISHED : ScheduleStatus.AVAILABLE;
+                activitiesByDate.put(BURST_START_DATE.plusDays(i), new ScheduledActivity().status(status));
+                if (status == ScheduleStatus.FINISHED) {
+                    finishedDays.set(i);
+                }
+            }
+            LocalDate date = BURST_START_DATE.plusDays(numDays - 1);
+            NotificationType expected = evaluateDayByDay(config, date, activitiesByDate);
+
+            // Today's activity is checked separately, the same as the processor.
+            int todayIndex = numDays - 1;
+            NotificationType actual;
+            if (finishedDays.get(todayIndex)) {
+                actual = null;
+            } else {
+                int splitIndex = random.nextInt(numDays);
+                BurstState burstState = BurstState.create(USER_ID, BURST_START_DATE);
+                burstState.addDays(finishedDays, 0, splitIndex, config);
+                burstState.addDays(finishedDays, splitIndex, todayIndex, config);
+                burstState.addDay(false, config);
+                actual = burstState.getResolvedNotificationType();
+            }
+            assertEquals(actual, expected, "trial " + trial);
+        }
+    }
+
+    // The original day-by-day evaluation, from before the burst state. Kept here to test the burst state against.
+    private static NotificationType evaluateDayByDay(WorkerConfig workerConfig, LocalDate date,
+            Map<LocalDate, ScheduledActivity> activitiesByDate) {
+        // Check today's activities first. If they did today's activities, don't bother notifying.
+        ScheduledActivity todaysActivity = activitiesByDate.get(date);
+        if (todaysActivity != null && todaysActivity.getStatus() == ScheduleStatus.FINISHED) {
+            return null;
+        }
+
+        // Loop through activities in order by date
+        int daysMissed = 0;
+        int consecutiveDaysMissed = 0;
+        int numDays = 0;
+        int numActivitiesCompleted = 0;
+        for (LocalDate d = BURST_START_DATE; !d.isAfter(date); d = d.plusDays(1)) {
+            ScheduledActivity daysActivity = activitiesByDate.get(d);
+            if (daysActivity == null || daysActivity.getStatus() != ScheduleStatus.FINISHED) {
+                daysMissed++;
+                consecutiveDaysMissed++;
+
+                if (daysMissed >= workerConfig.getNumMissedDaysToNotify()) {
+                    return NotificationType.CUMULATIVE;
+                }
+                if (consecutiveDaysMissed >= workerConfig.getNumMissedConsecutiveDaysToNotify()) {
+                    if (numDays < workerConfig.getEarlyLateCutoffDays()) {
+                        return NotificationType.EARLY;
+                    } else {
+                        return NotificationType.LATE;
+                    }
+                }
+            } else {
+                consecutiveDaysMissed = 0;
+                numActivitiesCompleted++;
+
+                if (numActivitiesCompleted >= workerConfig.getNumActivitiesToCompleteBurst()) {
+                    return null;
+                }
+            }
+
+            numDays++;
+        }
+        return null;
+    }
+
+    private static WorkerConfig makeConfig(int earlyLateCutoffDays, int numMissedConsecutiveDaysToNotify,
+            int numMissedDaysToNotify, int numActivitiesToCompleteBurst) {
+        WorkerConfig config = new WorkerConfig();
+        config.setEarlyLateCutoffDays(earlyLateCutoffDays);
+        config.setNumMissedConsecutiveDaysToNotify(numMissedConsecutiveDaysToNotify);
+        config.setNumMissedDaysToNotify(numMissedDaysToNotify);
+        config.setNumActivitiesToCompleteBurst(numActivitiesToCompleteBurst);
+        return config;
+    }
+}
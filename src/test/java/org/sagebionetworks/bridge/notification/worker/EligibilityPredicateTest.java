@@ -0,0 +1,70 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class EligibilityPredicateTest {
+    @Test
+    public void sortByCost() {
+        EligibilityPredicate bridge1 = makePredicate("bridge1", EligibilityPredicate.RequiredData.PARTICIPANT);
+        EligibilityPredicate dynamo = makePredicate("dynamo", EligibilityPredicate.RequiredData.NOTIFICATION_LOG);
+        EligibilityPredicate bridge2 = makePredicate("bridge2", EligibilityPredicate.RequiredData.PARTICIPANT);
+        EligibilityPredicate local = makePredicate("local", EligibilityPredicate.RequiredData.WORKER_CONFIG);
+
+        // Sort is stable, so the two Bridge predicates keep their order.
+        List<EligibilityPredicate> sortedList = EligibilityPredicate.sortByCost(ImmutableList.of(bridge1, dynamo,
+                bridge2, local));
+        assertEquals(sortedList, ImmutableList.of(local, dynamo, bridge1, bridge2));
+    }
+
+    @Test
+    public void countsEvaluationsAndRejections() throws Exception {
+        EligibilityContext mockContext = mock(EligibilityContext.class);
+        boolean[] result = { false };
+        EligibilityPredicate predicate = new EligibilityPredicate("test",
+                EligibilityPredicate.RequiredData.WORKER_CONFIG, context -> result[0]);
+        assertEquals(predicate.getName(), "test");
+        assertEquals(predicate.getCost(), EligibilityPredicate.Cost.LOCAL);
+
+        assertFalse(predicate.rejects(mockContext));
+        result[0] = true;
+        assertTrue(predicate.rejects(mockContext));
+        assertTrue(predicate.rejects(mockContext));
+        assertEquals(predicate.getNumEvaluated(), 3);
+        assertEquals(predicate.getNumRejected(), 2);
+
+        predicate.resetCounters();
+        assertEquals(predicate.getNumEvaluated(), 0);
+        assertEquals(predicate.getNumRejected(), 0);
+        assertEquals(predicate.getTotalMillis(), 0);
+    }
+
+    @Test
+    public void errorIsCountedAsEvaluated() {
+        EligibilityPredicate predicate = new EligibilityPredicate("test",
+                EligibilityPredicate.RequiredData.PARTICIPANT, context -> {
+                    throw new IOException("test exception");
+                });
+        try {
+            predicate.rejects(mock(EligibilityContext.class));
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(predicate.getNumEvaluated(), 1);
+        assertEquals(predicate.getNumRejected(), 0);
+    }
+
+    private static EligibilityPredicate makePredicate(String name, EligibilityPredicate.RequiredData requiredData) {
+        return new EligibilityPredicate(name, requiredData, context -> false);
+    }
+}
@@ -0,0 +1,41 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+public class LocalNotificationEventQueueTest {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    @Test
+    public void processPendingEvents() throws Exception {
+        // Make events. The second event fails.
+        ObjectNode event1 = JSON_MAPPER.createObjectNode().put("userId", "user-1");
+        ObjectNode event2 = JSON_MAPPER.createObjectNode().put("userId", "user-2");
+        ObjectNode event3 = JSON_MAPPER.createObjectNode().put("userId", "user-3");
+
+        NotificationEventProcessor mockProcessor = mock(NotificationEventProcessor.class);
+        doThrow(PollSqsWorkerBadRequestException.class).when(mockProcessor).accept(event2);
+
+        LocalNotificationEventQueue queue = new LocalNotificationEventQueue();
+        queue.setNotificationEventProcessor(mockProcessor);
+        queue.offer(event1);
+        queue.offer(event2);
+        queue.offer(event3);
+        assertEquals(queue.size(), 3);
+
+        // Execute and validate. The failed event doesn't stop the others.
+        assertEquals(queue.processPendingEvents(), 2);
+        assertEquals(queue.size(), 0);
+        verify(mockProcessor).accept(event1);
+        verify(mockProcessor).accept(event2);
+        verify(mockProcessor).accept(event3);
+    }
+}
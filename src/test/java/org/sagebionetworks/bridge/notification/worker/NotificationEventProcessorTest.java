@@ -0,0 +1,106 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+public class NotificationEventProcessorTest {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String STUDY_ID = "test-study";
+    private static final String USER_ID = "test-user";
+
+    // 2018-04-28 in UTC. The user's local date is 2018-04-27 or 2018-04-28.
+    private static final String TIMESTAMP = "2018-04-27T20:00:00.000-0700";
+
+    private DynamoHelper mockDynamoHelper;
+    private NotificationEventProcessor processor;
+
+    @BeforeMethod
+    public void before() {
+        mockDynamoHelper = mock(DynamoHelper.class);
+
+        WorkerConfig workerConfig = new WorkerConfig();
+        workerConfig.setBurstDurationDays(9);
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(workerConfig);
+
+        processor = new NotificationEventProcessor();
+        processor.setDynamoHelper(mockDynamoHelper);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "studyId must be specified")
+    public void argsNoStudyId() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode(NotificationEventType.ACTIVITY_COMPLETED);
+        requestNode.remove(NotificationEventProcessor.REQUEST_PARAM_STUDY_ID);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userId must be a string")
+    public void argsUserIdWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode(NotificationEventType.ACTIVITY_COMPLETED);
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_USER_ID, 1234);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "Invalid eventType ACTIVITY_STARTED")
+    public void argsInvalidEventType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode(NotificationEventType.ACTIVITY_COMPLETED);
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_EVENT_TYPE, "ACTIVITY_STARTED");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "timestamp must be an ISO 8601 date-time")
+    public void argsInvalidTimestamp() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode(NotificationEventType.ACTIVITY_COMPLETED);
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_TIMESTAMP, "April 27, 2018");
+        try {
+            processor.accept(requestNode);
+        } finally {
+            verifyZeroInteractions(mockDynamoHelper);
+        }
+    }
+
+    @Test
+    public void activityCompleted() throws Exception {
+        processor.accept(makeValidRequestNode(NotificationEventType.ACTIVITY_COMPLETED));
+
+        // Local date of the event and the day after.
+        verify(mockDynamoHelper).markUserActiveForDates(STUDY_ID, USER_ID, LocalDate.parse("2018-04-27"),
+                LocalDate.parse("2018-04-29"));
+        verify(mockDynamoHelper, never()).deleteNotificationSkipForUser(any());
+    }
+
+    @Test
+    public void burstStarted() throws Exception {
+        processor.accept(makeValidRequestNode(NotificationEventType.BURST_STARTED));
+
+        // Day before the earliest possible burst start, to the last day of the latest possible burst.
+        verify(mockDynamoHelper).markUserActiveForDates(STUDY_ID, USER_ID, LocalDate.parse("2018-04-26"),
+                LocalDate.parse("2018-05-06"));
+        verify(mockDynamoHelper).deleteNotificationSkipForUser(USER_ID);
+    }
+
+    private static ObjectNode makeValidRequestNode(NotificationEventType eventType) {
+        ObjectNode requestNode = JSON_MAPPER.createObjectNode();
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_STUDY_ID, STUDY_ID);
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_USER_ID, USER_ID);
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_EVENT_TYPE, eventType.name());
+        requestNode.put(NotificationEventProcessor.REQUEST_PARAM_TIMESTAMP, TIMESTAMP);
+        return requestNode;
+    }
+}
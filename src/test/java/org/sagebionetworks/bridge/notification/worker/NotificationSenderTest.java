@@ -0,0 +1,276 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.notification.exceptions.UserNotConfiguredException;
+import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.MessageTemplate;
+import org.sagebionetworks.bridge.notification.helper.TemplateVariableHelper;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+public class NotificationSenderTest {
+    private static final String MESSAGE = "dummy message";
+    private static final String MESSAGE_STUDY_COMMITMENT = "commitment=${studyCommitment}";
+    private static final long MOCK_NOW_MILLIS = DateTimeUtils.currentTimeMillis();
+    private static final String RESOLVED_SUFFIX = " resolved";
+    private static final String STUDY_ID = "test-study";
+    private static final String USER_ID = "test-user";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int SENDER_COUNT = 2;
+
+    private BridgeHelper mockBridgeHelper;
+    private DynamoHelper mockDynamoHelper;
+    private TemplateVariableHelper mockTemplateVariableHelper;
+    private ExecutorService executorService;
+    private NotificationSender sender;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        mockBridgeHelper = mock(BridgeHelper.class);
+        mockDynamoHelper = mock(DynamoHelper.class);
+
+        // Mock template variable helper. Template variables are parsed for real, but resolving them just appends a
+        // string.
+        mockTemplateVariableHelper = mock(TemplateVariableHelper.class);
+        when(mockTemplateVariableHelper.getTemplateVariables(anyString())).thenAnswer(invocation ->
+                MessageTemplate.compile(invocation.getArgumentAt(0, String.class)).getVariableSet());
+        when(mockTemplateVariableHelper.resolveTemplateVariables(eq(STUDY_ID), any(), any())).thenAnswer(
+                invocation -> invocation.getArgumentAt(2, String.class) + RESOLVED_SUFFIX);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SEND_BATCH_SIZE)).thenReturn(2);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SEND_MAX_ATTEMPTS)).thenReturn(MAX_ATTEMPTS);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SEND_QUEUE_SIZE)).thenReturn(2);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SEND_RATE_LIMIT)).thenReturn(1000);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SEND_RETRY_DELAY_MILLIS)).thenReturn(0);
+        when(mockConfig.getInt(NotificationSender.CONFIG_KEY_SENDER_COUNT)).thenReturn(SENDER_COUNT);
+
+        executorService = Executors.newFixedThreadPool(SENDER_COUNT);
+
+        sender = new NotificationSender();
+        sender.setBridgeHelper(mockBridgeHelper);
+        sender.setConfig(mockConfig);
+        sender.setDynamoHelper(mockDynamoHelper);
+        sender.setExecutorService(executorService);
+        sender.setTemplateVariableHelper(mockTemplateVariableHelper);
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void sendOutsideOfRun() throws Exception {
+        // Outside of a run, the notification is sent on the calling thread. The notification log is written after
+        // the SMS is sent.
+        sender.submit(makePendingNotification(USER_ID, NotificationType.EARLY, MESSAGE));
+
+        InOrder inOrder = inOrder(mockBridgeHelper, mockDynamoHelper);
+        inOrder.verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        inOrder.verify(mockDynamoHelper).setLastNotificationTimeForUser(any());
+        verifyNotificationLog(NotificationType.EARLY, MESSAGE);
+        assertEquals(sender.getNumSent(NotificationType.EARLY), 1);
+    }
+
+    @Test
+    public void sendRetried() throws Exception {
+        // Can't connect the first time, succeeds the second time.
+        doThrow(ConnectException.class).doNothing().when(mockBridgeHelper).sendSmsToUser(STUDY_ID, USER_ID,
+                MESSAGE + RESOLVED_SUFFIX);
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.LATE, MESSAGE));
+        verify(mockBridgeHelper, times(2)).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        verifyNotificationLog(NotificationType.LATE, MESSAGE);
+        assertEquals(sender.getNumSent(NotificationType.LATE), 1);
+        assertEquals(sender.getNumFailed(NotificationType.LATE), 0);
+    }
+
+    @Test
+    public void sendFailed() throws Exception {
+        // Always fails. We give up after the max attempts, and don't log the notification, so the user can be
+        // notified on a later run.
+        doThrow(new BridgeSDKException("unavailable", 503)).when(mockBridgeHelper).sendSmsToUser(any(), any(),
+                any());
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.CUMULATIVE, MESSAGE));
+        verify(mockBridgeHelper, times(MAX_ATTEMPTS)).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        verify(mockDynamoHelper, never()).setLastNotificationTimeForUser(any());
+        assertEquals(sender.getNumSent(NotificationType.CUMULATIVE), 0);
+        assertEquals(sender.getNumFailed(NotificationType.CUMULATIVE), 1);
+    }
+
+    @Test
+    public void sendThrottledRetried() throws Exception {
+        // Throttled the first time, succeeds the second time.
+        doThrow(new BridgeSDKException("throttled", 429)).doNothing().when(mockBridgeHelper).sendSmsToUser(
+                STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.LATE, MESSAGE));
+        verify(mockBridgeHelper, times(2)).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        assertEquals(sender.getNumSent(NotificationType.LATE), 1);
+    }
+
+    @Test
+    public void ambiguousSendErrorNotRetried() throws Exception {
+        // The SMS might have been sent before the error, so we don't retry, to avoid sending a duplicate SMS.
+        doThrow(SocketTimeoutException.class).when(mockBridgeHelper).sendSmsToUser(any(), any(), any());
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.LATE, MESSAGE));
+        verify(mockBridgeHelper, times(1)).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        verify(mockDynamoHelper, never()).setLastNotificationTimeForUser(any());
+        assertEquals(sender.getNumSent(NotificationType.LATE), 0);
+        assertEquals(sender.getNumFailed(NotificationType.LATE), 1);
+    }
+
+    @Test
+    public void isSmsRetryable() {
+        assertTrue(NotificationSender.isSmsRetryable(new ConnectException()));
+        assertTrue(NotificationSender.isSmsRetryable(new IOException(new ConnectException())));
+        assertTrue(NotificationSender.isSmsRetryable(new BridgeSDKException("throttled", 429)));
+        assertTrue(NotificationSender.isSmsRetryable(new BridgeSDKException("unavailable", 503)));
+        assertFalse(NotificationSender.isSmsRetryable(new BridgeSDKException("server error", 500)));
+        assertFalse(NotificationSender.isSmsRetryable(new SocketTimeoutException()));
+        assertFalse(NotificationSender.isSmsRetryable(new IOException()));
+    }
+
+    @Test
+    public void notificationLogRetried() throws Exception {
+        // The SMS is only sent once, even if the notification log needs a retry.
+        doThrow(RuntimeException.class).doNothing().when(mockDynamoHelper).setLastNotificationTimeForUser(any());
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.EARLY, MESSAGE));
+        verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE + RESOLVED_SUFFIX);
+        verify(mockDynamoHelper, times(2)).setLastNotificationTimeForUser(any());
+        assertEquals(sender.getNumSent(NotificationType.EARLY), 1);
+    }
+
+    @Test
+    public void userNotConfigured() throws Exception {
+        when(mockTemplateVariableHelper.resolveTemplateVariables(eq(STUDY_ID), any(), any())).thenThrow(
+                UserNotConfiguredException.class);
+
+        sender.submit(makePendingNotification(USER_ID, NotificationType.EARLY, MESSAGE_STUDY_COMMITMENT));
+        verify(mockBridgeHelper, never()).sendSmsToUser(any(), any(), any());
+        verify(mockDynamoHelper, never()).setLastNotificationTimeForUser(any());
+        assertEquals(sender.getNumFailed(NotificationType.EARLY), 1);
+    }
+
+    @Test
+    public void sendDuringRun() throws Exception {
+        // Participants are mocked up front, since mocking isn't thread-safe.
+        List<PendingNotification> pendingNotificationList = new ArrayList<>();
+        pendingNotificationList.add(makePendingNotification("user-A", NotificationType.EARLY,
+                MESSAGE_STUDY_COMMITMENT));
+        pendingNotificationList.add(makePendingNotification("user-B", NotificationType.EARLY, MESSAGE));
+        pendingNotificationList.add(makePendingNotification("user-C", NotificationType.PRE_BURST,
+                MESSAGE_STUDY_COMMITMENT));
+        pendingNotificationList.add(makePendingNotification("user-D", NotificationType.LATE, MESSAGE));
+        pendingNotificationList.add(makePendingNotification("user-E", NotificationType.LATE, MESSAGE));
+
+        // User D always fails.
+        doNothing().when(mockBridgeHelper).sendSmsToUser(any(), any(), any());
+        doThrow(ConnectException.class).when(mockBridgeHelper).sendSmsToUser(STUDY_ID, "user-D", MESSAGE +
+                RESOLVED_SUFFIX);
+
+        // Execute. The queue only fits 2, so this also tests waiting for room in the queue.
+        sender.start();
+        for (PendingNotification onePendingNotification : pendingNotificationList) {
+            sender.submit(onePendingNotification);
+        }
+        sender.finish();
+
+        // Study commitments are prefetched for users A and C, but not the others. Depending on timing, this might be
+        // one batch or two.
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        ArgumentCaptor<List<String>> userIdListCaptor = ArgumentCaptor.forClass((Class) List.class);
+        verify(mockTemplateVariableHelper, atLeastOnce()).prefetchStudyCommitments(eq(STUDY_ID),
+                userIdListCaptor.capture());
+        List<String> prefetchedUserIdList = new ArrayList<>();
+        for (List<String> oneUserIdList : userIdListCaptor.getAllValues()) {
+            prefetchedUserIdList.addAll(oneUserIdList);
+        }
+        assertEquals(prefetchedUserIdList.size(), 2);
+        assertEquals(ImmutableSet.copyOf(prefetchedUserIdList), ImmutableSet.of("user-A", "user-C"));
+
+        // Everything is sent before finish() returns. User D isn't logged.
+        verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, "user-A", MESSAGE_STUDY_COMMITMENT + RESOLVED_SUFFIX);
+        verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, "user-B", MESSAGE + RESOLVED_SUFFIX);
+        verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, "user-C", MESSAGE_STUDY_COMMITMENT + RESOLVED_SUFFIX);
+        verify(mockBridgeHelper, times(MAX_ATTEMPTS)).sendSmsToUser(STUDY_ID, "user-D", MESSAGE +
+                RESOLVED_SUFFIX);
+        verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, "user-E", MESSAGE + RESOLVED_SUFFIX);
+        verify(mockDynamoHelper, times(4)).setLastNotificationTimeForUser(any());
+
+        // Counters are per type.
+        assertEquals(sender.getNumSent(NotificationType.EARLY), 2);
+        assertEquals(sender.getNumSent(NotificationType.PRE_BURST), 1);
+        assertEquals(sender.getNumSent(NotificationType.LATE), 1);
+        assertEquals(sender.getNumFailed(NotificationType.LATE), 1);
+
+        // Study commitments are only cached for the run.
+        verify(mockTemplateVariableHelper).clearStudyCommitmentCache();
+
+        // Starting a new run resets the counters.
+        sender.start();
+        sender.finish();
+        assertEquals(sender.getNumSent(NotificationType.EARLY), 0);
+        assertEquals(sender.getNumFailed(NotificationType.LATE), 0);
+    }
+
+    private static PendingNotification makePendingNotification(String userId, NotificationType type,
+            String message) {
+        // Participant needs to be mocked because we can't set ID
+        StudyParticipant participant = mock(StudyParticipant.class);
+        when(participant.getId()).thenReturn(userId);
+        return new PendingNotification(STUDY_ID, participant, type, message);
+    }
+
+    private void verifyNotificationLog(NotificationType type, String message) {
+        ArgumentCaptor<UserNotification> userNotificationCaptor = ArgumentCaptor.forClass(UserNotification.class);
+        verify(mockDynamoHelper, atLeastOnce()).setLastNotificationTimeForUser(userNotificationCaptor.capture());
+
+        UserNotification userNotification = userNotificationCaptor.getValue();
+        assertEquals(userNotification.getMessage(), message + RESOLVED_SUFFIX);
+        assertEquals(userNotification.getTime(), MOCK_NOW_MILLIS);
+        assertEquals(userNotification.getType(), type);
+        assertEquals(userNotification.getUserId(), USER_ID);
+    }
+}
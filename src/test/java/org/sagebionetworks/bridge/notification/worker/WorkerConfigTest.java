@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertTrue;
 
 import java.util.List;
@@ -53,6 +54,28 @@ public class WorkerConfigTest {
         testMapNeverNull(WorkerConfig::getPreburstMessagesByDataGroup, WorkerConfig::setPreburstMessagesByDataGroup);
     }
 
+    @Test
+    public void burstRulesHash() {
+        WorkerConfig config = new WorkerConfig();
+        config.setBurstDurationDays(9);
+        config.setBurstStartEventIdSet(ImmutableSet.of("enrollment", "custom:activityBurst2Start"));
+        config.setBurstTaskId("study-burst-task");
+        config.setNumActivitiesToCompleteBurst(6);
+        int hash = config.getBurstRulesHash();
+
+        // Messages don't affect the burst rules.
+        config.setMissedEarlyActivitiesMessagesList(DUMMY_LIST);
+        assertEquals(config.getBurstRulesHash(), hash);
+
+        // Order of the event ID set doesn't matter.
+        config.setBurstStartEventIdSet(ImmutableSet.of("custom:activityBurst2Start", "enrollment"));
+        assertEquals(config.getBurstRulesHash(), hash);
+
+        // Burst rules do.
+        config.setNumActivitiesToCompleteBurst(5);
+        assertNotEquals(config.getBurstRulesHash(), hash);
+    }
+
     // The following tests are duplicated per collection type, because generics and inheritance behaves in ways that
     // make this difficult to genericize.
 
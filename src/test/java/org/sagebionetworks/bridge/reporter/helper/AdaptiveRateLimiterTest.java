@@ -0,0 +1,40 @@
+package org.sagebionetworks.bridge.reporter.helper;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveRateLimiterTest {
+    private static final double DELTA = 0.001;
+
+    @Test
+    public void throttledThenRecovers() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(10.0, 2.0);
+        assertEquals(rateLimiter.getRate(), 10.0, DELTA);
+
+        // Throttling halves the rate, down to the min.
+        rateLimiter.recordThrottled();
+        assertEquals(rateLimiter.getRate(), 5.0, DELTA);
+        rateLimiter.recordThrottled();
+        assertEquals(rateLimiter.getRate(), 2.5, DELTA);
+        rateLimiter.recordThrottled();
+        assertEquals(rateLimiter.getRate(), 2.0, DELTA);
+
+        // About a second's worth of successes raises the rate by a tenth of the max.
+        rateLimiter.recordSuccess();
+        assertEquals(rateLimiter.getRate(), 2.0, DELTA);
+        rateLimiter.recordSuccess();
+        assertEquals(rateLimiter.getRate(), 3.0, DELTA);
+
+        // The rate never goes above the max.
+        for (int i = 0; i < 100; i++) {
+            rateLimiter.recordSuccess();
+        }
+        assertEquals(rateLimiter.getRate(), 10.0, DELTA);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void minRateAboveMaxRate() {
+        new AdaptiveRateLimiter(1.0, 2.0);
+    }
+}
@@ -11,34 +11,43 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.bridge.reporter.helper.BridgeHelper.MAX_PAGE_SIZE;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import retrofit2.Call;
 import retrofit2.Response;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.reporter.Tests;
 import org.sagebionetworks.bridge.reporter.worker.Report;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.RestUtils;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.api.StudiesApi;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.AccountSummaryList;
 import org.sagebionetworks.bridge.rest.model.ActivityEventList;
@@ -80,6 +89,7 @@ public class BridgeHelperTest {
 
     private static final Study TEST_STUDY_SUMMARY = new Study().identifier(TEST_STUDY_ID).name(TEST_STUDY_ID);
 
+    private ExecutorService executorService;
     private Upload testUpload;
     
     @Spy
@@ -105,6 +115,14 @@ public class BridgeHelperTest {
         
         bridgeHelper = new BridgeHelper();
         bridgeHelper.setBridgeClientManager(mockClientManager);
+
+        executorService = Executors.newFixedThreadPool(2);
+        bridgeHelper.setParticipantExecutorService(executorService);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
     }
     
     @Test
@@ -140,9 +158,9 @@ public class BridgeHelperTest {
 
         when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
 
-        List<Upload> retUploadsForStudy = bridgeHelper.getUploadsForStudy(TEST_STUDY_ID, TEST_START_DATETIME,
-                TEST_END_DATETIME);
-        assertEquals(retUploadsForStudy, ImmutableList.of(testUpload));
+        List<List<Upload>> retUploadPages = newArrayList(bridgeHelper.getUploadPagesForStudy(TEST_STUDY_ID,
+                TEST_START_DATETIME, TEST_END_DATETIME));
+        assertEquals(retUploadPages, ImmutableList.of(ImmutableList.of(testUpload)));
     }
 
     @Test
@@ -170,16 +188,75 @@ public class BridgeHelperTest {
         when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
 
         // execute
-        List<Upload> retUploadsForStudy = bridgeHelper.getUploadsForStudy(TEST_STUDY_ID, TEST_START_DATETIME,
-                TEST_END_DATETIME);
+        List<List<Upload>> retUploadPages = newArrayList(bridgeHelper.getUploadPagesForStudy(TEST_STUDY_ID,
+                TEST_START_DATETIME, TEST_END_DATETIME));
 
         // verify
         // called twice
         verify(mockWorkerClient, times(2)).getUploadsForStudy(any(), any(), any(), any(), any());
-        // contain 2 test uploads
-        assertEquals(retUploadsForStudy, ImmutableList.of(testUpload, testUpload));
+        // contain 2 pages of test uploads
+        assertEquals(retUploadPages, ImmutableList.of(ImmutableList.of(testUpload), ImmutableList.of(testUpload)));
     }
     
+    @Test
+    public void testGetUploadsForStudyConfiguredPageSize() throws Exception {
+        // Page sizes above the API max are capped.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_MAX_RATE_LIMIT)).thenReturn(100);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_MIN_RATE_LIMIT)).thenReturn(1);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_PARTICIPANT_PAGE_SIZE)).thenReturn(250);
+        when(mockConfig.getInt(BridgeHelper.CONFIG_KEY_UPLOAD_PAGE_SIZE)).thenReturn(50);
+        bridgeHelper.setConfig(mockConfig);
+        assertEquals(bridgeHelper.getRequestBudget().getRate(), 100.0, 0.001);
+
+        // mock SDK get uploads call
+        UploadList uploadList = mock(UploadList.class);
+        when(uploadList.getItems()).thenReturn(ImmutableList.of(testUpload));
+        Call<UploadList> mockCall = makeCall(uploadList);
+        when(mockWorkerClient.getUploadsForStudy(TEST_STUDY_ID, TEST_START_DATETIME, TEST_END_DATETIME, 50, null))
+                .thenReturn(mockCall);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
+
+        List<List<Upload>> retUploadPages = newArrayList(bridgeHelper.getUploadPagesForStudy(TEST_STUDY_ID,
+                TEST_START_DATETIME, TEST_END_DATETIME));
+        assertEquals(retUploadPages, ImmutableList.of(ImmutableList.of(testUpload)));
+    }
+
+    @Test
+    public void testThrottledCallRetried() throws Exception {
+        // The first call is throttled. The second call succeeds.
+        RequestInfo requestInfo = new RequestInfo();
+        Call<RequestInfo> throttledCall = mock(Call.class);
+        when(throttledCall.execute()).thenThrow(new BridgeSDKException("throttled", 429));
+        Call<RequestInfo> successCall = makeCall(requestInfo);
+        when(mockWorkerClient.getRequestInfoForWorker(TEST_STUDY_ID, USER_ID_1)).thenReturn(throttledCall,
+                successCall);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
+
+        double rateBefore = bridgeHelper.getRequestBudget().getRate();
+
+        // Execute and verify. The budget was reduced.
+        assertSame(bridgeHelper.getRequestInfoForParticipant(TEST_STUDY_ID, USER_ID_1), requestInfo);
+        verify(mockWorkerClient, times(2)).getRequestInfoForWorker(TEST_STUDY_ID, USER_ID_1);
+        assertTrue(bridgeHelper.getRequestBudget().getRate() < rateBefore);
+    }
+
+    @Test
+    public void testOtherErrorNotRetried() throws Exception {
+        Call<RequestInfo> errorCall = mock(Call.class);
+        when(errorCall.execute()).thenThrow(new BridgeSDKException("server error", 500));
+        when(mockWorkerClient.getRequestInfoForWorker(TEST_STUDY_ID, USER_ID_1)).thenReturn(errorCall);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
+
+        try {
+            bridgeHelper.getRequestInfoForParticipant(TEST_STUDY_ID, USER_ID_1);
+            fail("expected exception");
+        } catch (BridgeSDKException ex) {
+            assertEquals(ex.getStatusCode(), 500);
+        }
+        verify(mockWorkerClient, times(1)).getRequestInfoForWorker(TEST_STUDY_ID, USER_ID_1);
+    }
+
     @Test
     public void testSaveReportForStudy() throws Exception {
         // mock SDK save report call
@@ -254,6 +331,31 @@ public class BridgeHelperTest {
         
         verify(mockWorkerClient).getParticipantsForStudy(eq(TEST_STUDY_ID), any(), any(), any(), any(), any(), any());
     }
+
+    @Test
+    public void testGetAllAccountSummariesThrottledCallRetried() throws Exception {
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerClient);
+
+        AccountSummaryList accountSummaryList = mock(AccountSummaryList.class);
+        when(accountSummaryList.getItems()).thenReturn(ImmutableList.of());
+        when(accountSummaryList.getTotal()).thenReturn(0);
+
+        // The first call is throttled. The second call succeeds.
+        Call<AccountSummaryList> throttledCall = mock(Call.class);
+        when(throttledCall.execute()).thenThrow(new BridgeSDKException("throttled", 429));
+        Call<AccountSummaryList> successCall = makeCall(accountSummaryList);
+        when(mockWorkerClient.getParticipantsForStudy(TEST_STUDY_ID, 0, AccountSummaryIterator.PAGE_SIZE, null, null,
+                null, null)).thenReturn(throttledCall, successCall);
+
+        double rateBefore = bridgeHelper.getRequestBudget().getRate();
+
+        // Execute and verify. The budget was reduced.
+        Iterator<AccountSummary> accountSummaryIterator = bridgeHelper.getAllAccountSummaries(TEST_STUDY_ID);
+        assertFalse(accountSummaryIterator.hasNext());
+        verify(mockWorkerClient, times(2)).getParticipantsForStudy(TEST_STUDY_ID, 0, AccountSummaryIterator.PAGE_SIZE,
+                null, null, null, null);
+        assertTrue(bridgeHelper.getRequestBudget().getRate() < rateBefore);
+    }
     
     @Test
     public void testGetParticipantsForStudy() throws Exception {
@@ -279,8 +381,15 @@ public class BridgeHelperTest {
         stubParticipants.add(mockCallForParticipant(mockWorkerClient, USER_ID_3));
         stubParticipants.add(mockCallForParticipant(mockWorkerClient, USER_ID_4));
         
-        List<StudyParticipant> participants = bridgeHelper.getParticipantsForStudy(TEST_STUDY_ID, TEST_START_DATETIME,
-                TEST_END_DATETIME);
+        Iterator<List<StudyParticipant>> participantPageIter = bridgeHelper.getParticipantPagesForStudy(TEST_STUDY_ID,
+                TEST_START_DATETIME, TEST_END_DATETIME);
+
+        // Pages are fetched lazily.
+        verify(mockWorkerClient, times(0)).getParticipantsForStudy(any(), any(), any(), any(), any(), any(), any());
+
+        List<List<StudyParticipant>> participantPages = newArrayList(participantPageIter);
+        assertEquals(participantPages.size(), 2);
+        List<StudyParticipant> participants = newArrayList(Iterators.concat(participantPages.iterator()));
         // All four participants are returned from two pages of records
         assertEquals(participants.get(0), stubParticipants.get(0));
         assertEquals(participants.get(1), stubParticipants.get(1));
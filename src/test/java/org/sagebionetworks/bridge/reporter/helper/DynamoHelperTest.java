@@ -0,0 +1,130 @@
+package org.sagebionetworks.bridge.reporter.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.reporter.worker.ParticipantFacts;
+import org.sagebionetworks.bridge.rest.model.Role;
+
+public class DynamoHelperTest {
+    private static final DateTime CREATED_ON = DateTime.parse("2018-04-20T10:15:00.000Z");
+    private static final long REFRESHED_ON = DateTime.parse("2018-04-27T16:41:15.831Z").getMillis();
+    private static final DateTime STUDY_START_DATE = DateTime.parse("2018-04-21T09:30:00.000Z");
+    private static final String STUDY_ID = "test-study";
+    private static final String USER_ID = "test-user";
+
+    private DynamoHelper dynamoHelper;
+    private Table mockParticipantFactsTable;
+
+    @BeforeMethod
+    public void before() {
+        mockParticipantFactsTable = mock(Table.class);
+
+        dynamoHelper = new DynamoHelper();
+        dynamoHelper.setDdbReporterParticipantFactsTable(mockParticipantFactsTable);
+    }
+
+    @Test
+    public void getParticipantFacts() {
+        // Set up mock
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID, USER_ID)
+                .withString(DynamoHelper.KEY_CREATED_ON, CREATED_ON.toString())
+                .withLong(DynamoHelper.KEY_REFRESHED_ON, REFRESHED_ON)
+                .withStringSet(DynamoHelper.KEY_ROLE_SET, "DEVELOPER", "RESEARCHER")
+                .withString(DynamoHelper.KEY_STUDY_START_DATE, STUDY_START_DATE.toString());
+        when(mockParticipantFactsTable.getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID,
+                USER_ID)).thenReturn(item);
+
+        // Execute and validate
+        ParticipantFacts facts = dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID);
+        assertEquals(facts.getStudyId(), STUDY_ID);
+        assertEquals(facts.getUserId(), USER_ID);
+        assertEquals(facts.getCreatedOn().getMillis(), CREATED_ON.getMillis());
+        assertEquals(facts.getRefreshedOn(), REFRESHED_ON);
+        assertEquals(facts.getRoles(), ImmutableSet.of(Role.DEVELOPER, Role.RESEARCHER));
+        assertEquals(facts.getStudyStartDate().getMillis(), STUDY_START_DATE.getMillis());
+    }
+
+    @Test
+    public void getParticipantFacts_OptionalValuesMissing() {
+        // Set up mock
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID, USER_ID)
+                .withLong(DynamoHelper.KEY_REFRESHED_ON, REFRESHED_ON);
+        when(mockParticipantFactsTable.getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID,
+                USER_ID)).thenReturn(item);
+
+        // Execute and validate
+        ParticipantFacts facts = dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID);
+        assertNull(facts.getCreatedOn());
+        assertEquals(facts.getRefreshedOn(), REFRESHED_ON);
+        assertTrue(facts.getRoles().isEmpty());
+        assertNull(facts.getStudyStartDate());
+    }
+
+    @Test
+    public void getParticipantFacts_NoResult() {
+        ParticipantFacts facts = dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID);
+        assertNull(facts);
+    }
+
+    @Test
+    public void saveParticipantFacts() {
+        // Execute
+        ParticipantFacts facts = new ParticipantFacts();
+        facts.setStudyId(STUDY_ID);
+        facts.setUserId(USER_ID);
+        facts.setCreatedOn(CREATED_ON);
+        facts.setRefreshedOn(REFRESHED_ON);
+        facts.setRoles(ImmutableList.of(Role.DEVELOPER));
+        facts.setStudyStartDate(STUDY_START_DATE);
+        dynamoHelper.saveParticipantFacts(facts);
+
+        // Validate back-end
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockParticipantFactsTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_ID), STUDY_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_CREATED_ON), CREATED_ON.toString());
+        assertEquals(item.getLong(DynamoHelper.KEY_REFRESHED_ON), REFRESHED_ON);
+        assertEquals(item.getStringSet(DynamoHelper.KEY_ROLE_SET), ImmutableSet.of("DEVELOPER"));
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_START_DATE), STUDY_START_DATE.toString());
+    }
+
+    @Test
+    public void saveParticipantFacts_OptionalValuesMissing() {
+        // Execute. An ordinary participant with no study start date yet.
+        ParticipantFacts facts = new ParticipantFacts();
+        facts.setStudyId(STUDY_ID);
+        facts.setUserId(USER_ID);
+        facts.setRefreshedOn(REFRESHED_ON);
+        dynamoHelper.saveParticipantFacts(facts);
+
+        // Validate back-end. DDB doesn't allow empty sets, so the role set isn't written at all.
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockParticipantFactsTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_ID), STUDY_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getLong(DynamoHelper.KEY_REFRESHED_ON), REFRESHED_ON);
+        assertFalse(item.isPresent(DynamoHelper.KEY_CREATED_ON));
+        assertFalse(item.isPresent(DynamoHelper.KEY_ROLE_SET));
+        assertFalse(item.isPresent(DynamoHelper.KEY_STUDY_START_DATE));
+    }
+}
@@ -2,15 +2,22 @@ package org.sagebionetworks.bridge.reporter.worker;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
@@ -18,6 +25,7 @@ import com.google.common.collect.ImmutableMap;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -37,6 +45,7 @@ public class BridgeReporterProcessorMockTest {
     private static final String STUDY_ID_3 = "study3";
 
     private BridgeHelper mockBridgeHelper;
+    private ExecutorService executorService;
     private ReportGenerator mockGenerator;
     private BridgeReporterProcessor processor;
 
@@ -62,6 +71,15 @@ public class BridgeReporterProcessorMockTest {
         processor = new BridgeReporterProcessor();
         processor.setBridgeHelper(mockBridgeHelper);
         processor.setGeneratorMap(generatorMap);
+        processor.setStudyTimeoutMillis(TimeUnit.SECONDS.toMillis(10));
+
+        executorService = Executors.newFixedThreadPool(2);
+        processor.setExecutorService(executorService);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
     }
 
     @Test
@@ -112,6 +130,86 @@ public class BridgeReporterProcessorMockTest {
         verifyNoMoreInteractions(mockGenerator, mockBridgeHelper);
     }
 
+    @Test
+    public void studiesGeneratedConcurrently() throws Exception {
+        // Each study waits until two studies have started. This only finishes if the studies are generated
+        // concurrently.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        when(mockGenerator.generate(any(), any())).thenAnswer(invocation -> {
+            startedLatch.countDown();
+            assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+            String studyId = invocation.getArgumentAt(1, String.class);
+            return new Report.Builder().withDate(REPORT_DATE).withReportData(DUMMY_DATA_PREFIX + studyId)
+                    .withReportId(REPORT_ID).withStudyId(studyId).build();
+        });
+
+        // Execute and verify.
+        ReportRunSummary summary = processor.generateReports(makeRequest(), mockGenerator, ImmutableList.of(
+                STUDY_ID_1, STUDY_ID_2));
+        assertEquals(summary.getSavedStudyIdList(), ImmutableList.of(STUDY_ID_1, STUDY_ID_2));
+    }
+
+    @Test
+    public void failuresIsolated() throws Exception {
+        // Study 1 fails to generate. Study 2 fails to save. Study 3 succeeds.
+        when(mockGenerator.generate(any(), eq(STUDY_ID_1))).thenThrow(IOException.class);
+        doAnswer(invocation -> {
+            Report report = invocation.getArgumentAt(0, Report.class);
+            if (STUDY_ID_2.equals(report.getStudyId())) {
+                throw new RuntimeException("test exception");
+            }
+            return null;
+        }).when(mockBridgeHelper).saveReportForStudy(any());
+
+        // Execute.
+        ReportRunSummary summary = processor.generateReports(makeRequest(), mockGenerator, ImmutableList.of(
+                STUDY_ID_1, STUDY_ID_2, STUDY_ID_3));
+
+        // Verify.
+        assertEquals(summary.getSavedStudyIdList(), ImmutableList.of(STUDY_ID_3));
+        assertEquals(summary.getFailedStudyIdList(), ImmutableList.of(STUDY_ID_1, STUDY_ID_2));
+        assertTrue(summary.getTimedOutStudyIdList().isEmpty());
+        assertTrue(summary.getSkippedStudyIdList().isEmpty());
+
+        ArgumentCaptor<Report> reportCaptor = ArgumentCaptor.forClass(Report.class);
+        verify(mockBridgeHelper, times(2)).saveReportForStudy(reportCaptor.capture());
+        validateSavedReport(reportCaptor.getAllValues().get(1), STUDY_ID_3);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        // Study 1 never finishes, until it's cancelled.
+        CountDownLatch cancelledLatch = new CountDownLatch(1);
+        when(mockGenerator.generate(any(), eq(STUDY_ID_1))).thenAnswer(invocation -> {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                cancelledLatch.countDown();
+            }
+            return null;
+        });
+        processor.setStudyTimeoutMillis(100);
+
+        // Execute.
+        ReportRunSummary summary = processor.generateReports(makeRequest(), mockGenerator, ImmutableList.of(
+                STUDY_ID_1, STUDY_ID_2));
+
+        // Verify. Study 1 is cancelled. Study 2 is still saved.
+        assertEquals(summary.getSavedStudyIdList(), ImmutableList.of(STUDY_ID_2));
+        assertEquals(summary.getFailedStudyIdList(), ImmutableList.of(STUDY_ID_1));
+        assertEquals(summary.getTimedOutStudyIdList(), ImmutableList.of(STUDY_ID_1));
+        assertTrue(cancelledLatch.await(5, TimeUnit.SECONDS));
+
+        ArgumentCaptor<Report> reportCaptor = ArgumentCaptor.forClass(Report.class);
+        verify(mockBridgeHelper).saveReportForStudy(reportCaptor.capture());
+        validateSavedReport(reportCaptor.getValue(), STUDY_ID_2);
+    }
+
+    private static BridgeReporterRequest makeRequest() {
+        return new BridgeReporterRequest.Builder().withStartDateTime(START_DATE_TIME).withEndDateTime(END_DATE_TIME)
+                .withScheduler(REPORT_ID).withScheduleType(ReportType.DAILY).build();
+    }
+
     private void validateGeneratorCall(BridgeReporterRequest expectedRequest, String expectedStudyId) throws Exception {
         ArgumentCaptor<BridgeReporterRequest> requestCaptor = ArgumentCaptor.forClass(BridgeReporterRequest.class);
         verify(mockGenerator).generate(requestCaptor.capture(), eq(expectedStudyId));
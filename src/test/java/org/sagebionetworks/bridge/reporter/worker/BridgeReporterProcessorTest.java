@@ -12,6 +12,8 @@ import static org.mockito.Mockito.when;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
@@ -19,6 +21,7 @@ import com.google.common.collect.ImmutableMap;
 
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -138,6 +141,7 @@ public class BridgeReporterProcessorTest {
     private List<StudyParticipant> testParticipants;
 
     private BridgeHelper mockBridgeHelper;
+    private ExecutorService executorService;
     private BridgeReporterProcessor processor;
 
     @BeforeClass
@@ -164,7 +168,7 @@ public class BridgeReporterProcessorTest {
     public void setup() throws Exception {
         mockBridgeHelper = mock(BridgeHelper.class);
         when(mockBridgeHelper.getAllStudiesSummary()).thenReturn(TEST_STUDY_SUMMARY_LIST);
-        when(mockBridgeHelper.getUploadsForStudy(any(), any(), any())).thenReturn(testUploads);
+        mockUploadPages(testUploads);
 
         UploadsReportGenerator uploadsGenerator = new UploadsReportGenerator();
         uploadsGenerator.setBridgeHelper(mockBridgeHelper);
@@ -180,6 +184,15 @@ public class BridgeReporterProcessorTest {
         processor = new BridgeReporterProcessor();
         processor.setGeneratorMap(generators);
         processor.setBridgeHelper(mockBridgeHelper);
+        processor.setStudyTimeoutMillis(10000);
+
+        executorService = Executors.newFixedThreadPool(2);
+        processor.setExecutorService(executorService);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
     }
 
     @Test
@@ -191,7 +204,7 @@ public class BridgeReporterProcessorTest {
 
         // verify
         verify(mockBridgeHelper).getAllStudiesSummary();
-        verify(mockBridgeHelper).getUploadsForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
+        verify(mockBridgeHelper).getUploadPagesForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
         
         verify(mockBridgeHelper).saveReportForStudy(reportCaptor.capture());
         Report report = reportCaptor.getValue();
@@ -210,7 +223,7 @@ public class BridgeReporterProcessorTest {
 
         // verify
         verify(mockBridgeHelper).getAllStudiesSummary();
-        verify(mockBridgeHelper, times(1)).getUploadsForStudy(eq(TEST_STUDY_ID), any(), any());
+        verify(mockBridgeHelper, times(1)).getUploadPagesForStudy(eq(TEST_STUDY_ID), any(), any());
 
         verify(mockBridgeHelper).saveReportForStudy(reportCaptor.capture());
         Report report = reportCaptor.getValue();
@@ -225,15 +238,15 @@ public class BridgeReporterProcessorTest {
         ArgumentCaptor<Report> reportCaptor = ArgumentCaptor.forClass(Report.class);
 
         when(mockBridgeHelper.getAllStudiesSummary()).thenReturn(TEST_STUDY_SUMMARY_LIST_2);
-        when(mockBridgeHelper.getUploadsForStudy(any(), any(), any())).thenReturn(testUploads);
+        mockUploadPages(testUploads);
 
         // execute
         processor.process(requestJson);
 
         // verify
         verify(mockBridgeHelper).getAllStudiesSummary();
-        verify(mockBridgeHelper).getUploadsForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
-        verify(mockBridgeHelper).getUploadsForStudy(eq(TEST_STUDY_ID_2), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
+        verify(mockBridgeHelper).getUploadPagesForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
+        verify(mockBridgeHelper).getUploadPagesForStudy(eq(TEST_STUDY_ID_2), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
         
         verify(mockBridgeHelper, times(2)).saveReportForStudy(reportCaptor.capture());
         Report report = reportCaptor.getAllValues().get(0);
@@ -254,14 +267,14 @@ public class BridgeReporterProcessorTest {
         ArgumentCaptor<Report> reportCaptor = ArgumentCaptor.forClass(Report.class);
         
         when(mockBridgeHelper.getAllStudiesSummary()).thenReturn(TEST_STUDY_SUMMARY_LIST);
-        when(mockBridgeHelper.getUploadsForStudy(any(), any(), any())).thenReturn(testUploads2);
+        mockUploadPages(testUploads2);
 
         // execute
         processor.process(requestJson);
 
         // verify
         verify(mockBridgeHelper).getAllStudiesSummary();
-        verify(mockBridgeHelper).getUploadsForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
+        verify(mockBridgeHelper).getUploadPagesForStudy(eq(TEST_STUDY_ID), eq(TEST_START_DATETIME), eq(TEST_END_DATETIME));
         verify(mockBridgeHelper).saveReportForStudy(reportCaptor.capture());
         
         Report report = reportCaptor.getValue();
@@ -286,13 +299,13 @@ public class BridgeReporterProcessorTest {
         ArgumentCaptor<Report> reportCaptor = ArgumentCaptor.forClass(Report.class);
         
         when(mockBridgeHelper.getAllStudiesSummary()).thenReturn(TEST_STUDY_SUMMARY_LIST);
-        when(mockBridgeHelper.getParticipantsForStudy(TEST_STUDY_ID, startDateTime, endDateTime))
-                .thenReturn(testParticipants);
+        when(mockBridgeHelper.getParticipantPagesForStudy(TEST_STUDY_ID, startDateTime, endDateTime))
+                .thenReturn(ImmutableList.of(testParticipants).iterator());
         
         processor.process(requestJsonDailySignUps);
         
         verify(mockBridgeHelper).getAllStudiesSummary();
-        verify(mockBridgeHelper).getParticipantsForStudy(TEST_STUDY_ID, startDateTime, endDateTime);
+        verify(mockBridgeHelper).getParticipantPagesForStudy(TEST_STUDY_ID, startDateTime, endDateTime);
         verify(mockBridgeHelper).saveReportForStudy(reportCaptor.capture());
         
         Report report = reportCaptor.getValue();
@@ -304,4 +317,10 @@ public class BridgeReporterProcessorTest {
         assertTrue(map.containsKey("byStatus"));
         assertTrue(map.containsKey("bySharing"));
     }
+
+    // Each call gets its own iterator over a single page of the given uploads.
+    private void mockUploadPages(List<Upload> uploadList) {
+        when(mockBridgeHelper.getUploadPagesForStudy(any(), any(), any())).thenAnswer(
+                invocation -> ImmutableList.of(uploadList).iterator());
+    }
 }
@@ -0,0 +1,52 @@
+package org.sagebionetworks.bridge.reporter.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class DayHistogramTest {
+    @Test
+    public void empty() {
+        assertTrue(new DayHistogram().toCumulativeList().isEmpty());
+    }
+
+    @Test
+    public void cumulative() {
+        DayHistogram histogram = new DayHistogram();
+        histogram.increment(3);
+        histogram.increment(1);
+        histogram.increment(3);
+        histogram.increment(0);
+
+        // Days with no participants still count everyone after them. The list ends at the last day.
+        assertEquals(histogram.toCumulativeList(), ImmutableList.of(4, 3, 2, 2));
+    }
+
+    @Test
+    public void concurrentIncrements() throws Exception {
+        DayHistogram histogram = new DayHistogram();
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                int day = i % 10;
+                executorService.execute(() -> histogram.increment(day));
+            }
+        } finally {
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        List<Integer> cumulativeList = histogram.toCumulativeList();
+        assertEquals(cumulativeList.size(), 10);
+        for (int day = 0; day < 10; day++) {
+            assertEquals(cumulativeList.get(day).intValue(), 1000 - 100 * day);
+        }
+    }
+}
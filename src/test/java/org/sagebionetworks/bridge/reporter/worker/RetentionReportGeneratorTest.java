@@ -1,23 +1,36 @@
 package org.sagebionetworks.bridge.reporter.worker;
 
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.ActivityEvent;
 import org.sagebionetworks.bridge.rest.model.ActivityEventList;
@@ -25,7 +38,11 @@ import org.sagebionetworks.bridge.rest.model.RequestInfo;
 import org.sagebionetworks.bridge.rest.model.Role;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.reporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.reporter.helper.DynamoHelper;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -35,6 +52,8 @@ public class RetentionReportGeneratorTest {
     private static final String USER_ID_1 = "test-user1";
     private static final String USER_ID_2 = "test-user2";
     private static final String USER_ID_3 = "test-user3";
+    private static final long MOCK_NOW_MILLIS = DateTime.parse("2017-06-10T08:00:00.000Z").getMillis();
+    private static final long ONE_DAY_MILLIS = 24 * 60 * 60 * 1000;
     private static final DateTime START_DATE = DateTime.parse("2017-06-09T00:00:00.000Z");
     private static final DateTime END_DATE = DateTime.parse("2017-06-09T23:59:59.999Z");
     
@@ -60,6 +79,21 @@ public class RetentionReportGeneratorTest {
     
     @Mock
     private BridgeHelper bridgeHelper;
+
+    @Mock
+    private DynamoHelper dynamoHelper;
+
+    private ExecutorService executorService;
+
+    @BeforeClass
+    public static void mockNow() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+    }
+
+    @AfterClass
+    public static void unmockNow() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
     
     @BeforeMethod
     public void before() {
@@ -67,6 +101,20 @@ public class RetentionReportGeneratorTest {
         
         generator = new RetentionReportGenerator();
         generator.setBridgeHelper(bridgeHelper);
+        generator.setDynamoHelper(dynamoHelper);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RetentionReportGenerator.CONFIG_KEY_MAX_CONCURRENT_ACCOUNTS)).thenReturn(2);
+        when(mockConfig.getInt(RetentionReportGenerator.CONFIG_KEY_PARTICIPANT_FACTS_REFRESH_DAYS)).thenReturn(30);
+        generator.setConfig(mockConfig);
+
+        executorService = Executors.newFixedThreadPool(2);
+        generator.setExecutorService(executorService);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
     }
     
     @SuppressWarnings("unchecked")
@@ -301,6 +349,240 @@ public class RetentionReportGeneratorTest {
         verify(bridgeHelper).getRequestInfoForParticipant(STUDY_ID, accountSummary.getId());
     }
     
+    @SuppressWarnings("unchecked")
+    @Test
+    public void accountsProcessedConcurrently() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        AccountSummary accountSummary2 = mockAccountSummary(USER_ID_2);
+        List<AccountSummary> accountSummaries = new ArrayList<>();
+        accountSummaries.add(accountSummary);
+        accountSummaries.add(accountSummary2);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(accountSummaries.iterator());
+
+        StudyParticipant participant = mock(StudyParticipant.class);
+        when(participant.getRoles()).thenReturn(new ArrayList<>());
+
+        // Each account waits for the other to start, so this only finishes if both are processed at the same time.
+        CountDownLatch bothStartedLatch = new CountDownLatch(2);
+        when(bridgeHelper.getStudyPartcipant(STUDY_ID, USER_ID_1)).thenAnswer(invocation -> {
+            bothStartedLatch.countDown();
+            bothStartedLatch.await(5, TimeUnit.SECONDS);
+            return participant;
+        });
+        when(bridgeHelper.getStudyPartcipant(STUDY_ID, USER_ID_2)).thenAnswer(invocation -> {
+            bothStartedLatch.countDown();
+            bothStartedLatch.await(5, TimeUnit.SECONDS);
+            return participant;
+        });
+
+        mockActivityEventList(bridgeHelper, accountSummary, mockStudyStateDateEvent(STUDY_START_DATE_1));
+        mockActivityEventList(bridgeHelper, accountSummary2, mockStudyStateDateEvent(STUDY_START_DATE_2));
+
+        RequestInfo requestInfo = mockRequestInfo(SIGN_IN_ON, UPLOADED_ON);
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_1)).thenReturn(requestInfo);
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_2)).thenReturn(requestInfo);
+
+        Report report = generator.generate(REQUEST, STUDY_ID);
+        assertEquals(bothStartedLatch.getCount(), 0);
+
+        Map<String, List<Integer>> map = (Map<String, List<Integer>>) report.getData();
+        assertEquals(map.get("bySignIn").size(), 6);
+        assertEquals(map.get("bySignIn").get(0), new Integer(2));
+        assertEquals(map.get("bySignIn").get(4), new Integer(2));
+        assertEquals(map.get("bySignIn").get(5), new Integer(1));
+        assertEquals(map.get("byUploadedOn").size(), 5);
+        assertEquals(map.get("byUploadedOn").get(3), new Integer(2));
+        assertEquals(map.get("byUploadedOn").get(4), new Integer(1));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void accountErrorDoesNotStopOtherAccounts() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        AccountSummary accountSummary2 = mockAccountSummary(USER_ID_2);
+        AccountSummary accountSummary3 = mockAccountSummary(USER_ID_3);
+        List<AccountSummary> accountSummaries = new ArrayList<>();
+        accountSummaries.add(accountSummary);
+        accountSummaries.add(accountSummary2);
+        accountSummaries.add(accountSummary3);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(accountSummaries.iterator());
+
+        mockStudyParticipant(bridgeHelper, USER_ID_1, new ArrayList<>());
+        when(bridgeHelper.getStudyPartcipant(STUDY_ID, USER_ID_2)).thenThrow(RuntimeException.class);
+        mockStudyParticipant(bridgeHelper, USER_ID_3, new ArrayList<>());
+
+        mockActivityEventList(bridgeHelper, accountSummary, mockStudyStateDateEvent(STUDY_START_DATE_1));
+        mockActivityEventList(bridgeHelper, accountSummary3, mockStudyStateDateEvent(STUDY_START_DATE_1));
+
+        RequestInfo requestInfo = mockRequestInfo(SIGN_IN_ON, UPLOADED_ON);
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_1)).thenReturn(requestInfo);
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_3)).thenReturn(requestInfo);
+
+        Report report = generator.generate(REQUEST, STUDY_ID);
+
+        Map<String, List<Integer>> map = (Map<String, List<Integer>>) report.getData();
+        assertEquals(map.get("bySignIn").size(), 5);
+        assertEquals(map.get("bySignIn").get(4), new Integer(2));
+        assertEquals(map.get("byUploadedOn").size(), 4);
+        assertEquals(map.get("byUploadedOn").get(3), new Integer(2));
+
+        verify(bridgeHelper, never()).getActivityEventForParticipant(STUDY_ID, USER_ID_2);
+        verify(bridgeHelper, times(2)).getRequestInfoForParticipant(anyString(), anyString());
+    }
+
+    @Test
+    public void interruptStopsQueuingAccounts() throws Exception {
+        List<AccountSummary> accountSummaries = new ArrayList<>();
+        accountSummaries.add(mockAccountSummary(USER_ID_1));
+        accountSummaries.add(mockAccountSummary(USER_ID_2));
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(accountSummaries.iterator());
+
+        // Interrupt the calling thread before generating the report.
+        Thread.currentThread().interrupt();
+        try {
+            generator.generate(REQUEST, STUDY_ID);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+            assertTrue(ex.getCause() instanceof InterruptedException);
+        } finally {
+            // Clear the interrupt flag so it doesn't leak into other tests.
+            assertTrue(Thread.interrupted());
+        }
+
+        // No accounts were processed.
+        verify(bridgeHelper, never()).getStudyPartcipant(anyString(), anyString());
+        verify(bridgeHelper, never()).getRequestInfoForParticipant(anyString(), anyString());
+    }
+
+    @Test
+    public void newParticipantFactsSaved() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary).iterator());
+
+        StudyParticipant participant = mockStudyParticipant(bridgeHelper, USER_ID_1, new ArrayList<>());
+        when(participant.getCreatedOn()).thenReturn(STUDY_START_DATE_2);
+        mockActivityEventList(bridgeHelper, accountSummary, mockStudyStateDateEvent(STUDY_START_DATE_1));
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_1)).thenReturn(mockRequestInfo(SIGN_IN_ON,
+                UPLOADED_ON));
+
+        generator.generate(REQUEST, STUDY_ID);
+
+        ArgumentCaptor<ParticipantFacts> factsCaptor = ArgumentCaptor.forClass(ParticipantFacts.class);
+        verify(dynamoHelper).saveParticipantFacts(factsCaptor.capture());
+        ParticipantFacts facts = factsCaptor.getValue();
+        assertEquals(facts.getStudyId(), STUDY_ID);
+        assertEquals(facts.getUserId(), USER_ID_1);
+        assertEquals(facts.getCreatedOn(), STUDY_START_DATE_2);
+        assertEquals(facts.getRefreshedOn(), MOCK_NOW_MILLIS);
+        assertTrue(facts.getRoles().isEmpty());
+        assertEquals(facts.getStudyStartDate(), STUDY_START_DATE_1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void cachedParticipantFacts() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary).iterator());
+
+        ParticipantFacts facts = makeParticipantFacts(USER_ID_1, MOCK_NOW_MILLIS - ONE_DAY_MILLIS,
+                STUDY_START_DATE_1);
+        when(dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID_1)).thenReturn(facts);
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_1)).thenReturn(mockRequestInfo(SIGN_IN_ON,
+                UPLOADED_ON));
+
+        Report report = generator.generate(REQUEST, STUDY_ID);
+        Map<String, List<Integer>> map = (Map<String, List<Integer>>) report.getData();
+        assertEquals(map.get("bySignIn").size(), 5);
+        assertEquals(map.get("bySignIn").get(4), new Integer(1));
+        assertEquals(map.get("byUploadedOn").size(), 4);
+        assertEquals(map.get("byUploadedOn").get(3), new Integer(1));
+
+        // Only the request info comes from Bridge. Nothing is written back.
+        verify(bridgeHelper, never()).getStudyPartcipant(anyString(), anyString());
+        verify(bridgeHelper, never()).getActivityEventForParticipant(anyString(), anyString());
+        verify(bridgeHelper).getRequestInfoForParticipant(STUDY_ID, USER_ID_1);
+        verify(dynamoHelper, never()).saveParticipantFacts(any());
+    }
+
+    @Test
+    public void cachedParticipantFactsWithRoles() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary).iterator());
+
+        ParticipantFacts facts = makeParticipantFacts(USER_ID_1, MOCK_NOW_MILLIS - ONE_DAY_MILLIS, null);
+        facts.setRoles(ImmutableList.of(Role.DEVELOPER));
+        when(dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID_1)).thenReturn(facts);
+
+        generator.generate(REQUEST, STUDY_ID);
+
+        verify(bridgeHelper, never()).getStudyPartcipant(anyString(), anyString());
+        verify(bridgeHelper, never()).getActivityEventForParticipant(anyString(), anyString());
+        verify(bridgeHelper, never()).getRequestInfoForParticipant(anyString(), anyString());
+        verify(dynamoHelper, never()).saveParticipantFacts(any());
+    }
+
+    @Test
+    public void cachedParticipantFactsWithoutStudyStartDate() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary).iterator());
+
+        ParticipantFacts facts = makeParticipantFacts(USER_ID_1, MOCK_NOW_MILLIS - ONE_DAY_MILLIS, null);
+        when(dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID_1)).thenReturn(facts);
+        mockActivityEventList(bridgeHelper, accountSummary, mockStudyStateDateEvent(STUDY_START_DATE_1));
+        when(bridgeHelper.getRequestInfoForParticipant(STUDY_ID, USER_ID_1)).thenReturn(mockRequestInfo(SIGN_IN_ON,
+                UPLOADED_ON));
+
+        generator.generate(REQUEST, STUDY_ID);
+
+        // The participant is still fresh, but we fetch activity events to find the study start date and cache it.
+        verify(bridgeHelper, never()).getStudyPartcipant(anyString(), anyString());
+        verify(bridgeHelper).getActivityEventForParticipant(STUDY_ID, USER_ID_1);
+        verify(bridgeHelper).getRequestInfoForParticipant(STUDY_ID, USER_ID_1);
+
+        ArgumentCaptor<ParticipantFacts> factsCaptor = ArgumentCaptor.forClass(ParticipantFacts.class);
+        verify(dynamoHelper).saveParticipantFacts(factsCaptor.capture());
+        assertEquals(factsCaptor.getValue().getStudyStartDate(), STUDY_START_DATE_1);
+        assertEquals(factsCaptor.getValue().getRefreshedOn(), MOCK_NOW_MILLIS - ONE_DAY_MILLIS);
+    }
+
+    @Test
+    public void staleParticipantFactsRefreshed() throws Exception {
+        AccountSummary accountSummary = mockAccountSummary(USER_ID_1);
+        when(bridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary).iterator());
+
+        ParticipantFacts facts = makeParticipantFacts(USER_ID_1, MOCK_NOW_MILLIS - 31 * ONE_DAY_MILLIS,
+                STUDY_START_DATE_1);
+        when(dynamoHelper.getParticipantFacts(STUDY_ID, USER_ID_1)).thenReturn(facts);
+        mockStudyParticipant(bridgeHelper, USER_ID_1, ImmutableList.of(Role.RESEARCHER));
+
+        generator.generate(REQUEST, STUDY_ID);
+
+        // The participant is fetched again and is now a researcher. The study start date doesn't change, so we don't
+        // fetch activity events.
+        verify(bridgeHelper).getStudyPartcipant(STUDY_ID, USER_ID_1);
+        verify(bridgeHelper, never()).getActivityEventForParticipant(anyString(), anyString());
+        verify(bridgeHelper, never()).getRequestInfoForParticipant(anyString(), anyString());
+
+        ArgumentCaptor<ParticipantFacts> factsCaptor = ArgumentCaptor.forClass(ParticipantFacts.class);
+        verify(dynamoHelper).saveParticipantFacts(factsCaptor.capture());
+        ParticipantFacts savedFacts = factsCaptor.getValue();
+        assertEquals(savedFacts.getRefreshedOn(), MOCK_NOW_MILLIS);
+        assertEquals(savedFacts.getRoles().size(), 1);
+        assertTrue(savedFacts.getRoles().contains(Role.RESEARCHER));
+        assertEquals(savedFacts.getStudyStartDate(), STUDY_START_DATE_1);
+        assertNull(savedFacts.getCreatedOn());
+    }
+
+    private static ParticipantFacts makeParticipantFacts(String userId, long refreshedOn, DateTime studyStartDate) {
+        ParticipantFacts facts = new ParticipantFacts();
+        facts.setStudyId(STUDY_ID);
+        facts.setUserId(userId);
+        facts.setRefreshedOn(refreshedOn);
+        facts.setStudyStartDate(studyStartDate);
+        return facts;
+    }
+
     private static AccountSummary mockAccountSummary(String userId) {
         AccountSummary mockAccountSummary = mock(AccountSummary.class);
         when(mockAccountSummary.getId()).thenReturn(userId);
@@ -9,6 +9,7 @@ import java.util.Map;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -57,7 +58,8 @@ public class SignUpsReportGeneratorTest {
                 .sharingScope(SharingScope.NO_SHARING).roles(new ArrayList<>()));
         participants.add((StudyParticipant) new StudyParticipant().status(AccountStatus.ENABLED)
                 .sharingScope(SharingScope.SPONSORS_AND_PARTNERS).roles(new ArrayList<>()));
-        when(bridgeHelper.getParticipantsForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(participants);
+        when(bridgeHelper.getParticipantPagesForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(ImmutableList.of(
+                participants).iterator());
         
         Report report = generator.generate(REQUEST, STUDY_ID);
         
@@ -70,7 +72,7 @@ public class SignUpsReportGeneratorTest {
         assertEquals(map.get("bySharing").get("no_sharing"), new Integer(1));
         assertEquals(map.get("bySharing").get("sponsors_and_partners"), new Integer(1));
         
-        verify(bridgeHelper).getParticipantsForStudy(STUDY_ID, START_DATE, END_DATE);
+        verify(bridgeHelper).getParticipantPagesForStudy(STUDY_ID, START_DATE, END_DATE);
     }
     
     @SuppressWarnings("unchecked")
@@ -85,7 +87,8 @@ public class SignUpsReportGeneratorTest {
                 .sharingScope(SharingScope.ALL_QUALIFIED_RESEARCHERS).roles(new ArrayList<>()));
         participants.add((StudyParticipant) new StudyParticipant().status(AccountStatus.UNVERIFIED)
                 .sharingScope(SharingScope.NO_SHARING).roles(new ArrayList<>()));
-        when(bridgeHelper.getParticipantsForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(participants);
+        when(bridgeHelper.getParticipantPagesForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(ImmutableList.of(
+                participants).iterator());
         
         Report report = generator.generate(REQUEST, STUDY_ID);
         
@@ -105,6 +108,29 @@ public class SignUpsReportGeneratorTest {
         assertEquals(map.get("bySharing").get("sponsors_and_partners"), new Integer(0));
     }
     
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testMultiplePages() throws Exception {
+        List<StudyParticipant> page1 = new ArrayList<>();
+        page1.add((StudyParticipant) new StudyParticipant().status(AccountStatus.ENABLED)
+                .sharingScope(SharingScope.NO_SHARING).roles(new ArrayList<>()));
+        List<StudyParticipant> page2 = new ArrayList<>();
+        page2.add((StudyParticipant) new StudyParticipant().status(AccountStatus.ENABLED)
+                .sharingScope(SharingScope.NO_SHARING).roles(new ArrayList<>()));
+        page2.add((StudyParticipant) new StudyParticipant().status(AccountStatus.DISABLED)
+                .sharingScope(SharingScope.NO_SHARING).roles(new ArrayList<>()));
+        when(bridgeHelper.getParticipantPagesForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(ImmutableList.of(
+                page1, page2).iterator());
+
+        Report report = generator.generate(REQUEST, STUDY_ID);
+
+        // Counts are added up across pages.
+        Map<String,Map<String,Integer>> map = (Map<String,Map<String,Integer>>)report.getData();
+        assertEquals(map.get("byStatus").get("enabled"), new Integer(2));
+        assertEquals(map.get("byStatus").get("disabled"), new Integer(1));
+        assertEquals(map.get("bySharing").get("no_sharing"), new Integer(2));
+    }
+
     @SuppressWarnings("unchecked")
     @Test
     public void testParticipantWithRoles() throws Exception {
@@ -114,7 +140,8 @@ public class SignUpsReportGeneratorTest {
         List<StudyParticipant> participants = new ArrayList<>();
         participants.add((StudyParticipant) new StudyParticipant().status(AccountStatus.ENABLED)
                 .sharingScope(SharingScope.NO_SHARING).roles(roles));
-        when(bridgeHelper.getParticipantsForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(participants);
+        when(bridgeHelper.getParticipantPagesForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(ImmutableList.of(
+                participants).iterator());
         
         Report report = generator.generate(REQUEST, STUDY_ID);
         
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.ImmutableList;
 import org.joda.time.DateTime;
 import org.testng.annotations.Test;
 
@@ -33,10 +34,14 @@ public class UploadsReportGeneratorTest {
                 .withEndDateTime(END_DATE).build();
         BridgeHelper bridgeHelper = mock(BridgeHelper.class);
 
-        List<Upload> uploads = new ArrayList<>();
-        uploads.add(mockUpload("record1", UploadStatus.SUCCEEDED));
-        uploads.add(mockUpload("record2", UploadStatus.REQUESTED));
-        when(bridgeHelper.getUploadsForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(uploads);
+        // Two pages of uploads. Counts are added up across pages.
+        List<Upload> page1 = new ArrayList<>();
+        page1.add(mockUpload("record1", UploadStatus.SUCCEEDED));
+        page1.add(mockUpload("record2", UploadStatus.REQUESTED));
+        List<Upload> page2 = new ArrayList<>();
+        page2.add(mockUpload("record3", UploadStatus.SUCCEEDED));
+        when(bridgeHelper.getUploadPagesForStudy(STUDY_ID, START_DATE, END_DATE)).thenReturn(ImmutableList.of(page1,
+                page2).iterator());
         
         UploadsReportGenerator generator = new UploadsReportGenerator();
         generator.setBridgeHelper(bridgeHelper);
@@ -47,9 +52,10 @@ public class UploadsReportGeneratorTest {
         assertEquals(report.getDate().toString(), "2017-06-09");
         Map<String, Integer> map = (Map<String, Integer>)report.getData();
         assertEquals(map.get("requested"), new Integer(1));
-        assertEquals(map.get("succeeded"), new Integer(1));
+        assertEquals(map.get("succeeded"), new Integer(2));
+        assertEquals(map.size(), 2);
         
-        verify(bridgeHelper).getUploadsForStudy(STUDY_ID, START_DATE, END_DATE);
+        verify(bridgeHelper).getUploadPagesForStudy(STUDY_ID, START_DATE, END_DATE);
     }
 
     private static Upload mockUpload(String recordId, UploadStatus status) {
@@ -0,0 +1,42 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.testng.Assert.assertEquals;
+
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+public class CachedUddArchiveTest {
+    private static final DateTime EXPIRES_ON = DateTime.parse("2018-03-01T12:00:00Z");
+
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = ".*masterZipFileName.*")
+    public void nullMasterZipFileName() {
+        new CachedUddArchive.Builder().withWatermark("test-watermark").withExpiresOn(EXPIRES_ON).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = ".*masterZipFileName.*")
+    public void emptyMasterZipFileName() {
+        new CachedUddArchive.Builder().withMasterZipFileName("").withWatermark("test-watermark")
+                .withExpiresOn(EXPIRES_ON).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*watermark.*")
+    public void nullWatermark() {
+        new CachedUddArchive.Builder().withMasterZipFileName("master.zip").withExpiresOn(EXPIRES_ON).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*expiresOn.*")
+    public void nullExpiresOn() {
+        new CachedUddArchive.Builder().withMasterZipFileName("master.zip").withWatermark("test-watermark").build();
+    }
+
+    @Test
+    public void success() {
+        CachedUddArchive archive = new CachedUddArchive.Builder().withMasterZipFileName("master.zip")
+                .withWatermark("test-watermark").withExpiresOn(EXPIRES_ON).build();
+        assertEquals(archive.getMasterZipFileName(), "master.zip");
+        assertEquals(archive.getWatermark(), "test-watermark");
+        assertEquals(archive.getExpiresOn(), EXPIRES_ON);
+    }
+}
@@ -1,20 +1,45 @@
 package org.sagebionetworks.bridge.udd.dynamodb;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
@@ -23,6 +48,7 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 public class DynamoHelperTest {
     private static final String DEFAULT_TABLE_ID = "default-table";
+    private static final long MOCK_NOW_SECONDS = 1521072000L;
     private static final String DUMMY_FIELD_DEF_LIST_JSON = "[\n" +
             "   {\n" +
             "       \"name\":\"dummy-field\",\n" +
@@ -233,4 +259,551 @@ public class DynamoHelperTest {
         helper.deleteSynapseTableIdMapping(TEST_SCHEMA_KEY);
         verify(mockSynapseMapTable).deleteItem("schemaKey", TEST_SCHEMA_KEY.toString());
     }
+
+    @Test
+    public void getTablePresenceForUser() {
+        // Mock query.
+        List<Item> presenceItemList = new ArrayList<>();
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, "foo-table")
+                .withString(DynamoHelper.ATTR_MIN_UPLOAD_DATE, "2018-01-01")
+                .withString(DynamoHelper.ATTR_MAX_UPLOAD_DATE, "2018-02-15"));
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, "bar-table")
+                .withString(DynamoHelper.ATTR_MIN_UPLOAD_DATE, "2018-03-01")
+                .withString(DynamoHelper.ATTR_MAX_UPLOAD_DATE, "2018-03-01"));
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, DynamoHelper.TABLE_ID_PRESENCE_COMPLETE)
+                .withLong(DynamoHelper.ATTR_INDEXED_ON, MOCK_NOW_SECONDS * 1000));
+
+        Table mockPresenceTable = mock(Table.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockPresenceTable), any(QuerySpec.class))).thenReturn(presenceItemList);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+        helper.setQueryHelper(mockQueryHelper);
+
+        // Execute and validate. The marker row isn't a table.
+        Map<String, TablePresence> presenceByTableId = helper.getTablePresenceForUser("test-health-code");
+        assertEquals(presenceByTableId.size(), 2);
+
+        TablePresence fooPresence = presenceByTableId.get("foo-table");
+        assertEquals(fooPresence.getMinUploadDate(), LocalDate.parse("2018-01-01"));
+        assertEquals(fooPresence.getMaxUploadDate(), LocalDate.parse("2018-02-15"));
+
+        TablePresence barPresence = presenceByTableId.get("bar-table");
+        assertEquals(barPresence.getMinUploadDate(), LocalDate.parse("2018-03-01"));
+        assertEquals(barPresence.getMaxUploadDate(), LocalDate.parse("2018-03-01"));
+
+        // Validate query.
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockQueryHelper).query(same(mockPresenceTable), queryCaptor.capture());
+
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.ATTR_HEALTH_CODE);
+        assertEquals(query.getHashKey().getValue(), "test-health-code");
+    }
+
+    @Test
+    public void getTablePresenceForUserNotComplete() {
+        // Mock query. The user has a presence row, but hasn't been marked complete.
+        List<Item> presenceItemList = new ArrayList<>();
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, "foo-table")
+                .withString(DynamoHelper.ATTR_MIN_UPLOAD_DATE, "2018-01-01")
+                .withString(DynamoHelper.ATTR_MAX_UPLOAD_DATE, "2018-02-15"));
+
+        Table mockPresenceTable = mock(Table.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockPresenceTable), any(QuerySpec.class))).thenReturn(presenceItemList);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+        helper.setQueryHelper(mockQueryHelper);
+
+        // Execute and validate.
+        assertNull(helper.getTablePresenceForUser("test-health-code"));
+    }
+
+    @Test
+    public void markTablePresenceCompleteForUser() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            Table mockPresenceTable = mock(Table.class);
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbUserTablePresenceTable(mockPresenceTable);
+
+            // Execute and validate.
+            helper.markTablePresenceCompleteForUser("test-health-code");
+
+            ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+            verify(mockPresenceTable).putItem(itemCaptor.capture());
+
+            Item item = itemCaptor.getValue();
+            assertEquals(item.getString(DynamoHelper.ATTR_HEALTH_CODE), "test-health-code");
+            assertEquals(item.getString(DynamoHelper.ATTR_TABLE_ID), DynamoHelper.TABLE_ID_PRESENCE_COMPLETE);
+            assertEquals(item.getLong(DynamoHelper.ATTR_INDEXED_ON), MOCK_NOW_SECONDS * 1000);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void getTablePresenceForUser_HalfWrittenRow() {
+        // Rows written by the old two-step update might only have one bound. The missing bound is unbounded.
+        List<Item> presenceItemList = new ArrayList<>();
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, "foo-table")
+                .withString(DynamoHelper.ATTR_MIN_UPLOAD_DATE, "2018-01-01"));
+        presenceItemList.add(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, DynamoHelper.TABLE_ID_PRESENCE_COMPLETE)
+                .withLong(DynamoHelper.ATTR_INDEXED_ON, MOCK_NOW_SECONDS * 1000));
+
+        Table mockPresenceTable = mock(Table.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockPresenceTable), any(QuerySpec.class))).thenReturn(presenceItemList);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+        helper.setQueryHelper(mockQueryHelper);
+
+        // Execute and validate.
+        TablePresence presence = helper.getTablePresenceForUser("test-health-code").get("foo-table");
+        assertEquals(presence.getMinUploadDate(), LocalDate.parse("2018-01-01"));
+        assertNull(presence.getMaxUploadDate());
+    }
+
+    @Test
+    public void getLatestHealthDataRecordCreatedOn() {
+        // Mock index. Indices can't be mocked to return query results, so spy on queryIndex() instead.
+        Index mockRecordIndex = mock(Index.class);
+        List<Item> recordItemList = ImmutableList.of(new Item().withString(DynamoHelper.ATTR_HEALTH_CODE,
+                "test-health-code").withLong(DynamoHelper.ATTR_CREATED_ON, MOCK_NOW_SECONDS * 1000));
+
+        DynamoHelper helper = spy(new DynamoHelper());
+        helper.setDdbHealthDataRecordCreatedOnIndex(mockRecordIndex);
+        doReturn(recordItemList).when(helper).queryIndex(same(mockRecordIndex), any(QuerySpec.class));
+
+        // Execute and validate.
+        DateTime createdOn = helper.getLatestHealthDataRecordCreatedOn("test-health-code");
+        assertEquals(createdOn.getMillis(), MOCK_NOW_SECONDS * 1000);
+
+        // Validate query. We only want the newest record.
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(helper).queryIndex(same(mockRecordIndex), queryCaptor.capture());
+
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.ATTR_HEALTH_CODE);
+        assertEquals(query.getHashKey().getValue(), "test-health-code");
+        assertFalse(query.getRequest().getScanIndexForward());
+        assertEquals(query.getMaxResultSize().intValue(), 1);
+    }
+
+    @Test
+    public void getLatestHealthDataRecordCreatedOn_NoRecords() {
+        Index mockRecordIndex = mock(Index.class);
+
+        DynamoHelper helper = spy(new DynamoHelper());
+        helper.setDdbHealthDataRecordCreatedOnIndex(mockRecordIndex);
+        doReturn(ImmutableList.of()).when(helper).queryIndex(same(mockRecordIndex), any(QuerySpec.class));
+
+        // Execute and validate.
+        assertNull(helper.getLatestHealthDataRecordCreatedOn("test-health-code"));
+    }
+
+    @Test
+    public void updateTablePresenceForUser_NewRow() {
+        // Mock table. No existing row.
+        Table mockPresenceTable = mock(Table.class);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+
+        // Execute.
+        helper.updateTablePresenceForUser("test-health-code", "foo-table", LocalDate.parse("2018-01-01"),
+                LocalDate.parse("2018-02-15"));
+
+        // Validate. Both bounds are written in one update.
+        ArgumentCaptor<GetItemSpec> getCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockPresenceTable).getItem(getCaptor.capture());
+        assertTrue(getCaptor.getValue().isConsistentRead());
+
+        ArgumentCaptor<UpdateItemSpec> updateCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockPresenceTable).updateItem(updateCaptor.capture());
+
+        UpdateItemSpec update = updateCaptor.getValue();
+        assertEquals(update.getUpdateExpression(), "set minUploadDate=:newMin, maxUploadDate=:newMax");
+        assertEquals(update.getConditionExpression(), "attribute_not_exists(healthCode)");
+        assertEquals(update.getValueMap().get(":newMin"), "2018-01-01");
+        assertEquals(update.getValueMap().get(":newMax"), "2018-02-15");
+    }
+
+    @Test
+    public void updateTablePresenceForUser_WidensRange() {
+        // Mock table. New date is before the existing range, so only the min changes.
+        Table mockPresenceTable = mock(Table.class);
+        when(mockPresenceTable.getItem(any(GetItemSpec.class))).thenReturn(makePresenceItem("2018-02-01",
+                "2018-03-01"));
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+
+        // Execute.
+        helper.updateTablePresenceForUser("test-health-code", "foo-table", LocalDate.parse("2018-01-01"));
+
+        // Validate.
+        ArgumentCaptor<UpdateItemSpec> updateCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockPresenceTable).updateItem(updateCaptor.capture());
+
+        UpdateItemSpec update = updateCaptor.getValue();
+        assertEquals(update.getUpdateExpression(), "set minUploadDate=:newMin");
+        assertEquals(update.getConditionExpression(), "minUploadDate=:oldMin and maxUploadDate=:oldMax");
+        assertEquals(update.getValueMap().get(":newMin"), "2018-01-01");
+        assertEquals(update.getValueMap().get(":oldMin"), "2018-02-01");
+        assertEquals(update.getValueMap().get(":oldMax"), "2018-03-01");
+    }
+
+    @Test
+    public void updateTablePresenceForUser_AlreadyCovered() {
+        // Mock table. Existing range already covers the date. The half-written row is unbounded after its min.
+        Table mockPresenceTable = mock(Table.class);
+        when(mockPresenceTable.getItem(any(GetItemSpec.class))).thenReturn(makePresenceItem("2018-02-01", null));
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+
+        // Execute and validate. No update.
+        helper.updateTablePresenceForUser("test-health-code", "foo-table", LocalDate.parse("2018-06-01"));
+        verify(mockPresenceTable, never()).updateItem(any(UpdateItemSpec.class));
+    }
+
+    @Test
+    public void updateTablePresenceForUser_ConcurrentUpdate() {
+        // Mock table. First read sees no row, but someone else writes the row before us. Second read sees their row.
+        Table mockPresenceTable = mock(Table.class);
+        when(mockPresenceTable.getItem(any(GetItemSpec.class))).thenReturn(null).thenReturn(makePresenceItem(
+                "2018-02-01", "2018-03-01"));
+        when(mockPresenceTable.updateItem(any(UpdateItemSpec.class))).thenThrow(ConditionalCheckFailedException.class)
+                .thenReturn(null);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUserTablePresenceTable(mockPresenceTable);
+
+        // Execute.
+        helper.updateTablePresenceForUser("test-health-code", "foo-table", LocalDate.parse("2018-04-01"));
+
+        // Validate. Second update only widens the max, conditioned on the row we read.
+        ArgumentCaptor<UpdateItemSpec> updateCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockPresenceTable, times(2)).updateItem(updateCaptor.capture());
+
+        UpdateItemSpec update = updateCaptor.getAllValues().get(1);
+        assertEquals(update.getUpdateExpression(), "set maxUploadDate=:newMax");
+        assertEquals(update.getConditionExpression(), "minUploadDate=:oldMin and maxUploadDate=:oldMax");
+        assertEquals(update.getValueMap().get(":newMax"), "2018-04-01");
+    }
+
+    private static Item makePresenceItem(String minUploadDate, String maxUploadDate) {
+        Item item = new Item().withString(DynamoHelper.ATTR_HEALTH_CODE, "test-health-code")
+                .withString(DynamoHelper.ATTR_TABLE_ID, "foo-table");
+        if (minUploadDate != null) {
+            item.withString(DynamoHelper.ATTR_MIN_UPLOAD_DATE, minUploadDate);
+        }
+        if (maxUploadDate != null) {
+            item.withString(DynamoHelper.ATTR_MAX_UPLOAD_DATE, maxUploadDate);
+        }
+        return item;
+    }
+
+    @Test
+    public void getUddJobProgress() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            // Mock query. One item is expired.
+            List<Item> progressItemList = new ArrayList<>();
+            progressItemList.add(new Item().withString(DynamoHelper.ATTR_JOB_ID, "test-job")
+                    .withString(DynamoHelper.ATTR_PROGRESS_KEY, "foo-key")
+                    .withString(DynamoHelper.ATTR_PROGRESS_VALUE, "foo-value")
+                    .withLong(DynamoHelper.ATTR_EXPIRES_ON, MOCK_NOW_SECONDS + 60));
+            progressItemList.add(new Item().withString(DynamoHelper.ATTR_JOB_ID, "test-job")
+                    .withString(DynamoHelper.ATTR_PROGRESS_KEY, "expired-key")
+                    .withString(DynamoHelper.ATTR_PROGRESS_VALUE, "expired-value")
+                    .withLong(DynamoHelper.ATTR_EXPIRES_ON, MOCK_NOW_SECONDS - 60));
+
+            Table mockProgressTable = mock(Table.class);
+            DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+            when(mockQueryHelper.query(same(mockProgressTable), any(QuerySpec.class))).thenReturn(progressItemList);
+
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbUddJobProgressTable(mockProgressTable);
+            helper.setQueryHelper(mockQueryHelper);
+
+            // Execute and validate.
+            UddJobProgress jobProgress = helper.getUddJobProgress("test-job");
+            assertEquals(jobProgress.getJobId(), "test-job");
+            assertEquals(jobProgress.get("foo-key"), "foo-value");
+            assertNull(jobProgress.get("expired-key"));
+
+            // Validate query.
+            ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+            verify(mockQueryHelper).query(same(mockProgressTable), queryCaptor.capture());
+
+            QuerySpec query = queryCaptor.getValue();
+            assertEquals(query.getHashKey().getName(), DynamoHelper.ATTR_JOB_ID);
+            assertEquals(query.getHashKey().getValue(), "test-job");
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void putUddJobProgress() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            Table mockProgressTable = mock(Table.class);
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbUddJobProgressTable(mockProgressTable);
+
+            // Execute.
+            helper.putUddJobProgress("test-job", "foo-key", "foo-value");
+
+            // Validate.
+            ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+            verify(mockProgressTable).putItem(itemCaptor.capture());
+
+            Item item = itemCaptor.getValue();
+            assertEquals(item.getString(DynamoHelper.ATTR_JOB_ID), "test-job");
+            assertEquals(item.getString(DynamoHelper.ATTR_PROGRESS_KEY), "foo-key");
+            assertEquals(item.getString(DynamoHelper.ATTR_PROGRESS_VALUE), "foo-value");
+            assertEquals(item.getLong(DynamoHelper.ATTR_EXPIRES_ON), MOCK_NOW_SECONDS +
+                    DynamoHelper.UDD_JOB_PROGRESS_TTL_HOURS * 60 * 60);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void replaceUddJobProgress() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            DynamoDB mockDdbClient = mockBatchWriteClient();
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbClient(mockDdbClient);
+            helper.setDdbUddJobProgressTable(mockProgressTableWithName());
+
+            // Execute.
+            helper.replaceUddJobProgress("test-job", "token-key", "result-key", "result-value");
+
+            // Validate. Put and delete are in the same batch write.
+            ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+            verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+
+            TableWriteItems writeItems = writeItemsCaptor.getValue();
+            assertEquals(writeItems.getTableName(), "test-progress-table");
+
+            List<Item> itemList = new ArrayList<>(writeItems.getItemsToPut());
+            assertEquals(itemList.size(), 1);
+            assertEquals(itemList.get(0).getString(DynamoHelper.ATTR_JOB_ID), "test-job");
+            assertEquals(itemList.get(0).getString(DynamoHelper.ATTR_PROGRESS_KEY), "result-key");
+            assertEquals(itemList.get(0).getString(DynamoHelper.ATTR_PROGRESS_VALUE), "result-value");
+            assertEquals(itemList.get(0).getLong(DynamoHelper.ATTR_EXPIRES_ON), MOCK_NOW_SECONDS +
+                    DynamoHelper.UDD_JOB_PROGRESS_TTL_HOURS * 60 * 60);
+
+            List<PrimaryKey> keyList = new ArrayList<>(writeItems.getPrimaryKeysToDelete());
+            assertEquals(keyList.size(), 1);
+            assertEquals(getKeyComponents(keyList.get(0)), ImmutableMap.of(DynamoHelper.ATTR_JOB_ID, "test-job",
+                    DynamoHelper.ATTR_PROGRESS_KEY, "token-key"));
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void deleteUddJobProgressBatch() {
+        DynamoDB mockDdbClient = mockBatchWriteClient();
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbClient(mockDdbClient);
+        helper.setDdbUddJobProgressTable(mockProgressTableWithName());
+
+        // One more key than fits in a batch makes 2 batches.
+        List<String> progressKeyList = new ArrayList<>();
+        for (int i = 0; i <= DynamoHelper.MAX_BATCH_WRITE_SIZE; i++) {
+            progressKeyList.add("key-" + i);
+        }
+
+        // Execute.
+        helper.deleteUddJobProgress("test-job", progressKeyList);
+
+        // Validate.
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient, times(2)).batchWriteItem(writeItemsCaptor.capture());
+
+        List<TableWriteItems> writeItemsList = writeItemsCaptor.getAllValues();
+        assertEquals(writeItemsList.get(0).getPrimaryKeysToDelete().size(), DynamoHelper.MAX_BATCH_WRITE_SIZE);
+        assertEquals(writeItemsList.get(1).getPrimaryKeysToDelete().size(), 1);
+
+        PrimaryKey lastKey = writeItemsList.get(1).getPrimaryKeysToDelete().iterator().next();
+        assertEquals(getKeyComponents(lastKey), ImmutableMap.of(DynamoHelper.ATTR_JOB_ID, "test-job",
+                DynamoHelper.ATTR_PROGRESS_KEY, "key-" + DynamoHelper.MAX_BATCH_WRITE_SIZE));
+    }
+
+    @Test
+    public void batchWriteRetriesUnprocessedItems() {
+        // First attempt leaves unprocessed items. Second attempt processes them.
+        Map<String, List<WriteRequest>> unprocessedItems = ImmutableMap.of("test-progress-table",
+                ImmutableList.of(new WriteRequest()));
+        BatchWriteItemOutcome unprocessedOutcome = mock(BatchWriteItemOutcome.class);
+        when(unprocessedOutcome.getUnprocessedItems()).thenReturn(unprocessedItems);
+
+        DynamoDB mockDdbClient = mockBatchWriteClient();
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(unprocessedOutcome);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbClient(mockDdbClient);
+        helper.setDdbUddJobProgressTable(mockProgressTableWithName());
+
+        // Execute and validate.
+        helper.deleteUddJobProgress("test-job", ImmutableList.of("foo-key"));
+        verify(mockDdbClient).batchWriteItemUnprocessed(unprocessedItems);
+    }
+
+    @Test
+    public void batchWriteGivesUp() {
+        // Every attempt leaves unprocessed items.
+        Map<String, List<WriteRequest>> unprocessedItems = ImmutableMap.of("test-progress-table",
+                ImmutableList.of(new WriteRequest()));
+        BatchWriteItemOutcome unprocessedOutcome = mock(BatchWriteItemOutcome.class);
+        when(unprocessedOutcome.getUnprocessedItems()).thenReturn(unprocessedItems);
+
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(unprocessedOutcome);
+        when(mockDdbClient.batchWriteItemUnprocessed(unprocessedItems)).thenReturn(unprocessedOutcome);
+
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbClient(mockDdbClient);
+        helper.setDdbUddJobProgressTable(mockProgressTableWithName());
+
+        // Execute and validate.
+        try {
+            helper.deleteUddJobProgress("test-job", ImmutableList.of("foo-key"));
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+        verify(mockDdbClient, times(DynamoHelper.MAX_BATCH_WRITE_ATTEMPTS - 1)).batchWriteItemUnprocessed(
+                unprocessedItems);
+    }
+
+    // Helper method which makes a mock DynamoDB client, where batch writes process all items.
+    private static DynamoDB mockBatchWriteClient() {
+        BatchWriteItemOutcome processedOutcome = mock(BatchWriteItemOutcome.class);
+        when(processedOutcome.getUnprocessedItems()).thenReturn(ImmutableMap.of());
+
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(processedOutcome);
+        when(mockDdbClient.batchWriteItemUnprocessed(any())).thenReturn(processedOutcome);
+        return mockDdbClient;
+    }
+
+    // Helper method which makes a mock UDD job progress table with a name, for batch writes.
+    private static Table mockProgressTableWithName() {
+        Table mockProgressTable = mock(Table.class);
+        when(mockProgressTable.getTableName()).thenReturn("test-progress-table");
+        return mockProgressTable;
+    }
+
+    // Helper method which converts a primary key to a map from attribute name to value.
+    private static Map<String, Object> getKeyComponents(PrimaryKey primaryKey) {
+        Map<String, Object> componentMap = new HashMap<>();
+        for (KeyAttribute oneComponent : primaryKey.getComponents()) {
+            componentMap.put(oneComponent.getName(), oneComponent.getValue());
+        }
+        return componentMap;
+    }
+
+    @Test
+    public void deleteUddJobProgress() {
+        Table mockProgressTable = mock(Table.class);
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUddJobProgressTable(mockProgressTable);
+
+        // Execute and validate.
+        helper.deleteUddJobProgress("test-job", "foo-key");
+        verify(mockProgressTable).deleteItem(DynamoHelper.ATTR_JOB_ID, "test-job", DynamoHelper.ATTR_PROGRESS_KEY,
+                "foo-key");
+    }
+
+    @Test
+    public void getCachedUddArchive() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            Table mockCacheTable = mock(Table.class);
+            when(mockCacheTable.getItem(DynamoHelper.ATTR_REQUEST_KEY, "test-request")).thenReturn(new Item()
+                    .withString(DynamoHelper.ATTR_REQUEST_KEY, "test-request")
+                    .withString(DynamoHelper.ATTR_MASTER_ZIP_FILE_NAME, "master.zip")
+                    .withString(DynamoHelper.ATTR_WATERMARK, "test-watermark")
+                    .withLong(DynamoHelper.ATTR_EXPIRES_ON, MOCK_NOW_SECONDS + 60));
+
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbUddResultCacheTable(mockCacheTable);
+
+            // Execute and validate.
+            CachedUddArchive archive = helper.getCachedUddArchive("test-request");
+            assertEquals(archive.getMasterZipFileName(), "master.zip");
+            assertEquals(archive.getWatermark(), "test-watermark");
+            assertEquals(archive.getExpiresOn().getMillis(), (MOCK_NOW_SECONDS + 60) * 1000);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void getCachedUddArchive_Expired() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_SECONDS * 1000);
+        try {
+            Table mockCacheTable = mock(Table.class);
+            when(mockCacheTable.getItem(DynamoHelper.ATTR_REQUEST_KEY, "test-request")).thenReturn(new Item()
+                    .withString(DynamoHelper.ATTR_REQUEST_KEY, "test-request")
+                    .withString(DynamoHelper.ATTR_MASTER_ZIP_FILE_NAME, "master.zip")
+                    .withString(DynamoHelper.ATTR_WATERMARK, "test-watermark")
+                    .withLong(DynamoHelper.ATTR_EXPIRES_ON, MOCK_NOW_SECONDS));
+
+            DynamoHelper helper = new DynamoHelper();
+            helper.setDdbUddResultCacheTable(mockCacheTable);
+
+            // Execute and validate.
+            assertNull(helper.getCachedUddArchive("test-request"));
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void getCachedUddArchive_NoItem() {
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUddResultCacheTable(mock(Table.class));
+        assertNull(helper.getCachedUddArchive("test-request"));
+    }
+
+    @Test
+    public void putCachedUddArchive() {
+        Table mockCacheTable = mock(Table.class);
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbUddResultCacheTable(mockCacheTable);
+
+        // Execute.
+        CachedUddArchive archive = new CachedUddArchive.Builder().withMasterZipFileName("master.zip")
+                .withWatermark("test-watermark").withExpiresOn(new DateTime(MOCK_NOW_SECONDS * 1000)).build();
+        helper.putCachedUddArchive("test-request", archive);
+
+        // Validate.
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockCacheTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.ATTR_REQUEST_KEY), "test-request");
+        assertEquals(item.getString(DynamoHelper.ATTR_MASTER_ZIP_FILE_NAME), "master.zip");
+        assertEquals(item.getString(DynamoHelper.ATTR_WATERMARK), "test-watermark");
+        assertEquals(item.getLong(DynamoHelper.ATTR_EXPIRES_ON), MOCK_NOW_SECONDS);
+    }
 }
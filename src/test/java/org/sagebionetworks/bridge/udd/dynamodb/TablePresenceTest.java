@@ -0,0 +1,87 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.LocalDate;
+import org.testng.annotations.Test;
+
+public class TablePresenceTest {
+    private static final LocalDate MIN_DATE = LocalDate.parse("2018-03-01");
+    private static final LocalDate MAX_DATE = LocalDate.parse("2018-03-31");
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*synapseTableId.*")
+    public void nullSynapseTableId() {
+        new TablePresence.Builder().withMinUploadDate(MIN_DATE).withMaxUploadDate(MAX_DATE).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*synapseTableId.*")
+    public void emptySynapseTableId() {
+        new TablePresence.Builder().withSynapseTableId("").withMinUploadDate(MIN_DATE).withMaxUploadDate(MAX_DATE)
+                .build();
+    }
+
+    @Test
+    public void nullMinUploadDate() {
+        // Unbounded before the max upload date.
+        TablePresence presence = new TablePresence.Builder().withSynapseTableId("test-table")
+                .withMaxUploadDate(MAX_DATE).build();
+        assertNull(presence.getMinUploadDate());
+        assertTrue(presence.overlaps(LocalDate.parse("2000-01-01"), LocalDate.parse("2000-01-31")));
+        assertTrue(presence.overlaps(MAX_DATE, LocalDate.parse("2018-04-30")));
+        assertFalse(presence.overlaps(LocalDate.parse("2018-04-01"), LocalDate.parse("2018-04-30")));
+    }
+
+    @Test
+    public void nullMaxUploadDate() {
+        // Unbounded after the min upload date.
+        TablePresence presence = new TablePresence.Builder().withSynapseTableId("test-table")
+                .withMinUploadDate(MIN_DATE).build();
+        assertNull(presence.getMaxUploadDate());
+        assertTrue(presence.overlaps(LocalDate.parse("2030-01-01"), LocalDate.parse("2030-01-31")));
+        assertTrue(presence.overlaps(LocalDate.parse("2018-02-01"), MIN_DATE));
+        assertFalse(presence.overlaps(LocalDate.parse("2018-02-01"), LocalDate.parse("2018-02-28")));
+    }
+
+    @Test
+    public void nullBothUploadDates() {
+        TablePresence presence = new TablePresence.Builder().withSynapseTableId("test-table").build();
+        assertTrue(presence.overlaps(MIN_DATE, MAX_DATE));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = "minUploadDate can't be after maxUploadDate")
+    public void minAfterMax() {
+        new TablePresence.Builder().withSynapseTableId("test-table").withMinUploadDate(MAX_DATE)
+                .withMaxUploadDate(MIN_DATE).build();
+    }
+
+    @Test
+    public void happyCase() {
+        TablePresence presence = new TablePresence.Builder().withSynapseTableId("test-table")
+                .withMinUploadDate(MIN_DATE).withMaxUploadDate(MAX_DATE).build();
+        assertEquals(presence.getSynapseTableId(), "test-table");
+        assertEquals(presence.getMinUploadDate(), MIN_DATE);
+        assertEquals(presence.getMaxUploadDate(), MAX_DATE);
+    }
+
+    @Test
+    public void overlaps() {
+        TablePresence presence = new TablePresence.Builder().withSynapseTableId("test-table")
+                .withMinUploadDate(MIN_DATE).withMaxUploadDate(MAX_DATE).build();
+
+        // Entirely before and entirely after.
+        assertFalse(presence.overlaps(LocalDate.parse("2018-02-01"), LocalDate.parse("2018-02-28")));
+        assertFalse(presence.overlaps(LocalDate.parse("2018-04-01"), LocalDate.parse("2018-04-30")));
+
+        // Touching either end, inclusive.
+        assertTrue(presence.overlaps(LocalDate.parse("2018-02-01"), MIN_DATE));
+        assertTrue(presence.overlaps(MAX_DATE, LocalDate.parse("2018-04-30")));
+
+        // Contained and containing.
+        assertTrue(presence.overlaps(LocalDate.parse("2018-03-10"), LocalDate.parse("2018-03-20")));
+        assertTrue(presence.overlaps(LocalDate.parse("2018-01-01"), LocalDate.parse("2018-12-31")));
+    }
+}
@@ -0,0 +1,121 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+public class UddJobProgressTest {
+    @Test
+    public void makeJobId() {
+        assertEquals(UddJobProgress.makeJobId("test-study", "test-health-code", "2018-03-01", "2018-03-31"),
+                "test-study:test-health-code:2018-03-01:2018-03-31");
+    }
+
+    @Test
+    public void makeAsyncJobKey() {
+        String key = UddJobProgress.makeAsyncJobKey("query-token", "SELECT * FROM foo");
+        assertTrue(key.startsWith("query-token:"));
+
+        // Same content makes the same key. Different content or job type makes a different key.
+        assertEquals(UddJobProgress.makeAsyncJobKey("query-token", "SELECT * FROM foo"), key);
+        assertNotEquals(UddJobProgress.makeAsyncJobKey("query-token", "SELECT * FROM bar"), key);
+        assertNotEquals(UddJobProgress.makeAsyncJobKey("query-result", "SELECT * FROM foo"), key);
+    }
+
+    @Test
+    public void putGetRemoveClear() {
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        UddJobProgress jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of("foo-key",
+                "foo-value"));
+        assertEquals(jobProgress.getJobId(), "test-job");
+        assertEquals(jobProgress.get("foo-key"), "foo-value");
+        assertNull(jobProgress.get("bar-key"));
+
+        // Put writes through to DynamoDB.
+        jobProgress.put("bar-key", "bar-value");
+        assertEquals(jobProgress.get("bar-key"), "bar-value");
+        verify(mockDynamoHelper).putUddJobProgress("test-job", "bar-key", "bar-value");
+
+        // Remove deletes from DynamoDB.
+        jobProgress.remove("bar-key");
+        assertNull(jobProgress.get("bar-key"));
+        verify(mockDynamoHelper).deleteUddJobProgress("test-job", "bar-key");
+
+        // Clear deletes everything that's left, in a batch.
+        jobProgress.clear();
+        assertNull(jobProgress.get("foo-key"));
+        verify(mockDynamoHelper).deleteUddJobProgress("test-job", ImmutableList.of("foo-key"));
+    }
+
+    @Test
+    public void putUnchangedValueIsNoOp() {
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        UddJobProgress jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of("foo-key",
+                "foo-value"));
+
+        jobProgress.put("foo-key", "foo-value");
+        verify(mockDynamoHelper, never()).putUddJobProgress(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void replace() {
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        UddJobProgress jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of("token-key",
+                "token-value"));
+
+        jobProgress.replace("token-key", "result-key", "result-value");
+        assertNull(jobProgress.get("token-key"));
+        assertEquals(jobProgress.get("result-key"), "result-value");
+        verify(mockDynamoHelper).replaceUddJobProgress("test-job", "token-key", "result-key", "result-value");
+    }
+
+    @Test
+    public void clearWithNoProgress() {
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        UddJobProgress jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of());
+
+        // Nothing to delete, so we don't call DynamoDB.
+        jobProgress.clear();
+        verifyZeroInteractions(mockDynamoHelper);
+    }
+
+    @Test
+    public void dynamoErrorsAreSuppressed() {
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        doThrow(RuntimeException.class).when(mockDynamoHelper).putUddJobProgress("test-job", "foo-key",
+                "foo-value");
+        doThrow(RuntimeException.class).when(mockDynamoHelper).deleteUddJobProgress("test-job", "foo-key");
+        doThrow(RuntimeException.class).when(mockDynamoHelper).replaceUddJobProgress("test-job", "foo-key",
+                "bar-key", "bar-value");
+        doThrow(RuntimeException.class).when(mockDynamoHelper).deleteUddJobProgress("test-job",
+                ImmutableList.of("bar-key"));
+
+        // Progress is still tracked in memory, even if DynamoDB fails.
+        UddJobProgress jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of());
+        jobProgress.put("foo-key", "foo-value");
+        assertEquals(jobProgress.get("foo-key"), "foo-value");
+
+        jobProgress.replace("foo-key", "bar-key", "bar-value");
+        assertNull(jobProgress.get("foo-key"));
+        assertEquals(jobProgress.get("bar-key"), "bar-value");
+
+        jobProgress.clear();
+        assertNull(jobProgress.get("bar-key"));
+
+        // Put it back, so we can remove it.
+        jobProgress.put("foo-key", "foo-value");
+        jobProgress.remove("foo-key");
+        assertNull(jobProgress.get("foo-key"));
+    }
+}
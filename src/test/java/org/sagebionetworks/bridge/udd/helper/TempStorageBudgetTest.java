@@ -0,0 +1,195 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class TempStorageBudgetTest {
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    private static final int SYNAPSE_THREAD_COUNT = 2;
+
+    private ExecutorService executorService;
+    private InMemoryFileHelper inMemoryFileHelper;
+
+    @BeforeMethod
+    public void setup() {
+        executorService = Executors.newCachedThreadPool();
+        inMemoryFileHelper = new InMemoryFileHelper();
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void admitAndRelease() throws Exception {
+        TempStorageBudget budget = createTempStorageBudget(100, 10, inMemoryFileHelper);
+
+        TempStorageBudget.Reservation reservation1 = budget.admitJob();
+        TempStorageBudget.Reservation reservation2 = budget.admitJob();
+        assertEquals(budget.getJobCount(), 2);
+        assertEquals(budget.getUsedBytes(), 20 * BYTES_PER_MB);
+
+        // Writes within the reservation don't change usage. Writes past it do.
+        reservation1.recordBytes(5 * BYTES_PER_MB);
+        assertEquals(budget.getUsedBytes(), 20 * BYTES_PER_MB);
+        reservation1.recordBytes(25 * BYTES_PER_MB);
+        assertEquals(budget.getUsedBytes(), 40 * BYTES_PER_MB);
+
+        reservation1.close();
+        assertEquals(budget.getJobCount(), 1);
+        assertEquals(budget.getUsedBytes(), 10 * BYTES_PER_MB);
+
+        // Closing twice is a no-op.
+        reservation1.close();
+        assertEquals(budget.getJobCount(), 1);
+
+        reservation2.close();
+        assertEquals(budget.getJobCount(), 0);
+        assertEquals(budget.getUsedBytes(), 0);
+    }
+
+    @Test
+    public void firstJobAlwaysAdmitted() throws Exception {
+        // Reservation is bigger than the budget, but the first job is still admitted, and never waits.
+        TempStorageBudget budget = createTempStorageBudget(5, 10, inMemoryFileHelper);
+        try (TempStorageBudget.Reservation reservation = budget.admitJob()) {
+            reservation.recordBytes(50 * BYTES_PER_MB);
+            reservation.awaitHeadroom();
+            assertEquals(budget.getJobCount(), 1);
+        }
+    }
+
+    @Test
+    public void admissionWaitsForRelease() throws Exception {
+        TempStorageBudget budget = createTempStorageBudget(20, 10, inMemoryFileHelper);
+        TempStorageBudget.Reservation reservation1 = budget.admitJob();
+        TempStorageBudget.Reservation reservation2 = budget.admitJob();
+
+        // Third job doesn't fit.
+        Future<TempStorageBudget.Reservation> future3 = executorService.submit(budget::admitJob);
+        Thread.sleep(100);
+        assertFalse(future3.isDone());
+
+        // Releasing a job lets the third job in.
+        reservation1.close();
+        TempStorageBudget.Reservation reservation3 = future3.get(10, TimeUnit.SECONDS);
+        assertNotNull(reservation3);
+        assertEquals(budget.getJobCount(), 2);
+
+        reservation2.close();
+        reservation3.close();
+    }
+
+    @Test
+    public void downloadsWaitForHeadroom() throws Exception {
+        TempStorageBudget budget = createTempStorageBudget(20, 10, inMemoryFileHelper);
+        TempStorageBudget.Reservation reservation1 = budget.admitJob();
+        TempStorageBudget.Reservation reservation2 = budget.admitJob();
+
+        // Job 1 writes past its reservation, exhausting the budget. Job 1 is the oldest, so it doesn't wait.
+        reservation1.recordBytes(15 * BYTES_PER_MB);
+        reservation1.awaitHeadroom();
+
+        // Job 2 waits until job 1 is done.
+        Future<?> future2 = executorService.submit(() -> {
+            reservation2.awaitHeadroom();
+            return null;
+        });
+        Thread.sleep(100);
+        assertFalse(future2.isDone());
+
+        reservation1.close();
+        future2.get(10, TimeUnit.SECONDS);
+
+        reservation2.close();
+    }
+
+    @Test
+    public void recordFile() throws Exception {
+        TempStorageBudget budget = createTempStorageBudget(100, 0, inMemoryFileHelper);
+        try (TempStorageBudget.Reservation reservation = budget.admitJob()) {
+            File tmpDir = inMemoryFileHelper.createTempDir();
+            File file = inMemoryFileHelper.newFile(tmpDir, "test.txt");
+            try (Writer writer = inMemoryFileHelper.getWriter(file)) {
+                writer.write("dummy content");
+            }
+
+            // File size comes from the file helper.
+            reservation.recordFile(file);
+            assertEquals(budget.getUsedBytes(), "dummy content".length());
+
+            // Files that don't exist count as zero.
+            reservation.recordFile(inMemoryFileHelper.newFile(tmpDir, "missing.txt"));
+            assertEquals(budget.getUsedBytes(), "dummy content".length());
+
+            inMemoryFileHelper.deleteFile(file);
+            inMemoryFileHelper.deleteDir(tmpDir);
+        }
+    }
+
+    @Test
+    public void pooledWaitersAreCapped() throws Exception {
+        // Thread count is 2, so only 1 pool task waits at a time.
+        TempStorageBudget budget = createTempStorageBudget(20, 10, inMemoryFileHelper);
+        TempStorageBudget.Reservation reservation1 = budget.admitJob();
+        TempStorageBudget.Reservation reservation2 = budget.admitJob();
+        reservation1.recordBytes(15 * BYTES_PER_MB);
+
+        // The oldest job's tasks never wait.
+        reservation1.awaitHeadroomFromPool();
+
+        // Job 2's first task waits.
+        Future<?> future2a = executorService.submit(() -> {
+            reservation2.awaitHeadroomFromPool();
+            return null;
+        });
+        Thread.sleep(100);
+        assertFalse(future2a.isDone());
+        assertEquals(budget.getPooledWaiterCount(), 1);
+
+        // Job 2's second task doesn't wait, so the pool always has a thread free.
+        reservation2.awaitHeadroomFromPool();
+
+        // Releasing job 1 lets the waiting task continue.
+        reservation1.close();
+        future2a.get(10, TimeUnit.SECONDS);
+        assertEquals(budget.getPooledWaiterCount(), 0);
+
+        reservation2.close();
+    }
+
+    /**
+     * Creates a temp storage budget with the given settings and a Synapse thread pool of 2. Public, so other tests can
+     * use a real budget.
+     */
+    public static TempStorageBudget createTempStorageBudget(int budgetMb, int jobReserveMb, FileHelper fileHelper) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(TempStorageBudget.CONFIG_KEY_BUDGET_MB)).thenReturn(budgetMb);
+        when(mockConfig.getInt(TempStorageBudget.CONFIG_KEY_JOB_RESERVE_MB)).thenReturn(jobReserveMb);
+        when(mockConfig.getInt(TempStorageBudget.CONFIG_KEY_SYNAPSE_THREAD_COUNT)).thenReturn(SYNAPSE_THREAD_COUNT);
+
+        TempStorageBudget budget = new TempStorageBudget();
+        budget.setConfig(mockConfig);
+        budget.setFileHelper(fileHelper);
+        return budget;
+    }
+}
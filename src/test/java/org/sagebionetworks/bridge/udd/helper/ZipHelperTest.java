@@ -4,14 +4,18 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -20,7 +24,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 public class ZipHelperTest {
     @Test
@@ -61,6 +67,7 @@ public class ZipHelperTest {
 
         // set up zip helper and execute
         ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setConfig(mockConfig());
         zipHelper.setFileHelper(mockFileHelper);
         zipHelper.zip(ImmutableList.of(mockFooFile, mockBarFile, mockBazFile), mockZipFile);
 
@@ -75,6 +82,87 @@ public class ZipHelperTest {
         assertEquals(unzippedMap.get("baz-file"), "baz content");
     }
 
+    @Test
+    public void storedAndParallelEntries() throws Exception {
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+
+        // Large text file, big enough for several blocks. Repetitive, so it compresses well, and blocks reference
+        // earlier blocks through the dictionary.
+        StringBuilder largeContentBuilder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            largeContentBuilder.append("row ").append(i).append(", some repeated csv content\n");
+        }
+        String largeContent = largeContentBuilder.toString();
+        File largeFile = createFileWithContent(inMemoryFileHelper, tmpDir, "large.csv", largeContent);
+
+        // Small text file and already-compressed file.
+        File smallFile = createFileWithContent(inMemoryFileHelper, tmpDir, "small.csv", "small content");
+        File storedFile = createFileWithContent(inMemoryFileHelper, tmpDir, "attachments.zip",
+                "pretend this is a zip");
+
+        // Set up zip helper with small blocks and a real thread pool.
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setBlockSize(1000);
+        zipHelper.setCompressionExecutorService(executorService);
+        zipHelper.setConfig(mockConfig());
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        zipHelper.setParallelThreshold(4000);
+
+        // Execute.
+        File zipFile = inMemoryFileHelper.newFile(tmpDir, "output.zip");
+        try {
+            zipHelper.zip(ImmutableList.of(largeFile, smallFile, storedFile), zipFile);
+        } finally {
+            executorService.shutdown();
+        }
+
+        // Validate contents.
+        byte[] zipBytes = inMemoryFileHelper.getBytes(zipFile);
+        Map<String, String> unzippedMap = unzipHelper(zipBytes);
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("large.csv"), largeContent);
+        assertEquals(unzippedMap.get("small.csv"), "small content");
+        assertEquals(unzippedMap.get("attachments.zip"), "pretend this is a zip");
+
+        // Validate compression methods.
+        Map<String, Integer> methodMap = new HashMap<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                methodMap.put(zipEntry.getName(), zipEntry.getMethod());
+            }
+        }
+        assertEquals(methodMap.get("large.csv").intValue(), ZipEntry.DEFLATED);
+        assertEquals(methodMap.get("small.csv").intValue(), ZipEntry.DEFLATED);
+        assertEquals(methodMap.get("attachments.zip").intValue(), ZipEntry.STORED);
+
+        // Parallel compression cleans up its temp files.
+        inMemoryFileHelper.deleteFile(largeFile);
+        inMemoryFileHelper.deleteFile(smallFile);
+        inMemoryFileHelper.deleteFile(storedFile);
+        inMemoryFileHelper.deleteFile(zipFile);
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    private static Config mockConfig() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_COMPRESSION_LEVEL)).thenReturn(6);
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_THREAD_COUNT)).thenReturn(2);
+        return mockConfig;
+    }
+
+    private static File createFileWithContent(InMemoryFileHelper inMemoryFileHelper, File tmpDir, String filename,
+            String content) throws IOException {
+        File file = inMemoryFileHelper.newFile(tmpDir, filename);
+        try (Writer writer = inMemoryFileHelper.getWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
     // Test helper for unzip.
     public static Map<String, String> unzipHelper(byte[] zipBytes) throws IOException {
         Map<String, String> unzippedMap = new HashMap<>();
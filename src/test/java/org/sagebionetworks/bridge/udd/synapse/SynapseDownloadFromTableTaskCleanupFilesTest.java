@@ -56,7 +56,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     @Test
     public void csvAndBulkDownload() throws Exception {
         task.getContext().setCsvFile(createEmptyFile("csv.csv"));
-        task.getContext().setBulkDownloadFile(createEmptyFile("download.zip"));
+        task.getContext().addBulkDownloadFile(createEmptyFile("download.zip"));
         executeTest();
     }
 
@@ -70,7 +70,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     @Test
     public void all3Files() throws Exception {
         task.getContext().setCsvFile(createEmptyFile("csv.csv"));
-        task.getContext().setBulkDownloadFile(createEmptyFile("download.zip"));
+        task.getContext().addBulkDownloadFile(createEmptyFile("download.zip"));
         task.getContext().setEditedCsvFile(createEmptyFile("csv-edited.csv"));
         executeTest();
     }
@@ -80,7 +80,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     public void nonNullFilesButDontExist() {
         // Create the files, but don't write any content to them, so they won't exist.
         task.getContext().setCsvFile(inMemoryFileHelper.newFile(tmpDir, "csv.csv"));
-        task.getContext().setBulkDownloadFile(inMemoryFileHelper.newFile(tmpDir, "download.zip"));
+        task.getContext().addBulkDownloadFile(inMemoryFileHelper.newFile(tmpDir, "download.zip"));
         task.getContext().setEditedCsvFile(inMemoryFileHelper.newFile(tmpDir, "csv-edited.csv"));
         executeTest();
     }
@@ -4,8 +4,12 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -20,23 +24,40 @@ import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import au.com.bytecode.opencsv.CSVReader;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
 import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
+import org.sagebionetworks.repo.model.file.FileDownloadCode;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudget;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudgetTest;
 
 // This test had tests for SynapseDownloadFromTableTask before that class was split into DefaultTableTask and
 // SchemaBasedTableTask. Now, a lot of the tests use SchemaBasedTableTask.
@@ -51,6 +72,11 @@ public class SynapseDownloadFromTableTaskTest {
     private static final UploadSchema DEFAULT_TEST_SCHEMA = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY)
             .addField("foo", "INT").addField("bar", "ATTACHMENT_BLOB").addField("baz", "ATTACHMENT_JSON_BLOB").build();
 
+    // 3 file handles, used by the chunking tests.
+    private static final String CHUNK_TEST_CSV_CONTENT = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+            "\"record-1\",\"test-health-code\",\"1\",\"fh-1\",\"fh-2\"\n" +
+            "\"record-2\",\"test-health-code\",\"2\",\"fh-3\",";
+
     private InMemoryFileHelper inMemoryFileHelper;
     private ArgumentCaptor<String> synapseQueryCaptor;
     private ArgumentCaptor<Set> synapseFileHandleIdSetCaptor;
@@ -66,29 +92,31 @@ public class SynapseDownloadFromTableTaskTest {
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
         assertNull(result.getCsvFile());
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         postValidation(result);
     }
 
     @Test
     public void csvHasNoHealthCode() throws Exception {
-        // setup
-        String csvContent = "\"recordId\",\"foo\",\"bar\",\"baz\"\n" +
-                "\"record-1\",\"37\",\"file-handle-1\",\"file-handle-2\"";
-        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null);
+        // setup - Column-projected queries don't return the health code.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        String csvContent = "\"recordId\",\"asdf\"\n" +
+                "\"record-1\",\"37\"";
+        setupTestWithArgs(schema, csvContent, null, null);
+        task = spy(task);
 
-        // execute
-        Exception thrownEx = null;
-        try {
-            task.call();
-            fail("expected exception");
-        } catch (IllegalStateException ex) {
-            thrownEx = ex;
-        }
-        assertTrue(thrownEx.getMessage().contains("healthCodeColumnIndex"));
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.call();
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "asdf" });
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "37" });
 
-        // validate
-        postValidation(null);
+        // There's nothing to edit, so we don't rewrite the CSV.
+        verify(task, never()).editCsv();
+
+        postValidation(result);
     }
 
     @Test
@@ -101,7 +129,7 @@ public class SynapseDownloadFromTableTaskTest {
 
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         List<String[]> parsedCsv = parseCsv(result.getCsvFile());
         assertEquals(parsedCsv.size(), 2);
 
@@ -129,7 +157,7 @@ public class SynapseDownloadFromTableTaskTest {
 
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         List<String[]> parsedCsv = parseCsv(result.getCsvFile());
         assertEquals(parsedCsv.size(), 2);
 
@@ -275,7 +303,8 @@ public class SynapseDownloadFromTableTaskTest {
         assertTrue(Strings.isNullOrEmpty(parsedCsv.get(5)[4]));
 
         // validate bulk download file - It's just "dummy zip content"
-        try (Reader bulkDownloadFileReader = inMemoryFileHelper.getReader(result.getBulkDownloadFile())) {
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+        try (Reader bulkDownloadFileReader = inMemoryFileHelper.getReader(result.getBulkDownloadFileList().get(0))) {
             assertEquals(CharStreams.toString(bulkDownloadFileReader), "dummy zip content");
         }
 
@@ -357,6 +386,524 @@ public class SynapseDownloadFromTableTaskTest {
         postValidation(result);
     }
 
+    @Test
+    public void downloadWaitsForHeadroom() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry"),
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+
+        // An older job has used up the budget, so our task waits before downloading anything.
+        TempStorageBudget tempStorageBudget = TempStorageBudgetTest.createTempStorageBudget(20, 10,
+                inMemoryFileHelper);
+        TempStorageBudget.Reservation olderReservation = tempStorageBudget.admitJob();
+        olderReservation.recordBytes(15 * 1024 * 1024);
+        task.setTempStorageReservation(tempStorageBudget.admitJob());
+
+        // execute
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        ExecutorService taskExecutorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<SynapseDownloadFromTableResult> taskFuture = taskExecutorService.submit(task);
+            Thread.sleep(200);
+            assertFalse(taskFuture.isDone());
+            verify(mockSynapseHelper, never()).startTableQuery(any(), any());
+
+            // Releasing the older job lets our task continue.
+            olderReservation.close();
+            SynapseDownloadFromTableResult result = taskFuture.get(10, TimeUnit.SECONDS);
+            assertEquals(result.getBulkDownloadFileList().size(), 1);
+            postValidation(result);
+        } finally {
+            taskExecutorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void chunkedBulkDownload() throws Exception {
+        // 3 file handles in chunks of 2 makes 2 bulk download jobs, both running at once.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkSize(2);
+        task.setBulkDownloadMaxConcurrentJobs(2);
+
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry")));
+        mockBulkDownloadChunk(ImmutableSet.of("fh-3"), "job-2", "zip-2", ImmutableList.of(
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // Both jobs were started before we waited on either of them.
+        InOrder inOrder = inOrder(mockSynapseHelper);
+        inOrder.verify(mockSynapseHelper).startBulkDownloadFileHandle("test-table-id", ImmutableSet.of("fh-1",
+                "fh-2"));
+        inOrder.verify(mockSynapseHelper).startBulkDownloadFileHandle("test-table-id", ImmutableSet.of("fh-3"));
+        inOrder.verify(mockSynapseHelper).getBulkDownloadFileHandleResult("job-1");
+        inOrder.verify(mockSynapseHelper).getBulkDownloadFileHandleResult("job-2");
+
+        // validate zip files
+        List<File> bulkDownloadFileList = result.getBulkDownloadFileList();
+        assertEquals(bulkDownloadFileList.size(), 2);
+        assertEquals(bulkDownloadFileList.get(0).getName(), TEST_SCHEMA_KEY.toString() + ".zip");
+        assertEquals(readFile(bulkDownloadFileList.get(0)), "zip-1 content");
+        assertEquals(bulkDownloadFileList.get(1).getName(), TEST_SCHEMA_KEY.toString() + "-2.zip");
+        assertEquals(readFile(bulkDownloadFileList.get(1)), "zip-2 content");
+
+        // validate file summaries from both chunks were merged into the CSV. Since there's more than one zip file, each
+        // zip entry name is prefixed with its zip file name.
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(1)[3], TEST_SCHEMA_KEY.toString() + ".zip/fh-1-zip-entry");
+        assertEquals(parsedCsv.get(1)[4], TEST_SCHEMA_KEY.toString() + ".zip/fh-2-zip-entry");
+        assertEquals(parsedCsv.get(2)[3], TEST_SCHEMA_KEY.toString() + "-2.zip/fh-3-zip-entry");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void sizeBasedBulkDownloadChunks() throws Exception {
+        // fh-1 and fh-2 together exceed the size limit, so fh-2 starts a new chunk, and fh-3 fits in with it.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkMaxBytes(1000);
+
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.getFileHandleSizes("test-table-id", ImmutableList.of("fh-1", "fh-2", "fh-3")))
+                .thenReturn(ImmutableMap.of("fh-1", 600L, "fh-2", 600L, "fh-3", 400L));
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry")));
+        mockBulkDownloadChunk(ImmutableSet.of("fh-2", "fh-3"), "job-2", "zip-2", ImmutableList.of(
+                makeFileSummary("fh-2", "fh-2-zip-entry"), makeFileSummary("fh-3", "fh-3-zip-entry")));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        verify(mockSynapseHelper, times(2)).startBulkDownloadFileHandle(eq("test-table-id"), any(Set.class));
+
+        // validate
+        assertEquals(result.getBulkDownloadFileList().size(), 2);
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1)[3], TEST_SCHEMA_KEY.toString() + ".zip/fh-1-zip-entry");
+        assertEquals(parsedCsv.get(1)[4], TEST_SCHEMA_KEY.toString() + "-2.zip/fh-2-zip-entry");
+        assertEquals(parsedCsv.get(2)[3], TEST_SCHEMA_KEY.toString() + "-2.zip/fh-3-zip-entry");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void fileHandleSizeErrorFallsBackToCount() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkMaxBytes(1000);
+
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.getFileHandleSizes(eq("test-table-id"), any(List.class))).thenThrow(
+                new SynapseBadRequestException());
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry"),
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - all file handles fit in one chunk by count
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+        postValidation(result);
+    }
+
+    @Test
+    public void makeBulkDownloadChunks() {
+        List<String> fileHandleIdList = ImmutableList.of("fh-1", "fh-2", "fh-3", "fh-4", "fh-5", "fh-6");
+
+        // fh-2 is over the size limit by itself, so it gets its own chunk. fh-4 has no size, so it counts as 0. The
+        // count limit splits fh-5 from fh-6.
+        Map<String, Long> sizeMap = ImmutableMap.of("fh-1", 300L, "fh-2", 1500L, "fh-3", 700L, "fh-5", 100L,
+                "fh-6", 100L);
+        List<List<String>> chunkList = SynapseDownloadFromTableTask.makeBulkDownloadChunks(fileHandleIdList,
+                sizeMap, 3, 1000);
+        assertEquals(chunkList, ImmutableList.of(ImmutableList.of("fh-1"), ImmutableList.of("fh-2"),
+                ImmutableList.of("fh-3", "fh-4", "fh-5"), ImmutableList.of("fh-6")));
+    }
+
+    @Test
+    public void makeBulkDownloadChunksEmpty() {
+        List<List<String>> chunkList = SynapseDownloadFromTableTask.makeBulkDownloadChunks(ImmutableList.of(),
+                ImmutableMap.of(), 3, 1000);
+        assertTrue(chunkList.isEmpty());
+    }
+
+    @Test
+    public void chunkRetry() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+
+        // First job times out. The retry starts a new job, which succeeds.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-2", "zip-2", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry"),
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+        when(mockSynapseHelper.startBulkDownloadFileHandle("test-table-id", ImmutableSet.of("fh-1", "fh-2",
+                "fh-3"))).thenReturn("job-1", "job-2");
+        when(mockSynapseHelper.getBulkDownloadFileHandleResult("job-1")).thenThrow(new AsyncTimeoutException());
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        verify(mockSynapseHelper, times(2)).startBulkDownloadFileHandle(eq("test-table-id"), any(Set.class));
+
+        // validate
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+        assertEquals(readFile(result.getBulkDownloadFileList().get(0)), "zip-2 content");
+
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1)[3], "fh-1-zip-entry");
+        assertEquals(parsedCsv.get(1)[4], "fh-2-zip-entry");
+        assertEquals(parsedCsv.get(2)[3], "fh-3-zip-entry");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void chunkRetriesExhausted() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkSize(2);
+
+        // First chunk succeeds. Second chunk times out every time.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry")));
+        when(mockSynapseHelper.startBulkDownloadFileHandle("test-table-id", ImmutableSet.of("fh-3"))).thenReturn(
+                "job-2");
+        when(mockSynapseHelper.getBulkDownloadFileHandleResult("job-2")).thenThrow(new AsyncTimeoutException());
+
+        // execute
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            // expected exception
+        }
+        verify(mockSynapseHelper, times(SynapseDownloadFromTableTask.BULK_DOWNLOAD_CHUNK_MAX_ATTEMPTS))
+                .getBulkDownloadFileHandleResult("job-2");
+
+        // The first chunk's zip file is cleaned up along with everything else.
+        postValidation(null);
+    }
+
+    @Test
+    public void chunkExceedsSizeLimit() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+
+        // Synapse only fits one file per zip. The overflow is re-queued until nothing fits, at which point we keep the
+        // failure.
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeOverflowFileSummary("fh-2"),
+                makeOverflowFileSummary("fh-3")));
+        mockBulkDownloadChunk(ImmutableSet.of("fh-2", "fh-3"), "job-2", "zip-2", ImmutableList.of(
+                makeFileSummary("fh-2", "fh-2-zip-entry"), makeOverflowFileSummary("fh-3")));
+        mockBulkDownloadChunk(ImmutableSet.of("fh-3"), "job-3", "zip-3", ImmutableList.of(
+                makeOverflowFileSummary("fh-3")));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate
+        assertEquals(result.getBulkDownloadFileList().size(), 3);
+
+        // The failure message isn't in a zip file, so it isn't prefixed.
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1)[3], TEST_SCHEMA_KEY.toString() + ".zip/fh-1-zip-entry");
+        assertEquals(parsedCsv.get(1)[4], TEST_SCHEMA_KEY.toString() + "-2.zip/fh-2-zip-entry");
+        assertEquals(parsedCsv.get(2)[3], "too big");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void reattachToBulkDownload() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+
+        // A previous attempt at this UDD job already started the bulk download for this chunk.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-1", "zip-1", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry"),
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+        task.setJobProgress(new UddJobProgress(mock(DynamoHelper.class), "test-job", ImmutableMap.of(
+                UddJobProgress.makeAsyncJobKey("bulk-download-token", "test-table-id:fh-1,fh-2,fh-3"), "job-1")));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // We reattached to the job instead of starting a new one.
+        verify(mockSynapseHelper, never()).startBulkDownloadFileHandle(any(), any());
+        verify(mockSynapseHelper).getBulkDownloadFileHandleResult("job-1");
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+        assertEquals(readFile(result.getBulkDownloadFileList().get(0)), "zip-1 content");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void bulkDownloadTokenRecordedAndForgottenOnRetry() throws Exception {
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNK_TEST_CSV_CONTENT, null, null);
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        task.setJobProgress(new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of()));
+
+        // First job times out. The retry starts a new job, which succeeds.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        mockBulkDownloadChunk(ImmutableSet.of("fh-1", "fh-2", "fh-3"), "job-2", "zip-2", ImmutableList.of(
+                makeFileSummary("fh-1", "fh-1-zip-entry"), makeFileSummary("fh-2", "fh-2-zip-entry"),
+                makeFileSummary("fh-3", "fh-3-zip-entry")));
+        when(mockSynapseHelper.startBulkDownloadFileHandle("test-table-id", ImmutableSet.of("fh-1", "fh-2",
+                "fh-3"))).thenReturn("job-1", "job-2");
+        when(mockSynapseHelper.getBulkDownloadFileHandleResult("job-1")).thenThrow(new AsyncTimeoutException());
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // Each token is recorded, and the failed token is forgotten.
+        String progressKey = UddJobProgress.makeAsyncJobKey("bulk-download-token", "test-table-id:fh-1,fh-2,fh-3");
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).putUddJobProgress("test-job", progressKey, "job-1");
+        inOrder.verify(mockDynamoHelper).deleteUddJobProgress("test-job", progressKey);
+        inOrder.verify(mockDynamoHelper).putUddJobProgress("test-job", progressKey, "job-2");
+        assertEquals(task.getJobProgress().get(progressKey), "job-2");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void partitionedQuery() throws Exception {
+        // setup - User's data is from 2015-04-20 to 2015-06-10, which is 3 months.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        setupTestWithArgs(schema, "\"recordId\",\"healthCode\",\"asdf\"", null, null,
+                makeTablePresence("2015-04-20", "2015-06-10"));
+        task.setPartitionMaxConcurrentQueries(2);
+        task.setPartitionMinMonths(3);
+
+        // Each partition has a header and its own rows. May has no rows.
+        String header = "\"recordId\",\"healthCode\",\"asdf\"\n";
+        mockPartitionQuery("2015-04-20", "2015-04-30", "april", header +
+                "\"record-1\",\"test-health-code\",\"1\"\n\"record-2\",\"test-health-code\",\"2\"");
+        mockPartitionQuery("2015-05-01", "2015-05-31", "may", header);
+        mockPartitionQuery("2015-06-01", "2015-06-10", "june", header +
+                "\"record-3\",\"test-health-code\",\"3\"");
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.call();
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 4);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "healthCode", "asdf" });
+        assertEquals(parsedCsv.get(1)[0], "record-1");
+        assertTrue(Strings.isNullOrEmpty(parsedCsv.get(1)[1]));
+        assertEquals(parsedCsv.get(2)[0], "record-2");
+        assertEquals(parsedCsv.get(3)[0], "record-3");
+
+        // Queries are started in order, with at most 2 running at once.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        InOrder inOrder = inOrder(mockSynapseHelper);
+        inOrder.verify(mockSynapseHelper).startTableQuery(makePartitionQuery("2015-04-20", "2015-04-30"),
+                "test-table-id");
+        inOrder.verify(mockSynapseHelper).startTableQuery(makePartitionQuery("2015-05-01", "2015-05-31"),
+                "test-table-id");
+        inOrder.verify(mockSynapseHelper).getTableQueryResult("april-token", "test-table-id");
+        inOrder.verify(mockSynapseHelper).startTableQuery(makePartitionQuery("2015-06-01", "2015-06-10"),
+                "test-table-id");
+        inOrder.verify(mockSynapseHelper).getTableQueryResult("may-token", "test-table-id");
+        inOrder.verify(mockSynapseHelper).getTableQueryResult("june-token", "test-table-id");
+
+        // Results are recorded in the job progress.
+        UddJobProgress jobProgress = task.getJobProgress();
+        assertEquals(jobProgress.get(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_RESULT,
+                makePartitionQuery("2015-05-01", "2015-05-31"))), "may-csv-file-handle-id");
+
+        // Partition files are cleaned up. We never run the unpartitioned query.
+        inMemoryFileHelper.deleteFile(result.getCsvFile());
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+        verify(mockSynapseHelper, never()).startTableQuery(makePartitionQuery("2015-03-09", "2015-09-16"),
+                "test-table-id");
+    }
+
+    @Test
+    public void partitionedQueryHeaderFromFirstNonEmptyPartition() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        setupTestWithArgs(schema, "\"recordId\",\"healthCode\",\"asdf\"", null, null,
+                makeTablePresence("2015-04-20", "2015-05-10"));
+        task.setPartitionMinMonths(2);
+
+        // April's CSV is completely empty, not even a header.
+        String header = "\"recordId\",\"healthCode\",\"asdf\"\n";
+        mockPartitionQuery("2015-04-20", "2015-04-30", "april", "");
+        mockPartitionQuery("2015-05-01", "2015-05-10", "may", header +
+                "\"record-1\",\"test-health-code\",\"1\"");
+
+        // execute and validate - The header comes from May.
+        SynapseDownloadFromTableResult result = task.call();
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "healthCode", "asdf" });
+        assertEquals(parsedCsv.get(1)[0], "record-1");
+
+        inMemoryFileHelper.deleteFile(result.getCsvFile());
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void partitionedQueryReattachesToRecordedProgress() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        setupTestWithArgs(schema, "\"recordId\",\"healthCode\",\"asdf\"", null, null,
+                makeTablePresence("2015-04-20", "2015-05-10"));
+        task.setPartitionMinMonths(2);
+
+        String header = "\"recordId\",\"healthCode\",\"asdf\"\n";
+        mockPartitionQuery("2015-04-20", "2015-04-30", "april", header +
+                "\"record-1\",\"test-health-code\",\"1\"");
+        mockPartitionQuery("2015-05-01", "2015-05-10", "may", header +
+                "\"record-2\",\"test-health-code\",\"2\"");
+
+        // A previous attempt finished April and started May.
+        UddJobProgress jobProgress = task.getJobProgress();
+        jobProgress.put(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_RESULT,
+                makePartitionQuery("2015-04-20", "2015-04-30")), "april-csv-file-handle-id");
+        jobProgress.put(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_TOKEN,
+                makePartitionQuery("2015-05-01", "2015-05-10")), "may-token");
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.call();
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(1)[0], "record-1");
+        assertEquals(parsedCsv.get(2)[0], "record-2");
+
+        // We don't start or wait for any queries, except to reattach to May.
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        verify(mockSynapseHelper, never()).startTableQuery(any(), any());
+        verify(mockSynapseHelper, never()).getTableQueryResult("april-token", "test-table-id");
+        verify(mockSynapseHelper).getTableQueryResult("may-token", "test-table-id");
+
+        inMemoryFileHelper.deleteFile(result.getCsvFile());
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void partitionedQueryRestartsStaleResumedQuery() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        setupTestWithArgs(schema, "\"recordId\",\"healthCode\",\"asdf\"", null, null,
+                makeTablePresence("2015-04-20", "2015-05-10"));
+        task.setPartitionMinMonths(2);
+
+        String header = "\"recordId\",\"healthCode\",\"asdf\"\n";
+        mockPartitionQuery("2015-04-20", "2015-04-30", "april", header +
+                "\"record-1\",\"test-health-code\",\"1\"");
+        mockPartitionQuery("2015-05-01", "2015-05-10", "may", header +
+                "\"record-2\",\"test-health-code\",\"2\"");
+
+        // A previous attempt finished April and started May, but May's async job has since expired.
+        UddJobProgress jobProgress = task.getJobProgress();
+        jobProgress.put(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_RESULT,
+                makePartitionQuery("2015-04-20", "2015-04-30")), "april-csv-file-handle-id");
+        jobProgress.put(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_TOKEN,
+                makePartitionQuery("2015-05-01", "2015-05-10")), "stale-may-token");
+
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.getTableQueryResult("stale-may-token", "test-table-id")).thenThrow(
+                new AsyncTimeoutException("test exception"));
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.call();
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(1)[0], "record-1");
+        assertEquals(parsedCsv.get(2)[0], "record-2");
+
+        // May is restarted once. The new result replaces the stale token.
+        verify(mockSynapseHelper, times(1)).startTableQuery(any(), any());
+        verify(mockSynapseHelper).startTableQuery(makePartitionQuery("2015-05-01", "2015-05-10"), "test-table-id");
+        verify(mockSynapseHelper).getTableQueryResult("may-token", "test-table-id");
+        assertNull(jobProgress.get(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_TOKEN,
+                makePartitionQuery("2015-05-01", "2015-05-10"))));
+        assertEquals(jobProgress.get(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_RESULT,
+                makePartitionQuery("2015-05-01", "2015-05-10"))), "may-csv-file-handle-id");
+
+        inMemoryFileHelper.deleteFile(result.getCsvFile());
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void partitionedQueryError() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        setupTestWithArgs(schema, "\"recordId\",\"healthCode\",\"asdf\"", null, null,
+                makeTablePresence("2015-04-20", "2015-05-10"));
+        task.setPartitionMinMonths(2);
+
+        String header = "\"recordId\",\"healthCode\",\"asdf\"\n";
+        mockPartitionQuery("2015-04-20", "2015-04-30", "april", header +
+                "\"record-1\",\"test-health-code\",\"1\"");
+        mockPartitionQuery("2015-05-01", "2015-05-10", "may", header);
+
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.getTableQueryResult("may-token", "test-table-id")).thenThrow(
+                new AsyncTimeoutException("test exception"));
+
+        // execute
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            // expected exception
+        }
+
+        // The failed query is forgotten. The partially written CSV is cleaned up.
+        assertNull(task.getJobProgress().get(UddJobProgress.makeAsyncJobKey(SynapseQueryBatcher.JOB_TYPE_QUERY_TOKEN,
+                makePartitionQuery("2015-05-01", "2015-05-10"))));
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void shortTablePresenceNotPartitioned() throws Exception {
+        // setup - The request spans 7 months, but the user's data only spans 2.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"13\",,";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null,
+                makeTablePresence("2015-04-20", "2015-05-10"));
+        task.setPartitionMinMonths(3);
+
+        // execute and validate - We use the unpartitioned query.
+        SynapseDownloadFromTableResult result = task.call();
+        assertEquals(parseCsv(result.getCsvFile()).size(), 2);
+        verify(task.getSynapseHelper()).startTableQuery(any(), any());
+        postValidation(result);
+    }
+
+    @Test
+    public void splitByMonth() {
+        // Multiple months, clipped at both ends.
+        List<SynapseDownloadFromTableTask.QueryPartition> partitionList = SynapseDownloadFromTableTask.splitByMonth(
+                LocalDate.parse("2015-12-15"), LocalDate.parse("2016-02-03"));
+        assertEquals(partitionList.size(), 3);
+        assertPartition(partitionList.get(0), "2015-12-15", "2015-12-31");
+        assertPartition(partitionList.get(1), "2016-01-01", "2016-01-31");
+        assertPartition(partitionList.get(2), "2016-02-01", "2016-02-03");
+
+        // Single day.
+        partitionList = SynapseDownloadFromTableTask.splitByMonth(LocalDate.parse("2016-02-29"),
+                LocalDate.parse("2016-02-29"));
+        assertEquals(partitionList.size(), 1);
+        assertPartition(partitionList.get(0), "2016-02-29", "2016-02-29");
+    }
+
+    private static void assertPartition(SynapseDownloadFromTableTask.QueryPartition partition, String expectedStart,
+            String expectedEnd) {
+        assertEquals(partition.getStartDate(), LocalDate.parse(expectedStart));
+        assertEquals(partition.getEndDate(), LocalDate.parse(expectedEnd));
+    }
+
     @Test
     public void firstErrorCase() throws Exception {
         // Test getting an error on the first step (download CSV). This allows us to test that cleanup works even when
@@ -416,6 +963,11 @@ public class SynapseDownloadFromTableTaskTest {
 
     private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
             List<FileDownloadSummary> fileSummaryList) throws Exception {
+        setupTestWithArgs(schema, csvContent, csvException, fileSummaryList, null);
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList, TablePresence tablePresence) throws Exception {
         // mock file helper and temp dir
         inMemoryFileHelper = new InMemoryFileHelper();
         tmpDir = inMemoryFileHelper.createTempDir();
@@ -424,15 +976,22 @@ public class SynapseDownloadFromTableTaskTest {
         SynapseDownloadFromTableParameters params = new SynapseDownloadFromTableParameters.Builder()
                 .withSynapseTableId("test-table-id").withHealthCode("test-health-code")
                 .withStartDate(LocalDate.parse("2015-03-09")).withEndDate(LocalDate.parse("2015-09-16"))
-                .withTempDir(tmpDir).withSchema(schema).withStudyId(TEST_STUDY_ID).build();
+                .withTempDir(tmpDir).withSchema(schema).withStudyId(TEST_STUDY_ID).withTablePresence(tablePresence)
+                .build();
         task = new SchemaBasedTableTask(params);
+        task.setDynamoHelper(mock(DynamoHelper.class));
         task.setFileHelper(inMemoryFileHelper);
+        task.setTempStorageReservation(TempStorageBudgetTest.createTempStorageBudget(100, 10,
+                inMemoryFileHelper).admitJob());
+        task.setJobProgress(new UddJobProgress(mock(DynamoHelper.class), "test-job", ImmutableMap.of()));
 
         // mock Synapse CSV content
         SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
         synapseQueryCaptor = ArgumentCaptor.forClass(String.class);
-        when(mockSynapseHelper.generateFileHandleFromTableQuery(synapseQueryCaptor.capture(), eq("test-table-id")))
-                .thenReturn("query-csv-file-handle-id");
+        when(mockSynapseHelper.startTableQuery(synapseQueryCaptor.capture(), eq("test-table-id"))).thenReturn(
+                "query-job-token");
+        when(mockSynapseHelper.getTableQueryResult("query-job-token", "test-table-id")).thenReturn(
+                "query-csv-file-handle-id");
         doAnswer(invocation -> {
             if (csvException != null) {
                 throw csvException;
@@ -454,8 +1013,10 @@ public class SynapseDownloadFromTableTaskTest {
             bulkDownloadResponse.setFileSummary(fileSummaryList);
 
             synapseFileHandleIdSetCaptor = ArgumentCaptor.forClass(Set.class);
-            when(mockSynapseHelper.generateBulkDownloadFileHandle(eq("test-table-id"),
-                    synapseFileHandleIdSetCaptor.capture())).thenReturn(bulkDownloadResponse);
+            when(mockSynapseHelper.startBulkDownloadFileHandle(eq("test-table-id"),
+                    synapseFileHandleIdSetCaptor.capture())).thenReturn("bulk-download-job-token");
+            when(mockSynapseHelper.getBulkDownloadFileHandleResult("bulk-download-job-token")).thenReturn(
+                    bulkDownloadResponse);
 
             doAnswer(invocation -> {
                 File targetFile = invocation.getArgumentAt(1, File.class);
@@ -469,6 +1030,91 @@ public class SynapseDownloadFromTableTaskTest {
         }
 
         task.setSynapseHelper(mockSynapseHelper);
+
+        // Batching is disabled, so queries go straight to Synapse.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_MAX_SIZE)).thenReturn(10);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+
+        SynapseQueryBatcher queryBatcher = new SynapseQueryBatcher();
+        queryBatcher.setConfig(mockConfig);
+        queryBatcher.setFileHelper(inMemoryFileHelper);
+        queryBatcher.setSynapseHelper(mockSynapseHelper);
+        task.setSynapseQueryBatcher(queryBatcher);
+    }
+
+    private void mockBulkDownloadChunk(Set<String> fileHandleIdSet, String jobToken, String zipFileHandleId,
+            List<FileDownloadSummary> fileSummaryList) throws Exception {
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.startBulkDownloadFileHandle("test-table-id", fileHandleIdSet)).thenReturn(jobToken);
+
+        BulkFileDownloadResponse bulkDownloadResponse = new BulkFileDownloadResponse();
+        bulkDownloadResponse.setResultZipFileHandleId(zipFileHandleId);
+        bulkDownloadResponse.setFileSummary(fileSummaryList);
+        when(mockSynapseHelper.getBulkDownloadFileHandleResult(jobToken)).thenReturn(bulkDownloadResponse);
+
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write(zipFileHandleId + " content");
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq(zipFileHandleId), any(File.class));
+    }
+
+    private static TablePresence makeTablePresence(String minUploadDate, String maxUploadDate) {
+        return new TablePresence.Builder().withSynapseTableId("test-table-id")
+                .withMinUploadDate(LocalDate.parse(minUploadDate)).withMaxUploadDate(LocalDate.parse(maxUploadDate))
+                .build();
+    }
+
+    // Mocks the query, async job, and CSV for a single partition. The token and file handle ID are based on the name.
+    private void mockPartitionQuery(String startDate, String endDate, String name, String csvContent)
+            throws Exception {
+        SynapseHelper mockSynapseHelper = task.getSynapseHelper();
+        when(mockSynapseHelper.startTableQuery(makePartitionQuery(startDate, endDate), "test-table-id")).thenReturn(
+                name + "-token");
+        when(mockSynapseHelper.getTableQueryResult(name + "-token", "test-table-id")).thenReturn(
+                name + "-csv-file-handle-id");
+
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write(csvContent);
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq(name + "-csv-file-handle-id"), any(File.class));
+    }
+
+    // The mock Synapse helper has no column models, so queries select all columns.
+    private static String makePartitionQuery(String startDate, String endDate) {
+        return String.format(SynapseQueryBatcher.QUERY_TEMPLATE, "*", "test-table-id", "test-health-code", startDate,
+                endDate);
+    }
+
+    private static FileDownloadSummary makeFileSummary(String fileHandleId, String zipEntryName) {
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId(fileHandleId);
+        fileSummary.setZipEntryName(zipEntryName);
+        return fileSummary;
+    }
+
+    private static FileDownloadSummary makeOverflowFileSummary(String fileHandleId) {
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId(fileHandleId);
+        fileSummary.setFailureCode(FileDownloadCode.EXCEEDS_SIZE_LIMIT);
+        fileSummary.setFailureMessage("too big");
+        return fileSummary;
+    }
+
+    private String readFile(File file) throws Exception {
+        try (Reader reader = inMemoryFileHelper.getReader(file)) {
+            return CharStreams.toString(reader);
+        }
     }
 
     // Direct string matching means we tightly couple to the CSV writer implementation. Instead, re-parse the file as a
@@ -487,8 +1133,8 @@ public class SynapseDownloadFromTableTaskTest {
                 inMemoryFileHelper.deleteFile(result.getCsvFile());
             }
 
-            if (result.getBulkDownloadFile() != null) {
-                inMemoryFileHelper.deleteFile(result.getBulkDownloadFile());
+            for (File oneBulkDownloadFile : result.getBulkDownloadFileList()) {
+                inMemoryFileHelper.deleteFile(oneBulkDownloadFile);
             }
         }
 
@@ -5,6 +5,7 @@ import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -23,6 +24,7 @@ import org.sagebionetworks.repo.model.table.TableEntity;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
@@ -33,10 +35,12 @@ public class SynapseDownloadSurveyTaskTest {
     private static final String TEST_FILE_HANDLE = "test-file-handle";
     private static final String TEST_SYNAPSE_TABLE_ID = "test-table";
     private static final String TEST_SYNAPSE_TABLE_NAME = "Test Table";
+    private static final String TEST_SYNAPSE_TABLE_ETAG = "test-etag";
 
     private DynamoHelper dynamoHelper;
     private InMemoryFileHelper fileHelper;
     private SynapseHelper synapseHelper;
+    private SynapseTableCache synapseTableCache;
     private SynapseDownloadSurveyTask task;
     private File tmpDir;
 
@@ -51,6 +55,7 @@ public class SynapseDownloadSurveyTaskTest {
         TableEntity table = new TableEntity();
         table.setId(TEST_SYNAPSE_TABLE_ID);
         table.setName(TEST_SYNAPSE_TABLE_NAME);
+        table.setEtag(TEST_SYNAPSE_TABLE_ETAG);
         when(synapseHelper.getTable(TEST_SYNAPSE_TABLE_ID)).thenReturn(table);
 
         when(synapseHelper.generateFileHandleFromTableQuery("SELECT * FROM " + TEST_SYNAPSE_TABLE_ID,
@@ -60,6 +65,15 @@ public class SynapseDownloadSurveyTaskTest {
         fileHelper = new InMemoryFileHelper();
         tmpDir = fileHelper.createTempDir();
 
+        // Table cache uses the same in-memory file helper.
+        Config config = mock(Config.class);
+        when(config.getInt(SynapseTableCache.CONFIG_KEY_MAX_MB)).thenReturn(1);
+        when(config.getInt(SynapseTableCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(60);
+
+        synapseTableCache = new SynapseTableCache();
+        synapseTableCache.setConfig(config);
+        synapseTableCache.setFileHelper(fileHelper);
+
         // create params
         SynapseDownloadSurveyParameters params = new SynapseDownloadSurveyParameters.Builder().withStudyId(STUDY_ID)
                 .withSynapseTableId(TEST_SYNAPSE_TABLE_ID).withTempDir(tmpDir).build();
@@ -69,6 +83,7 @@ public class SynapseDownloadSurveyTaskTest {
         task.setDynamoHelper(dynamoHelper);
         task.setFileHelper(fileHelper);
         task.setSynapseHelper(synapseHelper);
+        task.setSynapseTableCache(synapseTableCache);
     }
 
     @Test
@@ -159,8 +174,42 @@ public class SynapseDownloadSurveyTaskTest {
         postValidation();
     }
 
+    @Test
+    public void cachedTable() throws Exception {
+        // set up Synapse helper
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("dummy survey content");
+            }
+
+            // Answer declares return type, even if Void
+            return null;
+        }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        // Execute twice. The second call gets the table from the cache.
+        for (int i = 0; i < 2; i++) {
+            File file = task.call();
+            try (Reader reader = fileHelper.getReader(file)) {
+                assertEquals(CharStreams.toString(reader), "dummy survey content");
+            }
+            fileHelper.deleteFile(file);
+        }
+
+        // We only download the table once.
+        verify(synapseHelper, times(1)).generateFileHandleFromTableQuery("SELECT * FROM " +
+                TEST_SYNAPSE_TABLE_ID, TEST_SYNAPSE_TABLE_ID);
+        verify(synapseHelper, times(1)).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        // The cache entry's size is the number of bytes in the table.
+        assertEquals(synapseTableCache.getTotalBytes(), "dummy survey content".length());
+
+        postValidation();
+    }
+
     // We can't use an AfterMethod, because AfterMethod doesn't report which method failed.
     private void postValidation() {
+        synapseTableCache.clear();
         fileHelper.deleteDir(tmpDir);
         assertTrue(fileHelper.isEmpty());
     }
@@ -1,17 +1,33 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.repo.model.file.BatchFileRequest;
+import org.sagebionetworks.repo.model.file.BatchFileResult;
+import org.sagebionetworks.repo.model.file.FileHandleAssociateType;
+import org.sagebionetworks.repo.model.file.FileHandleAssociation;
+import org.sagebionetworks.repo.model.file.FileResult;
+import org.sagebionetworks.repo.model.file.S3FileHandle;
 import org.sagebionetworks.repo.model.status.StackStatus;
 import org.sagebionetworks.repo.model.status.StatusEnum;
+import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.TableEntity;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -34,6 +50,61 @@ public class SynapseHelperTest {
         verify(mockClient).downloadFromFileHandleTemporaryUrl("test-file-handle", mockTargetFile);
     }
 
+    @Test
+    public void getFileHandleSizes() throws Exception {
+        // One more file handle than fits in a batch, so we make 2 batch calls.
+        List<String> fileHandleIdList = new ArrayList<>();
+        for (int i = 0; i < SynapseHelper.FILE_HANDLE_BATCH_SIZE; i++) {
+            fileHandleIdList.add("filler-" + i);
+        }
+        fileHandleIdList.add("last-file-handle");
+
+        // Mock Synapse client call. First batch returns a size for one file handle and no file handle for another.
+        // Second batch returns the last file handle.
+        BatchFileResult firstResult = new BatchFileResult();
+        firstResult.setRequestedFiles(ImmutableList.of(makeFileResult("filler-0", 123L),
+                makeFileResult("filler-1", null)));
+        BatchFileResult secondResult = new BatchFileResult();
+        secondResult.setRequestedFiles(ImmutableList.of(makeFileResult("last-file-handle", 456L)));
+
+        ArgumentCaptor<BatchFileRequest> requestCaptor = ArgumentCaptor.forClass(BatchFileRequest.class);
+        when(mockClient.getFileHandleAndUrlBatch(any(BatchFileRequest.class))).thenReturn(firstResult,
+                secondResult);
+
+        // execute and validate
+        Map<String, Long> retval = helper.getFileHandleSizes("test-table", fileHandleIdList);
+        assertEquals(retval, ImmutableMap.of("filler-0", 123L, "last-file-handle", 456L));
+
+        verify(mockClient, times(2)).getFileHandleAndUrlBatch(requestCaptor.capture());
+        List<BatchFileRequest> requestList = requestCaptor.getAllValues();
+        assertEquals(requestList.get(0).getRequestedFiles().size(), SynapseHelper.FILE_HANDLE_BATCH_SIZE);
+        assertEquals(requestList.get(1).getRequestedFiles().size(), 1);
+
+        BatchFileRequest secondRequest = requestList.get(1);
+        assertTrue(secondRequest.getIncludeFileHandles());
+        assertFalse(secondRequest.getIncludePreSignedURLs());
+        assertFalse(secondRequest.getIncludePreviewPreSignedURLs());
+
+        FileHandleAssociation fha = secondRequest.getRequestedFiles().get(0);
+        assertEquals(fha.getAssociateObjectId(), "test-table");
+        assertEquals(fha.getAssociateObjectType(), FileHandleAssociateType.TableEntity);
+        assertEquals(fha.getFileHandleId(), "last-file-handle");
+    }
+
+    // Helper method to make a batch file result entry. If size is null, the entry has no file handle, as if Synapse
+    // couldn't find it.
+    private static FileResult makeFileResult(String fileHandleId, Long size) {
+        FileResult fileResult = new FileResult();
+        fileResult.setFileHandleId(fileHandleId);
+        if (size != null) {
+            S3FileHandle fileHandle = new S3FileHandle();
+            fileHandle.setId(fileHandleId);
+            fileHandle.setContentSize(size);
+            fileResult.setFileHandle(fileHandle);
+        }
+        return fileResult;
+    }
+
     @Test
     public void getTable() throws Exception {
         // Mock Synapse client call.
@@ -45,6 +116,19 @@ public class SynapseHelperTest {
         assertSame(retval, mockTable);
     }
 
+    @Test
+    public void getColumnModelsForTable() throws Exception {
+        // Mock Synapse client call.
+        ColumnModel columnModel = new ColumnModel();
+        columnModel.setName("foo");
+        List<ColumnModel> columnModelList = ImmutableList.of(columnModel);
+        when(mockClient.getColumnModelsForTableEntity("test-table")).thenReturn(columnModelList);
+
+        // execute and validate
+        List<ColumnModel> retval = helper.getColumnModelsForTable("test-table");
+        assertSame(retval, columnModelList);
+    }
+
     @Test
     public void isSynapseWritable_True() throws Exception {
         // Mock Synaspse client call.
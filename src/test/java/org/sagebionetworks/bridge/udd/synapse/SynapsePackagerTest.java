@@ -8,7 +8,9 @@ import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -27,12 +29,14 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.HttpMethod;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
@@ -50,6 +54,9 @@ import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudget;
+import org.sagebionetworks.bridge.udd.helper.TempStorageBudgetTest;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
@@ -58,6 +65,11 @@ import org.sagebionetworks.bridge.workerPlatform.exceptions.SynapseUnavailableEx
 
 @SuppressWarnings({ "unchecked", "rawtypes" })
 public class SynapsePackagerTest {
+    private static final int BULK_DOWNLOAD_CHUNK_MAX_MB = 512;
+    private static final int BULK_DOWNLOAD_CHUNK_SIZE = 50;
+    private static final int BULK_DOWNLOAD_MAX_CONCURRENT_JOBS = 2;
+    private static final int PARTITION_MAX_CONCURRENT_QUERIES = 3;
+    private static final int PARTITION_MIN_MONTHS = 6;
     private static final String DEFAULT_TABLE_ID = "default-table";
     private static final String DUMMY_USER_DATA_BUCKET = "dummy-user-data-bucket";
     private static final DateTime MOCK_NOW = DateTime.parse("2015-09-17T12:43:41-07:00");
@@ -79,7 +91,10 @@ public class SynapsePackagerTest {
     private DynamoHelper mockDynamoHelper;
     private S3Helper mockS3Helper;
     private SynapseHelper mockSynapseHelper;
+    private SynapseQueryBatcher mockSynapseQueryBatcher;
+    private SynapseTableCache mockSynapseTableCache;
     private InMemoryFileHelper inMemoryFileHelper;
+    private UddJobProgress jobProgress;
     private SynapsePackager packager;
     private byte[] s3FileBytes;
 
@@ -99,7 +114,7 @@ public class SynapsePackagerTest {
 
         // execute and validate
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(STUDY_ID, synapseTableToSchema,
-                null, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet);
+                null, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet, null, jobProgress);
         assertNull(presignedUrlInfo);
 
         // validate S3 not called
@@ -125,7 +140,7 @@ public class SynapsePackagerTest {
 
         // execute and validate
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(STUDY_ID, synapseTableToSchema,
-                DEFAULT_TABLE_ID, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet);
+                DEFAULT_TABLE_ID, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet, null, jobProgress);
         assertNull(presignedUrlInfo);
 
         // validate S3 not called
@@ -196,7 +211,7 @@ public class SynapsePackagerTest {
         // execute and validate
         long expectedExpirationTimeMillis = MOCK_NOW.plusHours(URL_EXPIRATION_HOURS).getMillis();
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(STUDY_ID, synapseTableToSchema,
-                DEFAULT_TABLE_ID, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet);
+                DEFAULT_TABLE_ID, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet, null, jobProgress);
         assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
         assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), expectedExpirationTimeMillis);
 
@@ -250,7 +265,7 @@ public class SynapsePackagerTest {
         // execute and validate
         long expectedExpirationTimeMillis = MOCK_NOW.plusHours(URL_EXPIRATION_HOURS).getMillis();
         PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(STUDY_ID, synapseTableToSchema,
-                null, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet);
+                null, TEST_HEALTH_CODE, TEST_UDD_REQUEST, surveyTableIdSet, null, jobProgress);
         assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
         assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), expectedExpirationTimeMillis);
 
@@ -264,10 +279,41 @@ public class SynapsePackagerTest {
         DateTime expirationTime = expirationTimeCaptor.getValue();
         assertEquals(expirationTime.getMillis(), expectedExpirationTimeMillis);
 
+        // validate master zip is recorded in the job progress
+        assertTrue(jobProgress.get(UddJobProgress.KEY_MASTER_ZIP).startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+        verify(mockDynamoHelper).putUddJobProgress(eq("test-job"), eq(UddJobProgress.KEY_MASTER_ZIP),
+                startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void masterZipAlreadyUploaded() throws Exception {
+        // setup test
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, ImmutableMap.of(), null);
+
+        // A previous attempt at this job already uploaded the master zip.
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of(UddJobProgress.KEY_MASTER_ZIP,
+                "previous-master.zip"));
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), eq("previous-master.zip"),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(STUDY_ID, synapseTableToSchema,
+                DEFAULT_TABLE_ID, TEST_HEALTH_CODE, TEST_UDD_REQUEST, ImmutableSet.of("test-survey"), null,
+                jobProgress);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+        assertEquals(presignedUrlInfo.getExpirationTime().getMillis(), MOCK_NOW.plusHours(URL_EXPIRATION_HOURS)
+                .getMillis());
+
+        // Nothing is queried, packaged, or uploaded.
+        verifyZeroInteractions(mockSynapseHelper, mockSynapseQueryBatcher, mockSynapseTableCache);
+        assertNull(s3FileBytes);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
     @Test
     public void firstErrorCase() throws Exception {
         // Test getting an error on the first step. The easiest way to inject the exception is to spy the packager and
@@ -280,16 +326,20 @@ public class SynapsePackagerTest {
         // set up mocks - We bypass most of the stuff in setupPackager()
         packager = spy(new SynapsePackager());
         doThrow(RuntimeException.class).when(packager).initAsyncQueryTasks(eq(STUDY_ID), same(synapseTableToSchema),
-                isNull(String.class), eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), any(File.class));
+                isNull(String.class), eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), isNull(Map.class),
+                any(File.class), any(TempStorageBudget.Reservation.class), any(UddJobProgress.class));
 
         inMemoryFileHelper = new InMemoryFileHelper();
         packager.setFileHelper(inMemoryFileHelper);
+        packager.setTempStorageBudget(TempStorageBudgetTest.createTempStorageBudget(100, 10,
+                inMemoryFileHelper));
+        jobProgress = new UddJobProgress(mock(DynamoHelper.class), "test-job", ImmutableMap.of());
 
         // execute
         Exception thrownEx = null;
         try {
             packager.packageSynapseData(STUDY_ID, synapseTableToSchema, null, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
-                    ImmutableSet.of("test-survey"));
+                    ImmutableSet.of("test-survey"), null, jobProgress);
             fail("expected exception");
         } catch (RuntimeException ex) {
             thrownEx = ex;
@@ -300,6 +350,57 @@ public class SynapsePackagerTest {
         assertTrue(inMemoryFileHelper.isEmpty());
     }
     
+    @Test
+    public void waitsForHeadroomBeforeSubmittingTasks() throws Exception {
+        // An older job has used up the budget. Our job is admitted, since its reservation fits exactly, but it must
+        // wait for headroom before it submits any tasks to the shared thread pool.
+        inMemoryFileHelper = new InMemoryFileHelper();
+        TempStorageBudget tempStorageBudget = TempStorageBudgetTest.createTempStorageBudget(100, 10,
+                inMemoryFileHelper);
+        TempStorageBudget.Reservation olderReservation = tempStorageBudget.admitJob();
+        olderReservation.recordBytes(90 * 1024 * 1024);
+
+        // Spy the packager so we can tell when it starts submitting tasks. Throw to end the job there.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        packager = spy(new SynapsePackager());
+        doThrow(IllegalStateException.class).when(packager).initAsyncQueryTasks(eq(STUDY_ID),
+                same(synapseTableToSchema), isNull(String.class), eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST),
+                isNull(Map.class), any(File.class), any(TempStorageBudget.Reservation.class),
+                any(UddJobProgress.class));
+
+        packager.setFileHelper(inMemoryFileHelper);
+        packager.setTempStorageBudget(tempStorageBudget);
+        jobProgress = new UddJobProgress(mock(DynamoHelper.class), "test-job", ImmutableMap.of());
+
+        // execute
+        ExecutorService jobExecutorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<PresignedUrlInfo> jobFuture = jobExecutorService.submit(() -> packager.packageSynapseData(
+                    STUDY_ID, synapseTableToSchema, null, TEST_HEALTH_CODE, TEST_UDD_REQUEST, ImmutableSet.of(),
+                    null, jobProgress));
+
+            // The job is waiting, and hasn't submitted tasks.
+            Thread.sleep(200);
+            assertFalse(jobFuture.isDone());
+            verify(packager, never()).initAsyncQueryTasks(any(), any(), any(), any(), any(), any(), any(), any(),
+                    any());
+
+            // Releasing the older job lets our job continue.
+            olderReservation.close();
+            try {
+                jobFuture.get();
+                fail("expected exception");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            jobExecutorService.shutdownNow();
+        }
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
     @Test
     public void lastErrorCase() throws Exception {
         // Test getting an error on the last step (get pre-signed URL). This allows us to test full cleanup.
@@ -323,7 +424,7 @@ public class SynapsePackagerTest {
         Exception thrownEx = null;
         try {
             packager.packageSynapseData(STUDY_ID, synapseTableToSchema, null, TEST_HEALTH_CODE,
-                    TEST_UDD_REQUEST, surveyTableIdSet);
+                    TEST_UDD_REQUEST, surveyTableIdSet, null, jobProgress);
             fail("expected exception");
         } catch (AmazonClientException ex) {
             thrownEx = ex;
@@ -364,7 +465,7 @@ public class SynapsePackagerTest {
         // Execute (throws exception).
         try {
             packager.packageSynapseData(STUDY_ID, synapseTableToSchema, null, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
-                    ImmutableSet.of());
+                    ImmutableSet.of(), null, jobProgress);
             fail("expected exception");
         } catch (SynapseUnavailableException ex) {
             assertEquals(ex.getMessage(), "Synapse not in writable state");
@@ -395,7 +496,7 @@ public class SynapsePackagerTest {
         // Execute (throws exception).
         try {
             packager.packageSynapseData(STUDY_ID, synapseTableToSchema, null, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
-                    ImmutableSet.of("test-survey"));
+                    ImmutableSet.of("test-survey"), null, jobProgress);
             fail("expected exception");
         } catch (SynapseUnavailableException ex) {
             assertEquals(ex.getMessage(), "Synapse not in writable state");
@@ -447,10 +548,17 @@ public class SynapsePackagerTest {
         // Mock other helpers.
         mockDynamoHelper = mock(DynamoHelper.class);
         packager.setDynamoHelper(mockDynamoHelper);
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of());
 
         mockSynapseHelper = mock(SynapseHelper.class);
         packager.setSynapseHelper(mockSynapseHelper);
 
+        mockSynapseQueryBatcher = mock(SynapseQueryBatcher.class);
+        packager.setSynapseQueryBatcher(mockSynapseQueryBatcher);
+
+        mockSynapseTableCache = mock(SynapseTableCache.class);
+        packager.setSynapseTableCache(mockSynapseTableCache);
+
         // mock executor service to just call the callables directly
         ExecutorService mockExecutorService = mock(ExecutorService.class);
         packager.setAuxiliaryExecutorService(mockExecutorService);
@@ -466,6 +574,16 @@ public class SynapsePackagerTest {
                 assertSame(task.getDynamoHelper(), mockDynamoHelper);
                 assertSame(task.getFileHelper(), inMemoryFileHelper);
                 assertSame(task.getSynapseHelper(), mockSynapseHelper);
+                assertSame(task.getSynapseQueryBatcher(), mockSynapseQueryBatcher);
+
+                // Validate bulk download and query partition settings.
+                assertEquals(task.getBulkDownloadChunkMaxBytes(), BULK_DOWNLOAD_CHUNK_MAX_MB * 1024L * 1024L);
+                assertEquals(task.getBulkDownloadChunkSize(), BULK_DOWNLOAD_CHUNK_SIZE);
+                assertEquals(task.getBulkDownloadMaxConcurrentJobs(), BULK_DOWNLOAD_MAX_CONCURRENT_JOBS);
+                assertEquals(task.getPartitionMaxConcurrentQueries(), PARTITION_MAX_CONCURRENT_QUERIES);
+                assertEquals(task.getPartitionMinMonths(), PARTITION_MIN_MONTHS);
+                assertNotNull(task.getTempStorageReservation());
+                assertSame(task.getJobProgress(), jobProgress);
 
                 // validate params
                 SynapseDownloadFromTableParameters params = task.getParameters();
@@ -512,7 +630,7 @@ public class SynapsePackagerTest {
                 if (taskResultContent.getBulkDownloadFileContent() != null) {
                     File bulkDownloadFile = createFileWithContent(tmpDir, taskResultContent.getBulkDownloadFileName(),
                             taskResultContent.getBulkDownloadFileContent());
-                    taskResultBuilder.withBulkDownloadFile(bulkDownloadFile);
+                    taskResultBuilder.withBulkDownloadFileList(ImmutableList.of(bulkDownloadFile));
                 }
 
                 when(mockFuture.get()).thenReturn(taskResultBuilder.build());
@@ -524,6 +642,7 @@ public class SynapsePackagerTest {
                 assertSame(task.getDynamoHelper(), mockDynamoHelper);
                 assertSame(task.getFileHelper(), inMemoryFileHelper);
                 assertSame(task.getSynapseHelper(), mockSynapseHelper);
+                assertSame(task.getSynapseTableCache(), mockSynapseTableCache);
 
                 // validate params
                 SynapseDownloadSurveyParameters params = task.getParameters();
@@ -557,6 +676,10 @@ public class SynapsePackagerTest {
             }
         });
 
+        // Use real temp storage budget. It's easier to use the real one than to mock it out.
+        packager.setTempStorageBudget(TempStorageBudgetTest.createTempStorageBudget(100, 10,
+                inMemoryFileHelper));
+
         // Use real zip helper. It's easier to use the real one than to mock it out.
         ZipHelper zipHelper = new ZipHelper();
         zipHelper.setFileHelper(inMemoryFileHelper);
@@ -564,6 +687,15 @@ public class SynapsePackagerTest {
 
         // mock config
         Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_BULK_DOWNLOAD_CHUNK_MAX_MB)).thenReturn(
+                BULK_DOWNLOAD_CHUNK_MAX_MB);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_BULK_DOWNLOAD_CHUNK_SIZE)).thenReturn(
+                BULK_DOWNLOAD_CHUNK_SIZE);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_BULK_DOWNLOAD_MAX_CONCURRENT_JOBS)).thenReturn(
+                BULK_DOWNLOAD_MAX_CONCURRENT_JOBS);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_PARTITION_MAX_CONCURRENT_QUERIES)).thenReturn(
+                PARTITION_MAX_CONCURRENT_QUERIES);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_PARTITION_MIN_MONTHS)).thenReturn(PARTITION_MIN_MONTHS);
         when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_EXPIRATION_HOURS)).thenReturn(URL_EXPIRATION_HOURS);
         when(mockConfig.get(SynapsePackager.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
         packager.setConfig(mockConfig);
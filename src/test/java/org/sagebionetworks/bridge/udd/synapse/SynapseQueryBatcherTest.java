@@ -0,0 +1,418 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.sagebionetworks.repo.model.table.ColumnModel;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
+
+public class SynapseQueryBatcherTest {
+    private static final String TABLE_ID = "test-table";
+    private static final LocalDate START_DATE_1 = LocalDate.parse("2018-03-01");
+    private static final LocalDate END_DATE_1 = LocalDate.parse("2018-03-10");
+    private static final LocalDate START_DATE_2 = LocalDate.parse("2018-03-05");
+    private static final LocalDate END_DATE_2 = LocalDate.parse("2018-03-20");
+
+    private static final String SINGLE_USER_QUERY = "SELECT * FROM test-table WHERE " +
+            "healthCode = 'health-code-1' AND uploadDate >= '2018-03-01' AND uploadDate <= '2018-03-10'";
+
+    private static final String BATCH_CSV_CONTENT = "\"ROW_ID\",\"healthCode\",\"uploadDate\",\"foo\"\n" +
+            "\"1\",\"health-code-1\",\"2018-03-02\",\"one-early\"\n" +
+            "\"2\",\"health-code-1\",\"2018-03-15\",\"one-late\"\n" +
+            "\"3\",\"health-code-2\",\"2018-03-02\",\"two-early\"\n" +
+            "\"4\",\"health-code-2\",\"2018-03-08\",\"two-middle\"\n";
+
+    private SynapseQueryBatcher batcher;
+    private ExecutorService executorService;
+    private InMemoryFileHelper fileHelper;
+    private Config mockConfig;
+    private DynamoHelper mockDynamoHelper;
+    private UddJobProgress jobProgress;
+    private SynapseHelper mockSynapseHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+
+        mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.generateFileHandleFromTableQuery(anyString(), eq(TABLE_ID))).thenReturn(
+                "csv-file-handle");
+        when(mockSynapseHelper.startTableQuery(anyString(), eq(TABLE_ID))).thenReturn("query-token");
+        when(mockSynapseHelper.getTableQueryResult("query-token", TABLE_ID)).thenReturn("csv-file-handle");
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer writer = fileHelper.getWriter(targetFile)) {
+                writer.write(BATCH_CSV_CONTENT);
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq("csv-file-handle"), any(File.class));
+
+        mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_MAX_SIZE)).thenReturn(2);
+
+        batcher = new SynapseQueryBatcher();
+        batcher.setFileHelper(fileHelper);
+        batcher.setSynapseHelper(mockSynapseHelper);
+
+        mockDynamoHelper = mock(DynamoHelper.class);
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of());
+
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void batchingDisabled() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        batcher.setConfig(mockConfig);
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+
+        // Single-user query, downloaded directly. (Synapse does the filtering, so the mock content is unfiltered.)
+        verify(mockSynapseHelper).startTableQuery(SINGLE_USER_QUERY, TABLE_ID);
+        assertEquals(parseCsv(targetFile).size(), 5);
+
+        // Token is recorded in the job progress, then replaced by the result.
+        String tokenKey = UddJobProgress.makeAsyncJobKey("query-token", SINGLE_USER_QUERY);
+        String resultKey = UddJobProgress.makeAsyncJobKey("query-result", SINGLE_USER_QUERY);
+        verify(mockDynamoHelper).putUddJobProgress("test-job", tokenKey, "query-token");
+        verify(mockDynamoHelper).replaceUddJobProgress("test-job", tokenKey, resultKey, "csv-file-handle");
+        assertNull(jobProgress.get(tokenKey));
+        assertEquals(jobProgress.get(resultKey), "csv-file-handle");
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    @Test
+    public void resumeFromQueryResult() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        batcher.setConfig(mockConfig);
+
+        // A previous attempt already finished the query.
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of(
+                UddJobProgress.makeAsyncJobKey("query-result", SINGLE_USER_QUERY), "csv-file-handle"));
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+
+        // No query. Just the download.
+        verify(mockSynapseHelper, never()).startTableQuery(anyString(), anyString());
+        verify(mockSynapseHelper, never()).getTableQueryResult(anyString(), anyString());
+        assertEquals(parseCsv(targetFile).size(), 5);
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    @Test
+    public void reattachToQueryToken() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        batcher.setConfig(mockConfig);
+
+        // A previous attempt started the query, but didn't get the result.
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of(
+                UddJobProgress.makeAsyncJobKey("query-token", SINGLE_USER_QUERY), "query-token"));
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+
+        // Reattaches to the existing query.
+        verify(mockSynapseHelper, never()).startTableQuery(anyString(), anyString());
+        verify(mockSynapseHelper).getTableQueryResult("query-token", TABLE_ID);
+        assertEquals(parseCsv(targetFile).size(), 5);
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    @Test
+    public void reattachFailsStartsNewQuery() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        batcher.setConfig(mockConfig);
+
+        // The old token is no longer valid.
+        when(mockSynapseHelper.getTableQueryResult("expired-token", TABLE_ID)).thenThrow(
+                TestSynapseException.class);
+        String tokenKey = UddJobProgress.makeAsyncJobKey("query-token", SINGLE_USER_QUERY);
+        jobProgress = new UddJobProgress(mockDynamoHelper, "test-job", ImmutableMap.of(tokenKey, "expired-token"));
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+
+        // Old token is removed, and a new query is started. Its result replaces the new token.
+        verify(mockDynamoHelper).deleteUddJobProgress("test-job", tokenKey);
+        verify(mockSynapseHelper).startTableQuery(SINGLE_USER_QUERY, TABLE_ID);
+        verify(mockDynamoHelper).putUddJobProgress("test-job", tokenKey, "query-token");
+        assertNull(jobProgress.get(tokenKey));
+        assertEquals(parseCsv(targetFile).size(), 5);
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    @Test
+    public void nobodyJoinsBatch() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(10);
+        batcher.setConfig(mockConfig);
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+
+        // Falls back to single-user query.
+        verify(mockSynapseHelper).startTableQuery(SINGLE_USER_QUERY, TABLE_ID);
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    @Test
+    public void batchedQuery() throws Exception {
+        // Long window. The batch runs as soon as the second request fills it.
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(60000);
+        batcher.setConfig(mockConfig);
+
+        File targetFile1 = fileHelper.newFile(tmpDir, "target1.csv");
+        File targetFile2 = fileHelper.newFile(tmpDir, "target2.csv");
+        Future<?> future1 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile1, jobProgress);
+            return null;
+        });
+        Future<?> future2 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-2", START_DATE_2, END_DATE_2, tmpDir, targetFile2, jobProgress);
+            return null;
+        });
+        future1.get();
+        future2.get();
+
+        // One query with both health codes and the widest date range.
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockSynapseHelper, times(1)).generateFileHandleFromTableQuery(queryCaptor.capture(), eq(TABLE_ID));
+        String query = queryCaptor.getValue();
+        assertTrue(query.startsWith("SELECT * FROM test-table WHERE healthCode IN ("));
+        assertTrue(query.contains("'health-code-1'"));
+        assertTrue(query.contains("'health-code-2'"));
+        assertTrue(query.endsWith("AND uploadDate >= '2018-03-01' AND uploadDate <= '2018-03-20'"));
+
+        // Each user gets the header plus only their rows in their date range.
+        List<String[]> rowList1 = parseCsv(targetFile1);
+        assertEquals(rowList1.size(), 2);
+        assertEquals(rowList1.get(0)[3], "foo");
+        assertEquals(rowList1.get(1)[3], "one-early");
+
+        List<String[]> rowList2 = parseCsv(targetFile2);
+        assertEquals(rowList2.size(), 2);
+        assertEquals(rowList2.get(0)[3], "foo");
+        assertEquals(rowList2.get(1)[3], "two-middle");
+
+        fileHelper.deleteFile(targetFile1);
+        fileHelper.deleteFile(targetFile2);
+        postValidation();
+    }
+
+    @Test
+    public void batchedQueryError() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(60000);
+        batcher.setConfig(mockConfig);
+
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer writer = fileHelper.getWriter(targetFile)) {
+                writer.write("partial content");
+            }
+            throw new TestSynapseException();
+        }).when(mockSynapseHelper).downloadFileHandle(eq("csv-file-handle"), any(File.class));
+
+        File targetFile1 = fileHelper.newFile(tmpDir, "target1.csv");
+        File targetFile2 = fileHelper.newFile(tmpDir, "target2.csv");
+        Future<?> future1 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile1, jobProgress);
+            return null;
+        });
+        Future<?> future2 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-2", START_DATE_2, END_DATE_2, tmpDir, targetFile2, jobProgress);
+            return null;
+        });
+
+        // Both requests get the error.
+        for (Future<?> oneFuture : new Future<?>[] { future1, future2 }) {
+            try {
+                oneFuture.get();
+                fail("expected exception");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TestSynapseException);
+            }
+        }
+
+        postValidation();
+    }
+
+    @Test
+    public void projectedQuery() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_COLUMN_CACHE_TTL_MINUTES)).thenReturn(60);
+        when(mockConfig.get(SynapseQueryBatcher.CONFIG_KEY_EXCLUDED_COLUMNS)).thenReturn("internal, rawData");
+        batcher.setConfig(mockConfig);
+
+        // Health code and internal columns are excluded. rawData is a file handle, so it's kept.
+        when(mockSynapseHelper.getColumnModelsForTable(TABLE_ID)).thenReturn(ImmutableList.of(
+                makeColumnModel("recordId", ColumnType.STRING), makeColumnModel("healthCode", ColumnType.STRING),
+                makeColumnModel("internal", ColumnType.STRING), makeColumnModel("foo.bar", ColumnType.INTEGER),
+                makeColumnModel("rawData", ColumnType.FILEHANDLEID)));
+
+        File targetFile1 = fileHelper.newFile(tmpDir, "target1.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile1, jobProgress);
+        verify(mockSynapseHelper).startTableQuery("SELECT \"recordId\",\"foo.bar\",\"rawData\" FROM test-table " +
+                "WHERE healthCode = 'health-code-1' AND uploadDate >= '2018-03-01' AND uploadDate <= '2018-03-10'",
+                TABLE_ID);
+
+        // Second query uses the cached column models.
+        File targetFile2 = fileHelper.newFile(tmpDir, "target2.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-2", START_DATE_2, END_DATE_2, tmpDir, targetFile2, jobProgress);
+        verify(mockSynapseHelper).startTableQuery("SELECT \"recordId\",\"foo.bar\",\"rawData\" FROM test-table " +
+                "WHERE healthCode = 'health-code-2' AND uploadDate >= '2018-03-05' AND uploadDate <= '2018-03-20'",
+                TABLE_ID);
+        verify(mockSynapseHelper, times(1)).getColumnModelsForTable(TABLE_ID);
+
+        fileHelper.deleteFile(targetFile1);
+        fileHelper.deleteFile(targetFile2);
+        postValidation();
+    }
+
+    @Test
+    public void projectedBatchedQuery() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(60000);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_COLUMN_CACHE_TTL_MINUTES)).thenReturn(60);
+        when(mockConfig.get(SynapseQueryBatcher.CONFIG_KEY_EXCLUDED_COLUMNS)).thenReturn("uploadDate");
+        batcher.setConfig(mockConfig);
+
+        // Upload date is excluded from the output, but the batch still needs it (and the health code) to split rows.
+        when(mockSynapseHelper.getColumnModelsForTable(TABLE_ID)).thenReturn(ImmutableList.of(
+                makeColumnModel("healthCode", ColumnType.STRING), makeColumnModel("uploadDate", ColumnType.DATE),
+                makeColumnModel("foo", ColumnType.STRING)));
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer writer = fileHelper.getWriter(targetFile)) {
+                writer.write("\"foo\",\"healthCode\",\"uploadDate\"\n" +
+                        "\"one-early\",\"health-code-1\",\"2018-03-02\"\n" +
+                        "\"two-middle\",\"health-code-2\",\"2018-03-08\"\n");
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq("csv-file-handle"), any(File.class));
+
+        File targetFile1 = fileHelper.newFile(tmpDir, "target1.csv");
+        File targetFile2 = fileHelper.newFile(tmpDir, "target2.csv");
+        Future<?> future1 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile1, jobProgress);
+            return null;
+        });
+        Future<?> future2 = executorService.submit(() -> {
+            batcher.downloadCsv(TABLE_ID, "health-code-2", START_DATE_2, END_DATE_2, tmpDir, targetFile2, jobProgress);
+            return null;
+        });
+        future1.get();
+        future2.get();
+
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockSynapseHelper).generateFileHandleFromTableQuery(queryCaptor.capture(), eq(TABLE_ID));
+        assertTrue(queryCaptor.getValue().startsWith("SELECT \"foo\",\"healthCode\",\"uploadDate\" FROM test-table " +
+                "WHERE healthCode IN ("));
+
+        // Each user only gets the projected column.
+        List<String[]> rowList1 = parseCsv(targetFile1);
+        assertEquals(rowList1.size(), 2);
+        assertEquals(rowList1.get(0), new String[] { "foo" });
+        assertEquals(rowList1.get(1), new String[] { "one-early" });
+
+        List<String[]> rowList2 = parseCsv(targetFile2);
+        assertEquals(rowList2.size(), 2);
+        assertEquals(rowList2.get(0), new String[] { "foo" });
+        assertEquals(rowList2.get(1), new String[] { "two-middle" });
+
+        fileHelper.deleteFile(targetFile1);
+        fileHelper.deleteFile(targetFile2);
+        postValidation();
+    }
+
+    @Test
+    public void columnModelErrorSelectsAllColumns() throws Exception {
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_BATCH_WINDOW_MILLIS)).thenReturn(0);
+        when(mockConfig.getInt(SynapseQueryBatcher.CONFIG_KEY_COLUMN_CACHE_TTL_MINUTES)).thenReturn(60);
+        batcher.setConfig(mockConfig);
+        when(mockSynapseHelper.getColumnModelsForTable(TABLE_ID)).thenThrow(TestSynapseException.class);
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        batcher.downloadCsv(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1, tmpDir, targetFile, jobProgress);
+        verify(mockSynapseHelper).startTableQuery(SINGLE_USER_QUERY, TABLE_ID);
+
+        // The error isn't cached. We try again next time.
+        assertEquals(batcher.makeSingleUserQuery(TABLE_ID, "health-code-1", START_DATE_1, END_DATE_1),
+                SINGLE_USER_QUERY);
+        verify(mockSynapseHelper, times(2)).getColumnModelsForTable(TABLE_ID);
+
+        fileHelper.deleteFile(targetFile);
+        postValidation();
+    }
+
+    private static ColumnModel makeColumnModel(String name, ColumnType columnType) {
+        ColumnModel columnModel = new ColumnModel();
+        columnModel.setName(name);
+        columnModel.setColumnType(columnType);
+        return columnModel;
+    }
+
+    private List<String[]> parseCsv(File csvFile) throws Exception {
+        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(csvFile))) {
+            return csvFileReader.readAll();
+        }
+    }
+
+    // We can't use an AfterMethod, because AfterMethod doesn't report which method failed.
+    private void postValidation() {
+        fileHelper.deleteDir(tmpDir);
+        assertTrue(fileHelper.isEmpty());
+    }
+}
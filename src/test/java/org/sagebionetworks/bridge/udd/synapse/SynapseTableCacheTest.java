@@ -0,0 +1,173 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class SynapseTableCacheTest {
+    private static final long MOCK_NOW_MILLIS = 1500000000000L;
+    private static final int TTL_MINUTES = 60;
+
+    private static final String TABLE_ID_FOO = "foo-table";
+    private static final String TABLE_ID_BAR = "bar-table";
+    private static final String ETAG_1 = "etag-1";
+    private static final String ETAG_2 = "etag-2";
+
+    private SynapseTableCache cache;
+    private AtomicInteger downloadCount;
+    private InMemoryFileHelper fileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        Config config = mock(Config.class);
+        when(config.getInt(SynapseTableCache.CONFIG_KEY_MAX_MB)).thenReturn(1);
+        when(config.getInt(SynapseTableCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(TTL_MINUTES);
+
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+
+        cache = new SynapseTableCache();
+        cache.setConfig(config);
+        cache.setFileHelper(fileHelper);
+
+        downloadCount = new AtomicInteger();
+    }
+
+    @AfterClass
+    public static void unmockNow() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void cacheHit() throws Exception {
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "foo content"), "foo content");
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "new foo content"), "foo content");
+        assertEquals(downloadCount.get(), 1);
+        assertEquals(cache.getTotalBytes(), "foo content".length());
+
+        postValidation();
+    }
+
+    @Test
+    public void etagChanged() throws Exception {
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "foo content"), "foo content");
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_2, "new foo content"), "new foo content");
+        assertEquals(downloadCount.get(), 2);
+
+        // Stale entry is replaced.
+        assertEquals(cache.getCachedTableIds(), ImmutableList.of(TABLE_ID_FOO));
+        assertEquals(cache.getTotalBytes(), "new foo content".length());
+
+        postValidation();
+    }
+
+    @Test
+    public void ttlExpired() throws Exception {
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "foo content"), "foo content");
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + TTL_MINUTES * 60 * 1000);
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "new foo content"), "new foo content");
+        assertEquals(downloadCount.get(), 2);
+
+        postValidation();
+    }
+
+    @Test
+    public void lruEviction() throws Exception {
+        // Cache can fit one of these, but not both.
+        cache.setMaxBytes(15);
+
+        getTable(TABLE_ID_FOO, ETAG_1, "foo content");
+        getTable(TABLE_ID_BAR, ETAG_1, "bar content");
+        assertEquals(cache.getCachedTableIds(), ImmutableList.of(TABLE_ID_BAR));
+        assertEquals(cache.getTotalBytes(), "bar content".length());
+
+        // Foo was evicted, so we download it again.
+        getTable(TABLE_ID_FOO, ETAG_1, "foo content");
+        assertEquals(downloadCount.get(), 3);
+        assertEquals(cache.getCachedTableIds(), ImmutableList.of(TABLE_ID_FOO));
+
+        postValidation();
+    }
+
+    @Test
+    public void downloadError() throws Exception {
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        try {
+            cache.copyTableToFile(TABLE_ID_FOO, ETAG_1, targetFile, cacheFile -> {
+                try (Writer writer = fileHelper.getWriter(cacheFile)) {
+                    writer.write("partial content");
+                }
+                throw new TestSynapseException();
+            });
+            fail("expected exception");
+        } catch (TestSynapseException ex) {
+            // expected exception
+        }
+        assertTrue(cache.getCachedTableIds().isEmpty());
+
+        // Next call retries the download.
+        assertEquals(getTable(TABLE_ID_FOO, ETAG_1, "foo content"), "foo content");
+        assertEquals(downloadCount.get(), 1);
+
+        postValidation();
+    }
+
+    @Test
+    public void destroyDeletesCacheDir() throws Exception {
+        getTable(TABLE_ID_FOO, ETAG_1, "foo content");
+        getTable(TABLE_ID_BAR, ETAG_1, "bar content");
+
+        cache.destroy();
+        assertTrue(cache.getCachedTableIds().isEmpty());
+        assertEquals(cache.getTotalBytes(), 0L);
+
+        // Only the test's own temp dir is left.
+        fileHelper.deleteDir(tmpDir);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    private String getTable(String tableId, String etag, String content) throws Exception {
+        File targetFile = fileHelper.newFile(tmpDir, tableId + ".csv");
+        cache.copyTableToFile(tableId, etag, targetFile, cacheFile -> {
+            downloadCount.incrementAndGet();
+            try (Writer writer = fileHelper.getWriter(cacheFile)) {
+                writer.write(content);
+            }
+        });
+
+        String result;
+        try (Reader reader = fileHelper.getReader(targetFile)) {
+            result = CharStreams.toString(reader);
+        }
+        fileHelper.deleteFile(targetFile);
+        return result;
+    }
+
+    // We can't use an AfterMethod, because AfterMethod doesn't report which method failed.
+    private void postValidation() {
+        cache.clear();
+        fileHelper.deleteDir(tmpDir);
+        assertTrue(fileHelper.isEmpty());
+    }
+}
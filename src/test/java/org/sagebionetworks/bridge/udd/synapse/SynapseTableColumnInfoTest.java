@@ -6,10 +6,12 @@ import static org.testng.Assert.assertTrue;
 import org.testng.annotations.Test;
 
 public class SynapseTableColumnInfoTest {
-    @Test(expectedExceptions = IllegalStateException.class,
-            expectedExceptionsMessageRegExp = ".*healthCodeColumnIndex.*")
-    public void nullHealthCodeIndex() {
-        new SynapseTableColumnInfo.Builder().build();
+    @Test
+    public void noHealthCodeIndex() {
+        SynapseTableColumnInfo colInfo = new SynapseTableColumnInfo.Builder().addFileHandleColumnIndex(2).build();
+        assertEquals(colInfo.getHealthCodeColumnIndex(), -1);
+        assertEquals(colInfo.getFileHandleColumnIndexSet().size(), 1);
+        assertTrue(colInfo.getFileHandleColumnIndexSet().contains(2));
     }
 
     @Test(expectedExceptions = IllegalStateException.class,
@@ -1,18 +1,25 @@
 package org.sagebionetworks.bridge.udd.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.Map;
 import java.util.Set;
 
@@ -21,11 +28,16 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.Phone;
@@ -33,8 +45,11 @@ import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.CachedUddArchive;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
+import org.sagebionetworks.bridge.udd.dynamodb.TablePresence;
+import org.sagebionetworks.bridge.udd.dynamodb.UddJobProgress;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
@@ -57,6 +72,19 @@ public class BridgeUddProcessorTest {
     public static final String HEALTH_CODE = "test-health-code";
     public static final String USER_ID = "test-user-id";
     public static final String STUDY_ID = "test-study";
+    private static final String REQUEST_KEY = STUDY_ID + ":" + HEALTH_CODE + ":2015-03-09:2015-03-31";
+
+    // The user's latest record is old enough that the archive can be cached.
+    private static final DateTime LATEST_RECORD_CREATED_ON = DateTime.parse("2015-04-10T12:00:00Z");
+    private static final int MIN_RECORD_AGE_HOURS = 24;
+
+    // Complete table presence for the user.
+    private static final Map<String, TablePresence> CACHEABLE_PRESENCE = ImmutableMap.of(DEFAULT_TABLE_ID,
+            new TablePresence.Builder().withSynapseTableId(DEFAULT_TABLE_ID)
+                    .withMinUploadDate(LocalDate.parse("2015-03-01")).withMaxUploadDate(LocalDate.parse("2015-04-10"))
+                    .build());
+    private static final String DEFAULT_WATERMARK = BridgeUddProcessor.makeDataWatermark(MOCK_SYNAPSE_TO_SCHEMA,
+            DEFAULT_TABLE_ID, MOCK_SURVEY_TABLE_ID_SET, CACHEABLE_PRESENCE, LATEST_RECORD_CREATED_ON);
 
     // non-mock test objects - We break inside these objects to get data.
     public static final AccountInfo USER_ID_ACCOUNT_INFO = new AccountInfo.Builder().withEmailAddress(EMAIL)
@@ -85,6 +113,8 @@ public class BridgeUddProcessorTest {
     // test members
     private BridgeUddProcessor callback;
     private BridgeHelper mockBridgeHelper;
+    private DynamoHelper mockDynamoHelper;
+    private UddJobProgress mockJobProgress;
     private SynapsePackager mockPackager;
     private SesHelper mockSesHelper;
     private SnsHelper mockSnsHelper;
@@ -103,12 +133,19 @@ public class BridgeUddProcessorTest {
         when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenReturn(USER_ID_ACCOUNT_INFO);
 
         // mock dynamo helper
-        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        mockDynamoHelper = mock(DynamoHelper.class);
         when(mockDynamoHelper.getDefaultSynapseTableForStudy(STUDY_ID)).thenReturn(DEFAULT_TABLE_ID);
         when(mockDynamoHelper.getStudy(STUDY_ID)).thenReturn(MOCK_STUDY_INFO);
         when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenReturn(MOCK_SYNAPSE_TO_SCHEMA);
         when(mockDynamoHelper.getSynapseSurveyTablesForStudy(STUDY_ID)).thenReturn(MOCK_SURVEY_TABLE_ID_SET);
 
+        // By default, the user's table presence isn't complete, so we query all tables.
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(null);
+        when(mockDynamoHelper.getLatestHealthDataRecordCreatedOn(HEALTH_CODE)).thenReturn(LATEST_RECORD_CREATED_ON);
+
+        mockJobProgress = mock(UddJobProgress.class);
+        when(mockDynamoHelper.getUddJobProgress(REQUEST_KEY)).thenReturn(mockJobProgress);
+
         // mock SES helper
         mockSesHelper = mock(SesHelper.class);
 
@@ -122,9 +159,15 @@ public class BridgeUddProcessorTest {
         mockSynapseHelper = mock(SynapseHelper.class);
         when(mockSynapseHelper.isSynapseWritable()).thenReturn(true);
 
+        // mock config
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeUddProcessor.CONFIG_KEY_RESULT_CACHE_MIN_RECORD_AGE_HOURS)).thenReturn(
+                MIN_RECORD_AGE_HOURS);
+
         // set up callback
         callback = new BridgeUddProcessor();
         callback.setBridgeHelper(mockBridgeHelper);
+        callback.setConfig(mockConfig);
         callback.setDynamoHelper(mockDynamoHelper);
         callback.setSesHelper(mockSesHelper);
         callback.setSnsHelper(mockSnsHelper);
@@ -140,12 +183,256 @@ public class BridgeUddProcessorTest {
         verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
     }
 
+    @Test
+    public void tablePresenceIndex() throws Exception {
+        // Study has 3 tables. User has data in A in the requested range, in B outside of the requested range, and no
+        // data in C or the default table.
+        UploadSchema schemaA = mock(UploadSchema.class);
+        UploadSchema schemaB = mock(UploadSchema.class);
+        UploadSchema schemaC = mock(UploadSchema.class);
+        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenReturn(ImmutableMap.of("table-a", schemaA,
+                "table-b", schemaB, "table-c", schemaC));
+
+        TablePresence presenceA = new TablePresence.Builder().withSynapseTableId("table-a")
+                .withMinUploadDate(LocalDate.parse("2015-03-01")).withMaxUploadDate(LocalDate.parse("2015-03-10"))
+                .build();
+        TablePresence presenceB = new TablePresence.Builder().withSynapseTableId("table-b")
+                .withMinUploadDate(LocalDate.parse("2015-04-01")).withMaxUploadDate(LocalDate.parse("2015-04-10"))
+                .build();
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(ImmutableMap.of("table-a",
+                presenceA, "table-b", presenceB));
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // Only table A is queried.
+        ArgumentCaptor<Map> synapseToSchemaCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(mockPackager).packageSynapseData(eq(STUDY_ID), synapseToSchemaCaptor.capture(), isNull(String.class),
+                eq(HEALTH_CODE), any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET),
+                eq(ImmutableMap.of("table-a", presenceA, "table-b", presenceB)), same(mockJobProgress));
+        assertEquals(synapseToSchemaCaptor.getValue(), ImmutableMap.of("table-a", schemaA));
+    }
+
+    @Test
+    public void tablePresenceIncomplete() throws Exception {
+        // Study has 2 tables. The user's table presence isn't complete, so we query both tables, and the default.
+        Map<String, UploadSchema> synapseToSchemaMap = ImmutableMap.of("table-a", mock(UploadSchema.class),
+                "table-b", mock(UploadSchema.class));
+        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenReturn(synapseToSchemaMap);
+
+        // Execute.
+        callback.process(userIdRequestJson);
+        verify(mockPackager).packageSynapseData(eq(STUDY_ID), same(synapseToSchemaMap), eq(DEFAULT_TABLE_ID),
+                eq(HEALTH_CODE), any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET), isNull(Map.class),
+                same(mockJobProgress));
+    }
+
     @Test
     public void byUserId() throws Exception {
         mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
         callback.process(userIdRequestJson);
         verifySesSendsData();
         verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
+
+        // Job is done, so its progress is cleared.
+        verify(mockJobProgress).clear();
+    }
+
+    @Test
+    public void archiveIsCached() throws Exception {
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(CACHEABLE_PRESENCE);
+
+        // The packager records the master zip in the job progress.
+        PresignedUrlInfo presignedUrlInfo = new PresignedUrlInfo.Builder().withUrl(new URL("http://example.com/"))
+                .withExpirationTime(DateTime.parse("2015-04-01T12:00:00Z")).build();
+        mockPackagerWithResult(presignedUrlInfo);
+        when(mockJobProgress.get(UddJobProgress.KEY_MASTER_ZIP)).thenReturn("master.zip");
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // Validate the cached archive.
+        ArgumentCaptor<CachedUddArchive> archiveCaptor = ArgumentCaptor.forClass(CachedUddArchive.class);
+        verify(mockDynamoHelper).putCachedUddArchive(eq(REQUEST_KEY), archiveCaptor.capture());
+
+        CachedUddArchive archive = archiveCaptor.getValue();
+        assertEquals(archive.getMasterZipFileName(), "master.zip");
+        assertEquals(archive.getWatermark(), DEFAULT_WATERMARK);
+        assertEquals(archive.getExpiresOn(), presignedUrlInfo.getExpirationTime());
+    }
+
+    @Test
+    public void cachedArchiveReused() throws Exception {
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(CACHEABLE_PRESENCE);
+        when(mockDynamoHelper.getCachedUddArchive(REQUEST_KEY)).thenReturn(makeCachedArchive(DEFAULT_WATERMARK));
+        when(mockPackager.generatePresignedUrlInfo("cached-master.zip")).thenReturn(MOCK_PRESIGNED_URL_INFO);
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // The user gets a fresh URL for the cached archive, and we don't query Synapse.
+        verifySesSendsData();
+        verify(mockPackager).generatePresignedUrlInfo("cached-master.zip");
+        verifyNoMoreInteractions(mockPackager);
+        verify(mockDynamoHelper, never()).putCachedUddArchive(anyString(), any());
+    }
+
+    @Test
+    public void cachedArchiveWatermarkChanged() throws Exception {
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(CACHEABLE_PRESENCE);
+
+        // The user's data changed since the archive was cached.
+        when(mockDynamoHelper.getCachedUddArchive(REQUEST_KEY)).thenReturn(makeCachedArchive("stale-watermark"));
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // We package the data again. The user's table presence is passed to the packager.
+        verifySesSendsData();
+        verify(mockPackager, never()).generatePresignedUrlInfo(anyString());
+        verify(mockPackager).packageSynapseData(eq(STUDY_ID), eq(MOCK_SYNAPSE_TO_SCHEMA), eq(DEFAULT_TABLE_ID),
+                eq(HEALTH_CODE), any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET), eq(CACHEABLE_PRESENCE),
+                same(mockJobProgress));
+    }
+
+    @Test
+    public void archiveCachedWithoutCompletePresence() throws Exception {
+        // The user's table presence isn't complete. The latest record still tells us if the user's data changed.
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        when(mockJobProgress.get(UddJobProgress.KEY_MASTER_ZIP)).thenReturn("master.zip");
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // We read and write the cache.
+        verifySesSendsData();
+        verify(mockDynamoHelper).getCachedUddArchive(REQUEST_KEY);
+        verify(mockDynamoHelper).putCachedUddArchive(eq(REQUEST_KEY), any());
+    }
+
+    @Test
+    public void archiveNotCachedWithRecentRecord() throws Exception {
+        // The user's latest record might not be in Synapse yet.
+        when(mockDynamoHelper.getLatestHealthDataRecordCreatedOn(HEALTH_CODE)).thenReturn(DateTime.now()
+                .minusHours(1));
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        when(mockJobProgress.get(UddJobProgress.KEY_MASTER_ZIP)).thenReturn("master.zip");
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // We neither read nor write the cache.
+        verifySesSendsData();
+        verify(mockDynamoHelper, never()).getCachedUddArchive(anyString());
+        verify(mockDynamoHelper, never()).putCachedUddArchive(anyString(), any());
+    }
+
+    @Test
+    public void archiveNotCachedIfLatestRecordLookupFails() throws Exception {
+        when(mockDynamoHelper.getLatestHealthDataRecordCreatedOn(HEALTH_CODE)).thenThrow(RuntimeException.class);
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        when(mockJobProgress.get(UddJobProgress.KEY_MASTER_ZIP)).thenReturn("master.zip");
+
+        // Execute.
+        callback.process(userIdRequestJson);
+
+        // The user still gets their data, but we neither read nor write the cache.
+        verifySesSendsData();
+        verify(mockDynamoHelper, never()).getCachedUddArchive(anyString());
+        verify(mockDynamoHelper, never()).putCachedUddArchive(anyString(), any());
+    }
+
+    @Test
+    public void isArchiveCacheable() {
+        DateTimeUtils.setCurrentMillisFixed(DateTime.parse("2015-04-10T12:00:00Z").getMillis());
+        try {
+            // No records.
+            assertFalse(BridgeUddProcessor.isArchiveCacheable(null, MIN_RECORD_AGE_HOURS));
+
+            // Latest record is old enough.
+            assertTrue(BridgeUddProcessor.isArchiveCacheable(DateTime.parse("2015-04-09T11:00:00Z"),
+                    MIN_RECORD_AGE_HOURS));
+
+            // Latest record is too recent.
+            assertFalse(BridgeUddProcessor.isArchiveCacheable(DateTime.parse("2015-04-09T13:00:00Z"),
+                    MIN_RECORD_AGE_HOURS));
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void cacheErrorFallsBackToPackaging() throws Exception {
+        when(mockDynamoHelper.getTablePresenceForUser(HEALTH_CODE)).thenReturn(CACHEABLE_PRESENCE);
+        when(mockDynamoHelper.getCachedUddArchive(REQUEST_KEY)).thenThrow(RuntimeException.class);
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+
+        // Execute.
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+    }
+
+    @Test
+    public void dataWatermark() {
+        UploadSchema schemaA = mock(UploadSchema.class);
+        UploadSchema schemaB = mock(UploadSchema.class);
+        TablePresence presenceA = new TablePresence.Builder().withSynapseTableId("table-a")
+                .withMinUploadDate(LocalDate.parse("2015-03-01")).withMaxUploadDate(LocalDate.parse("2015-03-10"))
+                .build();
+        String watermark = BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), DEFAULT_TABLE_ID, ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a",
+                presenceA), LATEST_RECORD_CREATED_ON);
+
+        // Iteration order doesn't matter.
+        assertEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-b", schemaB, "table-a", schemaA),
+                DEFAULT_TABLE_ID, ImmutableSet.of("survey-b", "survey-a"), ImmutableMap.of("table-a", presenceA),
+                LATEST_RECORD_CREATED_ON), watermark);
+
+        // New tables change the watermark.
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA), DEFAULT_TABLE_ID,
+                ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a", presenceA),
+                LATEST_RECORD_CREATED_ON), watermark);
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), null, ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a", presenceA),
+                LATEST_RECORD_CREATED_ON), watermark);
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), DEFAULT_TABLE_ID, ImmutableSet.of("survey-a"), ImmutableMap.of("table-a", presenceA),
+                LATEST_RECORD_CREATED_ON), watermark);
+
+        // New upload dates change the watermark.
+        TablePresence newPresenceA = new TablePresence.Builder().withSynapseTableId("table-a")
+                .withMinUploadDate(LocalDate.parse("2015-03-01")).withMaxUploadDate(LocalDate.parse("2015-03-11"))
+                .build();
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), DEFAULT_TABLE_ID, ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a",
+                newPresenceA), LATEST_RECORD_CREATED_ON), watermark);
+
+        // New records change the watermark.
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), DEFAULT_TABLE_ID, ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a",
+                presenceA), LATEST_RECORD_CREATED_ON.plusMinutes(1)), watermark);
+        assertNotEquals(BridgeUddProcessor.makeDataWatermark(ImmutableMap.of("table-a", schemaA, "table-b",
+                schemaB), DEFAULT_TABLE_ID, ImmutableSet.of("survey-a", "survey-b"), ImmutableMap.of("table-a",
+                presenceA), null), watermark);
+    }
+
+    @Test
+    public void packagerErrorKeepsProgress() throws Exception {
+        when(mockPackager.packageSynapseData(eq(STUDY_ID), same(MOCK_SYNAPSE_TO_SCHEMA), eq(DEFAULT_TABLE_ID),
+                eq(HEALTH_CODE), any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET), any(),
+                same(mockJobProgress)))
+                .thenThrow(IOException.class);
+        try {
+            callback.process(userIdRequestJson);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+
+        // The redelivered request resumes from the job progress.
+        verify(mockJobProgress, never()).clear();
+        verifyZeroInteractions(mockSesHelper, mockSnsHelper);
     }
 
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class)
@@ -252,9 +539,15 @@ public class BridgeUddProcessorTest {
         verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);        
     }
 
+    private static CachedUddArchive makeCachedArchive(String watermark) {
+        return new CachedUddArchive.Builder().withMasterZipFileName("cached-master.zip").withWatermark(watermark)
+                .withExpiresOn(DateTime.parse("2015-04-01T12:00:00Z")).build();
+    }
+
     private void mockPackagerWithResult(PresignedUrlInfo presignedUrlInfo) throws Exception {
-        when(mockPackager.packageSynapseData(eq(STUDY_ID), same(MOCK_SYNAPSE_TO_SCHEMA), eq(DEFAULT_TABLE_ID), eq(HEALTH_CODE),
-                any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET))).thenReturn(presignedUrlInfo);
+        when(mockPackager.packageSynapseData(eq(STUDY_ID), eq(MOCK_SYNAPSE_TO_SCHEMA), eq(DEFAULT_TABLE_ID), eq(HEALTH_CODE),
+                any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET), any(), same(mockJobProgress))).thenReturn(
+                presignedUrlInfo);
     }
 
     private void verifySesNoData() {
@@ -2,11 +2,18 @@ package org.sagebionetworks.bridge.workerPlatform.multiplexer;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
@@ -15,11 +22,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.notification.worker.NotificationEventProcessor;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
 import org.sagebionetworks.bridge.reporter.worker.BridgeReporterProcessor;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddProcessor;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.exceptions.WorkerBusyException;
 
 public class BridgeWorkerPlatformSqsCallbackTest {
     // simple strings for test
@@ -28,6 +37,13 @@ public class BridgeWorkerPlatformSqsCallbackTest {
     private static final String TEST_EMAIL = "zhizhen.lin@sagebase.org";
     private static final ReportType TEST_SCHEDULE_TYPE = ReportType.DAILY;
 
+    private static final String NOTIFICATION_EVENT_REQUEST = "{\n" +
+            "   \"studyId\":\"" + TEST_STUDY_ID + "\",\n" +
+            "   \"userId\":\"test-user\",\n" +
+            "   \"eventType\":\"ACTIVITY_COMPLETED\",\n" +
+            "   \"timestamp\":\"2016-10-19T12:00:00.000Z\"\n" +
+            "}";
+
     private static final String REQUEST_JSON_MSG = "{\n" +
             "   \"service\":\"REPORTER\",\n" +
             "   \"body\":" + "{\n" +
@@ -48,6 +64,11 @@ public class BridgeWorkerPlatformSqsCallbackTest {
             "   }\n" +
             "}";
 
+    private static final String REQUEST_JSON_NOTIFICATION_EVENT_MSG = "{\n" +
+            "   \"service\":\"NotificationEventWorker\",\n" +
+            "   \"body\":" + NOTIFICATION_EVENT_REQUEST + "\n" +
+            "}";
+
     private static final String REPORTER_REQUEST = "{\n" +
             "   \"scheduler\":\"" + TEST_SCHEDULER +"\",\n" +
             "   \"scheduleType\":\"" + TEST_SCHEDULE_TYPE.toString() + "\",\n" +
@@ -67,28 +88,34 @@ public class BridgeWorkerPlatformSqsCallbackTest {
     private static class TestException extends RuntimeException {
     }
 
+    private JsonNode notificationEventRequestJson;
     private JsonNode reporterRequestJson;
     private JsonNode uddRequestJson;
 
     // test members
     private BridgeWorkerPlatformSqsCallback callback;
+    private NotificationEventProcessor mockNotificationEventProcessor;
     private BridgeReporterProcessor mockReporterProcessor;
     private BridgeUddProcessor mockUddProcessor;
 
     @BeforeClass
     public void generalSetup() throws IOException {
+        notificationEventRequestJson = DefaultObjectMapper.INSTANCE.readValue(NOTIFICATION_EVENT_REQUEST,
+                JsonNode.class);
         reporterRequestJson = DefaultObjectMapper.INSTANCE.readValue(REPORTER_REQUEST, JsonNode.class);
         uddRequestJson = DefaultObjectMapper.INSTANCE.readValue(UDD_REQUEST, JsonNode.class);
     }
 
     @BeforeMethod
     public void setup() throws Exception {
+        mockNotificationEventProcessor = mock(NotificationEventProcessor.class);
         mockReporterProcessor = mock(BridgeReporterProcessor.class);
         mockUddProcessor = mock(BridgeUddProcessor.class);
 
         // set up callback
         callback = new BridgeWorkerPlatformSqsCallback();
         callback.setWorkersByServiceName(ImmutableMap.<String, ThrowingConsumer<JsonNode>>builder()
+                .put(Constants.SERVICE_TYPE_NOTIFICATION_EVENT, mockNotificationEventProcessor)
                 .put(Constants.SERVICE_TYPE_REPORTER, mockReporterProcessor::process)
                 .put(Constants.SERVICE_TYPE_UDD, mockUddProcessor::process)
                 .build());
@@ -118,6 +145,58 @@ public class BridgeWorkerPlatformSqsCallbackTest {
         callback.callback(REQUEST_JSON_UDD_MSG);
     }
 
+    @Test
+    public void testNotificationEvent() throws Exception {
+        callback.callback(REQUEST_JSON_NOTIFICATION_EVENT_MSG);
+        verify(mockNotificationEventProcessor).accept(eq(notificationEventRequestJson));
+    }
+
+    @Test
+    public void concurrentServicesRunWhileSerialServiceRuns() throws Exception {
+        // The reporter blocks until we release it.
+        CountDownLatch reporterStartedLatch = new CountDownLatch(1);
+        CountDownLatch releaseReporterLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            reporterStartedLatch.countDown();
+            releaseReporterLatch.await();
+            return null;
+        }).when(mockReporterProcessor).process(any());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> reporterFuture = executor.submit(() -> {
+                callback.callback(REQUEST_JSON_MSG);
+                return null;
+            });
+            reporterStartedLatch.await();
+
+            // UDD runs while the reporter is running.
+            callback.callback(REQUEST_JSON_UDD_MSG);
+            verify(mockUddProcessor).process(eq(uddRequestJson));
+
+            // So do notification events.
+            callback.callback(REQUEST_JSON_NOTIFICATION_EVENT_MSG);
+            verify(mockNotificationEventProcessor).accept(eq(notificationEventRequestJson));
+
+            // A second reporter request is cycled.
+            try {
+                callback.callback(REQUEST_JSON_MSG);
+                fail("expected exception");
+            } catch (WorkerBusyException ex) {
+                // expected exception
+            }
+
+            // Once the first reporter request finishes, the next one runs.
+            releaseReporterLatch.countDown();
+            reporterFuture.get();
+            callback.callback(REQUEST_JSON_MSG);
+            verify(mockReporterProcessor, times(2)).process(eq(reporterRequestJson));
+        } finally {
+            releaseReporterLatch.countDown();
+            executor.shutdown();
+        }
+    }
+
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class)
     public void malformedRequest() throws Exception {
         callback.callback("not json");